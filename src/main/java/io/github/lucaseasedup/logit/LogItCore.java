@@ -65,6 +65,9 @@ import io.github.lucaseasedup.logit.security.SecurityHelper;
 import io.github.lucaseasedup.logit.session.SessionManager;
 import io.github.lucaseasedup.logit.storage.CacheType;
 import io.github.lucaseasedup.logit.storage.DataType;
+import io.github.lucaseasedup.logit.storage.IndexType;
+import io.github.lucaseasedup.logit.storage.MirrorReplicator;
+import io.github.lucaseasedup.logit.storage.QueryProfiler;
 import io.github.lucaseasedup.logit.storage.Storage;
 import io.github.lucaseasedup.logit.storage.StorageFactory;
 import io.github.lucaseasedup.logit.storage.StorageType;
@@ -77,6 +80,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
@@ -497,15 +501,22 @@ public final class LogItCore
             getConfig("config.yml").getString("storage.accounts.keys.persistence")
         );
         
+        if (getConfig("config.yml").getBoolean("storage.profiling.enabled"))
+        {
+            queryProfiler = new QueryProfiler(getConfig("config.yml")
+                    .getTime("storage.profiling.slowQueryThreshold",
+                            TimeUnit.MILLISECONDS));
+        }
+        
         @SuppressWarnings("resource")
         Storage leadingAccountStorage =
-                new StorageFactory(getConfig("config.yml"), "storage.accounts.leading")
-                        .produceStorage(leadingStorageType);
+                new StorageFactory(getConfig("config.yml"), "storage.accounts.leading",
+                        queryProfiler).produceStorage(leadingStorageType);
         
         @SuppressWarnings("resource")
         Storage mirrorAccountStorage =
-                new StorageFactory(getConfig("config.yml"), "storage.accounts.mirror")
-                        .produceStorage(mirrorStorageType);
+                new StorageFactory(getConfig("config.yml"), "storage.accounts.mirror",
+                        queryProfiler).produceStorage(mirrorStorageType);
         
         CacheType accountCacheType = CacheType.decode(
                 getConfig("config.yml").getString("storage.accounts.leading.cache")
@@ -520,10 +531,43 @@ public final class LogItCore
         WrapperStorage accountStorage = new WrapperStorage.Builder()
                 .leading(leadingAccountStorage)
                 .cacheType(accountCacheType)
+                .columnarCache(getConfig("config.yml")
+                        .getBoolean("storage.accounts.leading.preloadedCache.columnar"))
+                .onDemandCacheMaxSize(getConfig("config.yml")
+                        .getInt("storage.accounts.leading.onDemandCache.maxSize"))
+                .onDemandCacheTtl(getConfig("config.yml")
+                        .getTime("storage.accounts.leading.onDemandCache.ttl",
+                                TimeUnit.MILLISECONDS))
+                .mirrorQueueCapacity(getConfig("config.yml")
+                        .getInt("storage.accounts.mirror.replicationQueueSize"))
                 .build();
         Map<String, String> unitMappings = new HashMap<>();
         unitMappings.put(leadingUnit, mirrorUnit);
-        accountStorage.mirrorStorage(mirrorAccountStorage, unitMappings);
+        
+        // A mirror that stores nothing cannot answer reads.
+        long mirrorMaxStaleness = MirrorReplicator.NO_READS;
+        
+        if (mirrorStorageType != StorageType.NONE
+                && getConfig("config.yml").getBoolean("storage.accounts.mirror.readRouting.enabled"))
+        {
+            mirrorMaxStaleness = getConfig("config.yml")
+                    .getTime("storage.accounts.mirror.readRouting.maxStaleness",
+                            TimeUnit.MILLISECONDS);
+        }
+        
+        accountStorage.mirrorStorage(mirrorAccountStorage, unitMappings,
+                mirrorMaxStaleness);
+        
+        // Keys that accounts are looked up by, besides the username.
+        Map<String, IndexType> accountIndexes = new LinkedHashMap<>();
+        accountIndexes.put(accountKeys.uuid(), IndexType.HASH);
+        accountIndexes.put(accountKeys.ip(), IndexType.HASH);
+        accountIndexes.put(accountKeys.email(), IndexType.HASH);
+        accountIndexes.put(accountKeys.last_active_date(), IndexType.SORTED);
+        
+        // The username is the primary key, so only the cache indexes it.
+        accountStorage.declareIndex(accountsUnit,
+                accountKeys.username(), IndexType.SORTED);
         
         try
         {
@@ -539,7 +583,7 @@ public final class LogItCore
         try
         {
             accountStorage.createUnit(accountsUnit,
-                    accountKeys, accountKeys.username());
+                    accountKeys, accountKeys.username(), accountIndexes);
         }
         catch (IOException ex)
         {
@@ -556,7 +600,15 @@ public final class LogItCore
             
             for (Map.Entry<String, DataType> e : accountKeys.entrySet())
             {
-                if (!existingKeys.containsKey(e.getKey()))
+                if (existingKeys.containsKey(e.getKey()))
+                    continue;
+                
+                if (accountIndexes.containsKey(e.getKey()))
+                {
+                    accountStorage.addKey(accountsUnit, e.getKey(), e.getValue(),
+                            accountIndexes.get(e.getKey()));
+                }
+                else
                 {
                     accountStorage.addKey(accountsUnit, e.getKey(), e.getValue());
                 }
@@ -582,6 +634,14 @@ public final class LogItCore
             log(Level.SEVERE, "Could not preload accounts", ex);
         }
         
+        if (getConfig("config.yml").getBoolean("storage.accounts.mirror.resync.onStartup"))
+        {
+            accountStorage.resyncMirror(mirrorAccountStorage, accountsUnit,
+                    getConfig("config.yml").getInt("storage.accounts.mirror.resync.rangeSize"),
+                    getConfig("config.yml").getTime("storage.accounts.mirror.resync.throttle",
+                            TimeUnit.MILLISECONDS));
+        }
+        
         try
         {
             disposables.add(accountManager = new AccountManager(
@@ -901,7 +961,7 @@ public final class LogItCore
         {
             try
             {
-                getAccountManager().getStorage().close();
+                getAccountManager().closeStorage();
             }
             catch (IOException ex)
             {
@@ -993,6 +1053,7 @@ public final class LogItCore
         commandSilencer = null;
         localeManager = null;
         accountManager = null;
+        queryProfiler = null;
         persistenceManager = null;
         securityHelper = null;
         backupManager = null;
@@ -1329,6 +1390,15 @@ public final class LogItCore
         return accountManager;
     }
     
+    /**
+     * @return the profiler of the account storages, or {@code null}
+     *         if profiling is disabled.
+     */
+    public QueryProfiler getQueryProfiler()
+    {
+        return queryProfiler;
+    }
+    
     public PersistenceManager getPersistenceManager()
     {
         return persistenceManager;
@@ -1421,6 +1491,7 @@ public final class LogItCore
     private CraftReflect craftReflect;
     private LocaleManager localeManager;
     private AccountManager accountManager;
+    private QueryProfiler queryProfiler;
     private PersistenceManager persistenceManager;
     private SecurityHelper securityHelper;
     private BackupManager backupManager;
@@ -1,6 +1,9 @@
 package io.github.lucaseasedup.logit.account;
 
 import static io.github.lucaseasedup.logit.message.MessageHelper.t;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import io.github.lucaseasedup.logit.CancelledState;
 import io.github.lucaseasedup.logit.LogItCoreObject;
 import io.github.lucaseasedup.logit.common.QueuedMap;
@@ -8,11 +11,13 @@ import io.github.lucaseasedup.logit.common.ReportedException;
 import io.github.lucaseasedup.logit.config.TimeUnit;
 import io.github.lucaseasedup.logit.logging.CustomLevel;
 import io.github.lucaseasedup.logit.session.SessionManager;
+import io.github.lucaseasedup.logit.storage.AsyncStorage;
 import io.github.lucaseasedup.logit.storage.Infix;
 import io.github.lucaseasedup.logit.storage.Selector;
 import io.github.lucaseasedup.logit.storage.SelectorCondition;
 import io.github.lucaseasedup.logit.storage.SelectorConstant;
-import io.github.lucaseasedup.logit.storage.Storage;
+import io.github.lucaseasedup.logit.storage.SelectorIn;
+import io.github.lucaseasedup.logit.storage.StorageCursor;
 import io.github.lucaseasedup.logit.storage.StorageDatum;
 import io.github.lucaseasedup.logit.storage.StorageEntry;
 import io.github.lucaseasedup.logit.storage.StorageObserver;
@@ -25,10 +30,15 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Level;
 import org.apache.commons.lang.StringUtils;
 import org.bukkit.Bukkit;
@@ -67,6 +77,9 @@ public final class AccountManager extends LogItCoreObject implements Runnable
         });
         
         this.storage = storage;
+        this.asyncStorage = new AsyncStorage.Builder()
+                .storage(storage)
+                .build();
         this.unit = unit;
         this.keys = keys;
         this.pinger = new StoragePinger(storage);
@@ -89,6 +102,7 @@ public final class AccountManager extends LogItCoreObject implements Runnable
     @Override
     public void dispose()
     {
+        asyncStorage = null;
         storage = null;
         unit = null;
         keys = null;
@@ -171,6 +185,9 @@ public final class AccountManager extends LogItCoreObject implements Runnable
         
         username = username.toLowerCase();
         
+        restoreSavingAccount(username);
+        restorePreloadedAccount(username);
+        
         Account cachedAccount = null;
         
         // If the buffer contains some information about this account.
@@ -277,6 +294,103 @@ public final class AccountManager extends LogItCoreObject implements Runnable
         return cachedAccount;
     }
     
+    /**
+     * Loads an account ahead of {@link #selectAccount(String, List)},
+     * so that the main thread does not wait for the storage when the account
+     * is selected within a few seconds, unless it has been written meanwhile.
+     * 
+     * <p> The account is read through the asynchronous storage,
+     * after the pending buffer flushes. This method waits for it,
+     * so it must not be called on the main thread.
+     * 
+     * @param username  the username of an account to be loaded.
+     * @param queryKeys the account keys to be loaded.
+     * 
+     * @throws IllegalArgumentException if {@code username} or
+     *                                  {@code queryKeys} is {@code null}.
+     */
+    public void preloadAccount(String username, List<String> queryKeys)
+    {
+        if (username == null || queryKeys == null)
+            throw new IllegalArgumentException();
+        
+        username = username.toLowerCase();
+        
+        ListenableFuture<List<StorageEntry>> future;
+        long preloadWriteCount;
+        
+        synchronized (this)
+        {
+            // This manager may have been disposed of by another thread.
+            if (asyncStorage == null)
+                return;
+            
+            if (!queryKeys.contains(keys.username()))
+                throw new IllegalArgumentException("Missing query key: username");
+            
+            if (buffer.containsKey(username) || isSaving(username))
+                return;
+            
+            try
+            {
+                future = asyncStorage.selectEntries(unit, queryKeys,
+                        new SelectorCondition(keys.username(), Infix.EQUALS, username));
+            }
+            catch (RejectedExecutionException ex)
+            {
+                return;
+            }
+            
+            preloadWriteCount = writeCount;
+        }
+        
+        List<StorageEntry> entries;
+        
+        try
+        {
+            entries = future.get();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            
+            return;
+        }
+        catch (ExecutionException ex)
+        {
+            log(Level.WARNING, ex.getCause());
+            
+            return;
+        }
+        catch (CancellationException ex)
+        {
+            return;
+        }
+        
+        synchronized (this)
+        {
+            // The entry may be outdated if accounts have been written meanwhile.
+            if (buffer == null || writeCount != preloadWriteCount)
+                return;
+            
+            long now = System.currentTimeMillis();
+            Iterator<PreloadedAccount> it = preloadedAccounts.values().iterator();
+            
+            // Drop the accounts of players who never got to log in.
+            while (it.hasNext())
+            {
+                if (now - it.next().loadTime > PRELOAD_TIMEOUT)
+                {
+                    it.remove();
+                }
+            }
+            
+            preloadedAccounts.put(username, new PreloadedAccount(
+                    entries.isEmpty() ? null : entries.get(0), now
+            ));
+        }
+    }
+    
     public synchronized List<Account> selectAccounts(
             List<String> queryKeys, Selector selector
     )
@@ -310,6 +424,7 @@ public final class AccountManager extends LogItCoreObject implements Runnable
             String username = entry.get(keys().username()).toLowerCase();
             
             registrationCache.put(username, true);
+            restoreSavingAccount(username);
             
             if (buffer.get(username) != null)
             {
@@ -332,6 +447,102 @@ public final class AccountManager extends LogItCoreObject implements Runnable
         return accounts;
     }
     
+    /**
+     * Selects accounts like {@link #selectAccounts(List, Selector)},
+     * but lets the storage read them from a mirror that may lag behind
+     * within its staleness bound.
+     * 
+     * <p> The accounts are neither buffered nor remembered as registered,
+     * so this method only suits reads that do not authenticate anyone,
+     * such as statistics or tab completion.
+     * 
+     * @see WrapperStorage#selectStaleEntries(String, List, Selector)
+     */
+    public List<Account> selectStaleAccounts(
+            List<String> queryKeys, Selector selector
+    )
+    {
+        if (queryKeys == null || selector == null)
+            throw new IllegalArgumentException();
+        
+        if (!queryKeys.contains(keys.username()))
+            throw new IllegalArgumentException("Missing query key: username");
+        
+        List<StorageEntry> entries = null;
+        
+        // The storage is read without holding this manager,
+        // so logins need not wait for the read.
+        try
+        {
+            entries = storage.selectStaleEntries(unit, queryKeys, selector);
+        }
+        catch (IOException ex)
+        {
+            log(Level.WARNING, ex);
+            
+            ReportedException.throwNew(ex);
+        }
+        
+        if (entries == null)
+            return null;
+        
+        List<Account> accounts = new ArrayList<>(entries.size());
+        
+        synchronized (this)
+        {
+            for (StorageEntry entry : entries)
+            {
+                String username = entry.get(keys().username()).toLowerCase();
+                
+                if (buffer.get(username) != null)
+                {
+                    for (StorageDatum datum : buffer.get(username).getEntry())
+                    {
+                        entry.put(datum.getKey(), datum.getValue());
+                    }
+                }
+                
+                accounts.add(new Account(entry, false));
+            }
+        }
+        
+        return accounts;
+    }
+    
+    /**
+     * Counts the accounts matching a selector without fetching them.
+     * 
+     * <p> Changes to buffered accounts that have not been written
+     * to the storage yet are not taken into account.
+     * 
+     * @param selector the selector that accounts must match.
+     * 
+     * @return the number of accounts, or {@code -1} if an I/O error occurred.
+     * 
+     * @throws IllegalArgumentException if {@code selector} is {@code null}.
+     * 
+     * @throws ReportedException        if an I/O error occurred,
+     *                                  and it was reported to the logger.
+     */
+    public long countAccounts(Selector selector)
+    {
+        if (selector == null)
+            throw new IllegalArgumentException();
+        
+        try
+        {
+            return storage.count(unit, selector);
+        }
+        catch (IOException ex)
+        {
+            log(Level.WARNING, ex);
+            
+            ReportedException.throwNew(ex);
+            
+            return -1;
+        }
+    }
+    
     public boolean isRegistered(
             String username, RegistrationFetchMode fetchMode
     )
@@ -382,23 +593,36 @@ public final class AccountManager extends LogItCoreObject implements Runnable
         return isRegistered(username, RegistrationFetchMode.STORAGE_ONLY);
     }
     
-    private boolean fetchRegistrationStatus(String username)
+    private synchronized boolean fetchRegistrationStatus(String username)
     {
-        Account account;
-        
         if (buffer.containsKey(username))
+            return buffer.get(username) != null;
+        
+        boolean registered;
+        
+        try
         {
-            account = buffer.get(username);
+            registered = storage.exists(
+                    unit,
+                    new SelectorCondition(
+                            keys.username(),
+                            Infix.EQUALS,
+                            username
+                    )
+            );
         }
-        else
+        catch (IOException ex)
         {
-            account = selectAccount(
-                    username,
-                    Arrays.asList(keys.username())
-            );
+            log(Level.WARNING, ex);
+            
+            ReportedException.throwNew(ex);
+            
+            return false;
         }
         
-        return account != null;
+        registrationCache.put(username, registered);
+        
+        return registered;
     }
     
     /**
@@ -412,21 +636,29 @@ public final class AccountManager extends LogItCoreObject implements Runnable
      */
     public Set<String> getRegisteredUsernames()
     {
-        List<Account> accounts = selectAccounts(
-                Arrays.asList(
-                        keys().username()
-                ),
-                new SelectorConstant(true)
-        );
-        
-        if (accounts == null)
-            return null;
-        
-        Set<String> usernames = new LinkedHashSet<>(accounts.size());
+        Set<String> usernames = new LinkedHashSet<>();
         
-        for (Account account : accounts)
+        // Stream the usernames rather than load every account into the buffer.
+        try (
+                StorageCursor entries = storage.selectCursor(
+                        unit,
+                        Arrays.asList(keys().username()),
+                        new SelectorConstant(true)
+                );
+        )
         {
-            usernames.add(account.getUsername());
+            while (entries.hasNext())
+            {
+                usernames.add(entries.next().get(keys().username()).toLowerCase());
+            }
+        }
+        catch (IOException ex)
+        {
+            log(Level.WARNING, ex);
+            
+            ReportedException.throwNew(ex);
+            
+            return null;
         }
         
         return usernames;
@@ -437,6 +669,8 @@ public final class AccountManager extends LogItCoreObject implements Runnable
         if (account == null)
             throw new IllegalArgumentException();
         
+        beforeWrite(account.getUsername());
+        
         AccountEvent event = new AccountInsertEvent(account.getEntry());
         
         Bukkit.getPluginManager().callEvent(event);
@@ -480,28 +714,113 @@ public final class AccountManager extends LogItCoreObject implements Runnable
         if (accounts == null)
             throw new IllegalArgumentException();
         
+        for (Account account : accounts)
+        {
+            beforeWrite(account.getUsername());
+        }
+        
+        List<Account> insertedAccounts = new ArrayList<>(accounts.length);
+        List<AccountEvent> events = new ArrayList<>(accounts.length);
+        List<StorageEntry> entries = new ArrayList<>(accounts.length);
+        
+        for (Account account : accounts)
+        {
+            AccountEvent event = new AccountInsertEvent(account.getEntry());
+            
+            Bukkit.getPluginManager().callEvent(event);
+            
+            if (event.isCancelled())
+                continue;
+            
+            insertedAccounts.add(account);
+            events.add(event);
+            entries.add(account.getEntry());
+        }
+        
+        if (entries.isEmpty())
+            return;
+        
         try
         {
-            storage.setAutobatchEnabled(true);
+            storage.addEntries(unit, entries);
+        }
+        catch (IOException ex)
+        {
+            log(Level.WARNING, ex);
             
-            for (Account account : accounts)
+            for (AccountEvent event : events)
             {
-                insertAccount(account);
+                event.executeFailureTasks();
             }
             
-            storage.executeBatch();
-            storage.clearBatch();
+            ReportedException.throwNew(ex);
+            
+            return;
+        }
+        
+        for (int i = 0; i < insertedAccounts.size(); i++)
+        {
+            Account account = insertedAccounts.get(i);
+            StorageEntry entry = entries.get(i);
+            
+            for (StorageDatum datum : entry)
+            {
+                entry.clearKeyDirty(datum.getKey());
+            }
+            
+            buffer.put(account.getUsername(), account);
+            
+            log(Level.FINE, t("createAccount.success.log")
+                    .replace("{0}", account.getUsername()));
+            
+            events.get(i).executeSuccessTasks();
+        }
+    }
+    
+    /**
+     * Writes an account to the underlying storage unit in a single operation,
+     * inserting it if no account with the same username is stored yet,
+     * or overwriting the stored one otherwise.
+     * 
+     * <p> Unlike {@link #insertAccount}, this method does not emit
+     * the {@code AccountInsertEvent} event.
+     * 
+     * @param account the account to be saved.
+     * 
+     * @throws IllegalArgumentException if {@code account} is {@code null}.
+     * 
+     * @throws ReportedException        if an I/O error occurred,
+     *                                  and it was reported to the logger.
+     */
+    public synchronized void saveAccount(Account account)
+    {
+        if (account == null)
+            throw new IllegalArgumentException();
+        
+        beforeWrite(account.getUsername());
+        
+        StorageEntry entry = account.getEntry();
+        
+        try
+        {
+            storage.upsertEntry(unit, keys.username(), entry);
         }
         catch (IOException ex)
         {
             log(Level.WARNING, ex);
             
             ReportedException.throwNew(ex);
+            
+            return;
         }
-        finally
+        
+        for (StorageDatum datum : entry)
         {
-            storage.setAutobatchEnabled(false);
+            entry.clearKeyDirty(datum.getKey());
         }
+        
+        buffer.put(account.getUsername(), account);
+        registrationCache.put(account.getUsername().toLowerCase(), true);
     }
     
     public synchronized void renameAccount(String username, String newUsername)
@@ -514,6 +833,9 @@ public final class AccountManager extends LogItCoreObject implements Runnable
         username = username.toLowerCase();
         newUsername = newUsername.toLowerCase();
         
+        beforeWrite(username);
+        beforeWrite(newUsername);
+        
         try
         {
             storage.updateEntries(unit,
@@ -578,6 +900,8 @@ public final class AccountManager extends LogItCoreObject implements Runnable
         if (StringUtils.isBlank(username))
             throw new IllegalArgumentException();
         
+        beforeWrite(username);
+        
         username = username.toLowerCase();
         
         AccountEvent event = new AccountRemoveEvent(username);
@@ -618,36 +942,90 @@ public final class AccountManager extends LogItCoreObject implements Runnable
         return CancelledState.NOT_CANCELLED;
     }
     
+    /**
+     * Removes accounts with the given usernames from the underlying storage
+     * unit in a single operation.
+     * 
+     * <p> This method emits the {@code AccountRemoveEvent} event
+     * for every account; the accounts whose events have been cancelled
+     * are not removed.
+     * 
+     * @param usernames the usernames of accounts to be removed.
+     * 
+     * @throws IllegalArgumentException if {@code usernames} is {@code null}
+     *                                  or any of them is {@code null} or blank.
+     * 
+     * @throws ReportedException        if an I/O error occurred,
+     *                                  and it was reported to the logger.
+     */
     public synchronized void removeAccounts(String... usernames)
     {
         if (usernames == null)
             throw new IllegalArgumentException();
         
-        try
+        for (String username : usernames)
         {
-            storage.setAutobatchEnabled(true);
+            beforeWrite(username);
+        }
+        
+        List<String> removedUsernames = new ArrayList<>(usernames.length);
+        List<AccountEvent> events = new ArrayList<>(usernames.length);
+        
+        for (String username : usernames)
+        {
+            if (StringUtils.isBlank(username))
+                throw new IllegalArgumentException();
             
-            for (String username : usernames)
-            {
-                removeAccount(username);
-            }
+            username = username.toLowerCase();
             
-            storage.executeBatch();
-            storage.clearBatch();
+            AccountEvent event = new AccountRemoveEvent(username);
+            
+            Bukkit.getPluginManager().callEvent(event);
+            
+            if (event.isCancelled())
+                continue;
+            
+            removedUsernames.add(username);
+            events.add(event);
+        }
+        
+        if (removedUsernames.isEmpty())
+            return;
+        
+        try
+        {
+            storage.removeEntries(
+                    unit,
+                    new SelectorIn(keys.username(), removedUsernames)
+            );
         }
         catch (IOException ex)
         {
-            log(Level.WARNING, ex);
+            for (int i = 0; i < removedUsernames.size(); i++)
+            {
+                log(Level.WARNING, t("removeAccount.fail.log")
+                        .replace("{0}", removedUsernames.get(i)), ex);
+                
+                events.get(i).executeFailureTasks();
+            }
             
             ReportedException.throwNew(ex);
+            
+            return;
         }
-        finally
+        
+        for (int i = 0; i < removedUsernames.size(); i++)
         {
-            storage.setAutobatchEnabled(false);
+            buffer.put(removedUsernames.get(i), null);
+            
+            log(Level.WARNING, t("removeAccount.success.log")
+                    .replace("{0}", removedUsernames.get(i)));
+            
+            events.get(i).executeSuccessTasks();
         }
     }
     
-    private void flushBuffer()
+    private synchronized void flushBuffer()
     {
         if (buffer == null || buffer.isEmpty())
             return;
@@ -722,47 +1100,221 @@ public final class AccountManager extends LogItCoreObject implements Runnable
         log(CustomLevel.INTERNAL, "AccountManager#flushBuffer() {"
                 + "dirtyEntries.size() = " + dirtyEntries.size() + "}");
         
+        Map<String, StorageEntry> entrySubsets = new LinkedHashMap<>();
+        
+        for (Map.Entry<String, StorageEntry> e : dirtyEntries.entrySet())
+        {
+            entrySubsets.put(e.getKey().toLowerCase(), e.getValue());
+        }
+        
+        if (asyncStorage != null && !asyncStorage.isShutdown())
+        {
+            flushAsynchronously(dirtyAccounts, entrySubsets);
+            
+            log(CustomLevel.INTERNAL, "end-of #flushBuffer()");
+            
+            return;
+        }
+        
+        boolean saved;
+        
+        try
+        {
+            storage.updateEntriesByKey(unit, keys.username(), entrySubsets);
+            
+            saved = true;
+        }
+        catch (IOException ex)
+        {
+            log(Level.WARNING, ex);
+            
+            saved = false;
+        }
+        
+        for (Account account : dirtyAccounts.values())
+        {
+            account.runSaveCallbacks(saved);
+        }
+        
+        log(CustomLevel.INTERNAL, "end-of #flushBuffer()");
+    }
+    
+    /**
+     * Writes the dirty entries of a buffer flush through the asynchronous
+     * storage. Until they are written, the accounts are kept aside,
+     * so that they are not read back from the storage in an older state.
+     */
+    private void flushAsynchronously(
+            final Map<String, Account> dirtyAccounts,
+            Map<String, StorageEntry> entrySubsets
+    )
+    {
+        ListenableFuture<Void> future;
+        
         try
         {
-            storage.setAutobatchEnabled(true);
+            future = asyncStorage.updateEntriesByKey(
+                    unit, keys.username(), entrySubsets
+            );
+        }
+        catch (RejectedExecutionException ex)
+        {
+            log(Level.WARNING, ex);
             
-            for (Map.Entry<String, StorageEntry> e : dirtyEntries.entrySet())
+            for (Account account : dirtyAccounts.values())
             {
-                try
+                account.runSaveCallbacks(false);
+            }
+            
+            return;
+        }
+        
+        synchronized (savingAccounts)
+        {
+            savingAccounts.putAll(dirtyAccounts);
+        }
+        
+        pendingFlush = future;
+        writeCount++;
+        preloadedAccounts.keySet().removeAll(dirtyAccounts.keySet());
+        
+        Futures.addCallback(future, new FutureCallback<Void>()
+        {
+            @Override
+            public void onSuccess(Void result)
+            {
+                finishFlush(dirtyAccounts, true);
+            }
+            
+            @Override
+            public void onFailure(Throwable throwable)
+            {
+                log(Level.WARNING, throwable);
+                
+                finishFlush(dirtyAccounts, false);
+            }
+        });
+    }
+    
+    /**
+     * Called on an I/O thread once the entries of a buffer flush
+     * have been written, or have failed to be.
+     */
+    private void finishFlush(
+            final Map<String, Account> dirtyAccounts, final boolean saved
+    )
+    {
+        // Not synchronized on this manager, whose lock may be held
+        // by the main thread waiting for a later flush.
+        synchronized (savingAccounts)
+        {
+            for (Map.Entry<String, Account> e : dirtyAccounts.entrySet())
+            {
+                // A later flush may have taken the account aside again.
+                if (savingAccounts.get(e.getKey()) == e.getValue())
                 {
-                    storage.updateEntries(
-                            unit,
-                            e.getValue(),
-                            new SelectorCondition(
-                                    keys.username(),
-                                    Infix.EQUALS,
-                                    e.getKey().toLowerCase()
-                            )
-                    );
-                    
-                    dirtyAccounts.get(e.getKey()).runSaveCallbacks(true);
+                    savingAccounts.remove(e.getKey());
                 }
-                catch (IOException ex)
+            }
+        }
+        
+        Runnable saveCallbacks = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for (Account account : dirtyAccounts.values())
                 {
-                    log(Level.WARNING, ex);
-                    
-                    dirtyAccounts.get(e.getKey()).runSaveCallbacks(false);
+                    account.runSaveCallbacks(saved);
                 }
             }
-            
-            storage.executeBatch();
-            storage.clearBatch();
+        };
+        
+        // While the plugin is being disabled, the main thread
+        // is waiting for this flush and cannot run tasks.
+        if (getPlugin().isEnabled())
+        {
+            Bukkit.getScheduler().runTask(getPlugin(), saveCallbacks);
         }
-        catch (IOException ex)
+        else
         {
-            log(Level.WARNING, ex);
+            saveCallbacks.run();
         }
-        finally
+    }
+    
+    /**
+     * Prepares for a write of an account made on the calling thread:
+     * waits for the last asynchronous buffer flush to finish, so that
+     * it cannot overwrite the write, and drops the preloaded account.
+     */
+    private void beforeWrite(String username)
+    {
+        writeCount++;
+        preloadedAccounts.remove(username.toLowerCase());
+        
+        if (pendingFlush == null)
+            return;
+        
+        try
+        {
+            pendingFlush.get();
+        }
+        catch (InterruptedException ex)
         {
-            storage.setAutobatchEnabled(false);
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException | CancellationException ex)
+        {
+            // Reported by the flush itself.
         }
         
-        log(CustomLevel.INTERNAL, "end-of #flushBuffer()");
+        pendingFlush = null;
+    }
+    
+    /**
+     * Puts an account whose changes are still being written back into
+     * the buffer, as it is newer than what the storage would return.
+     */
+    private void restoreSavingAccount(String username)
+    {
+        Account savingAccount;
+        
+        synchronized (savingAccounts)
+        {
+            savingAccount = savingAccounts.get(username);
+        }
+        
+        if (savingAccount != null && !buffer.containsKey(username))
+        {
+            buffer.put(username, savingAccount);
+        }
+    }
+    
+    /**
+     * Puts a preloaded account into the buffer, unless the buffer
+     * already knows about it.
+     */
+    private void restorePreloadedAccount(String username)
+    {
+        PreloadedAccount preloadedAccount = preloadedAccounts.remove(username);
+        
+        if (preloadedAccount == null || buffer.containsKey(username)
+                || System.currentTimeMillis() - preloadedAccount.loadTime > PRELOAD_TIMEOUT)
+        {
+            return;
+        }
+        
+        registrationCache.put(username, preloadedAccount.entry != null);
+        buffer.put(username, (preloadedAccount.entry != null)
+                ? new Account(preloadedAccount.entry, false) : null);
+    }
+    
+    private boolean isSaving(String username)
+    {
+        synchronized (savingAccounts)
+        {
+            return savingAccounts.containsKey(username);
+        }
     }
     
     private void discardBuffer()
@@ -770,11 +1322,37 @@ public final class AccountManager extends LogItCoreObject implements Runnable
         buffer.clear();
     }
     
-    public Storage getStorage()
+    public WrapperStorage getStorage()
     {
         return storage;
     }
     
+    /**
+     * Closes the account storage, letting the operations submitted through
+     * {@link #getAsyncStorage()} finish first; the buffer is then flushed
+     * on the calling thread.
+     * 
+     * <p> The asynchronous storage is shut down beforehand, since the storage
+     * is locked while it closes and pending operations would wait for it.
+     */
+    public void closeStorage() throws IOException
+    {
+        asyncStorage.shutdown();
+        storage.close();
+    }
+    
+    /**
+     * Returns a view of the account storage whose entry operations
+     * run off the calling thread.
+     * 
+     * <p> Operations on the account unit submitted through it are executed
+     * in order, but not in order with the ones made through {@link #getStorage()}.
+     */
+    public AsyncStorage getAsyncStorage()
+    {
+        return asyncStorage;
+    }
+    
     public String getUnit()
     {
         return unit;
@@ -790,7 +1368,28 @@ public final class AccountManager extends LogItCoreObject implements Runnable
         CACHE_ELSE_TRUE, CACHE_ELSE_FALSE, STORAGE_FALLBACK, STORAGE_ONLY;
     }
     
-    private Storage storage;
+    private static final class PreloadedAccount
+    {
+        public PreloadedAccount(StorageEntry entry, long loadTime)
+        {
+            this.entry = entry;
+            this.loadTime = loadTime;
+        }
+        
+        /**
+         * The entry of the account; {@code null} if it does not exist.
+         */
+        public final StorageEntry entry;
+        public final long loadTime;
+    }
+    
+    /**
+     * How long, in milliseconds, a preloaded account may be used for.
+     */
+    private static final long PRELOAD_TIMEOUT = 10000L;
+    
+    private WrapperStorage storage;
+    private AsyncStorage asyncStorage;
     private String unit;
     private AccountKeys keys;
     private BukkitRunnable pinger;
@@ -799,4 +1398,18 @@ public final class AccountManager extends LogItCoreObject implements Runnable
     private Map<String, Boolean> registrationCache = new HashMap<>();
     private BufferedWriter bufferUsageGraphWriter;
     private boolean bufferUsageGraphTouched = false;
+    
+    /**
+     * Accounts flushed through the asynchronous storage
+     * whose entries have not been written yet, by their usernames.
+     */
+    private final Map<String, Account> savingAccounts = new HashMap<>();
+    private ListenableFuture<Void> pendingFlush;
+    
+    /**
+     * The number of account writes started so far,
+     * which tells preloads whether what they read is still current.
+     */
+    private long writeCount = 0;
+    private final Map<String, PreloadedAccount> preloadedAccounts = new HashMap<>();
 }
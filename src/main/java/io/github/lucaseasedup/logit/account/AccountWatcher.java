@@ -3,12 +3,17 @@ package io.github.lucaseasedup.logit.account;
 import io.github.lucaseasedup.logit.LogItCoreObject;
 import io.github.lucaseasedup.logit.config.TimeUnit;
 import io.github.lucaseasedup.logit.storage.Infix;
+import io.github.lucaseasedup.logit.storage.Selector;
 import io.github.lucaseasedup.logit.storage.SelectorBinary;
 import io.github.lucaseasedup.logit.storage.SelectorCondition;
+import io.github.lucaseasedup.logit.storage.SelectorIn;
 import io.github.lucaseasedup.logit.storage.SelectorNegation;
+import io.github.lucaseasedup.logit.storage.StorageCursor;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.logging.Level;
 
 public final class AccountWatcher extends LogItCoreObject implements Runnable
 {
@@ -29,39 +34,71 @@ public final class AccountWatcher extends LogItCoreObject implements Runnable
                 getConfig("config.yml").getTime("automaticAccountDeletion.inactivityTime",
                         TimeUnit.SECONDS);
         
-        List<Account> accounts = getAccountManager().selectAccounts(
-                Arrays.asList(keys().username(), keys().last_active_date()),
-                new SelectorBinary(
-                    new SelectorCondition(
-                        keys().last_active_date(),
-                        Infix.GREATER_THAN,
-                        "0"
-                    ),
-                    Infix.AND,
-                    new SelectorNegation(
-                        new SelectorCondition(
-                            keys().last_active_date(),
-                            Infix.GREATER_THAN,
-                            String.valueOf(now - inactivityTime)
-                        )
-                    )
+        Selector selector = new SelectorBinary(
+            new SelectorCondition(
+                keys().last_active_date(),
+                Infix.GREATER_THAN,
+                "0"
+            ),
+            Infix.AND,
+            new SelectorNegation(
+                new SelectorCondition(
+                    keys().last_active_date(),
+                    Infix.GREATER_THAN,
+                    String.valueOf(now - inactivityTime)
                 )
+            )
         );
+        List<String> accountsToDelete = new ArrayList<>();
         
-        if (!accounts.isEmpty())
+        try (
+                StorageCursor entries = getAccountManager().getStorage().selectStaleCursor(
+                        getAccountManager().getUnit(),
+                        Arrays.asList(keys().username()),
+                        selector
+                );
+        )
         {
-            List<String> accountsToDelete = new ArrayList<>();
-            
-            for (Account account : accounts)
+            while (entries.hasNext())
             {
-                String username = account.getUsername();
+                String username = entries.next().get(keys().username()).toLowerCase();
                 
                 if (!getSessionManager().isSessionAlive(username))
                 {
                     accountsToDelete.add(username);
                 }
             }
+        }
+        catch (IOException ex)
+        {
+            log(Level.WARNING, ex);
             
+            return;
+        }
+        
+        if (accountsToDelete.isEmpty())
+            return;
+        
+        // The scan may have been served by a lagging mirror, so accounts
+        // are checked again against the leading storage before deletion.
+        List<Account> accounts = getAccountManager().selectAccounts(
+                Arrays.asList(keys().username(), keys().last_active_date()),
+                new SelectorIn(keys().username(), accountsToDelete)
+        );
+        
+        accountsToDelete.clear();
+        
+        for (Account account : accounts)
+        {
+            if (account.getLastActiveDate() > 0
+                    && account.getLastActiveDate() <= now - inactivityTime)
+            {
+                accountsToDelete.add(account.getUsername());
+            }
+        }
+        
+        if (!accountsToDelete.isEmpty())
+        {
             getAccountManager().removeAccounts(
                     accountsToDelete.toArray(new String[accountsToDelete.size()])
             );
@@ -6,8 +6,10 @@ import io.github.lucaseasedup.logit.account.AccountManager;
 import io.github.lucaseasedup.logit.common.ReportedException;
 import io.github.lucaseasedup.logit.common.Timer;
 import io.github.lucaseasedup.logit.config.TimeUnit;
+import io.github.lucaseasedup.logit.storage.SelectorConstant;
 import io.github.lucaseasedup.logit.storage.SqliteStorage;
 import io.github.lucaseasedup.logit.storage.Storage;
+import io.github.lucaseasedup.logit.storage.StorageCursor;
 import io.github.lucaseasedup.logit.storage.StorageEntry;
 import io.github.lucaseasedup.logit.storage.UnitKeys;
 import java.io.File;
@@ -160,10 +162,13 @@ public final class BackupManager extends LogItCoreObject implements Runnable
                 accountManager.getStorage().getKeys(accountManager.getUnit());
         String primaryKey =
                 accountManager.getStorage().getPrimaryKey(accountManager.getUnit());
-        List<StorageEntry> entries =
-                accountManager.getStorage().selectEntries(accountManager.getUnit());
         
-        try (Storage backupStorage = new SqliteStorage("jdbc:sqlite:" + backupFile))
+        try (
+                Storage backupStorage = new SqliteStorage("jdbc:sqlite:" + backupFile);
+                StorageCursor entries = accountManager.getStorage().selectCursor(
+                        accountManager.getUnit(), null, new SelectorConstant(true)
+                );
+        )
         {
             backupStorage.connect();
             backupStorage.createUnit("accounts", keys, primaryKey);
@@ -172,9 +177,9 @@ public final class BackupManager extends LogItCoreObject implements Runnable
             {
                 backupStorage.setAutobatchEnabled(true);
                 
-                for (StorageEntry entry : entries)
+                while (entries.hasNext())
                 {
-                    backupStorage.addEntry("accounts", entry);
+                    backupStorage.addEntry("accounts", entries.next());
                 }
                 
                 backupStorage.executeBatch();
@@ -212,24 +217,25 @@ public final class BackupManager extends LogItCoreObject implements Runnable
             backupStorage.connect();
             
             List<StorageEntry> entries = backupStorage.selectEntries("accounts");
+            Storage storage = accountManager.getStorage();
+            String unit = accountManager.getUnit();
             
-            accountManager.getStorage().eraseUnit(accountManager.getUnit());
+            // The accounts are replaced in one transaction, so that a failed
+            // restore leaves them as they were. They are removed rather than
+            // erased, as some databases commit a transaction before erasing.
+            storage.beginTransaction();
             
             try
             {
-                accountManager.getStorage().setAutobatchEnabled(true);
-                
-                for (StorageEntry entry : entries)
-                {
-                    accountManager.getStorage().addEntry(accountManager.getUnit(), entry);
-                }
-                
-                accountManager.getStorage().executeBatch();
-                accountManager.getStorage().clearBatch();
+                storage.removeEntries(unit, new SelectorConstant(true));
+                storage.addEntries(unit, entries);
+                storage.commitTransaction();
             }
-            finally
+            catch (IOException | RuntimeException ex)
             {
-                accountManager.getStorage().setAutobatchEnabled(false);
+                storage.rollbackTransaction();
+                
+                throw ex;
             }
             
             log(Level.INFO, t("restoreBackup.success.log")
@@ -148,10 +148,9 @@ public final class ChangeEmailCommand extends LogItCoreObject
                 return true;
             }
             
-            int accountsWithEmail = getAccountManager().selectAccounts(
-                    Arrays.asList(keys().username(), keys().email()),
+            long accountsWithEmail = getAccountManager().countAccounts(
                     new SelectorCondition(keys().email(), Infix.EQUALS, args[0].toLowerCase())
-            ).size();
+            );
             
             if (accountsWithEmail >= getConfig("config.yml").getInt("accountsPerEmail"))
             {
@@ -60,7 +60,7 @@ public final class LogItTabCompleter extends LogItCoreObject
         if (stub == null)
             throw new IllegalArgumentException();
         
-        List<Account> accounts = getAccountManager().selectAccounts(
+        List<Account> accounts = getAccountManager().selectStaleAccounts(
                 Arrays.asList(keys().username()),
                 new SelectorCondition(
                         keys().username(),
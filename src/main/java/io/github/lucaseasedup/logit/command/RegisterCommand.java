@@ -10,7 +10,6 @@ import io.github.lucaseasedup.logit.hooks.BukkitSmerfHook;
 import io.github.lucaseasedup.logit.storage.Infix;
 import io.github.lucaseasedup.logit.storage.SelectorCondition;
 import io.github.lucaseasedup.logit.util.PlayerUtils;
-import java.util.Arrays;
 import java.util.List;
 import org.bukkit.Location;
 import org.bukkit.command.Command;
@@ -316,10 +315,9 @@ public final class RegisterCommand extends LogItCoreObject
             
             if (playerIp != null && accountsPerIp >= 0 && !isTakingOver)
             {
-                int accountsWithIp = getAccountManager().selectAccounts(
-                        Arrays.asList(keys().username(), keys().ip()),
+                long accountsWithIp = getAccountManager().countAccounts(
                         new SelectorCondition(keys().ip(), Infix.EQUALS, playerIp)
-                ).size();
+                );
                 
                 List<String> unrestrictedIps = getConfig("config.yml")
                         .getStringList("accountsPerIp.unrestrictedIps");
@@ -348,34 +346,19 @@ public final class RegisterCommand extends LogItCoreObject
                 {
                     ReportedException.incrementRequestCount();
                     
-                    Account account = getAccountManager().selectAccount(
-                            username,
-                            Arrays.asList(
-                                    keys().username()
-                            )
+                    // The account is written over as if registered anew,
+                    // in a single operation, so nothing set by whoever registered it
+                    // is kept, and it is taken over even if it was removed meanwhile.
+                    getAccountManager().saveAccount(
+                            createAccount(player, username, password, playerIp)
                     );
                     
-                    account.changePassword(password);
-                    account.enqueueSaveCallback(new Account.SaveCallback()
+                    sendMsg(sender, t("takeover.success"));
+                    
+                    if (!getSessionManager().startSession(player).isCancelled())
                     {
-                        @Override
-                        public void onSave(boolean success)
-                        {
-                            if (success)
-                            {
-                                sendMsg(sender, t("takeover.success"));
-                                
-                                if (!getSessionManager().startSession(player).isCancelled())
-                                {
-                                    sendMsg(sender, t("startSession.success.self"));
-                                }
-                            }
-                            else
-                            {
-                                sendMsg(sender, t("takeover.fail"));
-                            }
-                        }
-                    });
+                        sendMsg(sender, t("startSession.success.self"));
+                    }
                 }
                 catch (ReportedException ex)
                 {
@@ -392,18 +375,7 @@ public final class RegisterCommand extends LogItCoreObject
                 {
                     ReportedException.incrementRequestCount();
 
-                    Account account = new Account(username);
-                    account.setUuid(player.getUniqueId());
-                    account.changePassword(password);
-                    
-                    if (playerIp != null)
-                    {
-                        account.setIp(playerIp);
-                    }
-                    
-                    account.setLastActiveDate(System.currentTimeMillis() / 1000L);
-                    account.setRegistrationDate(System.currentTimeMillis() / 1000L);
-                    account.setDisplayName(player.getName());
+                    Account account = createAccount(player, username, password, playerIp);
                     
                     if (!getAccountManager().insertAccount(account).isCancelled())
                     {
@@ -463,4 +435,24 @@ public final class RegisterCommand extends LogItCoreObject
         
         return true;
     }
+    
+    private Account createAccount(
+            Player player, String username, String password, String playerIp
+    )
+    {
+        Account account = new Account(username);
+        account.setUuid(player.getUniqueId());
+        account.changePassword(password);
+        
+        if (playerIp != null)
+        {
+            account.setIp(playerIp);
+        }
+        
+        account.setLastActiveDate(System.currentTimeMillis() / 1000L);
+        account.setRegistrationDate(System.currentTimeMillis() / 1000L);
+        account.setDisplayName(player.getName());
+        
+        return account;
+    }
 }
@@ -62,6 +62,8 @@ public final class HubCommands
         hubCommands.add(new ConfigReloadHubCommand());
         hubCommands.add(new ConvertHubCommand());
         hubCommands.add(new StatsHubCommand());
+        hubCommands.add(new QueriesHubCommand());
+        hubCommands.add(new PoolsHubCommand());
         hubCommands.add(new ImportAuthMeHubCommand());
         hubCommands.add(new SelftestHubCommand());
     }
@@ -30,7 +30,7 @@ public final class IpcountHubCommand extends HubCommand
     @Override
     public void execute(CommandSender sender, String[] args)
     {
-        List<Account> accounts = getAccountManager().selectAccounts(
+        List<Account> accounts = getAccountManager().selectStaleAccounts(
                 Arrays.asList(
                         keys().username(),
                         keys().ip()
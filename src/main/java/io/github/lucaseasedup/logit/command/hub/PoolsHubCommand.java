@@ -0,0 +1,121 @@
+package io.github.lucaseasedup.logit.command.hub;
+
+import static io.github.lucaseasedup.logit.message.MessageHelper.sendMsg;
+import static io.github.lucaseasedup.logit.message.MessageHelper.t;
+import io.github.lucaseasedup.logit.command.CommandAccess;
+import io.github.lucaseasedup.logit.command.CommandHelpLine;
+import io.github.lucaseasedup.logit.storage.ConnectionPool;
+import io.github.lucaseasedup.logit.storage.MirrorReplicator;
+import io.github.lucaseasedup.logit.storage.ShardedStorage;
+import io.github.lucaseasedup.logit.storage.SqlStorage;
+import io.github.lucaseasedup.logit.storage.Storage;
+import io.github.lucaseasedup.logit.storage.WrapperStorage;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+public final class PoolsHubCommand extends HubCommand
+{
+    public PoolsHubCommand()
+    {
+        super("pools", new String[] {},
+                new CommandAccess.Builder()
+                        .permission("logit.pools")
+                        .playerOnly(false)
+                        .runningCoreRequired(true)
+                        .build(),
+                new CommandHelpLine.Builder()
+                        .command("logit pools")
+                        .descriptionLabel("subCmdDesc.pools")
+                        .build());
+    }
+    
+    @Override
+    public void execute(CommandSender sender, String[] args)
+    {
+        WrapperStorage storage = getAccountManager().getStorage();
+        Map<String, ConnectionPool> pools = new LinkedHashMap<>();
+        
+        collectPools(storage.getLeadingStorage(), "leading", pools);
+        
+        List<MirrorReplicator> replicators = storage.getMirrorReplicators();
+        
+        for (int i = 0; i < replicators.size(); i++)
+        {
+            collectPools(replicators.get(i).getMirror(), "mirror " + (i + 1), pools);
+        }
+        
+        if (sender instanceof Player)
+        {
+            sendMsg(sender, "");
+        }
+        
+        sendMsg(sender, t("pools.header"));
+        
+        if (pools.isEmpty())
+        {
+            sendMsg(sender, t("pools.noPools"));
+        }
+        
+        int i = 0;
+        
+        for (Map.Entry<String, ConnectionPool> e : pools.entrySet())
+        {
+            ConnectionPool pool = e.getValue();
+            
+            sendMsg(sender, t("pools.pool")
+                    .replace("{0}", String.valueOf(++i))
+                    .replace("{1}", e.getKey()));
+            sendMsg(sender, t("pools.stats")
+                    .replace("{0}", String.valueOf(pool.getSize()))
+                    .replace("{1}", String.valueOf(pool.getMaxSize()))
+                    .replace("{2}", String.valueOf(pool.getActiveCount()))
+                    .replace("{3}", String.valueOf(pool.getBorrowCount()))
+                    .replace("{4}", String.valueOf(pool.getWaitCount()))
+                    .replace("{5}", String.valueOf(pool.getTimeoutCount()))
+                    .replace("{6}", String.valueOf(pool.getEvictionCount())));
+        }
+        
+        if (sender instanceof Player)
+        {
+            sendMsg(sender, "");
+        }
+    }
+    
+    /**
+     * Adds the pools of a storage, and of its shards if it is sharded,
+     * to the given map, by their labels.
+     */
+    private static void collectPools(
+            Storage storage, String label, Map<String, ConnectionPool> pools
+    )
+    {
+        if (storage instanceof ShardedStorage)
+        {
+            List<Storage> shards = ((ShardedStorage) storage).getShards();
+            
+            for (int i = 0; i < shards.size(); i++)
+            {
+                collectPools(shards.get(i), label + ", shard " + (i + 1), pools);
+            }
+        }
+        else if (storage instanceof SqlStorage)
+        {
+            SqlStorage sqlStorage = (SqlStorage) storage;
+            String name = storage.getClass().getSimpleName() + " (" + label;
+            
+            // Pools are null while the storage is not connected.
+            if (sqlStorage.getConnectionPool() != null)
+            {
+                pools.put(name + ")", sqlStorage.getConnectionPool());
+            }
+            
+            if (sqlStorage.getReadConnectionPool() != null)
+            {
+                pools.put(name + ", read)", sqlStorage.getReadConnectionPool());
+            }
+        }
+    }
+}
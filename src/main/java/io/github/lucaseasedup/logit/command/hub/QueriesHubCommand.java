@@ -0,0 +1,105 @@
+package io.github.lucaseasedup.logit.command.hub;
+
+import static io.github.lucaseasedup.logit.message.MessageHelper.sendMsg;
+import static io.github.lucaseasedup.logit.message.MessageHelper.t;
+import io.github.lucaseasedup.logit.command.CommandAccess;
+import io.github.lucaseasedup.logit.command.CommandHelpLine;
+import io.github.lucaseasedup.logit.storage.QueryProfiler;
+import java.util.List;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+public final class QueriesHubCommand extends HubCommand
+{
+    public QueriesHubCommand()
+    {
+        super("queries", new String[] {},
+                new CommandAccess.Builder()
+                        .permission("logit.queries")
+                        .playerOnly(false)
+                        .runningCoreRequired(true)
+                        .build(),
+                new CommandHelpLine.Builder()
+                        .command("logit queries")
+                        .descriptionLabel("subCmdDesc.queries")
+                        .optionalParam("count")
+                        .build());
+    }
+    
+    @Override
+    public void execute(CommandSender sender, String[] args)
+    {
+        QueryProfiler queryProfiler = getCore().getQueryProfiler();
+        
+        if (queryProfiler == null)
+        {
+            sendMsg(sender, t("queries.disabled"));
+            
+            return;
+        }
+        
+        int count = DEFAULT_COUNT;
+        
+        if (args.length > 0)
+        {
+            try
+            {
+                count = Integer.parseInt(args[0]);
+            }
+            catch (NumberFormatException ex)
+            {
+                sendMsg(sender, t("invalidParam")
+                        .replace("{0}", "count"));
+                
+                return;
+            }
+        }
+        
+        if (count <= 0)
+        {
+            count = DEFAULT_COUNT;
+        }
+        
+        List<QueryProfiler.StatementStats> statements =
+                queryProfiler.getTopStatements(count);
+        
+        if (sender instanceof Player)
+        {
+            sendMsg(sender, "");
+        }
+        
+        sendMsg(sender, t("queries.header"));
+        
+        if (statements.isEmpty())
+        {
+            sendMsg(sender, t("queries.noStatements"));
+        }
+        
+        for (int i = 0; i < statements.size(); i++)
+        {
+            QueryProfiler.StatementStats stats = statements.get(i);
+            
+            sendMsg(sender, t("queries.statement")
+                    .replace("{0}", String.valueOf(i + 1))
+                    .replace("{1}", stats.getShape()));
+            sendMsg(sender, t("queries.stats")
+                    .replace("{0}", String.valueOf(stats.getCount()))
+                    .replace("{1}", formatMillis(stats.getTotalTime()))
+                    .replace("{2}", formatMillis(stats.getPercentile(50)))
+                    .replace("{3}", formatMillis(stats.getPercentile(99)))
+                    .replace("{4}", formatMillis(stats.getMaxTime())));
+        }
+        
+        if (sender instanceof Player)
+        {
+            sendMsg(sender, "");
+        }
+    }
+    
+    private static String formatMillis(long nanos)
+    {
+        return String.format("%.2f", nanos / 1000000.0);
+    }
+    
+    private static final int DEFAULT_COUNT = 5;
+}
@@ -2,15 +2,12 @@ package io.github.lucaseasedup.logit.command.hub;
 
 import static io.github.lucaseasedup.logit.message.MessageHelper.sendMsg;
 import static io.github.lucaseasedup.logit.message.MessageHelper.t;
-import io.github.lucaseasedup.logit.account.Account;
 import io.github.lucaseasedup.logit.command.CommandAccess;
 import io.github.lucaseasedup.logit.command.CommandHelpLine;
 import io.github.lucaseasedup.logit.storage.SelectorConstant;
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
-import org.apache.commons.lang.StringUtils;
+import io.github.lucaseasedup.logit.storage.WrapperStorage;
+import java.io.IOException;
+import java.util.logging.Level;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 
@@ -33,29 +30,24 @@ public final class StatsHubCommand extends HubCommand
     @Override
     public void execute(CommandSender sender, String[] args)
     {
-        List<Account> accounts = getAccountManager().selectAccounts(
-                Arrays.asList(
-                        keys().username(),
-                        keys().ip()
-                ),
-                new SelectorConstant(true)
-        );
+        WrapperStorage storage = getAccountManager().getStorage();
+        String unit = getAccountManager().getUnit();
+        long accountCount;
+        long uniqueIps;
         
-        Set<String> uniqueIps = null;
-        
-        if (accounts != null)
+        try
+        {
+            accountCount = storage.countStale(unit, new SelectorConstant(true));
+            uniqueIps = storage.countStaleDistinct(
+                    unit, keys().ip(), new SelectorConstant(true)
+            );
+        }
+        catch (IOException ex)
         {
-            uniqueIps = new HashSet<>();
+            log(Level.WARNING, ex);
             
-            for (Account account : accounts)
-            {
-                String ip = account.getIp();
-                
-                if (!StringUtils.isBlank(ip))
-                {
-                    uniqueIps.add(ip);
-                }
-            }
+            accountCount = -1;
+            uniqueIps = -1;
         }
         
         int backupCount = getBackupManager().getBackups().length;
@@ -65,10 +57,10 @@ public final class StatsHubCommand extends HubCommand
             sendMsg(sender, "");
         }
         
-        String accountsStat = (accounts != null)
-                ? String.valueOf(accounts.size()) : "?";
-        String uniqueIpsStat = (uniqueIps != null)
-                ? String.valueOf(uniqueIps.size()) : "?";
+        String accountsStat = (accountCount >= 0)
+                ? String.valueOf(accountCount) : "?";
+        String uniqueIpsStat = (uniqueIps >= 0)
+                ? String.valueOf(uniqueIps) : "?";
         
         sendMsg(sender, t("stats.header"));
         sendMsg(sender, t("stats.accountCount")
@@ -85,6 +85,7 @@ public final class ConvertWizard extends Wizard
                     break;
                     
                 case "csv":
+                case "log-structured":
                     sendMessage(t("wizard.convert.enterFilename"));
                     updateStep(Step.ENTER_TABLE);
                     break;
@@ -4,6 +4,7 @@ import static io.github.lucaseasedup.logit.message.MessageHelper.sendMsg;
 import static io.github.lucaseasedup.logit.message.MessageHelper.t;
 import io.github.lucaseasedup.logit.LogItCoreObject;
 import io.github.lucaseasedup.logit.account.Account;
+import io.github.lucaseasedup.logit.account.AccountManager;
 import io.github.lucaseasedup.logit.config.TimeUnit;
 import io.github.lucaseasedup.logit.hooks.BukkitSmerfHook;
 import io.github.lucaseasedup.logit.hooks.EssentialsHook;
@@ -41,6 +42,7 @@ import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 import org.bukkit.event.player.AsyncPlayerChatEvent;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
 import org.bukkit.event.player.PlayerChangedWorldEvent;
 import org.bukkit.event.player.PlayerCommandPreprocessEvent;
 import org.bukkit.event.player.PlayerDropItemEvent;
@@ -59,6 +61,23 @@ import org.bukkit.scheduler.BukkitRunnable;
 public final class PlayerEventListener extends LogItCoreObject
         implements Listener
 {
+    @EventHandler(priority = EventPriority.MONITOR)
+    private void onPreLogin(AsyncPlayerPreLoginEvent event)
+    {
+        if (event.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED)
+            return;
+        
+        AccountManager accountManager = getAccountManager();
+        
+        // The core may be stopping on the main thread.
+        if (accountManager == null)
+            return;
+        
+        // Have the account ready for onLogin() and onJoin(),
+        // so that they do not wait for the storage on the main thread.
+        accountManager.preloadAccount(event.getName(), getLoginQueryKeys());
+    }
+    
     @EventHandler(priority = EventPriority.NORMAL)
     private void onLogin(final PlayerLoginEvent event)
     {
@@ -144,25 +163,9 @@ public final class PlayerEventListener extends LogItCoreObject
         // =======================================
         timing.startSelectAccount();
         
-        List<String> keys;
-        
-        if (getConfig("secret.yml").getBoolean("fullLoginSelect"))
-        {
-            keys = keys().getNames();
-        }
-        else
-        {
-            keys = Arrays.asList(
-                    keys().username(),
-                    keys().uuid(), // for onJoin()
-                    keys().login_session(),
-                    keys().is_locked(),
-                    keys().display_name(),
-                    keys().persistence()
-            );
-        }
-        
-        Account account = getAccountManager().selectAccount(username, keys);
+        Account account = getAccountManager().selectAccount(
+                username, getLoginQueryKeys()
+        );
         
         timing.endSelectAccount();
         // =======================================
@@ -981,6 +984,25 @@ public final class PlayerEventListener extends LogItCoreObject
         }
     }
     
+    /**
+     * Returns the account keys selected when a player logs in,
+     * which include the ones needed when the player joins.
+     */
+    private List<String> getLoginQueryKeys()
+    {
+        if (getConfig("secret.yml").getBoolean("fullLoginSelect"))
+            return keys().getNames();
+        
+        return Arrays.asList(
+                keys().username(),
+                keys().uuid(), // for onJoin()
+                keys().login_session(),
+                keys().is_locked(),
+                keys().display_name(),
+                keys().persistence()
+        );
+    }
+    
     private final Set<Player> playersDeadOnJoin = new HashSet<>();
     private Pattern usernamePattern = null;
 }
@@ -0,0 +1,481 @@
+package io.github.lucaseasedup.logit.storage;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs entry operations of a {@link Storage} on a dedicated I/O executor,
+ * so that callers do not have to block on database round-trips.
+ * 
+ * <p> Operations on the same unit are run one at a time, in the order
+ * they were submitted; a select submitted after a write will see its effect.
+ * Operations on different units may run concurrently.
+ * 
+ * <p> Listeners attached to the returned futures are invoked on I/O threads,
+ * so any use of the Bukkit API must be scheduled back on the main thread.
+ */
+public final class AsyncStorage
+{
+    private AsyncStorage(Storage storage, int threads, long shutdownTimeout)
+    {
+        if (storage == null || threads < 1 || shutdownTimeout < 0)
+            throw new IllegalArgumentException();
+        
+        this.storage = storage;
+        this.shutdownTimeout = shutdownTimeout;
+        this.executorService = Executors.newFixedThreadPool(
+                threads, new IoThreadFactory()
+        );
+    }
+    
+    public ListenableFuture<List<StorageEntry>> selectEntries(final String unit)
+    {
+        return submit(unit, new Callable<List<StorageEntry>>()
+        {
+            @Override
+            public List<StorageEntry> call() throws Exception
+            {
+                return storage.selectEntries(unit);
+            }
+        });
+    }
+    
+    public ListenableFuture<List<StorageEntry>> selectEntries(
+            final String unit, final Selector selector
+    )
+    {
+        if (selector == null)
+            throw new IllegalArgumentException();
+        
+        return submit(unit, new Callable<List<StorageEntry>>()
+        {
+            @Override
+            public List<StorageEntry> call() throws Exception
+            {
+                return storage.selectEntries(unit, selector);
+            }
+        });
+    }
+    
+    public ListenableFuture<List<StorageEntry>> selectEntries(
+            final String unit, final List<String> keys
+    )
+    {
+        if (keys == null)
+            throw new IllegalArgumentException();
+        
+        return submit(unit, new Callable<List<StorageEntry>>()
+        {
+            @Override
+            public List<StorageEntry> call() throws Exception
+            {
+                return storage.selectEntries(unit, keys);
+            }
+        });
+    }
+    
+    public ListenableFuture<List<StorageEntry>> selectEntries(
+            final String unit, final List<String> keys, final Selector selector
+    )
+    {
+        if (keys == null || selector == null)
+            throw new IllegalArgumentException();
+        
+        return submit(unit, new Callable<List<StorageEntry>>()
+        {
+            @Override
+            public List<StorageEntry> call() throws Exception
+            {
+                return storage.selectEntries(unit, keys, selector);
+            }
+        });
+    }
+    
+    /**
+     * Adds an entry to the given unit.
+     * 
+     * <p> The entry is copied on submission, so the caller is free
+     * to modify it afterwards.
+     * 
+     * <p> If an entry with the same primary key already exists,
+     * the future fails with a {@link DuplicateEntryException}.
+     */
+    public ListenableFuture<Void> addEntry(
+            final String unit, StorageEntry entry
+    )
+    {
+        if (entry == null)
+            throw new IllegalArgumentException();
+        
+        final StorageEntry entryCopy = entry.copy();
+        
+        return submit(unit, new Callable<Void>()
+        {
+            @Override
+            public Void call() throws Exception
+            {
+                storage.addEntry(unit, entryCopy);
+                
+                return null;
+            }
+        });
+    }
+    
+    /**
+     * Updates the entries matching a selector.
+     * 
+     * <p> The entry subset is copied on submission, so the caller is free
+     * to modify it afterwards.
+     */
+    public ListenableFuture<Void> updateEntries(
+            final String unit, StorageEntry entrySubset, final Selector selector
+    )
+    {
+        if (entrySubset == null || selector == null)
+            throw new IllegalArgumentException();
+        
+        final StorageEntry entrySubsetCopy = entrySubset.copy();
+        
+        return submit(unit, new Callable<Void>()
+        {
+            @Override
+            public Void call() throws Exception
+            {
+                storage.updateEntries(unit, entrySubsetCopy, selector);
+                
+                return null;
+            }
+        });
+    }
+    
+    /**
+     * Updates entries, each identified by the value of a key, at once.
+     * 
+     * <p> The entry subsets are copied on submission, so the caller is free
+     * to modify them afterwards.
+     * 
+     * @see Storage#updateEntriesByKey(String, String, Map)
+     */
+    public ListenableFuture<Void> updateEntriesByKey(
+            final String unit, final String key, Map<String, StorageEntry> entrySubsets
+    )
+    {
+        if (key == null || entrySubsets == null)
+            throw new IllegalArgumentException();
+        
+        final Map<String, StorageEntry> entrySubsetsCopy = new LinkedHashMap<>();
+        
+        for (Map.Entry<String, StorageEntry> e : entrySubsets.entrySet())
+        {
+            entrySubsetsCopy.put(e.getKey(), e.getValue().copy());
+        }
+        
+        return submit(unit, new Callable<Void>()
+        {
+            @Override
+            public Void call() throws Exception
+            {
+                storage.updateEntriesByKey(unit, key, entrySubsetsCopy);
+                
+                return null;
+            }
+        });
+    }
+    
+    public ListenableFuture<Void> upsertEntry(
+            final String unit, final String key, StorageEntry entry
+    )
+    {
+        if (key == null || entry == null)
+            throw new IllegalArgumentException();
+        
+        final StorageEntry entryCopy = entry.copy();
+        
+        return submit(unit, new Callable<Void>()
+        {
+            @Override
+            public Void call() throws Exception
+            {
+                storage.upsertEntry(unit, key, entryCopy);
+                
+                return null;
+            }
+        });
+    }
+    
+    public ListenableFuture<Void> removeEntries(
+            final String unit, final Selector selector
+    )
+    {
+        if (selector == null)
+            throw new IllegalArgumentException();
+        
+        return submit(unit, new Callable<Void>()
+        {
+            @Override
+            public Void call() throws Exception
+            {
+                storage.removeEntries(unit, selector);
+                
+                return null;
+            }
+        });
+    }
+    
+    /**
+     * Stops accepting new operations and waits for the pending ones
+     * to finish.
+     * 
+     * <p> Operations still pending after the shutdown timeout elapses
+     * are cancelled.
+     */
+    public void shutdown()
+    {
+        synchronized (unitQueues)
+        {
+            shutdown = true;
+            
+            long deadline = System.currentTimeMillis() + shutdownTimeout;
+            
+            try
+            {
+                while (!unitQueues.isEmpty())
+                {
+                    long remaining = deadline - System.currentTimeMillis();
+                    
+                    if (remaining <= 0)
+                        break;
+                    
+                    unitQueues.wait(remaining);
+                }
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+            
+            for (UnitQueue unitQueue : unitQueues.values())
+            {
+                unitQueue.cancelPendingTasks();
+            }
+            
+            unitQueues.clear();
+        }
+        
+        executorService.shutdown();
+    }
+    
+    public boolean isShutdown()
+    {
+        synchronized (unitQueues)
+        {
+            return shutdown;
+        }
+    }
+    
+    /**
+     * Returns the number of operations that were submitted
+     * but have not started yet.
+     */
+    public int getPendingTaskCount()
+    {
+        synchronized (unitQueues)
+        {
+            int count = 0;
+            
+            for (UnitQueue unitQueue : unitQueues.values())
+            {
+                count += unitQueue.tasks.size();
+            }
+            
+            return count;
+        }
+    }
+    
+    public Storage getStorage()
+    {
+        return storage;
+    }
+    
+    private <T> ListenableFuture<T> submit(String unit, Callable<T> callable)
+    {
+        if (unit == null)
+            throw new IllegalArgumentException();
+        
+        ListenableFutureTask<T> task = ListenableFutureTask.create(callable);
+        
+        synchronized (unitQueues)
+        {
+            if (shutdown)
+                throw new RejectedExecutionException("AsyncStorage is shut down.");
+            
+            UnitQueue unitQueue = unitQueues.get(unit);
+            
+            if (unitQueue == null)
+            {
+                unitQueue = new UnitQueue(unit);
+                unitQueues.put(unit, unitQueue);
+            }
+            
+            unitQueue.tasks.add(task);
+            
+            if (!unitQueue.scheduled)
+            {
+                unitQueue.scheduled = true;
+                executorService.execute(unitQueue);
+            }
+        }
+        
+        return task;
+    }
+    
+    public static final class Builder
+    {
+        public AsyncStorage build()
+        {
+            return new AsyncStorage(storage, threads, shutdownTimeout);
+        }
+        
+        public Builder storage(Storage storage)
+        {
+            if (storage == null)
+                throw new IllegalArgumentException();
+            
+            this.storage = storage;
+            
+            return this;
+        }
+        
+        /**
+         * @param threads the number of I/O threads, which is also the number
+         *                of units that can be operated on concurrently.
+         */
+        public Builder threads(int threads)
+        {
+            if (threads < 1)
+                throw new IllegalArgumentException();
+            
+            this.threads = threads;
+            
+            return this;
+        }
+        
+        /**
+         * @param shutdownTimeout how long, in milliseconds, {@link #shutdown()}
+         *                        waits for pending operations to finish.
+         */
+        public Builder shutdownTimeout(long shutdownTimeout)
+        {
+            if (shutdownTimeout < 0)
+                throw new IllegalArgumentException();
+            
+            this.shutdownTimeout = shutdownTimeout;
+            
+            return this;
+        }
+        
+        private Storage storage;
+        private int threads = DEFAULT_THREADS;
+        private long shutdownTimeout = DEFAULT_SHUTDOWN_TIMEOUT;
+    }
+    
+    /**
+     * Runs the operations submitted for a single unit, one per turn,
+     * so that a busy unit does not starve the others.
+     */
+    private final class UnitQueue implements Runnable
+    {
+        public UnitQueue(String unit)
+        {
+            this.unit = unit;
+        }
+        
+        @Override
+        public void run()
+        {
+            Runnable task;
+            
+            synchronized (unitQueues)
+            {
+                task = tasks.poll();
+            }
+            
+            if (task != null)
+            {
+                task.run();
+            }
+            
+            synchronized (unitQueues)
+            {
+                if (tasks.isEmpty())
+                {
+                    scheduled = false;
+                    
+                    if (unitQueues.get(unit) == this)
+                    {
+                        unitQueues.remove(unit);
+                    }
+                    
+                    unitQueues.notifyAll();
+                }
+                else
+                {
+                    executorService.execute(this);
+                }
+            }
+        }
+        
+        public void cancelPendingTasks()
+        {
+            ListenableFutureTask<?> task;
+            
+            while ((task = tasks.poll()) != null)
+            {
+                task.cancel(false);
+            }
+        }
+        
+        private final String unit;
+        private final Queue<ListenableFutureTask<?>> tasks = new LinkedList<>();
+        private boolean scheduled = false;
+    }
+    
+    private static final class IoThreadFactory implements ThreadFactory
+    {
+        @Override
+        public Thread newThread(Runnable r)
+        {
+            Thread thread = new Thread(
+                    r, "LogIt Storage I/O #" + threadCounter.incrementAndGet()
+            );
+            
+            // Do not keep the server alive because of pending I/O.
+            thread.setDaemon(true);
+            
+            return thread;
+        }
+        
+        private final AtomicInteger threadCounter = new AtomicInteger();
+    }
+    
+    public static final int DEFAULT_THREADS = 2;
+    public static final long DEFAULT_SHUTDOWN_TIMEOUT = 10000L;
+    
+    private final Storage storage;
+    private final long shutdownTimeout;
+    private final ExecutorService executorService;
+    private final Map<String, UnitQueue> unitQueues = new HashMap<>();
+    private boolean shutdown = false;
+}
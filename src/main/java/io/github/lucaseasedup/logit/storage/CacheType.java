@@ -2,7 +2,7 @@ package io.github.lucaseasedup.logit.storage;
 
 public enum CacheType
 {
-    DISABLED("disabled"), PRELOADED("preloaded");
+    DISABLED("disabled"), PRELOADED("preloaded"), ON_DEMAND("on-demand");
     
     private CacheType(String name)
     {
@@ -0,0 +1,1204 @@
+package io.github.lucaseasedup.logit.storage;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Holds all entries of a unit off the heap, one column per key.
+ * 
+ * <p> Each entry is a row spread across columns kept in direct buffers,
+ * and is turned into a {@code StorageEntry} only when it is read,
+ * so that a large unit costs the heap a handful of objects per key
+ * rather than a map per entry.
+ * 
+ * <p> Keys with few distinct values, such as hashing algorithms, flags
+ * or IP addresses shared by many accounts, are dictionary-encoded:
+ * the rows hold codes, and each value is stored once.
+ * A key is stored as plain strings instead once it holds
+ * distinct values in more than half of the entries.
+ * 
+ * <p> The primary key and the keys added with {@link #addIndex} are
+ * indexed by hash tables, also kept in direct buffers, which answer
+ * {@code EQUALS} conditions and lists of values. Dictionary-encoded keys
+ * answer them by scanning the codes instead. Any other condition
+ * is resolved by reading only the keys the selector refers to.
+ */
+public final class ColumnarUnitCache implements PreloadedUnitCache
+{
+    public ColumnarUnitCache(
+            UnitKeys keys, String primaryKey, List<StorageEntry> entries
+    )
+    {
+        if (keys == null || primaryKey == null || entries == null)
+            throw new IllegalArgumentException();
+        
+        this.keys = keys;
+        this.primaryKey = primaryKey;
+        
+        clear();
+        
+        for (StorageEntry entry : entries)
+        {
+            addEntry(entry);
+        }
+    }
+    
+    @Override
+    public UnitKeys getKeys()
+    {
+        return keys;
+    }
+    
+    @Override
+    public String getPrimaryKey()
+    {
+        return primaryKey;
+    }
+    
+    @Override
+    public void addIndex(String key, IndexType type)
+    {
+        if (key == null || type == null)
+            throw new IllegalArgumentException();
+        
+        indexTypes.put(key, type);
+        
+        if (columns.containsKey(key))
+        {
+            columns.get(key).setIndexed(true);
+        }
+    }
+    
+    @Override
+    public void removeIndex(String key)
+    {
+        indexTypes.remove(key);
+        
+        // The primary key stays indexed, as entries are found by it.
+        if (columns.containsKey(key) && !key.equals(primaryKey))
+        {
+            columns.get(key).setIndexed(false);
+        }
+    }
+    
+    /**
+     * Returns the cached entries matching a selector.
+     * 
+     * <p> The returned entries are read from the columns on every call,
+     * so they are not shared with the cache.
+     */
+    @Override
+    public List<StorageEntry> selectEntries(Selector selector)
+    {
+        if (selector == null)
+            throw new IllegalArgumentException();
+        
+        int[] rows = selectRows(selector);
+        List<StorageEntry> entries = new ArrayList<>(rows.length);
+        
+        for (int row : rows)
+        {
+            entries.add(readRow(row, columns.keySet()));
+        }
+        
+        return entries;
+    }
+    
+    @Override
+    public int count(Selector selector)
+    {
+        if (selector == null)
+            throw new IllegalArgumentException();
+        
+        return selectRows(selector).length;
+    }
+    
+    /**
+     * Counts the distinct non-empty values of a key among the cached entries
+     * matching a selector, straight from the dictionary of the key
+     * if it is dictionary-encoded and the selector matches every entry.
+     */
+    @Override
+    public long countDistinct(String key, Selector selector)
+    {
+        if (key == null || selector == null)
+            throw new IllegalArgumentException();
+        
+        Column column = columns.get(key);
+        
+        if (column == null)
+            return 0;
+        
+        if (column instanceof DictionaryColumn && selector instanceof SelectorConstant
+                && ((SelectorConstant) selector).getValue())
+        {
+            return ((DictionaryColumn) column).countValues();
+        }
+        
+        Set<String> values = new HashSet<>();
+        
+        for (int row : selectRows(selector))
+        {
+            String value = column.get(row);
+            
+            if (value != null && !value.isEmpty())
+            {
+                values.add(value);
+            }
+        }
+        
+        return values.size();
+    }
+    
+    /**
+     * Adds an entry, replacing the cached entry with the same
+     * primary-key value, if any.
+     * 
+     * <p> The entry is copied into the columns, so it is not kept.
+     */
+    @Override
+    public void addEntry(StorageEntry entry)
+    {
+        if (entry == null)
+            throw new IllegalArgumentException();
+        
+        int row = findRow(entry.get(primaryKey));
+        
+        if (row < 0)
+        {
+            row = liveRows.nextClearBit(0);
+            liveRows.set(row);
+            entryCount++;
+        }
+        
+        for (Map.Entry<String, Column> e : columns.entrySet())
+        {
+            if (!entry.containsKey(e.getKey()))
+            {
+                e.getValue().set(row, null);
+            }
+        }
+        
+        for (StorageDatum datum : entry)
+        {
+            getOrAddColumn(datum.getKey()).set(row, datum.getValue());
+        }
+        
+        convertHighCardinalityColumns();
+    }
+    
+    @Override
+    public void updateEntries(StorageEntry entrySubset, Selector selector)
+    {
+        if (entrySubset == null || selector == null)
+            throw new IllegalArgumentException();
+        
+        int[] rows = selectRows(selector);
+        
+        for (StorageDatum datum : entrySubset)
+        {
+            Column column = getOrAddColumn(datum.getKey());
+            
+            for (int row : rows)
+            {
+                column.set(row, datum.getValue());
+            }
+        }
+        
+        if (entrySubset.getKeys().contains(primaryKey))
+        {
+            // Entries whose primary-key values have been given
+            // to an updated one are replaced by it.
+            Column primaryKeyColumn = columns.get(primaryKey);
+            
+            for (int row : rows)
+            {
+                if (!liveRows.get(row))
+                    continue;
+                
+                for (int replacedRow : primaryKeyColumn.lookup(primaryKeyColumn.get(row)))
+                {
+                    if (replacedRow != row)
+                    {
+                        removeRow(replacedRow);
+                    }
+                }
+            }
+        }
+        
+        convertHighCardinalityColumns();
+    }
+    
+    @Override
+    public void removeEntries(Selector selector)
+    {
+        if (selector == null)
+            throw new IllegalArgumentException();
+        
+        for (int row : selectRows(selector))
+        {
+            removeRow(row);
+        }
+    }
+    
+    @Override
+    public void addKey(String key, DataType type)
+    {
+        if (key == null || type == null)
+            throw new IllegalArgumentException();
+        
+        keys.put(key, type);
+        
+        Column column = getOrAddColumn(key);
+        
+        for (int row = liveRows.nextSetBit(0); row >= 0; row = liveRows.nextSetBit(row + 1))
+        {
+            column.set(row, "");
+        }
+        
+        convertHighCardinalityColumns();
+    }
+    
+    /**
+     * Removes all entries and releases the columns holding them.
+     * Keys go back to being dictionary-encoded.
+     */
+    @Override
+    public void clear()
+    {
+        columns.clear();
+        liveRows.clear();
+        entryCount = 0;
+        
+        for (String key : keys.keySet())
+        {
+            getOrAddColumn(key);
+        }
+        
+        getOrAddColumn(primaryKey);
+    }
+    
+    @Override
+    public int size()
+    {
+        return entryCount;
+    }
+    
+    /**
+     * Finds the rows of the entries matching a selector.
+     * 
+     * @return the rows, in ascending order.
+     */
+    private int[] selectRows(Selector selector)
+    {
+        List<String> primaryKeyValues =
+                SqlUtils.findMembershipOperands(selector, primaryKey);
+        int[] rows;
+        
+        if (primaryKeyValues != null)
+        {
+            rows = new int[primaryKeyValues.size()];
+            
+            int rowCount = 0;
+            
+            for (String primaryKeyValue : primaryKeyValues)
+            {
+                int row = findRow(primaryKeyValue);
+                
+                if (row >= 0)
+                {
+                    rows[rowCount++] = row;
+                }
+            }
+            
+            // The values of a SelectorIn are distinct, and so are their rows.
+            rows = Arrays.copyOf(rows, rowCount);
+            Arrays.sort(rows);
+        }
+        else
+        {
+            rows = findCandidates(selector);
+            
+            if (rows == null)
+            {
+                rows = new int[entryCount];
+                
+                int rowCount = 0;
+                
+                for (int row = liveRows.nextSetBit(0); row >= 0;
+                        row = liveRows.nextSetBit(row + 1))
+                {
+                    rows[rowCount++] = row;
+                }
+            }
+        }
+        
+        if (selector instanceof SelectorConstant)
+        {
+            return ((SelectorConstant) selector).getValue() ? rows : new int[0];
+        }
+        
+        CompiledSelector compiledSelector = CompiledSelector.compile(selector);
+        Set<String> selectorKeys = new HashSet<>();
+        
+        collectKeys(selector, selectorKeys);
+        
+        int matchCount = 0;
+        
+        for (int row : rows)
+        {
+            if (compiledSelector.matches(readRow(row, selectorKeys)))
+            {
+                rows[matchCount++] = row;
+            }
+        }
+        
+        return Arrays.copyOf(rows, matchCount);
+    }
+    
+    /**
+     * Narrows down the rows that may match a selector
+     * using the indexed and dictionary-encoded columns.
+     * 
+     * @return a superset of the matching rows, in ascending order,
+     *         or {@code null} if no column can narrow them down.
+     */
+    private int[] findCandidates(Selector selector)
+    {
+        if (selector instanceof SelectorCondition)
+        {
+            SelectorCondition selectorCondition = (SelectorCondition) selector;
+            Column column = columns.get(selectorCondition.getKey());
+            
+            if (column == null || selectorCondition.getRelation()
+                    != SelectorCondition.Relation.EQUALS)
+            {
+                return null;
+            }
+            
+            return column.lookup(selectorCondition.getValue());
+        }
+        else if (selector instanceof SelectorIn)
+        {
+            SelectorIn selectorIn = (SelectorIn) selector;
+            Column column = columns.get(selectorIn.getKey());
+            
+            if (column == null)
+                return null;
+            
+            int[] union = new int[0];
+            
+            for (String value : selectorIn.getValues())
+            {
+                int[] rows = column.lookup(value);
+                
+                if (rows == null)
+                    return null;
+                
+                union = unite(union, rows);
+            }
+            
+            return union;
+        }
+        else if (selector instanceof SelectorBinary)
+        {
+            SelectorBinary selectorBinary = (SelectorBinary) selector;
+            int[] leftCandidates = findCandidates(selectorBinary.getLeftOperand());
+            int[] rightCandidates = findCandidates(selectorBinary.getRightOperand());
+            
+            switch (selectorBinary.getRelation())
+            {
+            case AND:
+                if (leftCandidates == null)
+                    return rightCandidates;
+                
+                if (rightCandidates == null)
+                    return leftCandidates;
+                
+                return intersect(leftCandidates, rightCandidates);
+            
+            case OR:
+                if (leftCandidates == null || rightCandidates == null)
+                    return null;
+                
+                return unite(leftCandidates, rightCandidates);
+            
+            default:
+                return null;
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * @return the row of the entry with the given primary-key value,
+     *         or {@code -1} if there is no such entry.
+     */
+    private int findRow(String primaryKeyValue)
+    {
+        if (primaryKeyValue == null)
+            return -1;
+        
+        int[] rows = columns.get(primaryKey).lookup(primaryKeyValue);
+        
+        return (rows.length > 0) ? rows[0] : -1;
+    }
+    
+    private StorageEntry readRow(int row, Collection<String> keys)
+    {
+        StorageEntry.Builder entryBuilder = new StorageEntry.Builder();
+        
+        for (String key : keys)
+        {
+            Column column = columns.get(key);
+            
+            if (column != null)
+            {
+                String value = column.get(row);
+                
+                if (value != null)
+                {
+                    entryBuilder.put(key, value);
+                }
+            }
+        }
+        
+        return entryBuilder.build();
+    }
+    
+    private void removeRow(int row)
+    {
+        for (Column column : columns.values())
+        {
+            column.set(row, null);
+        }
+        
+        liveRows.clear(row);
+        entryCount--;
+    }
+    
+    private Column getOrAddColumn(String key)
+    {
+        Column column = columns.get(key);
+        
+        if (column == null)
+        {
+            if (key.equals(primaryKey))
+            {
+                column = new StringColumn();
+                column.setIndexed(true);
+            }
+            else
+            {
+                column = new DictionaryColumn();
+                column.setIndexed(indexTypes.containsKey(key));
+            }
+            
+            columns.put(key, column);
+        }
+        
+        return column;
+    }
+    
+    /**
+     * Stores as plain strings the dictionary-encoded keys
+     * whose dictionaries no longer pay off.
+     */
+    private void convertHighCardinalityColumns()
+    {
+        int maxDictionarySize = Math.max(MIN_DICTIONARY_SIZE, entryCount / 2);
+        
+        for (Map.Entry<String, Column> e : columns.entrySet())
+        {
+            if (!(e.getValue() instanceof DictionaryColumn))
+                continue;
+            
+            DictionaryColumn dictionaryColumn = (DictionaryColumn) e.getValue();
+            
+            if (dictionaryColumn.getDictionarySize() <= maxDictionarySize)
+                continue;
+            
+            StringColumn stringColumn = new StringColumn();
+            
+            for (int row = liveRows.nextSetBit(0); row >= 0;
+                    row = liveRows.nextSetBit(row + 1))
+            {
+                stringColumn.set(row, dictionaryColumn.get(row));
+            }
+            
+            stringColumn.setIndexed(dictionaryColumn.isIndexed());
+            e.setValue(stringColumn);
+        }
+    }
+    
+    private static void collectKeys(Selector selector, Set<String> keys)
+    {
+        if (selector instanceof SelectorCondition)
+        {
+            keys.add(((SelectorCondition) selector).getKey());
+        }
+        else if (selector instanceof SelectorIn)
+        {
+            keys.add(((SelectorIn) selector).getKey());
+        }
+        else if (selector instanceof SelectorNegation)
+        {
+            keys.add(((SelectorNegation) selector).getOperand().getKey());
+        }
+        else if (selector instanceof SelectorBinary)
+        {
+            collectKeys(((SelectorBinary) selector).getLeftOperand(), keys);
+            collectKeys(((SelectorBinary) selector).getRightOperand(), keys);
+        }
+    }
+    
+    /**
+     * Merges two ascending arrays of distinct rows.
+     */
+    private static int[] unite(int[] rows, int[] otherRows)
+    {
+        int[] union = new int[rows.length + otherRows.length];
+        int i = 0, j = 0, k = 0;
+        
+        while (i < rows.length && j < otherRows.length)
+        {
+            if (rows[i] < otherRows[j])
+            {
+                union[k++] = rows[i++];
+            }
+            else if (rows[i] > otherRows[j])
+            {
+                union[k++] = otherRows[j++];
+            }
+            else
+            {
+                union[k++] = rows[i++];
+                j++;
+            }
+        }
+        
+        while (i < rows.length)
+        {
+            union[k++] = rows[i++];
+        }
+        
+        while (j < otherRows.length)
+        {
+            union[k++] = otherRows[j++];
+        }
+        
+        return Arrays.copyOf(union, k);
+    }
+    
+    /**
+     * Intersects two ascending arrays of distinct rows.
+     */
+    private static int[] intersect(int[] rows, int[] otherRows)
+    {
+        int[] intersection = new int[Math.min(rows.length, otherRows.length)];
+        int i = 0, j = 0, k = 0;
+        
+        while (i < rows.length && j < otherRows.length)
+        {
+            if (rows[i] < otherRows[j])
+            {
+                i++;
+            }
+            else if (rows[i] > otherRows[j])
+            {
+                j++;
+            }
+            else
+            {
+                intersection[k++] = rows[i++];
+                j++;
+            }
+        }
+        
+        return Arrays.copyOf(intersection, k);
+    }
+    
+    /**
+     * Allocates a direct buffer of ints, all set to {@code 0},
+     * and copies into it the contents of another one.
+     * 
+     * @param buffer the buffer to be copied, or {@code null}.
+     */
+    private static IntBuffer allocateInts(int capacity, IntBuffer buffer)
+    {
+        IntBuffer allocatedBuffer = ByteBuffer.allocateDirect(capacity * 4)
+                .order(ByteOrder.nativeOrder()).asIntBuffer();
+        
+        if (buffer != null)
+        {
+            allocatedBuffer.put(buffer.duplicate());
+            allocatedBuffer.clear();
+        }
+        
+        return allocatedBuffer;
+    }
+    
+    private static int growCapacity(int capacity, int minCapacity, int requiredCapacity)
+    {
+        return Math.max(requiredCapacity, Math.max(minCapacity, capacity * 2));
+    }
+    
+    /**
+     * The values of a single key, mapped by row.
+     * 
+     * <p> Buffers are only ever read with absolute methods,
+     * so rows may be read concurrently while no row is written.
+     */
+    private abstract static class Column
+    {
+        /**
+         * @return the value of the key in the given row,
+         *         or {@code null} if the row lacks the key.
+         */
+        public abstract String get(int row);
+        
+        /**
+         * @param value the value to be set, or {@code null}
+         *              to remove the key from the row.
+         */
+        public abstract void set(int row, String value);
+        
+        /**
+         * Finds the rows holding a value.
+         * 
+         * @return the rows, in ascending order, or {@code null}
+         *         if every row would have to be read to find them.
+         */
+        public abstract int[] lookup(String value);
+        
+        public abstract void setIndexed(boolean indexed);
+        
+        public final boolean isIndexed()
+        {
+            return indexed;
+        }
+        
+        protected boolean indexed = false;
+    }
+    
+    /**
+     * Holds a code for each row, starting from {@code 1},
+     * with {@code 0} standing for a missing key.
+     */
+    private static final class DictionaryColumn extends Column
+    {
+        @Override
+        public String get(int row)
+        {
+            if (row >= capacity)
+                return null;
+            
+            int code = codes.get(row);
+            
+            return (code == 0) ? null : values.get(code - 1);
+        }
+        
+        @Override
+        public void set(int row, String value)
+        {
+            if (value == null && row >= capacity)
+                return;
+            
+            if (row >= capacity)
+            {
+                capacity = growCapacity(capacity, MIN_ROW_CAPACITY, row + 1);
+                codes = allocateInts(capacity, codes);
+            }
+            
+            int oldCode = codes.get(row);
+            int newCode = (value == null) ? 0 : acquireCode(value);
+            
+            codes.put(row, newCode);
+            
+            if (oldCode != 0)
+            {
+                releaseCode(oldCode);
+            }
+        }
+        
+        /**
+         * Scans the codes for the code of a value, as a dictionary-encoded
+         * column is compact enough to need no index.
+         */
+        @Override
+        public int[] lookup(String value)
+        {
+            if (value == null)
+                return null;
+            
+            Integer code = codesByValue.get(value);
+            
+            if (code == null)
+                return new int[0];
+            
+            int[] rows = new int[referenceCounts[code - 1]];
+            int codeValue = code;
+            int rowCount = 0;
+            
+            for (int row = 0; rowCount < rows.length; row++)
+            {
+                if (codes.get(row) == codeValue)
+                {
+                    rows[rowCount++] = row;
+                }
+            }
+            
+            return rows;
+        }
+        
+        @Override
+        public void setIndexed(boolean indexed)
+        {
+            this.indexed = indexed;
+        }
+        
+        /**
+         * Returns the number of distinct values held by the rows.
+         */
+        public int getDictionarySize()
+        {
+            return codesByValue.size();
+        }
+        
+        /**
+         * Returns the number of distinct non-empty values held by the rows.
+         */
+        public int countValues()
+        {
+            return codesByValue.containsKey("")
+                    ? codesByValue.size() - 1 : codesByValue.size();
+        }
+        
+        private int acquireCode(String value)
+        {
+            Integer code = codesByValue.get(value);
+            
+            if (code == null)
+            {
+                if (freeCodes.isEmpty())
+                {
+                    values.add(value);
+                    code = values.size();
+                    
+                    if (code > referenceCounts.length)
+                    {
+                        referenceCounts = Arrays.copyOf(
+                                referenceCounts, referenceCounts.length * 2
+                        );
+                    }
+                }
+                else
+                {
+                    code = freeCodes.pop();
+                    values.set(code - 1, value);
+                }
+                
+                codesByValue.put(value, code);
+            }
+            
+            referenceCounts[code - 1]++;
+            
+            return code;
+        }
+        
+        /**
+         * Drops a reference to a code, freeing it for another value
+         * once no row holds it.
+         */
+        private void releaseCode(int code)
+        {
+            referenceCounts[code - 1]--;
+            
+            if (referenceCounts[code - 1] == 0)
+            {
+                codesByValue.remove(values.get(code - 1));
+                values.set(code - 1, null);
+                freeCodes.push(code);
+            }
+        }
+        
+        private int capacity = 0;
+        private IntBuffer codes;
+        
+        private final List<String> values = new ArrayList<>();
+        private final Map<String, Integer> codesByValue = new HashMap<>();
+        private int[] referenceCounts = new int[16];
+        private final Deque<Integer> freeCodes = new ArrayDeque<>();
+    }
+    
+    /**
+     * Holds values encoded in UTF-8, appended one after another to a buffer
+     * that is compacted once half of it is taken by overwritten values.
+     * 
+     * <p> The length of each value is stored plus one,
+     * with {@code 0} standing for a missing key.
+     * 
+     * <p> When indexed, the rows holding values are chained into buckets
+     * of a hash table by the hashes of the values.
+     */
+    private static final class StringColumn extends Column
+    {
+        @Override
+        public String get(int row)
+        {
+            if (row >= capacity || lengths.get(row) == 0)
+                return null;
+            
+            byte[] bytes = new byte[lengths.get(row) - 1];
+            
+            // Reads through a duplicate, whose position is not shared.
+            ByteBuffer view = data.duplicate();
+            view.position(offsets.get(row));
+            view.get(bytes);
+            
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        
+        @Override
+        public void set(int row, String value)
+        {
+            if (value == null && (row >= capacity || lengths.get(row) == 0))
+                return;
+            
+            if (row >= capacity)
+            {
+                growRows(row + 1);
+            }
+            
+            if (lengths.get(row) != 0)
+            {
+                if (indexed)
+                {
+                    unlink(row);
+                }
+                
+                garbageSize += lengths.get(row) - 1;
+                lengths.put(row, 0);
+                valueCount--;
+            }
+            
+            if (value == null)
+                return;
+            
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            
+            reserveData(bytes.length);
+            
+            for (int i = 0; i < bytes.length; i++)
+            {
+                data.put(dataSize + i, bytes[i]);
+            }
+            
+            offsets.put(row, dataSize);
+            lengths.put(row, bytes.length + 1);
+            dataSize += bytes.length;
+            valueCount++;
+            
+            if (indexed)
+            {
+                link(row);
+            }
+        }
+        
+        @Override
+        public int[] lookup(String value)
+        {
+            if (value == null || !indexed)
+                return null;
+            
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            int[] rows = new int[1];
+            int rowCount = 0;
+            int bucket = hash(bytes) & (bucketCount - 1);
+            
+            for (int link = buckets.get(bucket); link != 0; link = nextRows.get(link - 1))
+            {
+                if (holds(link - 1, bytes))
+                {
+                    if (rowCount == rows.length)
+                    {
+                        rows = Arrays.copyOf(rows, rowCount * 2);
+                    }
+                    
+                    rows[rowCount++] = link - 1;
+                }
+            }
+            
+            rows = Arrays.copyOf(rows, rowCount);
+            Arrays.sort(rows);
+            
+            return rows;
+        }
+        
+        @Override
+        public void setIndexed(boolean indexed)
+        {
+            if (indexed == this.indexed)
+                return;
+            
+            this.indexed = indexed;
+            
+            if (indexed)
+            {
+                int newBucketCount = MIN_BUCKET_COUNT;
+                
+                while (newBucketCount < valueCount)
+                {
+                    newBucketCount *= 2;
+                }
+                
+                rehash(newBucketCount);
+            }
+            else
+            {
+                buckets = null;
+                nextRows = null;
+                previousRows = null;
+                bucketCount = 0;
+            }
+        }
+        
+        private void growRows(int requiredCapacity)
+        {
+            capacity = growCapacity(capacity, MIN_ROW_CAPACITY, requiredCapacity);
+            offsets = allocateInts(capacity, offsets);
+            lengths = allocateInts(capacity, lengths);
+            
+            if (indexed)
+            {
+                nextRows = allocateInts(capacity, nextRows);
+                previousRows = allocateInts(capacity, previousRows);
+            }
+        }
+        
+        /**
+         * Makes room at the end of the data buffer, dropping overwritten values
+         * if they take up enough of it, or moving the data to a larger buffer.
+         */
+        private void reserveData(int length)
+        {
+            if ((long) dataSize + length <= dataCapacity)
+                return;
+            
+            long liveSize = (long) dataSize - garbageSize;
+            long newCapacity = dataCapacity;
+            
+            if (liveSize + length > dataCapacity / 2)
+            {
+                newCapacity = Math.max(liveSize + length,
+                        Math.max(MIN_DATA_CAPACITY, (long) dataCapacity * 2));
+                newCapacity = Math.min(newCapacity, Integer.MAX_VALUE);
+            }
+            
+            if (liveSize + length > newCapacity)
+                throw new IllegalStateException("Column data too large.");
+            
+            ByteBuffer newData = ByteBuffer.allocateDirect((int) newCapacity);
+            int newDataSize = 0;
+            
+            for (int row = 0; row < capacity; row++)
+            {
+                int valueLength = lengths.get(row) - 1;
+                
+                if (valueLength < 0)
+                    continue;
+                
+                int offset = offsets.get(row);
+                
+                for (int i = 0; i < valueLength; i++)
+                {
+                    newData.put(newDataSize + i, data.get(offset + i));
+                }
+                
+                offsets.put(row, newDataSize);
+                newDataSize += valueLength;
+            }
+            
+            data = newData;
+            dataCapacity = (int) newCapacity;
+            dataSize = newDataSize;
+            garbageSize = 0;
+        }
+        
+        /**
+         * Rebuilds the hash table with a number of buckets,
+         * which must be a power of two.
+         */
+        private void rehash(int newBucketCount)
+        {
+            bucketCount = newBucketCount;
+            buckets = allocateInts(bucketCount, null);
+            nextRows = allocateInts(capacity, null);
+            previousRows = allocateInts(capacity, null);
+            
+            for (int row = 0; row < capacity; row++)
+            {
+                if (lengths.get(row) != 0)
+                {
+                    linkToBucket(row);
+                }
+            }
+        }
+        
+        private void link(int row)
+        {
+            if (valueCount > bucketCount)
+            {
+                // Links every row holding a value, this one included.
+                rehash(bucketCount * 2);
+            }
+            else
+            {
+                linkToBucket(row);
+            }
+        }
+        
+        /**
+         * Puts a row at the head of the chain of its bucket.
+         * Links between rows are stored as rows plus one,
+         * with {@code 0} ending the chain.
+         */
+        private void linkToBucket(int row)
+        {
+            int bucket = hash(row) & (bucketCount - 1);
+            int head = buckets.get(bucket);
+            
+            nextRows.put(row, head);
+            previousRows.put(row, 0);
+            
+            if (head != 0)
+            {
+                previousRows.put(head - 1, row + 1);
+            }
+            
+            buckets.put(bucket, row + 1);
+        }
+        
+        /**
+         * Takes a row out of the chain of its bucket.
+         * Must be called before the value of the row is overwritten.
+         */
+        private void unlink(int row)
+        {
+            int previous = previousRows.get(row);
+            int next = nextRows.get(row);
+            
+            if (previous == 0)
+            {
+                buckets.put(hash(row) & (bucketCount - 1), next);
+            }
+            else
+            {
+                nextRows.put(previous - 1, next);
+            }
+            
+            if (next != 0)
+            {
+                previousRows.put(next - 1, previous);
+            }
+        }
+        
+        private boolean holds(int row, byte[] bytes)
+        {
+            if (lengths.get(row) - 1 != bytes.length)
+                return false;
+            
+            int offset = offsets.get(row);
+            
+            for (int i = 0; i < bytes.length; i++)
+            {
+                if (data.get(offset + i) != bytes[i])
+                    return false;
+            }
+            
+            return true;
+        }
+        
+        private int hash(int row)
+        {
+            int offset = offsets.get(row);
+            int length = lengths.get(row) - 1;
+            int h = 0;
+            
+            for (int i = 0; i < length; i++)
+            {
+                h = 31 * h + data.get(offset + i);
+            }
+            
+            return h ^ (h >>> 16);
+        }
+        
+        private static int hash(byte[] bytes)
+        {
+            int h = 0;
+            
+            for (byte b : bytes)
+            {
+                h = 31 * h + b;
+            }
+            
+            return h ^ (h >>> 16);
+        }
+        
+        private int capacity = 0;
+        private IntBuffer offsets;
+        private IntBuffer lengths;
+        private int valueCount = 0;
+        
+        private ByteBuffer data;
+        private int dataCapacity = 0;
+        private int dataSize = 0;
+        
+        /**
+         * The number of bytes taken by values that have been overwritten.
+         */
+        private int garbageSize = 0;
+        
+        private int bucketCount = 0;
+        private IntBuffer buckets;
+        private IntBuffer nextRows;
+        private IntBuffer previousRows;
+    }
+    
+    private static final int MIN_ROW_CAPACITY = 1024;
+    private static final int MIN_DATA_CAPACITY = 16384;
+    private static final int MIN_BUCKET_COUNT = 1024;
+    
+    /**
+     * The number of distinct values up to which a key
+     * stays dictionary-encoded however few entries there are.
+     */
+    private static final int MIN_DICTIONARY_SIZE = 256;
+    
+    private final UnitKeys keys;
+    private final String primaryKey;
+    
+    private final Map<String, Column> columns = new LinkedHashMap<>();
+    private final Map<String, IndexType> indexTypes = new HashMap<>();
+    
+    /**
+     * The rows holding entries; the others are free to be reused.
+     */
+    private final BitSet liveRows = new BitSet();
+    private int entryCount = 0;
+}
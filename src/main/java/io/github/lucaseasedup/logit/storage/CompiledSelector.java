@@ -0,0 +1,321 @@
+package io.github.lucaseasedup.logit.storage;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A {@link Selector} turned into a predicate that can be tested
+ * against many entries without walking the selector tree each time.
+ * 
+ * <p> A compiled selector matches exactly the entries that
+ * {@link SqlUtils#resolveSelector} would match. Numeric operands
+ * are parsed once, at compilation, and conditions that cannot match
+ * any entry, such as a comparison with a non-numeric operand,
+ * are reduced to constants.
+ */
+public abstract class CompiledSelector
+{
+    private CompiledSelector()
+    {
+    }
+    
+    public abstract boolean matches(StorageEntry entry);
+    
+    public static CompiledSelector compile(Selector selector)
+    {
+        if (selector == null)
+            throw new IllegalArgumentException();
+        
+        if (selector instanceof SelectorConstant)
+        {
+            return ((SelectorConstant) selector).getValue() ? TRUE : FALSE;
+        }
+        else if (selector instanceof SelectorNegation)
+        {
+            CompiledSelector operand =
+                    compile(((SelectorNegation) selector).getOperand());
+            
+            if (operand == TRUE)
+                return FALSE;
+            
+            if (operand == FALSE)
+                return TRUE;
+            
+            return new Negation(operand);
+        }
+        else if (selector instanceof SelectorBinary)
+        {
+            SelectorBinary selectorBinary = (SelectorBinary) selector;
+            CompiledSelector left = compile(selectorBinary.getLeftOperand());
+            CompiledSelector right = compile(selectorBinary.getRightOperand());
+            
+            switch (selectorBinary.getRelation())
+            {
+            case AND:
+                if (left == FALSE || right == FALSE)
+                    return FALSE;
+                
+                if (left == TRUE)
+                    return right;
+                
+                if (right == TRUE)
+                    return left;
+                
+                return new And(left, right);
+            
+            case OR:
+                if (left == TRUE || right == TRUE)
+                    return TRUE;
+                
+                if (left == FALSE)
+                    return right;
+                
+                if (right == FALSE)
+                    return left;
+                
+                return new Or(left, right);
+            
+            default:
+                throw new IllegalArgumentException(
+                        "Unsupported relation: " + selectorBinary.getRelation()
+                );
+            }
+        }
+        else if (selector instanceof SelectorCondition)
+        {
+            SelectorCondition selectorCondition = (SelectorCondition) selector;
+            String key = selectorCondition.getKey();
+            String operandValue = selectorCondition.getValue();
+            
+            switch (selectorCondition.getRelation())
+            {
+            case EQUALS:
+                return new Equals(key, operandValue);
+            
+            case LESS_THAN:
+            case GREATER_THAN:
+                try
+                {
+                    return new Comparison(key, Long.parseLong(operandValue),
+                            selectorCondition.getRelation()
+                                    == SelectorCondition.Relation.LESS_THAN);
+                }
+                catch (NumberFormatException ex)
+                {
+                    return FALSE;
+                }
+            
+            case STARTS_WITH:
+            case ENDS_WITH:
+            case CONTAINS:
+                return new Substring(key, operandValue,
+                        selectorCondition.getRelation());
+            
+            default:
+                throw new IllegalArgumentException(
+                        "Unsupported relation: "
+                                + selectorCondition.getRelation()
+                );
+            }
+        }
+        else if (selector instanceof SelectorIn)
+        {
+            SelectorIn selectorIn = (SelectorIn) selector;
+            
+            if (selectorIn.getValues().isEmpty())
+                return FALSE;
+            
+            return new In(selectorIn.getKey(), selectorIn.getValues());
+        }
+        else
+        {
+            throw new IllegalArgumentException(
+                    "Unsupported selector: " + selector.getClass().getName()
+            );
+        }
+    }
+    
+    private static final class Constant extends CompiledSelector
+    {
+        public Constant(boolean value)
+        {
+            this.value = value;
+        }
+        
+        @Override
+        public boolean matches(StorageEntry entry)
+        {
+            return value;
+        }
+        
+        private final boolean value;
+    }
+    
+    private static final class Negation extends CompiledSelector
+    {
+        public Negation(CompiledSelector operand)
+        {
+            this.operand = operand;
+        }
+        
+        @Override
+        public boolean matches(StorageEntry entry)
+        {
+            return !operand.matches(entry);
+        }
+        
+        private final CompiledSelector operand;
+    }
+    
+    private static final class And extends CompiledSelector
+    {
+        public And(CompiledSelector left, CompiledSelector right)
+        {
+            this.left = left;
+            this.right = right;
+        }
+        
+        @Override
+        public boolean matches(StorageEntry entry)
+        {
+            return left.matches(entry) && right.matches(entry);
+        }
+        
+        private final CompiledSelector left;
+        private final CompiledSelector right;
+    }
+    
+    private static final class Or extends CompiledSelector
+    {
+        public Or(CompiledSelector left, CompiledSelector right)
+        {
+            this.left = left;
+            this.right = right;
+        }
+        
+        @Override
+        public boolean matches(StorageEntry entry)
+        {
+            return left.matches(entry) || right.matches(entry);
+        }
+        
+        private final CompiledSelector left;
+        private final CompiledSelector right;
+    }
+    
+    private static final class Equals extends CompiledSelector
+    {
+        public Equals(String key, String operand)
+        {
+            this.key = key;
+            this.operand = operand;
+        }
+        
+        @Override
+        public boolean matches(StorageEntry entry)
+        {
+            String actualValue = entry.get(key);
+            
+            if (actualValue == null)
+            {
+                return operand == null;
+            }
+            else
+            {
+                return actualValue.equals(operand);
+            }
+        }
+        
+        private final String key;
+        private final String operand;
+    }
+    
+    private static final class In extends CompiledSelector
+    {
+        public In(String key, Collection<String> operands)
+        {
+            this.key = key;
+            this.operands = new HashSet<>(operands);
+        }
+        
+        @Override
+        public boolean matches(StorageEntry entry)
+        {
+            String actualValue = entry.get(key);
+            
+            return actualValue != null && operands.contains(actualValue);
+        }
+        
+        private final String key;
+        private final Set<String> operands;
+    }
+    
+    private static final class Comparison extends CompiledSelector
+    {
+        public Comparison(String key, long operand, boolean lessThan)
+        {
+            this.key = key;
+            this.operand = operand;
+            this.lessThan = lessThan;
+        }
+        
+        @Override
+        public boolean matches(StorageEntry entry)
+        {
+            long actualLong;
+            
+            try
+            {
+                actualLong = Long.parseLong(entry.get(key));
+            }
+            catch (NumberFormatException ex)
+            {
+                return false;
+            }
+            
+            return lessThan ? actualLong < operand : actualLong > operand;
+        }
+        
+        private final String key;
+        private final long operand;
+        private final boolean lessThan;
+    }
+    
+    private static final class Substring extends CompiledSelector
+    {
+        public Substring(
+                String key, String operand, SelectorCondition.Relation relation
+        )
+        {
+            this.key = key;
+            this.operand = operand;
+            this.relation = relation;
+        }
+        
+        @Override
+        public boolean matches(StorageEntry entry)
+        {
+            String actualValue = entry.get(key);
+            
+            switch (relation)
+            {
+            case STARTS_WITH:
+                return actualValue.startsWith(operand);
+            
+            case ENDS_WITH:
+                return actualValue.endsWith(operand);
+            
+            default:
+                return actualValue.contains(operand);
+            }
+        }
+        
+        private final String key;
+        private final String operand;
+        private final SelectorCondition.Relation relation;
+    }
+    
+    private static final CompiledSelector TRUE = new Constant(true);
+    private static final CompiledSelector FALSE = new Constant(false);
+}
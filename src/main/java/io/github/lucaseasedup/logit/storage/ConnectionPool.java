@@ -0,0 +1,642 @@
+package io.github.lucaseasedup.logit.storage;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pool of JDBC connections shared by the SQL storages.
+ * 
+ * <p> Connections are validated when borrowed, and the ones that have been
+ * sitting idle for longer than the idle timeout are closed on the next
+ * borrow, or by a background thread that checks once per idle timeout,
+ * so that a quiet pool does not keep connections the server has dropped.
+ */
+public final class ConnectionPool implements AutoCloseable
+{
+    private ConnectionPool(
+            ConnectionFactory factory,
+            int maxSize,
+            long borrowTimeout,
+            long idleTimeout,
+            boolean validateOnBorrow,
+            int validationTimeout,
+            int statementCacheSize,
+            int cursorFetchSize
+    )
+    {
+        if (factory == null || maxSize < 1 || borrowTimeout < 0
+                || idleTimeout < 0 || validationTimeout < 0
+                || statementCacheSize < 1 || cursorFetchSize < 1)
+        {
+            throw new IllegalArgumentException();
+        }
+        
+        this.factory = factory;
+        this.maxSize = maxSize;
+        this.borrowTimeout = borrowTimeout;
+        this.idleTimeout = idleTimeout;
+        this.validateOnBorrow = validateOnBorrow;
+        this.validationTimeout = validationTimeout;
+        this.statementCacheSize = statementCacheSize;
+        this.cursorFetchSize = cursorFetchSize;
+        
+        if (idleTimeout > 0)
+        {
+            evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, "LogIt Connection Evictor");
+                    
+                    thread.setDaemon(true);
+                    
+                    return thread;
+                }
+            });
+            evictor.scheduleWithFixedDelay(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    evictIdleConnections();
+                }
+            }, idleTimeout, idleTimeout, TimeUnit.MILLISECONDS);
+        }
+        else
+        {
+            evictor = null;
+        }
+    }
+    
+    /**
+     * Borrows a connection from this pool, creating a new one
+     * if there is no idle connection and the pool is not full.
+     * 
+     * <p> The returned connection must be given back by calling
+     * {@link PooledConnection#close()} on it.
+     * 
+     * @return a valid pooled connection.
+     * 
+     * @throws SQLException if a connection could not be created,
+     *                      or no connection became available
+     *                      within the borrow timeout.
+     */
+    public PooledConnection borrowConnection() throws SQLException
+    {
+        synchronized (this)
+        {
+            PooledConnection held = holders.get(Thread.currentThread());
+            
+            // Hand the same connection to a thread that already holds one,
+            // so that nested borrows cannot exhaust the pool.
+            if (held != null)
+            {
+                held.setHoldCount(held.getHoldCount() + 1);
+                borrowCount++;
+                
+                return held;
+            }
+        }
+        
+        long deadline = System.currentTimeMillis() + borrowTimeout;
+        boolean waited = false;
+        
+        while (true)
+        {
+            PooledConnection connection = null;
+            
+            evictIdleConnections();
+            
+            synchronized (this)
+            {
+                if (closed)
+                    throw new SQLException("Connection pool closed.");
+                
+                if (!idle.isEmpty())
+                {
+                    connection = idle.removeFirst();
+                }
+                else if (size < maxSize)
+                {
+                    // Reserve a slot; the connection is opened outside
+                    // of the lock so that other callers do not stall.
+                    size++;
+                }
+                else
+                {
+                    long remaining = deadline - System.currentTimeMillis();
+                    
+                    if (borrowTimeout > 0 && remaining <= 0)
+                    {
+                        timeoutCount++;
+                        
+                        throw new SQLException(
+                                "Timed out waiting for a pooled connection."
+                        );
+                    }
+                    
+                    if (!waited)
+                    {
+                        waited = true;
+                        waitCount++;
+                    }
+                    
+                    try
+                    {
+                        // A zero borrow timeout means waiting indefinitely.
+                        wait((borrowTimeout > 0) ? remaining : 0);
+                    }
+                    catch (InterruptedException ex)
+                    {
+                        Thread.currentThread().interrupt();
+                        
+                        throw new SQLException(ex);
+                    }
+                    
+                    continue;
+                }
+            }
+            
+            if (connection == null)
+            {
+                connection = openConnection();
+            }
+            else if (validateOnBorrow && !isValid(connection))
+            {
+                synchronized (this)
+                {
+                    validationFailureCount++;
+                }
+                
+                destroyConnection(connection);
+                
+                continue;
+            }
+            
+            synchronized (this)
+            {
+                borrowCount++;
+                active++;
+                connection.setHoldCount(1);
+                holders.put(Thread.currentThread(), connection);
+            }
+            
+            return connection;
+        }
+    }
+    
+    /**
+     * Closes all idle connections that have not been used
+     * for longer than the idle timeout.
+     */
+    public void evictIdleConnections()
+    {
+        if (idleTimeout == 0)
+            return;
+        
+        long now = System.currentTimeMillis();
+        LinkedList<PooledConnection> evicted = new LinkedList<>();
+        
+        synchronized (this)
+        {
+            Iterator<PooledConnection> it = idle.iterator();
+            
+            while (it.hasNext())
+            {
+                PooledConnection connection = it.next();
+                
+                if (now - connection.getLastReleaseTime() > idleTimeout)
+                {
+                    it.remove();
+                    evicted.add(connection);
+                    evictionCount++;
+                }
+            }
+        }
+        
+        for (PooledConnection connection : evicted)
+        {
+            destroyConnection(connection);
+        }
+    }
+    
+    @Override
+    public void close()
+    {
+        if (evictor != null)
+        {
+            evictor.shutdown();
+        }
+        
+        LinkedList<PooledConnection> toClose;
+        
+        synchronized (this)
+        {
+            closed = true;
+            toClose = new LinkedList<>(idle);
+            idle.clear();
+            notifyAll();
+        }
+        
+        for (PooledConnection connection : toClose)
+        {
+            destroyConnection(connection);
+        }
+    }
+    
+    public synchronized boolean isClosed()
+    {
+        return closed;
+    }
+    
+    public int getMaxSize()
+    {
+        return maxSize;
+    }
+    
+    /**
+     * Returns the number of connections currently opened by this pool,
+     * both idle and borrowed.
+     */
+    public synchronized int getSize()
+    {
+        return size;
+    }
+    
+    public synchronized int getActiveCount()
+    {
+        return active;
+    }
+    
+    public synchronized int getIdleCount()
+    {
+        return idle.size();
+    }
+    
+    public synchronized long getBorrowCount()
+    {
+        return borrowCount;
+    }
+    
+    public synchronized long getCreateCount()
+    {
+        return createCount;
+    }
+    
+    public synchronized long getDestroyCount()
+    {
+        return destroyCount;
+    }
+    
+    /**
+     * Returns how many borrow requests had to wait
+     * for another caller to release a connection.
+     */
+    public synchronized long getWaitCount()
+    {
+        return waitCount;
+    }
+    
+    public synchronized long getTimeoutCount()
+    {
+        return timeoutCount;
+    }
+    
+    public synchronized long getEvictionCount()
+    {
+        return evictionCount;
+    }
+    
+    public synchronized long getValidationFailureCount()
+    {
+        return validationFailureCount;
+    }
+    
+    public synchronized long getStatementCacheHitCount()
+    {
+        return statementCacheHitCount;
+    }
+    
+    public synchronized long getStatementCacheMissCount()
+    {
+        return statementCacheMissCount;
+    }
+    
+    /**
+     * Makes every connection of this pool discard its cached prepared
+     * statements the next time it prepares one.
+     * 
+     * <p> This should be called after the schema has been altered,
+     * since some drivers refuse to reuse a statement prepared
+     * against the old table layout.
+     */
+    public synchronized void invalidateStatementCaches()
+    {
+        statementCacheGeneration++;
+    }
+    
+    @Override
+    public synchronized String toString()
+    {
+        return "ConnectionPool {"
+                + "size: " + size + "/" + maxSize + ", "
+                + "active: " + active + ", "
+                + "idle: " + idle.size() + ", "
+                + "borrowed: " + borrowCount + ", "
+                + "created: " + createCount + ", "
+                + "destroyed: " + destroyCount + ", "
+                + "waits: " + waitCount + ", "
+                + "timeouts: " + timeoutCount + ", "
+                + "evictions: " + evictionCount + ", "
+                + "validationFailures: " + validationFailureCount + ", "
+                + "statementCacheHits: " + statementCacheHitCount + ", "
+                + "statementCacheMisses: " + statementCacheMissCount
+                + "}";
+    }
+    
+    /* package */ int getStatementCacheSize()
+    {
+        return statementCacheSize;
+    }
+    
+    /* package */ int getCursorFetchSize()
+    {
+        return cursorFetchSize;
+    }
+    
+    /* package */ synchronized int getStatementCacheGeneration()
+    {
+        return statementCacheGeneration;
+    }
+    
+    /* package */ synchronized void recordStatementCacheLookup(boolean hit)
+    {
+        if (hit)
+        {
+            statementCacheHitCount++;
+        }
+        else
+        {
+            statementCacheMissCount++;
+        }
+    }
+    
+    /* package */ void releaseConnection(PooledConnection connection)
+    {
+        boolean discard;
+        
+        synchronized (this)
+        {
+            if (connection.getHoldCount() == 0)
+                return;
+            
+            connection.setHoldCount(connection.getHoldCount() - 1);
+            
+            if (connection.getHoldCount() > 0)
+                return;
+            
+            // The connection may be released by a thread other than
+            // the one that borrowed it.
+            holders.values().remove(connection);
+            
+            active--;
+            discard = closed;
+            
+            if (!discard)
+            {
+                idle.addFirst(connection);
+                notify();
+            }
+        }
+        
+        if (discard)
+        {
+            destroyConnection(connection);
+        }
+    }
+    
+    private PooledConnection openConnection() throws SQLException
+    {
+        try
+        {
+            PooledConnection connection =
+                    new PooledConnection(this, factory.createConnection());
+            
+            synchronized (this)
+            {
+                createCount++;
+            }
+            
+            return connection;
+        }
+        catch (SQLException | RuntimeException ex)
+        {
+            synchronized (this)
+            {
+                size--;
+                notify();
+            }
+            
+            throw ex;
+        }
+    }
+    
+    private void destroyConnection(PooledConnection connection)
+    {
+        try
+        {
+            connection.destroy();
+        }
+        catch (SQLException ex)
+        {
+            // Nothing can be done about a connection that fails to close.
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                size--;
+                destroyCount++;
+                notify();
+            }
+        }
+    }
+    
+    private boolean isValid(PooledConnection connection)
+    {
+        try
+        {
+            return connection.getConnection().isValid(validationTimeout);
+        }
+        catch (SQLException | AbstractMethodError ex)
+        {
+            return false;
+        }
+    }
+    
+    public static interface ConnectionFactory
+    {
+        public Connection createConnection() throws SQLException;
+    }
+    
+    public static final class Builder
+    {
+        public ConnectionPool build()
+        {
+            return new ConnectionPool(factory, maxSize, borrowTimeout,
+                    idleTimeout, validateOnBorrow, validationTimeout,
+                    statementCacheSize, cursorFetchSize);
+        }
+        
+        public Builder factory(ConnectionFactory factory)
+        {
+            if (factory == null)
+                throw new IllegalArgumentException();
+            
+            this.factory = factory;
+            
+            return this;
+        }
+        
+        public Builder maxSize(int maxSize)
+        {
+            if (maxSize < 1)
+                throw new IllegalArgumentException();
+            
+            this.maxSize = maxSize;
+            
+            return this;
+        }
+        
+        /**
+         * @param borrowTimeout how long, in milliseconds, a caller may wait
+         *                      for a connection when the pool is full;
+         *                      0 makes callers wait indefinitely.
+         */
+        public Builder borrowTimeout(long borrowTimeout)
+        {
+            if (borrowTimeout < 0)
+                throw new IllegalArgumentException();
+            
+            this.borrowTimeout = borrowTimeout;
+            
+            return this;
+        }
+        
+        /**
+         * @param idleTimeout how long, in milliseconds, a connection may
+         *                    stay idle before it gets evicted;
+         *                    0 disables eviction.
+         */
+        public Builder idleTimeout(long idleTimeout)
+        {
+            if (idleTimeout < 0)
+                throw new IllegalArgumentException();
+            
+            this.idleTimeout = idleTimeout;
+            
+            return this;
+        }
+        
+        public Builder validateOnBorrow(boolean validateOnBorrow)
+        {
+            this.validateOnBorrow = validateOnBorrow;
+            
+            return this;
+        }
+        
+        /**
+         * @param validationTimeout how long, in seconds, to wait for
+         *                          a connection to be validated on borrow.
+         */
+        public Builder validationTimeout(int validationTimeout)
+        {
+            if (validationTimeout < 0)
+                throw new IllegalArgumentException();
+            
+            this.validationTimeout = validationTimeout;
+            
+            return this;
+        }
+        
+        /**
+         * @param statementCacheSize how many prepared statements each
+         *                           connection keeps around for reuse.
+         */
+        public Builder statementCacheSize(int statementCacheSize)
+        {
+            if (statementCacheSize < 1)
+                throw new IllegalArgumentException();
+            
+            this.statementCacheSize = statementCacheSize;
+            
+            return this;
+        }
+        
+        /**
+         * @param cursorFetchSize how many rows a {@link StorageCursor}
+         *                        fetches from the database at a time.
+         */
+        public Builder cursorFetchSize(int cursorFetchSize)
+        {
+            if (cursorFetchSize < 1)
+                throw new IllegalArgumentException();
+            
+            this.cursorFetchSize = cursorFetchSize;
+            
+            return this;
+        }
+        
+        private ConnectionFactory factory;
+        private int maxSize = DEFAULT_MAX_SIZE;
+        private long borrowTimeout = DEFAULT_BORROW_TIMEOUT;
+        private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+        private boolean validateOnBorrow = true;
+        private int validationTimeout = DEFAULT_VALIDATION_TIMEOUT;
+        private int statementCacheSize = DEFAULT_STATEMENT_CACHE_SIZE;
+        private int cursorFetchSize = DEFAULT_CURSOR_FETCH_SIZE;
+    }
+    
+    public static final int DEFAULT_MAX_SIZE = 4;
+    public static final long DEFAULT_BORROW_TIMEOUT = 5000L;
+    public static final long DEFAULT_IDLE_TIMEOUT = 600000L;
+    public static final int DEFAULT_VALIDATION_TIMEOUT = 2;
+    public static final int DEFAULT_STATEMENT_CACHE_SIZE = 32;
+    public static final int DEFAULT_CURSOR_FETCH_SIZE = 500;
+    
+    private final ConnectionFactory factory;
+    private final int maxSize;
+    private final long borrowTimeout;
+    private final long idleTimeout;
+    private final boolean validateOnBorrow;
+    private final int validationTimeout;
+    private final int statementCacheSize;
+    private final int cursorFetchSize;
+    private final ScheduledExecutorService evictor;
+    
+    private final LinkedList<PooledConnection> idle = new LinkedList<>();
+    private final Map<Thread, PooledConnection> holders = new HashMap<>();
+    private int size = 0;
+    private int active = 0;
+    private boolean closed = false;
+    
+    private long borrowCount = 0;
+    private long createCount = 0;
+    private long destroyCount = 0;
+    private long waitCount = 0;
+    private long timeoutCount = 0;
+    private long evictionCount = 0;
+    private long validationFailureCount = 0;
+    private long statementCacheHitCount = 0;
+    private long statementCacheMissCount = 0;
+    private int statementCacheGeneration = 0;
+}
@@ -1,5 +1,6 @@
 package io.github.lucaseasedup.logit.storage;
 
+import io.github.lucaseasedup.logit.LogItCore;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
@@ -7,22 +8,62 @@ import java.io.FileFilter;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 
+/**
+ * Stores each unit in a CSV file.
+ * 
+ * <p> Changes to entries are appended to a journal kept next to the unit file
+ * and replayed on read, so that a write does not rewrite the whole unit.
+ * Once the journal grows past the compaction threshold, the unit file
+ * is rewritten with the journal applied, in the background.
+ * 
+ * <p> Transactions are emulated by holding back the journal records
+ * of a thread until it commits, when they are appended in a single write
+ * per unit. The thread reads them back in the meantime; other threads do not.
+ */
 public final class CsvStorage implements Storage
 {
     public CsvStorage(File dir)
     {
-        if (dir == null)
+        this(dir, DEFAULT_COMPACTION_THRESHOLD);
+    }
+    
+    /**
+     * @param dir                 the directory holding the unit files.
+     * @param compactionThreshold the size, in bytes, a journal may grow to
+     *                            before its unit file is rewritten.
+     */
+    public CsvStorage(File dir, long compactionThreshold)
+    {
+        if (dir == null || compactionThreshold < 0)
             throw new IllegalArgumentException();
         
         this.dir = dir;
+        this.compactionThreshold = compactionThreshold;
     }
     
     @Override
-    public void connect() throws IOException
+    public synchronized void connect() throws IOException
     {
         if (!dir.isDirectory())
         {
@@ -31,11 +72,31 @@ public final class CsvStorage implements Storage
             );
         }
         
+        recoverCompactions();
+        repairedJournals.clear();
+        journalRecordCounts.clear();
+        
+        if (compactor == null)
+        {
+            compactor = Executors.newSingleThreadExecutor(new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "LogIt CSV Compactor");
+                    
+                    thread.setDaemon(true);
+                    
+                    return thread;
+                }
+            });
+        }
+        
         connected = true;
     }
     
     @Override
-    public boolean isConnected() throws IOException
+    public synchronized boolean isConnected() throws IOException
     {
         return connected;
     }
@@ -54,7 +115,32 @@ public final class CsvStorage implements Storage
     @Override
     public void close() throws IOException
     {
-        connected = false;
+        ExecutorService compactorToShutDown;
+        
+        synchronized (this)
+        {
+            connected = false;
+            compactorToShutDown = compactor;
+            compactor = null;
+        }
+        
+        // Compactions already scheduled are let finish;
+        // they lock this storage, so it must not be locked here.
+        if (compactorToShutDown != null)
+        {
+            compactorToShutDown.shutdown();
+            
+            try
+            {
+                compactorToShutDown.awaitTermination(
+                        COMPACTOR_SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS
+                );
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
     
     @Override
@@ -65,7 +151,7 @@ public final class CsvStorage implements Storage
             @Override
             public boolean accept(File pathname)
             {
-                return pathname.isFile();
+                return pathname.isFile() && !isAuxiliaryFile(pathname.getName());
             }
         });
         
@@ -80,29 +166,16 @@ public final class CsvStorage implements Storage
     }
     
     @Override
-    public UnitKeys getKeys(String unit) throws IOException
+    public synchronized UnitKeys getKeys(String unit) throws IOException
     {
         if (!connected)
             throw new IOException("Database closed.");
         
         UnitKeys keys = new UnitKeys();
         
-        try (
-                FileReader fr = new FileReader(new File(dir, unit));
-                BufferedReader br = new BufferedReader(fr);
-        )
+        for (String key : readHeader(unit))
         {
-            String line = br.readLine();
-            
-            if (line == null)
-                throw new IOException("Null line.");
-            
-            String[] topValues = line.split(",");
-            
-            for (String topValue : topValues)
-            {
-                keys.put(unescapeValue(topValue), DataType.TEXT);
-            }
+            keys.put(key, DataType.TEXT);
         }
         
         return keys;
@@ -135,73 +208,74 @@ public final class CsvStorage implements Storage
     }
     
     @Override
-    public List<StorageEntry> selectEntries(
+    public synchronized List<StorageEntry> selectEntries(
             String unit, List<String> keys, Selector selector
     ) throws IOException
     {
+        CompiledSelector compiledSelector = CompiledSelector.compile(selector);
         List<StorageEntry> entries = new ArrayList<>();
         
-        try (
-                FileReader fr = new FileReader(new File(dir, unit));
-                BufferedReader br = new BufferedReader(fr);
-        )
+        for (StorageEntry entry : readEntries(unit))
         {
-            String line = br.readLine();
-            
-            if (line == null)
-                throw new IOException("Null line.");
-            
-            String[] tableKeys = line.split(",");
+            if (!compiledSelector.matches(entry))
+                continue;
             
-            for (int i = 0; i < tableKeys.length; i++)
+            if (keys == null)
             {
-                tableKeys[i] = unescapeValue(tableKeys[i]);
+                entries.add(entry);
             }
-            
-            while ((line = br.readLine()) != null)
+            else
             {
-                StringBuilder lineBuilder = new StringBuilder(line);
-                
-                // Read records spanning multiple lines.
-                while (!line.endsWith("\""))
-                {
-                    line = br.readLine();
-                    
-                    if (line == null)
-                        throw new IOException("Corrupted CSV file");
-                    
-                    lineBuilder.append("\r\n");
-                    lineBuilder.append(line);
-                }
+                StorageEntry.Builder entryBuilder = new StorageEntry.Builder();
                 
-                String[] lineValues =
-                        lineBuilder.toString().split("(?<=\"),(?=\")");
-                StorageEntry.Builder entryBuilder =
-                        new StorageEntry.Builder();
-                
-                for (int i = 0; i < lineValues.length; i++)
+                for (StorageDatum datum : entry)
                 {
-                    if (keys == null || keys.contains(tableKeys[i]))
+                    if (keys.contains(datum.getKey()))
                     {
-                        entryBuilder.put(tableKeys[i],
-                                unescapeValue(lineValues[i]));
+                        entryBuilder.put(datum.getKey(), datum.getValue());
                     }
                 }
                 
-                StorageEntry entry = entryBuilder.build();
-                
-                if (SqlUtils.resolveSelector(selector, entry))
-                {
-                    entries.add(entry);
-                }
+                entries.add(entryBuilder.build());
             }
         }
         
         return entries;
     }
     
+    /**
+     * Returns a cursor over the entries selected at once,
+     * since the unit is read in whole anyway.
+     */
+    @Override
+    public StorageCursor selectCursor(
+            String unit, List<String> keys, Selector selector
+    ) throws IOException
+    {
+        return new ListStorageCursor(selectEntries(unit, keys, selector));
+    }
+    
+    @Override
+    public long count(String unit, Selector selector) throws IOException
+    {
+        return selectEntries(unit, selector).size();
+    }
+    
+    @Override
+    public boolean exists(String unit, Selector selector) throws IOException
+    {
+        return count(unit, selector) > 0;
+    }
+    
+    @Override
+    public long countDistinct(String unit, String key, Selector selector)
+            throws IOException
+    {
+        return StorageEntry.countDistinct(selectEntries(unit, selector), key);
+    }
+    
     @Override
-    public void createUnit(String unit, UnitKeys keys, String primaryKey)
+    public synchronized void createUnit(String unit, UnitKeys keys, String primaryKey)
             throws IOException
     {
         if (!connected)
@@ -221,179 +295,209 @@ public final class CsvStorage implements Storage
         
         try (BufferedWriter bw = new BufferedWriter(new FileWriter(file)))
         {
-            StringBuilder sb = new StringBuilder();
-            
-            for (String key : keys.keySet())
-            {
-                if (sb.length() > 0)
-                    sb.append(",");
-                
-                sb.append(escapeValue(key));
-            }
-            
-            sb.append("\r\n");
-            bw.write(sb.toString());
+            writeRecord(bw, new ArrayList<>(keys.keySet()));
         }
     }
     
+    /**
+     * Creates a unit; its keys are not indexed.
+     */
+    @Override
+    public synchronized void createUnit(
+            String unit, UnitKeys keys, String primaryKey, Map<String, IndexType> indexes
+    ) throws IOException
+    {
+        createUnit(unit, keys, primaryKey);
+    }
+    
     @Override
-    public void renameUnit(String unit, String newName) throws IOException
+    public synchronized void renameUnit(String unit, String newName) throws IOException
     {
         if (!connected)
             throw new IOException("Database closed.");
         
         new File(dir, unit).renameTo(new File(dir, newName));
+        getJournalFile(unit).renameTo(getJournalFile(newName));
+        forgetJournal(unit);
+        forgetJournal(newName);
     }
     
     @Override
-    public void eraseUnit(String unit) throws IOException
+    public synchronized void eraseUnit(String unit) throws IOException
     {
         if (!connected)
             throw new IOException("Database closed.");
         
-        String keys;
-        
-        try (
-                FileReader fr = new FileReader(new File(dir, unit));
-                BufferedReader br = new BufferedReader(fr);
-        )
-        {
-            keys = br.readLine();
-        }
-        
-        try (
-                FileWriter fw = new FileWriter(new File(dir, unit));
-                BufferedWriter bw = new BufferedWriter(fw);
-        )
-        {
-            bw.write(keys + "\r\n");
-        }
+        rewriteUnit(unit, readHeader(unit), new ArrayList<StorageEntry>());
     }
     
     @Override
-    public void removeUnit(String unit) throws IOException
+    public synchronized void removeUnit(String unit) throws IOException
     {
         if (!connected)
             throw new IOException("Database closed.");
         
         new File(dir, unit).delete();
+        getJournalFile(unit).delete();
+        forgetJournal(unit);
     }
     
     @Override
-    public void addKey(String unit, String key, DataType type)
+    public synchronized void addKey(String unit, String key, DataType type)
             throws IOException
     {
         if (!connected)
             throw new IOException("Database closed.");
         
-        UnitKeys keys = getKeys(unit);
-        String primaryKey = getPrimaryKey(unit);
+        List<String> keys = readHeader(unit);
         
-        if (keys.containsKey(key))
+        if (keys.contains(key))
             throw new IOException("Key with this name already exists: " + key);
         
-        List<StorageEntry> entries = selectEntries(unit);
+        List<StorageEntry> entries = readEntries(unit);
         
-        keys.put(key, type);
-        removeUnit(unit);
-        createUnit(unit, keys, primaryKey);
+        keys.add(key);
         
-        for (StorageEntry entry : entries)
+        // Journal records hold values in the order of the keys,
+        // so the journal is compacted along with the new key.
+        rewriteUnit(unit, keys, entries);
+    }
+    
+    /**
+     * Adds a key; it is not indexed.
+     */
+    @Override
+    public synchronized void addKey(String unit, String key, DataType type, IndexType indexType)
+            throws IOException
+    {
+        addKey(unit, key, type);
+    }
+    
+    @Override
+    public synchronized void addEntry(String unit, StorageEntry entry) throws IOException
+    {
+        if (!connected)
+            throw new IOException("Database closed.");
+        
+        List<String> record = new ArrayList<>();
+        record.add(RECORD_ADD);
+        
+        for (String key : readHeader(unit))
         {
-            addEntry(unit, entry);
+            String value = entry.get(key);
+            
+            record.add((value != null) ? value : "");
         }
+        
+        appendToJournal(unit, record);
     }
     
     @Override
-    public void addEntry(String unit, StorageEntry entry) throws IOException
+    public synchronized void addEntries(String unit, List<StorageEntry> entries)
+            throws IOException
     {
         if (!connected)
             throw new IOException("Database closed.");
         
-        UnitKeys keys = getKeys(unit);
+        List<String> header = readHeader(unit);
+        List<List<String>> records = new ArrayList<>(entries.size());
         
-        try (
-                FileWriter fw = new FileWriter(new File(dir, unit), true);
-                BufferedWriter bw = new BufferedWriter(fw);
-        )
+        for (StorageEntry entry : entries)
         {
-            StringBuilder sb = new StringBuilder();
+            List<String> record = new ArrayList<>();
+            record.add(RECORD_ADD);
             
-            for (String key : keys.keySet())
+            for (String key : header)
             {
-                if (sb.length() > 0)
-                {
-                    sb.append(",");
-                }
-                
                 String value = entry.get(key);
                 
-                if (value != null && !value.isEmpty())
-                {
-                    sb.append(escapeValue(value));
-                }
-                else
-                {
-                    sb.append("\"\"");
-                }
+                record.add((value != null) ? value : "");
             }
             
-            sb.append("\r\n");
-            bw.write(sb.toString());
+            records.add(record);
         }
+        
+        appendToJournal(unit, records);
     }
     
     @Override
-    public void updateEntries(
+    public synchronized void updateEntries(
             String unit, StorageEntry entrySubset, Selector selector
     ) throws IOException
     {
         if (!connected)
             throw new IOException("Database closed.");
         
-        UnitKeys keys = getKeys(unit);
-        String primaryKey = getPrimaryKey(unit);
+        List<String> record = new ArrayList<>();
+        record.add(RECORD_UPDATE);
+        record.add(String.valueOf(entrySubset.getKeys().size()));
+        
+        for (StorageDatum datum : entrySubset)
+        {
+            record.add(datum.getKey());
+            record.add(datum.getValue());
+        }
         
-        List<StorageEntry> entries = selectEntries(unit);
+        encodeSelector(selector, record);
+        appendToJournal(unit, record);
+    }
+    
+    @Override
+    public synchronized void updateEntriesByKey(
+            String unit, String key, Map<String, StorageEntry> entrySubsets
+    ) throws IOException
+    {
+        if (!connected)
+            throw new IOException("Database closed.");
         
-        removeUnit(unit);
-        createUnit(unit, keys, primaryKey);
+        List<List<String>> records = new ArrayList<>(entrySubsets.size());
         
-        for (StorageEntry entry : entries)
+        for (Map.Entry<String, StorageEntry> e : entrySubsets.entrySet())
         {
-            if (SqlUtils.resolveSelector(selector, entry))
+            List<String> record = new ArrayList<>();
+            record.add(RECORD_UPDATE);
+            record.add(String.valueOf(e.getValue().getKeys().size()));
+            
+            for (StorageDatum datum : e.getValue())
             {
-                for (StorageDatum datum : entrySubset)
-                {
-                    entry.put(datum.getKey(), datum.getValue());
-                }
+                record.add(datum.getKey());
+                record.add(datum.getValue());
             }
             
+            encodeSelector(new SelectorCondition(key, Infix.EQUALS, e.getKey()), record);
+            records.add(record);
+        }
+        
+        appendToJournal(unit, records);
+    }
+    
+    @Override
+    public synchronized void upsertEntry(String unit, String key, StorageEntry entry)
+            throws IOException
+    {
+        Selector selector = new SelectorCondition(key, Infix.EQUALS, entry.get(key));
+        
+        if (selectEntries(unit, Collections.singletonList(key), selector).isEmpty())
+        {
             addEntry(unit, entry);
         }
+        else
+        {
+            updateEntries(unit, entry, selector);
+        }
     }
     
     @Override
-    public void removeEntries(String unit, Selector selector) throws IOException
+    public synchronized void removeEntries(String unit, Selector selector) throws IOException
     {
         if (!connected)
             throw new IOException("Database closed.");
         
-        UnitKeys keys = getKeys(unit);
-        String primaryKey = getPrimaryKey(unit);
+        List<String> record = new ArrayList<>();
+        record.add(RECORD_REMOVE);
         
-        List<StorageEntry> entries = selectEntries(unit);
-        
-        removeUnit(unit);
-        createUnit(unit, keys, primaryKey);
-        
-        for (StorageEntry entry : entries)
-        {
-            if (!SqlUtils.resolveSelector(selector, entry))
-            {
-                addEntry(unit, entry);
-            }
-        }
+        encodeSelector(selector, record);
+        appendToJournal(unit, record);
     }
     
     @Override
@@ -420,34 +524,981 @@ public final class CsvStorage implements Storage
         // Batching is not supported.
     }
     
-    private String escapeValue(String s)
+    @Override
+    public synchronized void beginTransaction() throws IOException
     {
-        s = s.replace(",", "\\,");
+        if (transactionRecords.get() != null)
+            throw new IllegalStateException("Transaction already in progress.");
         
-        return "\"" + s + "\"";
+        transactionRecords.set(new LinkedHashMap<String, List<List<String>>>());
     }
     
-    private String unescapeValue(String s)
+    @Override
+    public synchronized void commitTransaction() throws IOException
     {
-        if (s == null)
-            throw new IllegalArgumentException();
+        Map<String, List<List<String>>> pendingRecords = endTransaction();
         
-        s = s.trim();
-        s = s.replace("\\,", ",");
+        if (!connected)
+            throw new IOException("Database closed.");
         
-        if (s.startsWith("\""))
+        for (Map.Entry<String, List<List<String>>> e : pendingRecords.entrySet())
         {
-            s = s.substring(1);
+            appendToJournal(e.getKey(), e.getValue());
+        }
+    }
+    
+    @Override
+    public synchronized void rollbackTransaction() throws IOException
+    {
+        endTransaction();
+    }
+    
+    private List<String> readHeader(String unit) throws IOException
+    {
+        try (
+                FileReader fr = new FileReader(new File(dir, unit));
+                BufferedReader br = new BufferedReader(fr);
+        )
+        {
+            List<String> header = readRecord(br, true);
+            
+            if (header == null)
+                throw new IOException("Null line.");
+            
+            return header;
         }
+    }
+    
+    /**
+     * Reads all entries of a unit, with its journal applied.
+     */
+    private List<StorageEntry> readEntries(String unit) throws IOException
+    {
+        JournalReplay replay;
         
-        if (s.endsWith("\""))
+        try (
+                FileReader fr = new FileReader(new File(dir, unit));
+                BufferedReader br = new BufferedReader(fr);
+        )
         {
-            s = s.substring(0, s.length() - 1);
+            List<String> keys = readRecord(br, true);
+            
+            if (keys == null)
+                throw new IOException("Null line.");
+            
+            replay = new JournalReplay(keys);
+            
+            List<String> values;
+            
+            while ((values = readRecord(br, true)) != null)
+            {
+                replay.addEntry(buildEntry(keys, values, 0));
+            }
         }
         
-        return s;
+        File journalFile = getJournalFile(unit);
+        
+        if (journalFile.exists())
+        {
+            boolean terminated;
+            int recordCount = 0;
+            
+            try (RandomAccessFile raf = new RandomAccessFile(journalFile, "r"))
+            {
+                terminated = raf.length() == 0 || isTerminatedAt(raf, raf.length());
+            }
+            
+            try (
+                    FileReader fr = new FileReader(journalFile);
+                    BufferedReader br = new BufferedReader(fr);
+            )
+            {
+                List<String> record = readRecord(br, false);
+                
+                while (record != null)
+                {
+                    List<String> nextRecord = readRecord(br, false);
+                    
+                    // The last record is skipped if a crash has cut it short.
+                    if (nextRecord == null && !terminated)
+                        break;
+                    
+                    replay.apply(record);
+                    recordCount++;
+                    record = nextRecord;
+                }
+            }
+            
+            journalRecordCounts.put(unit, recordCount);
+        }
+        
+        Map<String, List<List<String>>> pendingRecords = transactionRecords.get();
+        
+        if (pendingRecords != null && pendingRecords.containsKey(unit))
+        {
+            for (List<String> record : pendingRecords.get(unit))
+            {
+                replay.apply(record);
+            }
+        }
+        
+        return replay.getEntries();
     }
     
-    private final File dir;
-    private boolean connected = false;
+    private void appendToJournal(String unit, List<String> record)
+            throws IOException
+    {
+        appendToJournal(unit, Collections.singletonList(record));
+    }
+    
+    /**
+     * Appends records to the journal of a unit in a single write,
+     * or holds them back if a transaction is in progress on the calling thread.
+     */
+    private void appendToJournal(final String unit, Iterable<List<String>> records)
+            throws IOException
+    {
+        Map<String, List<List<String>>> pendingRecords = transactionRecords.get();
+        
+        if (pendingRecords != null)
+        {
+            List<List<String>> unitRecords = pendingRecords.get(unit);
+            
+            if (unitRecords == null)
+            {
+                unitRecords = new ArrayList<>();
+                pendingRecords.put(unit, unitRecords);
+            }
+            
+            for (List<String> record : records)
+            {
+                unitRecords.add(record);
+            }
+            
+            return;
+        }
+        
+        final File journalFile = getJournalFile(unit);
+        
+        if (repairedJournals.add(unit))
+        {
+            repairJournal(unit);
+        }
+        
+        int recordCount = 0;
+        
+        try (
+                FileWriter fw = new FileWriter(journalFile, true);
+                BufferedWriter bw = new BufferedWriter(fw);
+        )
+        {
+            for (List<String> record : records)
+            {
+                writeRecord(bw, record);
+                recordCount++;
+            }
+        }
+        catch (IOException ex)
+        {
+            // The write may have left a record cut short; repair before the next one.
+            repairedJournals.remove(unit);
+            
+            throw ex;
+        }
+        
+        if (journalRecordCounts.containsKey(unit))
+        {
+            journalRecordCounts.put(unit, journalRecordCounts.get(unit) + recordCount);
+        }
+        
+        if (needsCompaction(unit)
+                && compactor != null && pendingCompactions.add(unit))
+        {
+            compactor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    synchronized (CsvStorage.this)
+                    {
+                        pendingCompactions.remove(unit);
+                        
+                        try
+                        {
+                            if (needsCompaction(unit))
+                            {
+                                rewriteUnit(unit, readHeader(unit), readEntries(unit));
+                            }
+                        }
+                        catch (IOException ex)
+                        {
+                            LogItCore.getInstance().log(Level.WARNING,
+                                    "Could not compact CSV unit: " + unit, ex);
+                        }
+                    }
+                }
+            });
+        }
+    }
+    
+    /**
+     * Checks whether the journal of a unit has grown past the compaction
+     * threshold, or holds more records than are worth replaying on every read.
+     * The records are counted once the journal has been read.
+     */
+    private boolean needsCompaction(String unit)
+    {
+        Integer recordCount = journalRecordCounts.get(unit);
+        
+        return getJournalFile(unit).length() > compactionThreshold
+                || (recordCount != null && recordCount > COMPACTION_RECORD_THRESHOLD);
+    }
+    
+    /**
+     * Truncates the journal of a unit after its last complete record,
+     * so that a record cut short by a crash is not glued
+     * to the next one appended.
+     */
+    private void repairJournal(String unit) throws IOException
+    {
+        File journalFile = getJournalFile(unit);
+        
+        if (!journalFile.exists())
+            return;
+        
+        try (RandomAccessFile raf = new RandomAccessFile(journalFile, "rw"))
+        {
+            long length = raf.length();
+            
+            if (length == 0 || isTerminatedAt(raf, length))
+                return;
+            
+            byte[] buffer = new byte[8192];
+            long position = length;
+            long newLength = 0;
+            
+            search:
+            while (position > 0)
+            {
+                int chunkLength = (int) Math.min(buffer.length, position);
+                
+                position -= chunkLength;
+                raf.seek(position);
+                raf.readFully(buffer, 0, chunkLength);
+                
+                for (int i = chunkLength - 1; i >= 0; i--)
+                {
+                    if (buffer[i] == '\n' && isTerminatedAt(raf, position + i + 1))
+                    {
+                        newLength = position + i + 1;
+                        
+                        break search;
+                    }
+                }
+            }
+            
+            raf.setLength(newLength);
+            
+            LogItCore.getInstance().log(Level.WARNING,
+                    "Truncated a record cut short in CSV journal: " + journalFile);
+        }
+    }
+    
+    /**
+     * Replaces the file of a unit and discards its journal.
+     * 
+     * <p> The new file is written aside first. The journal is then moved
+     * aside, the new file moved in place, and the old journal deleted,
+     * so that an interrupted rewrite can be undone by
+     * {@link #recoverCompactions()}.
+     */
+    private void rewriteUnit(
+            String unit, List<String> keys, List<StorageEntry> entries
+    ) throws IOException
+    {
+        File file = new File(dir, unit);
+        File compactedFile = new File(dir, unit + COMPACTED_SUFFIX);
+        File journalFile = getJournalFile(unit);
+        File oldJournalFile = new File(dir, unit + OLD_JOURNAL_SUFFIX);
+        
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(compactedFile)))
+        {
+            writeRecord(bw, keys);
+            
+            for (StorageEntry entry : entries)
+            {
+                List<String> values = new ArrayList<>(keys.size());
+                
+                for (String key : keys)
+                {
+                    String value = entry.get(key);
+                    
+                    values.add((value != null) ? value : "");
+                }
+                
+                writeRecord(bw, values);
+            }
+        }
+        
+        if (journalFile.exists())
+        {
+            Files.move(journalFile.toPath(), oldJournalFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+        
+        Files.move(compactedFile.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        
+        oldJournalFile.delete();
+        journalRecordCounts.put(unit, 0);
+    }
+    
+    /**
+     * Finishes or undoes rewrites interrupted by a crash.
+     */
+    private void recoverCompactions() throws IOException
+    {
+        File[] files = dir.listFiles();
+        
+        if (files == null)
+            return;
+        
+        for (File file : files)
+        {
+            String name = file.getName();
+            
+            if (!name.endsWith(COMPACTED_SUFFIX))
+                continue;
+            
+            // The unit file has not been replaced yet.
+            String unit = name.substring(0, name.length() - COMPACTED_SUFFIX.length());
+            File oldJournalFile = new File(dir, unit + OLD_JOURNAL_SUFFIX);
+            
+            if (oldJournalFile.exists() && !getJournalFile(unit).exists())
+            {
+                Files.move(oldJournalFile.toPath(), getJournalFile(unit).toPath());
+            }
+            
+            file.delete();
+        }
+        
+        for (File file : files)
+        {
+            String name = file.getName();
+            
+            // The unit file has been replaced; the old journal is already applied.
+            if (name.endsWith(OLD_JOURNAL_SUFFIX) && file.exists())
+            {
+                file.delete();
+            }
+        }
+    }
+    
+    /**
+     * Detaches the transaction in progress from the calling thread.
+     * 
+     * @return the records held back by the transaction, by unit.
+     */
+    private Map<String, List<List<String>>> endTransaction()
+    {
+        Map<String, List<List<String>>> pendingRecords = transactionRecords.get();
+        
+        if (pendingRecords == null)
+            throw new IllegalStateException("No transaction in progress.");
+        
+        transactionRecords.remove();
+        
+        return pendingRecords;
+    }
+    
+    /**
+     * Drops what is known about the journal of a unit
+     * whose journal file has been replaced.
+     */
+    private void forgetJournal(String unit)
+    {
+        repairedJournals.remove(unit);
+        journalRecordCounts.remove(unit);
+    }
+    
+    private File getJournalFile(String unit)
+    {
+        return new File(dir, unit + JOURNAL_SUFFIX);
+    }
+    
+    private static boolean isAuxiliaryFile(String name)
+    {
+        return name.endsWith(JOURNAL_SUFFIX)
+                || name.endsWith(OLD_JOURNAL_SUFFIX)
+                || name.endsWith(COMPACTED_SUFFIX);
+    }
+    
+    /**
+     * Checks whether the first bytes of a journal, up to a length,
+     * end with the terminator of a record.
+     */
+    private static boolean isTerminatedAt(RandomAccessFile raf, long length)
+            throws IOException
+    {
+        if (length < RECORD_TERMINATOR.length)
+            return false;
+        
+        byte[] bytes = new byte[RECORD_TERMINATOR.length];
+        
+        raf.seek(length - bytes.length);
+        raf.readFully(bytes);
+        
+        return Arrays.equals(bytes, RECORD_TERMINATOR);
+    }
+    
+    private static StorageEntry buildEntry(
+            List<String> keys, List<String> values, int offset
+    )
+    {
+        StorageEntry.Builder entryBuilder = new StorageEntry.Builder();
+        
+        for (int i = 0; i < keys.size() && offset + i < values.size(); i++)
+        {
+            entryBuilder.put(keys.get(i), values.get(offset + i));
+        }
+        
+        return entryBuilder.build();
+    }
+    
+    /**
+     * Appends the fields describing a selector to a journal record.
+     */
+    private static void encodeSelector(Selector selector, List<String> record)
+    {
+        if (selector instanceof SelectorConstant)
+        {
+            record.add(SELECTOR_CONSTANT);
+            record.add(((SelectorConstant) selector).getValue() ? "1" : "0");
+        }
+        else if (selector instanceof SelectorCondition)
+        {
+            SelectorCondition selectorCondition = (SelectorCondition) selector;
+            
+            if (selectorCondition.getValue() == null)
+            {
+                record.add(SELECTOR_NULL_CONDITION);
+                record.add(selectorCondition.getKey());
+                record.add(selectorCondition.getRelation().name());
+            }
+            else
+            {
+                record.add(SELECTOR_CONDITION);
+                record.add(selectorCondition.getKey());
+                record.add(selectorCondition.getRelation().name());
+                record.add(selectorCondition.getValue());
+            }
+        }
+        else if (selector instanceof SelectorNegation)
+        {
+            record.add(SELECTOR_NEGATION);
+            encodeSelector(((SelectorNegation) selector).getOperand(), record);
+        }
+        else if (selector instanceof SelectorBinary)
+        {
+            SelectorBinary selectorBinary = (SelectorBinary) selector;
+            
+            record.add(SELECTOR_BINARY);
+            record.add(selectorBinary.getRelation().name());
+            encodeSelector(selectorBinary.getLeftOperand(), record);
+            encodeSelector(selectorBinary.getRightOperand(), record);
+        }
+        else if (selector instanceof SelectorIn)
+        {
+            SelectorIn selectorIn = (SelectorIn) selector;
+            
+            record.add(SELECTOR_IN);
+            record.add(selectorIn.getKey());
+            record.add(String.valueOf(selectorIn.getValues().size()));
+            record.addAll(selectorIn.getValues());
+        }
+        else
+        {
+            throw new IllegalArgumentException("Unsupported selector: " + selector);
+        }
+    }
+    
+    /**
+     * Reads a selector from the fields of a journal record.
+     * 
+     * @param position a one-element array holding the index of the first field,
+     *                 advanced past the fields read.
+     */
+    private static Selector decodeSelector(List<String> record, int[] position)
+            throws IOException
+    {
+        try
+        {
+            switch (record.get(position[0]++))
+            {
+            case SELECTOR_CONSTANT:
+                return new SelectorConstant(record.get(position[0]++).equals("1"));
+            
+            case SELECTOR_CONDITION:
+            case SELECTOR_NULL_CONDITION:
+            {
+                String tag = record.get(position[0] - 1);
+                String key = record.get(position[0]++);
+                SelectorCondition.Relation relation =
+                        SelectorCondition.Relation.valueOf(record.get(position[0]++));
+                String value = tag.equals(SELECTOR_CONDITION)
+                        ? record.get(position[0]++) : null;
+                
+                return new SelectorCondition(key, relation, value);
+            }
+            case SELECTOR_NEGATION:
+                return new SelectorNegation(
+                        (SelectorCondition) decodeSelector(record, position)
+                );
+            
+            case SELECTOR_BINARY:
+            {
+                SelectorBinary.Relation relation =
+                        SelectorBinary.Relation.valueOf(record.get(position[0]++));
+                Selector leftOperand = decodeSelector(record, position);
+                Selector rightOperand = decodeSelector(record, position);
+                
+                return new SelectorBinary(leftOperand, relation, rightOperand);
+            }
+            case SELECTOR_IN:
+            {
+                String key = record.get(position[0]++);
+                int count = Integer.parseInt(record.get(position[0]++));
+                List<String> values = new ArrayList<>(
+                        record.subList(position[0], position[0] + count)
+                );
+                
+                position[0] += count;
+                
+                return new SelectorIn(key, values);
+            }
+            default:
+                throw new IOException("Corrupted CSV journal");
+            }
+        }
+        catch (IndexOutOfBoundsException | IllegalArgumentException
+                | ClassCastException ex)
+        {
+            throw new IOException("Corrupted CSV journal", ex);
+        }
+    }
+    
+    /**
+     * Reads the values of a record, which may span multiple lines.
+     * 
+     * @param strict whether a record cut short by the end of the file
+     *               is an error; if not, it is treated as the end of the file.
+     * 
+     * @return the values, or {@code null} if there are no more records.
+     */
+    private static List<String> readRecord(BufferedReader br, boolean strict)
+            throws IOException
+    {
+        String line = br.readLine();
+        
+        if (line == null)
+            return null;
+        
+        StringBuilder lineBuilder = new StringBuilder(line);
+        
+        // Read records spanning multiple lines.
+        while (!line.endsWith("\""))
+        {
+            line = br.readLine();
+            
+            if (line == null)
+            {
+                if (strict)
+                    throw new IOException("Corrupted CSV file");
+                
+                return null;
+            }
+            
+            lineBuilder.append("\r\n");
+            lineBuilder.append(line);
+        }
+        
+        String[] values = lineBuilder.toString().split("(?<=\"),(?=\")");
+        
+        for (int i = 0; i < values.length; i++)
+        {
+            values[i] = unescapeValue(values[i]);
+        }
+        
+        return new ArrayList<>(Arrays.asList(values));
+    }
+    
+    private static void writeRecord(BufferedWriter bw, List<String> values)
+            throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        
+        for (String value : values)
+        {
+            if (sb.length() > 0)
+            {
+                sb.append(",");
+            }
+            
+            sb.append(escapeValue((value != null) ? value : ""));
+        }
+        
+        sb.append("\r\n");
+        bw.write(sb.toString());
+    }
+    
+    private static String escapeValue(String s)
+    {
+        s = s.replace(",", "\\,");
+        
+        return "\"" + s + "\"";
+    }
+    
+    private static String unescapeValue(String s)
+    {
+        if (s == null)
+            throw new IllegalArgumentException();
+        
+        s = s.trim();
+        s = s.replace("\\,", ",");
+        
+        if (s.startsWith("\""))
+        {
+            s = s.substring(1);
+        }
+        
+        if (s.endsWith("\""))
+        {
+            s = s.substring(0, s.length() - 1);
+        }
+        
+        return s;
+    }
+    
+    /**
+     * Applies journal records to the entries of a unit.
+     * 
+     * <p> Records selecting entries by the values of a key, as the updates
+     * and removals of single entries do, find them through a map of the entries
+     * by the values of that key, built the first time the key is used.
+     * Other records check every entry.
+     */
+    private static final class JournalReplay
+    {
+        public JournalReplay(List<String> keys)
+        {
+            this.keys = keys;
+        }
+        
+        public void addEntry(StorageEntry entry)
+        {
+            entries.add(entry);
+            
+            for (Map.Entry<String, Map<String, Set<StorageEntry>>> e : indexes.entrySet())
+            {
+                index(e.getValue(), entry.get(e.getKey()), entry);
+            }
+        }
+        
+        public void apply(List<String> record) throws IOException
+        {
+            switch (record.get(0))
+            {
+            case RECORD_ADD:
+            {
+                if (record.size() < keys.size() + 1)
+                    throw new IOException("Corrupted CSV journal");
+                
+                addEntry(buildEntry(keys, record, 1));
+                
+                break;
+            }
+            case RECORD_UPDATE:
+            {
+                int datumCount = parseDatumCount(record);
+                int[] position = {2 + datumCount * 2};
+                Selector selector = decodeSelector(record, position);
+                
+                for (StorageEntry entry : select(selector))
+                {
+                    for (int i = 0; i < datumCount; i++)
+                    {
+                        String key = record.get(2 + i * 2);
+                        Map<String, Set<StorageEntry>> index = indexes.get(key);
+                        
+                        if (index != null)
+                        {
+                            unindex(index, entry.get(key), entry);
+                        }
+                        
+                        // Replayed values are stored values, not pending changes.
+                        entry.put(key, record.get(3 + i * 2));
+                        entry.clearKeyDirty(key);
+                        
+                        if (index != null)
+                        {
+                            index(index, entry.get(key), entry);
+                        }
+                    }
+                }
+                
+                break;
+            }
+            case RECORD_REMOVE:
+            {
+                int[] position = {1};
+                Selector selector = decodeSelector(record, position);
+                
+                for (StorageEntry entry : select(selector))
+                {
+                    entries.remove(entry);
+                    
+                    for (Map.Entry<String, Map<String, Set<StorageEntry>>> e
+                            : indexes.entrySet())
+                    {
+                        unindex(e.getValue(), entry.get(e.getKey()), entry);
+                    }
+                }
+                
+                break;
+            }
+            default:
+                throw new IOException("Corrupted CSV journal");
+            }
+        }
+        
+        public List<StorageEntry> getEntries()
+        {
+            return new ArrayList<>(entries);
+        }
+        
+        private List<StorageEntry> select(Selector selector)
+        {
+            CompiledSelector compiledSelector = CompiledSelector.compile(selector);
+            List<StorageEntry> matches = new ArrayList<>();
+            String lookupKey = findLookupKey(selector);
+            List<String> values = (lookupKey != null)
+                    ? SqlUtils.findMembershipOperands(selector, lookupKey) : null;
+            
+            if (values != null)
+            {
+                Map<String, Set<StorageEntry>> index = getIndex(lookupKey);
+                
+                for (String value : values)
+                {
+                    Set<StorageEntry> bucket = index.get(value);
+                    
+                    if (bucket == null)
+                        continue;
+                    
+                    for (StorageEntry entry : bucket)
+                    {
+                        if (compiledSelector.matches(entry))
+                        {
+                            matches.add(entry);
+                        }
+                    }
+                }
+            }
+            else
+            {
+                for (StorageEntry entry : entries)
+                {
+                    if (compiledSelector.matches(entry))
+                    {
+                        matches.add(entry);
+                    }
+                }
+            }
+            
+            return matches;
+        }
+        
+        private Map<String, Set<StorageEntry>> getIndex(String key)
+        {
+            Map<String, Set<StorageEntry>> index = indexes.get(key);
+            
+            if (index == null)
+            {
+                index = new HashMap<>();
+                
+                for (StorageEntry entry : entries)
+                {
+                    index(index, entry.get(key), entry);
+                }
+                
+                indexes.put(key, index);
+            }
+            
+            return index;
+        }
+        
+        private static void index(
+                Map<String, Set<StorageEntry>> index, String value, StorageEntry entry
+        )
+        {
+            if (value == null)
+                return;
+            
+            Set<StorageEntry> bucket = index.get(value);
+            
+            if (bucket == null)
+            {
+                bucket = new LinkedHashSet<>();
+                index.put(value, bucket);
+            }
+            
+            bucket.add(entry);
+        }
+        
+        private static void unindex(
+                Map<String, Set<StorageEntry>> index, String value, StorageEntry entry
+        )
+        {
+            if (value == null)
+                return;
+            
+            Set<StorageEntry> bucket = index.get(value);
+            
+            if (bucket != null)
+            {
+                bucket.remove(entry);
+                
+                if (bucket.isEmpty())
+                {
+                    index.remove(value);
+                }
+            }
+        }
+        
+        /**
+         * Returns a key whose value every entry matching a selector must be
+         * equal to, or one of a list of values, or {@code null} if there is none.
+         */
+        private static String findLookupKey(Selector selector)
+        {
+            if (selector instanceof SelectorCondition)
+            {
+                SelectorCondition selectorCondition = (SelectorCondition) selector;
+                
+                if (selectorCondition.getRelation() == SelectorCondition.Relation.EQUALS
+                        && selectorCondition.getValue() != null)
+                {
+                    return selectorCondition.getKey();
+                }
+            }
+            else if (selector instanceof SelectorIn)
+            {
+                return ((SelectorIn) selector).getKey();
+            }
+            else if (selector instanceof SelectorBinary)
+            {
+                SelectorBinary selectorBinary = (SelectorBinary) selector;
+                
+                if (selectorBinary.getRelation() == SelectorBinary.Relation.AND)
+                {
+                    String key = findLookupKey(selectorBinary.getLeftOperand());
+                    
+                    return (key != null)
+                            ? key : findLookupKey(selectorBinary.getRightOperand());
+                }
+            }
+            
+            return null;
+        }
+        
+        /**
+         * Reads the number of values set by an update record,
+         * checking that the record holds them all.
+         */
+        private static int parseDatumCount(List<String> record) throws IOException
+        {
+            try
+            {
+                int datumCount = Integer.parseInt(record.get(1));
+                
+                if (datumCount < 0 || record.size() < 3 + datumCount * 2)
+                    throw new IOException("Corrupted CSV journal");
+                
+                return datumCount;
+            }
+            catch (IndexOutOfBoundsException | NumberFormatException ex)
+            {
+                throw new IOException("Corrupted CSV journal", ex);
+            }
+        }
+        
+        private final List<String> keys;
+        
+        /**
+         * The entries, in the order they were added; entries are compared
+         * by identity, so that equal entries are kept apart.
+         */
+        private final Set<StorageEntry> entries = new LinkedHashSet<>();
+        private final Map<String, Map<String, Set<StorageEntry>>> indexes =
+                new HashMap<>();
+    }
+    
+    public static final long DEFAULT_COMPACTION_THRESHOLD = 1048576L;
+    
+    /**
+     * The number of records a journal may grow to before its unit file
+     * is rewritten, whatever their size.
+     */
+    private static final int COMPACTION_RECORD_THRESHOLD = 10000;
+    
+    private static final String JOURNAL_SUFFIX = ".journal";
+    private static final String OLD_JOURNAL_SUFFIX = ".journal.old";
+    private static final String COMPACTED_SUFFIX = ".compacted";
+    private static final long COMPACTOR_SHUTDOWN_TIMEOUT = 10000L;
+    
+    private static final String RECORD_ADD = "+";
+    private static final String RECORD_UPDATE = "~";
+    private static final String RECORD_REMOVE = "-";
+    
+    /**
+     * The bytes every record written ends with:
+     * the closing quote of its last value and a line break.
+     */
+    private static final byte[] RECORD_TERMINATOR = {'"', '\r', '\n'};
+    
+    private static final String SELECTOR_CONSTANT = "K";
+    private static final String SELECTOR_CONDITION = "C";
+    private static final String SELECTOR_NULL_CONDITION = "c";
+    private static final String SELECTOR_NEGATION = "N";
+    private static final String SELECTOR_BINARY = "B";
+    private static final String SELECTOR_IN = "I";
+    
+    private final File dir;
+    private final long compactionThreshold;
+    private boolean connected = false;
+    private ExecutorService compactor;
+    
+    /**
+     * Units whose compaction has been scheduled but has not started yet.
+     */
+    private final Set<String> pendingCompactions = new HashSet<>();
+    
+    /**
+     * Units whose journals have been checked for a record cut short
+     * since the storage was connected.
+     */
+    private final Set<String> repairedJournals = new HashSet<>();
+    
+    /**
+     * The number of records in the journal of each unit,
+     * for the units whose journals have been read.
+     */
+    private final Map<String, Integer> journalRecordCounts = new HashMap<>();
+    
+    /**
+     * The journal records held back by the transaction in progress
+     * on each thread, by unit.
+     */
+    private final ThreadLocal<Map<String, List<List<String>>>> transactionRecords =
+            new ThreadLocal<>();
 }
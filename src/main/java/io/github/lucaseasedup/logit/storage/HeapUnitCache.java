@@ -0,0 +1,403 @@
+package io.github.lucaseasedup.logit.storage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Holds all entries of a unit on the heap, indexed by the primary key
+ * and by any secondary indexes added with {@link #addIndex}.
+ */
+public final class HeapUnitCache implements PreloadedUnitCache
+{
+    public HeapUnitCache(
+            UnitKeys keys, String primaryKey, List<StorageEntry> entries
+    )
+    {
+        if (keys == null || primaryKey == null || entries == null)
+            throw new IllegalArgumentException();
+        
+        this.keys = keys;
+        this.primaryKey = primaryKey;
+        
+        for (StorageEntry entry : entries)
+        {
+            addEntry(entry);
+        }
+    }
+    
+    @Override
+    public UnitKeys getKeys()
+    {
+        return keys;
+    }
+    
+    @Override
+    public String getPrimaryKey()
+    {
+        return primaryKey;
+    }
+    
+    /**
+     * Adds a secondary index on a key and fills it with the cached entries.
+     * 
+     * <p> If the key is already indexed, the old index is replaced.
+     */
+    @Override
+    public void addIndex(String key, IndexType type)
+    {
+        if (key == null || type == null)
+            throw new IllegalArgumentException();
+        
+        SecondaryIndex index = new SecondaryIndex(key, type);
+        
+        for (StorageEntry entry : entries.values())
+        {
+            index.add(entry);
+        }
+        
+        indexes.put(key, index);
+    }
+    
+    @Override
+    public void removeIndex(String key)
+    {
+        indexes.remove(key);
+    }
+    
+    /**
+     * Returns a read-only view of all the cached entries.
+     */
+    public Collection<StorageEntry> getEntries()
+    {
+        return Collections.unmodifiableCollection(entries.values());
+    }
+    
+    /**
+     * Returns the cached entries matching a selector.
+     * 
+     * <p> If the selector requires the primary key to be equal to a value,
+     * or to one of a list of values, the entries are found through
+     * the primary-key index. Otherwise,
+     * if a condition of the selector can be answered by a secondary index,
+     * only the entries it returns are checked against the whole selector.
+     * Every entry is checked only as a last resort.
+     * 
+     * <p> The returned entries are not copies.
+     */
+    @Override
+    public List<StorageEntry> selectEntries(Selector selector)
+    {
+        if (selector == null)
+            throw new IllegalArgumentException();
+        
+        List<String> primaryKeyValues =
+                SqlUtils.findMembershipOperands(selector, primaryKey);
+        
+        if (primaryKeyValues != null)
+        {
+            CompiledSelector compiledSelector = CompiledSelector.compile(selector);
+            List<StorageEntry> matches = new ArrayList<>(primaryKeyValues.size());
+            
+            for (String primaryKeyValue : primaryKeyValues)
+            {
+                StorageEntry entry = entries.get(primaryKeyValue);
+                
+                if (entry != null && compiledSelector.matches(entry))
+                {
+                    matches.add(entry);
+                }
+            }
+            
+            return matches;
+        }
+        
+        Collection<StorageEntry> candidates = findCandidates(selector);
+        
+        if (candidates == null)
+        {
+            candidates = entries.values();
+        }
+        
+        CompiledSelector compiledSelector = CompiledSelector.compile(selector);
+        List<StorageEntry> matches = new ArrayList<>();
+        
+        for (StorageEntry entry : candidates)
+        {
+            if (compiledSelector.matches(entry))
+            {
+                matches.add(entry);
+            }
+        }
+        
+        return matches;
+    }
+    
+    @Override
+    public int count(Selector selector)
+    {
+        return selectEntries(selector).size();
+    }
+    
+    /**
+     * Counts the distinct non-empty values of a key among the cached entries
+     * matching a selector, straight from the secondary index on the key
+     * if the selector matches every entry.
+     */
+    @Override
+    public long countDistinct(String key, Selector selector)
+    {
+        if (key == null || selector == null)
+            throw new IllegalArgumentException();
+        
+        SecondaryIndex index = indexes.get(key);
+        
+        if (index != null && selector instanceof SelectorConstant
+                && ((SelectorConstant) selector).getValue())
+        {
+            return index.countValues();
+        }
+        
+        return StorageEntry.countDistinct(selectEntries(selector), key);
+    }
+    
+    @Override
+    public void addEntry(StorageEntry entry)
+    {
+        if (entry == null)
+            throw new IllegalArgumentException();
+        
+        StorageEntry replacedEntry = entries.put(getPrimaryKeyValue(entry), entry);
+        
+        if (replacedEntry != null && replacedEntry != entry)
+        {
+            unindexEntry(replacedEntry);
+        }
+        
+        indexEntry(entry);
+    }
+    
+    @Override
+    public void updateEntries(StorageEntry entrySubset, Selector selector)
+    {
+        if (entrySubset == null || selector == null)
+            throw new IllegalArgumentException();
+        
+        List<StorageEntry> matches = selectEntries(selector);
+        
+        if (entrySubset.getKeys().contains(primaryKey))
+        {
+            // The entries are re-indexed once all of them have been updated,
+            // so that swapping primary-key values does not lose any entry.
+            for (StorageEntry entry : matches)
+            {
+                entries.remove(getPrimaryKeyValue(entry));
+            }
+        }
+        
+        List<SecondaryIndex> affectedIndexes = new ArrayList<>();
+        
+        for (SecondaryIndex index : indexes.values())
+        {
+            if (entrySubset.getKeys().contains(index.getKey()))
+            {
+                affectedIndexes.add(index);
+            }
+        }
+        
+        for (StorageEntry entry : matches)
+        {
+            for (SecondaryIndex index : affectedIndexes)
+            {
+                index.remove(entry, entry.get(index.getKey()));
+            }
+            
+            for (StorageDatum datum : entrySubset)
+            {
+                entry.put(datum.getKey(), datum.getValue());
+            }
+            
+            for (SecondaryIndex index : affectedIndexes)
+            {
+                index.add(entry);
+            }
+        }
+        
+        if (entrySubset.getKeys().contains(primaryKey))
+        {
+            for (StorageEntry entry : matches)
+            {
+                StorageEntry replacedEntry =
+                        entries.put(getPrimaryKeyValue(entry), entry);
+                
+                if (replacedEntry != null && !matches.contains(replacedEntry))
+                {
+                    unindexEntry(replacedEntry);
+                }
+            }
+        }
+    }
+    
+    @Override
+    public void removeEntries(Selector selector)
+    {
+        if (selector == null)
+            throw new IllegalArgumentException();
+        
+        for (StorageEntry entry : selectEntries(selector))
+        {
+            entries.remove(getPrimaryKeyValue(entry));
+            unindexEntry(entry);
+        }
+    }
+    
+    @Override
+    public void addKey(String key, DataType type)
+    {
+        if (key == null || type == null)
+            throw new IllegalArgumentException();
+        
+        for (StorageEntry entry : entries.values())
+        {
+            entry.put(key, "");
+        }
+        
+        keys.put(key, type);
+        
+        if (indexes.containsKey(key))
+        {
+            addIndex(key, indexes.get(key).getType());
+        }
+    }
+    
+    @Override
+    public void clear()
+    {
+        entries.clear();
+        
+        for (SecondaryIndex index : indexes.values())
+        {
+            index.clear();
+        }
+    }
+    
+    @Override
+    public int size()
+    {
+        return entries.size();
+    }
+    
+    /**
+     * Narrows down the entries that may match a selector
+     * using the secondary indexes.
+     * 
+     * @return a superset of the matching entries, or {@code null}
+     *         if no index applies to the selector.
+     */
+    private Collection<StorageEntry> findCandidates(Selector selector)
+    {
+        if (selector instanceof SelectorCondition)
+        {
+            SelectorCondition selectorCondition = (SelectorCondition) selector;
+            SecondaryIndex index = indexes.get(selectorCondition.getKey());
+            
+            if (index == null)
+                return null;
+            
+            return index.lookup(
+                    selectorCondition.getRelation(), selectorCondition.getValue()
+            );
+        }
+        else if (selector instanceof SelectorIn)
+        {
+            SelectorIn selectorIn = (SelectorIn) selector;
+            SecondaryIndex index = indexes.get(selectorIn.getKey());
+            
+            if (index == null)
+                return null;
+            
+            Set<StorageEntry> union = new LinkedHashSet<>();
+            
+            for (String value : selectorIn.getValues())
+            {
+                union.addAll(index.lookup(SelectorCondition.Relation.EQUALS, value));
+            }
+            
+            return union;
+        }
+        else if (selector instanceof SelectorBinary)
+        {
+            SelectorBinary selectorBinary = (SelectorBinary) selector;
+            Collection<StorageEntry> leftCandidates =
+                    findCandidates(selectorBinary.getLeftOperand());
+            Collection<StorageEntry> rightCandidates =
+                    findCandidates(selectorBinary.getRightOperand());
+            
+            switch (selectorBinary.getRelation())
+            {
+            case AND:
+                if (leftCandidates == null)
+                    return rightCandidates;
+                
+                if (rightCandidates == null)
+                    return leftCandidates;
+                
+                return (leftCandidates.size() <= rightCandidates.size())
+                        ? leftCandidates : rightCandidates;
+            
+            case OR:
+                if (leftCandidates == null || rightCandidates == null)
+                    return null;
+                
+                Set<StorageEntry> union = new LinkedHashSet<>(leftCandidates);
+                union.addAll(rightCandidates);
+                
+                return union;
+            
+            default:
+                return null;
+            }
+        }
+        
+        return null;
+    }
+    
+    private void indexEntry(StorageEntry entry)
+    {
+        for (SecondaryIndex index : indexes.values())
+        {
+            index.add(entry);
+        }
+    }
+    
+    private void unindexEntry(StorageEntry entry)
+    {
+        for (SecondaryIndex index : indexes.values())
+        {
+            index.remove(entry, entry.get(index.getKey()));
+        }
+    }
+    
+    private String getPrimaryKeyValue(StorageEntry entry)
+    {
+        String value = entry.get(primaryKey);
+        
+        return (value != null) ? value : "";
+    }
+    
+    private final UnitKeys keys;
+    private final String primaryKey;
+    
+    /**
+     * Cached entries mapped by their primary-key values,
+     * in the order they were loaded or added.
+     */
+    private final Map<String, StorageEntry> entries = new LinkedHashMap<>();
+    private final Map<String, SecondaryIndex> indexes = new HashMap<>();
+}
@@ -0,0 +1,15 @@
+package io.github.lucaseasedup.logit.storage;
+
+public enum IndexType
+{
+    /**
+     * Answers {@code EQUALS} conditions.
+     */
+    HASH,
+    
+    /**
+     * Answers {@code EQUALS}, {@code LESS_THAN}, {@code GREATER_THAN}
+     * and {@code STARTS_WITH} conditions.
+     */
+    SORTED;
+}
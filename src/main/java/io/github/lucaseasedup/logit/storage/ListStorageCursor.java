@@ -0,0 +1,38 @@
+package io.github.lucaseasedup.logit.storage;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A cursor over entries that have already been fetched, for storages
+ * that keep units in memory anyway.
+ */
+public final class ListStorageCursor implements StorageCursor
+{
+    public ListStorageCursor(List<StorageEntry> entries)
+    {
+        if (entries == null)
+            throw new IllegalArgumentException();
+        
+        this.iterator = entries.iterator();
+    }
+    
+    @Override
+    public boolean hasNext()
+    {
+        return iterator.hasNext();
+    }
+    
+    @Override
+    public StorageEntry next()
+    {
+        return iterator.next();
+    }
+    
+    @Override
+    public void close()
+    {
+    }
+    
+    private final Iterator<StorageEntry> iterator;
+}
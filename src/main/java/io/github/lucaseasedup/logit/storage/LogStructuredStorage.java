@@ -0,0 +1,1712 @@
+package io.github.lucaseasedup.logit.storage;
+
+import io.github.lucaseasedup.logit.LogItCore;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+/**
+ * Stores units in append-only segment files, for servers
+ * that cannot run a database server.
+ * 
+ * <p> Every change to an entry appends a record holding the whole entry,
+ * or a removal mark, to the active segment of its unit; the active segment
+ * thus serves as the write-ahead log. Once it outgrows the segment size,
+ * it is sealed and memory-mapped, and a new one is started.
+ * 
+ * <p> The location of the latest record of every entry is kept in memory,
+ * indexed by the primary-key value, so that looking up an entry by its
+ * primary key takes a single read. When most of the stored bytes belong to
+ * outdated records, the sealed segments are compacted in the background.
+ * 
+ * <p> Transactions are emulated by keeping the former state of every entry
+ * a thread changes, which is written back on rollback. Other threads see
+ * the changes before the commit, which forces them to the disk.
+ * 
+ * <p> Files of a unit:
+ * <ul>
+ *   <li>{@code <unit>.meta} - the keys and the primary key;</li>
+ *   <li>{@code <unit>.<id>.seg} - segments, replayed in the order of their ids.
+ *       Active segments get even ids; a compacted segment gets the id
+ *       following the newest segment it replaces, so that it is replayed
+ *       before any segment written during the compaction. Segments older
+ *       than a compacted segment are deleted rather than replayed
+ *       when the unit is opened.</li>
+ * </ul>
+ */
+public final class LogStructuredStorage implements Storage
+{
+    public LogStructuredStorage(File dir)
+    {
+        this(dir, DEFAULT_SEGMENT_SIZE);
+    }
+    
+    /**
+     * @param dir         the directory holding the unit files.
+     * @param segmentSize the size, in bytes, after which a segment is sealed.
+     */
+    public LogStructuredStorage(File dir, int segmentSize)
+    {
+        if (dir == null || segmentSize < 1)
+            throw new IllegalArgumentException();
+        
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+    }
+    
+    @Override
+    public synchronized void connect() throws IOException
+    {
+        if (!dir.isDirectory())
+        {
+            throw new IOException(
+                    "Log-structured storage path is not a directory: " + dir
+            );
+        }
+        
+        if (compactor == null)
+        {
+            compactor = Executors.newSingleThreadExecutor(new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "LogIt Segment Compactor");
+                    
+                    thread.setDaemon(true);
+                    
+                    return thread;
+                }
+            });
+        }
+        
+        connected = true;
+    }
+    
+    @Override
+    public synchronized boolean isConnected() throws IOException
+    {
+        return connected;
+    }
+    
+    @Override
+    public void ping() throws IOException
+    {
+        if (!dir.isDirectory())
+        {
+            throw new IOException(
+                    "Log-structured storage path is not a directory: " + dir
+            );
+        }
+    }
+    
+    @Override
+    public void close() throws IOException
+    {
+        ExecutorService compactorToShutDown;
+        
+        synchronized (this)
+        {
+            connected = false;
+            compactorToShutDown = compactor;
+            compactor = null;
+        }
+        
+        // Compactions lock this storage to finish, so it must not be locked here.
+        if (compactorToShutDown != null)
+        {
+            compactorToShutDown.shutdown();
+            
+            try
+            {
+                compactorToShutDown.awaitTermination(
+                        COMPACTOR_SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS
+                );
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        synchronized (this)
+        {
+            for (Unit openUnit : units.values())
+            {
+                openUnit.close();
+            }
+            
+            units.clear();
+        }
+    }
+    
+    @Override
+    public List<String> getUnitNames() throws IOException
+    {
+        File[] files = dir.listFiles(new FileFilter()
+        {
+            @Override
+            public boolean accept(File pathname)
+            {
+                return pathname.isFile() && pathname.getName().endsWith(META_SUFFIX);
+            }
+        });
+        
+        List<String> unitNames = new LinkedList<>();
+        
+        for (File file : files)
+        {
+            String name = file.getName();
+            
+            unitNames.add(name.substring(0, name.length() - META_SUFFIX.length()));
+        }
+        
+        return unitNames;
+    }
+    
+    @Override
+    public synchronized UnitKeys getKeys(String unit) throws IOException
+    {
+        UnitKeys keys = new UnitKeys();
+        
+        keys.putAll(openUnit(unit).keys);
+        
+        return keys;
+    }
+    
+    @Override
+    public synchronized String getPrimaryKey(String unit) throws IOException
+    {
+        return openUnit(unit).primaryKey;
+    }
+    
+    @Override
+    public List<StorageEntry> selectEntries(String unit) throws IOException
+    {
+        return selectEntries(unit, null, new SelectorConstant(true));
+    }
+    
+    @Override
+    public List<StorageEntry> selectEntries(String unit, Selector selector)
+            throws IOException
+    {
+        return selectEntries(unit, null, selector);
+    }
+    
+    @Override
+    public List<StorageEntry> selectEntries(String unit, List<String> keys)
+            throws IOException
+    {
+        return selectEntries(unit, keys, new SelectorConstant(true));
+    }
+    
+    @Override
+    public synchronized List<StorageEntry> selectEntries(
+            String unit, List<String> keys, Selector selector
+    ) throws IOException
+    {
+        if (selector == null)
+            throw new IllegalArgumentException();
+        
+        List<StorageEntry> entries = new ArrayList<>();
+        
+        for (StorageEntry entry : findEntries(openUnit(unit), selector).values())
+        {
+            entries.add(projectKeys(entry, keys));
+        }
+        
+        return entries;
+    }
+    
+    /**
+     * Returns a cursor that reads the entries of a unit one at a time,
+     * holding only their row ids in memory.
+     * 
+     * <p> Entries removed after the cursor has been opened are skipped,
+     * while entries added after it has been opened are not returned.
+     */
+    @Override
+    public synchronized StorageCursor selectCursor(
+            String unit, List<String> keys, Selector selector
+    ) throws IOException
+    {
+        if (selector == null)
+            throw new IllegalArgumentException();
+        
+        Unit openUnit = openUnit(unit);
+        
+        if (openUnit.primaryKey != null
+                && SqlUtils.findMembershipOperands(selector, openUnit.primaryKey) != null)
+        {
+            return new ListStorageCursor(selectEntries(unit, keys, selector));
+        }
+        
+        return new Cursor(openUnit, keys, CompiledSelector.compile(selector));
+    }
+    
+    @Override
+    public synchronized long count(String unit, Selector selector)
+            throws IOException
+    {
+        if (selector == null)
+            throw new IllegalArgumentException();
+        
+        return findEntries(openUnit(unit), selector).size();
+    }
+    
+    /**
+     * Checks whether any entry matches a selector,
+     * reading the entries only up to the first match.
+     */
+    @Override
+    public synchronized boolean exists(String unit, Selector selector)
+            throws IOException
+    {
+        try (StorageCursor cursor = selectCursor(unit, null, selector))
+        {
+            return cursor.hasNext();
+        }
+    }
+    
+    @Override
+    public synchronized long countDistinct(String unit, String key, Selector selector)
+            throws IOException
+    {
+        if (key == null || selector == null)
+            throw new IllegalArgumentException();
+        
+        return StorageEntry.countDistinct(
+                findEntries(openUnit(unit), selector).values(), key
+        );
+    }
+    
+    @Override
+    public synchronized void createUnit(String unit, UnitKeys keys, String primaryKey)
+            throws IOException
+    {
+        if (!connected)
+            throw new IOException("Database closed.");
+        
+        if (primaryKey != null && !keys.containsKey(primaryKey))
+        {
+            throw new IllegalArgumentException(
+                    "Cannot create index on a non-existing key"
+            );
+        }
+        
+        if (getMetaFile(unit).exists())
+            return;
+        
+        writeMeta(unit, keys, primaryKey);
+        openUnit(unit);
+    }
+    
+    /**
+     * Creates a unit; its keys are not indexed.
+     */
+    @Override
+    public synchronized void createUnit(
+            String unit, UnitKeys keys, String primaryKey, Map<String, IndexType> indexes
+    ) throws IOException
+    {
+        createUnit(unit, keys, primaryKey);
+    }
+    
+    @Override
+    public synchronized void renameUnit(String unit, String newName) throws IOException
+    {
+        if (!connected)
+            throw new IOException("Database closed.");
+        
+        openUnit(unit).close();
+        units.remove(unit);
+        
+        for (File file : listSegmentFiles(unit).values())
+        {
+            String suffix = file.getName().substring(unit.length());
+            
+            Files.move(file.toPath(), new File(dir, newName + suffix).toPath());
+        }
+        
+        Files.move(getMetaFile(unit).toPath(), getMetaFile(newName).toPath());
+    }
+    
+    @Override
+    public synchronized void eraseUnit(String unit) throws IOException
+    {
+        if (!connected)
+            throw new IOException("Database closed.");
+        
+        openUnit(unit).close();
+        units.remove(unit);
+        
+        for (File file : listSegmentFiles(unit).values())
+        {
+            // A segment left behind would bring its entries back on the next open.
+            if (!file.delete())
+                throw new IOException("Could not delete segment: " + file);
+        }
+    }
+    
+    @Override
+    public synchronized void removeUnit(String unit) throws IOException
+    {
+        eraseUnit(unit);
+        
+        getMetaFile(unit).delete();
+    }
+    
+    @Override
+    public synchronized void addKey(String unit, String key, DataType type)
+            throws IOException
+    {
+        if (!connected)
+            throw new IOException("Database closed.");
+        
+        Unit openUnit = openUnit(unit);
+        
+        if (openUnit.keys.containsKey(key))
+            throw new IOException("Key with this name already exists: " + key);
+        
+        // Records lacking the key are read with an empty value for it.
+        openUnit.keys.put(key, type);
+        writeMeta(unit, openUnit.keys, openUnit.primaryKey);
+    }
+    
+    /**
+     * Adds a key; it is not indexed.
+     */
+    @Override
+    public synchronized void addKey(String unit, String key, DataType type, IndexType indexType)
+            throws IOException
+    {
+        addKey(unit, key, type);
+    }
+    
+    @Override
+    public synchronized void addEntry(String unit, StorageEntry entry)
+            throws DuplicateEntryException, IOException
+    {
+        addEntries(unit, Collections.singletonList(entry));
+    }
+    
+    @Override
+    public synchronized void addEntries(String unit, List<StorageEntry> entries)
+            throws DuplicateEntryException, IOException
+    {
+        if (!connected)
+            throw new IOException("Database closed.");
+        
+        Unit openUnit = openUnit(unit);
+        Map<String, StorageEntry> newEntries = new LinkedHashMap<>();
+        long rowCounter = openUnit.rowCounter;
+        
+        for (StorageEntry entry : entries)
+        {
+            String rowId;
+            
+            if (openUnit.primaryKey != null)
+            {
+                rowId = entry.get(openUnit.primaryKey);
+                
+                if (rowId == null)
+                {
+                    rowId = "";
+                }
+                
+                if (openUnit.index.containsKey(rowId) || newEntries.containsKey(rowId))
+                    throw new DuplicateEntryException();
+            }
+            else
+            {
+                rowId = ROW_ID_PREFIX + (++rowCounter);
+            }
+            
+            newEntries.put(rowId, entry);
+        }
+        
+        // Nothing is written until every primary-key value is known to be free.
+        openUnit.rowCounter = rowCounter;
+        
+        for (Map.Entry<String, StorageEntry> e : newEntries.entrySet())
+        {
+            putEntry(openUnit, e.getKey(), e.getValue());
+        }
+        
+        scheduleCompaction(openUnit);
+    }
+    
+    @Override
+    public synchronized void updateEntries(
+            String unit, StorageEntry entrySubset, Selector selector
+    ) throws IOException
+    {
+        if (!connected)
+            throw new IOException("Database closed.");
+        
+        Unit openUnit = openUnit(unit);
+        Map<String, StorageEntry> matches = findEntries(openUnit, selector);
+        
+        for (StorageEntry entry : matches.values())
+        {
+            for (StorageDatum datum : entrySubset)
+            {
+                entry.put(datum.getKey(), datum.getValue());
+            }
+        }
+        
+        writeUpdates(openUnit, matches);
+    }
+    
+    @Override
+    public synchronized void updateEntriesByKey(
+            String unit, String key, Map<String, StorageEntry> entrySubsets
+    ) throws IOException
+    {
+        if (!connected)
+            throw new IOException("Database closed.");
+        
+        Unit openUnit = openUnit(unit);
+        Map<String, StorageEntry> matches = new LinkedHashMap<>();
+        
+        for (Map.Entry<String, StorageEntry> subset : entrySubsets.entrySet())
+        {
+            Selector selector = new SelectorCondition(key, Infix.EQUALS, subset.getKey());
+            
+            for (Map.Entry<String, StorageEntry> e : findEntries(openUnit, selector).entrySet())
+            {
+                // An entry matched by an earlier update keeps the values set by it.
+                StorageEntry entry = matches.containsKey(e.getKey())
+                        ? matches.get(e.getKey()) : e.getValue();
+                
+                for (StorageDatum datum : subset.getValue())
+                {
+                    entry.put(datum.getKey(), datum.getValue());
+                }
+                
+                matches.put(e.getKey(), entry);
+            }
+        }
+        
+        writeUpdates(openUnit, matches);
+    }
+    
+    @Override
+    public synchronized void upsertEntry(String unit, String key, StorageEntry entry)
+            throws IOException
+    {
+        if (!connected)
+            throw new IOException("Database closed.");
+        
+        Selector selector = new SelectorCondition(key, Infix.EQUALS, entry.get(key));
+        
+        if (findEntries(openUnit(unit), selector).isEmpty())
+        {
+            addEntry(unit, entry);
+        }
+        else
+        {
+            updateEntries(unit, entry, selector);
+        }
+    }
+    
+    @Override
+    public synchronized void removeEntries(String unit, Selector selector)
+            throws IOException
+    {
+        if (!connected)
+            throw new IOException("Database closed.");
+        
+        Unit openUnit = openUnit(unit);
+        
+        for (String rowId : findEntries(openUnit, selector).keySet())
+        {
+            removeEntry(openUnit, rowId);
+        }
+        
+        scheduleCompaction(openUnit);
+    }
+    
+    @Override
+    public synchronized boolean isAutobatchEnabled()
+    {
+        return autobatch;
+    }
+    
+    @Override
+    public synchronized void setAutobatchEnabled(boolean status)
+    {
+        autobatch = status;
+    }
+    
+    /**
+     * Forces the appended records of every unit to the disk.
+     */
+    @Override
+    public synchronized void executeBatch() throws IOException
+    {
+        for (Unit openUnit : units.values())
+        {
+            openUnit.active.channel.force(false);
+        }
+    }
+    
+    @Override
+    public void clearBatch() throws IOException
+    {
+        // Records are appended as they come, so there is nothing to discard.
+    }
+    
+    @Override
+    public synchronized void beginTransaction() throws IOException
+    {
+        if (transactionUndo.get() != null)
+            throw new IllegalStateException("Transaction already in progress.");
+        
+        transactionUndo.set(new HashMap<String, Map<String, StorageEntry>>());
+    }
+    
+    /**
+     * Forces the appended records of the units changed
+     * in the transaction to the disk.
+     */
+    @Override
+    public synchronized void commitTransaction() throws IOException
+    {
+        Map<String, Map<String, StorageEntry>> undo = endTransaction();
+        
+        for (String unit : undo.keySet())
+        {
+            Unit openUnit = units.get(unit);
+            
+            if (openUnit != null)
+            {
+                openUnit.active.channel.force(false);
+            }
+        }
+    }
+    
+    /**
+     * Writes back the former state of the entries changed in the transaction.
+     */
+    @Override
+    public synchronized void rollbackTransaction() throws IOException
+    {
+        Map<String, Map<String, StorageEntry>> undo = endTransaction();
+        
+        for (Map.Entry<String, Map<String, StorageEntry>> e : undo.entrySet())
+        {
+            Unit openUnit = units.get(e.getKey());
+            
+            // The unit has been erased or renamed in the meantime.
+            if (openUnit == null)
+                continue;
+            
+            for (Map.Entry<String, StorageEntry> formerEntry : e.getValue().entrySet())
+            {
+                if (formerEntry.getValue() == null)
+                {
+                    openUnit.remove(formerEntry.getKey());
+                }
+                else
+                {
+                    openUnit.put(formerEntry.getKey(), formerEntry.getValue());
+                }
+            }
+            
+            scheduleCompaction(openUnit);
+        }
+    }
+    
+    /**
+     * Returns the current entries matching a selector, mapped by their row ids.
+     */
+    private Map<String, StorageEntry> findEntries(Unit unit, Selector selector)
+            throws IOException
+    {
+        Map<String, StorageEntry> entries = new LinkedHashMap<>();
+        List<String> primaryKeyValues = null;
+        
+        if (unit.primaryKey != null)
+        {
+            primaryKeyValues = SqlUtils.findMembershipOperands(selector, unit.primaryKey);
+        }
+        
+        CompiledSelector compiledSelector = CompiledSelector.compile(selector);
+        
+        if (primaryKeyValues != null)
+        {
+            for (String primaryKeyValue : primaryKeyValues)
+            {
+                Location location = unit.index.get(primaryKeyValue);
+                
+                if (location != null)
+                {
+                    StorageEntry entry = unit.read(location);
+                    
+                    if (compiledSelector.matches(entry))
+                    {
+                        entries.put(primaryKeyValue, entry);
+                    }
+                }
+            }
+            
+            return entries;
+        }
+        
+        for (Map.Entry<String, Location> e : unit.index.entrySet())
+        {
+            StorageEntry entry = unit.read(e.getValue());
+            
+            if (compiledSelector.matches(entry))
+            {
+                entries.put(e.getKey(), entry);
+            }
+        }
+        
+        return entries;
+    }
+    
+    /**
+     * Writes updated entries, moving those whose primary-key value
+     * has changed to their new row ids.
+     * 
+     * @param matches the updated entries, mapped by their current row ids.
+     */
+    private void writeUpdates(Unit unit, Map<String, StorageEntry> matches)
+            throws IOException
+    {
+        Map<String, StorageEntry> updatedEntries = new LinkedHashMap<>();
+        
+        for (Map.Entry<String, StorageEntry> e : matches.entrySet())
+        {
+            StorageEntry entry = e.getValue();
+            String rowId = e.getKey();
+            
+            if (unit.primaryKey != null)
+            {
+                rowId = entry.get(unit.primaryKey);
+                
+                boolean taken = updatedEntries.containsKey(rowId)
+                        || (unit.index.containsKey(rowId)
+                                && !matches.containsKey(rowId));
+                
+                if (taken)
+                    throw new DuplicateEntryException();
+            }
+            
+            updatedEntries.put(rowId, entry);
+        }
+        
+        // Nothing is written until every new primary-key value is known to be free.
+        for (String rowId : matches.keySet())
+        {
+            if (!updatedEntries.containsKey(rowId))
+            {
+                removeEntry(unit, rowId);
+            }
+        }
+        
+        for (Map.Entry<String, StorageEntry> e : updatedEntries.entrySet())
+        {
+            putEntry(unit, e.getKey(), e.getValue());
+        }
+        
+        scheduleCompaction(unit);
+    }
+    
+    private void putEntry(Unit unit, String rowId, StorageEntry entry)
+            throws IOException
+    {
+        keepFormerEntry(unit, rowId);
+        unit.put(rowId, entry);
+    }
+    
+    private void removeEntry(Unit unit, String rowId) throws IOException
+    {
+        keepFormerEntry(unit, rowId);
+        unit.remove(rowId);
+    }
+    
+    /**
+     * Keeps the state of an entry from before the transaction in progress
+     * on the calling thread, the first time the transaction changes it.
+     */
+    private void keepFormerEntry(Unit unit, String rowId) throws IOException
+    {
+        Map<String, Map<String, StorageEntry>> undo = transactionUndo.get();
+        
+        if (undo == null)
+            return;
+        
+        Map<String, StorageEntry> formerEntries = undo.get(unit.name);
+        
+        if (formerEntries == null)
+        {
+            formerEntries = new HashMap<>();
+            undo.put(unit.name, formerEntries);
+        }
+        
+        if (formerEntries.containsKey(rowId))
+            return;
+        
+        Location location = unit.index.get(rowId);
+        
+        formerEntries.put(rowId, (location != null) ? unit.read(location) : null);
+    }
+    
+    /**
+     * Detaches the transaction in progress from the calling thread.
+     * 
+     * @return the former entries of the units changed in the transaction.
+     */
+    private Map<String, Map<String, StorageEntry>> endTransaction()
+    {
+        Map<String, Map<String, StorageEntry>> undo = transactionUndo.get();
+        
+        if (undo == null)
+            throw new IllegalStateException("No transaction in progress.");
+        
+        transactionUndo.remove();
+        
+        return undo;
+    }
+    
+    private static StorageEntry projectKeys(StorageEntry entry, List<String> keys)
+    {
+        if (keys == null)
+            return entry;
+        
+        StorageEntry.Builder entryBuilder = new StorageEntry.Builder();
+        
+        for (StorageDatum datum : entry)
+        {
+            if (keys.contains(datum.getKey()))
+            {
+                entryBuilder.put(datum.getKey(), datum.getValue());
+            }
+        }
+        
+        return entryBuilder.build();
+    }
+    
+    private Unit openUnit(String name) throws IOException
+    {
+        if (!connected)
+            throw new IOException("Database closed.");
+        
+        Unit unit = units.get(name);
+        
+        if (unit != null)
+            return unit;
+        
+        File metaFile = getMetaFile(name);
+        
+        if (!metaFile.exists())
+            throw new IOException("Unit does not exist: " + name);
+        
+        unit = new Unit(name);
+        
+        try (DataInputStream in = new DataInputStream(new FileInputStream(metaFile)))
+        {
+            if (in.readInt() != META_MAGIC)
+                throw new IOException("Corrupted unit metadata: " + name);
+            
+            unit.primaryKey = in.readBoolean() ? in.readUTF() : null;
+            
+            int keyCount = in.readInt();
+            
+            for (int i = 0; i < keyCount; i++)
+            {
+                String key = in.readUTF();
+                
+                unit.keys.put(key, DataType.valueOf(in.readUTF()));
+            }
+        }
+        
+        // Compactions interrupted before their segments were moved in place.
+        File[] tmpFiles = dir.listFiles();
+        
+        if (tmpFiles != null)
+        {
+            for (File file : tmpFiles)
+            {
+                if (parseSegmentId(name, file.getName(), SEGMENT_SUFFIX + TMP_SUFFIX) >= 0
+                        && !file.delete())
+                {
+                    LogItCore.getInstance().log(Level.WARNING,
+                            "Could not delete interrupted compaction: " + file);
+                }
+            }
+        }
+        
+        TreeMap<Long, File> segmentFiles = listSegmentFiles(name);
+        Long compactedId = null;
+        
+        for (Long id : segmentFiles.keySet())
+        {
+            if (id % 2 != 0)
+            {
+                compactedId = id;
+            }
+        }
+        
+        // Segments replaced by a compaction that could not delete them.
+        if (compactedId != null)
+        {
+            Map<Long, File> replacedFiles = segmentFiles.headMap(compactedId);
+            
+            for (File file : replacedFiles.values())
+            {
+                if (!file.delete())
+                {
+                    LogItCore.getInstance().log(Level.WARNING,
+                            "Could not delete compacted segment: " + file);
+                }
+            }
+            
+            replacedFiles.clear();
+        }
+        
+        for (Map.Entry<Long, File> e : segmentFiles.entrySet())
+        {
+            boolean last = e.getKey().equals(segmentFiles.lastKey());
+            
+            unit.replay(new Segment(e.getKey(), e.getValue()), last);
+        }
+        
+        Segment lastSegment = unit.segments.isEmpty()
+                ? null : unit.segments.lastEntry().getValue();
+        
+        if (lastSegment != null && lastSegment.id % 2 == 0)
+        {
+            unit.active = lastSegment;
+        }
+        else
+        {
+            long id = (lastSegment != null) ? lastSegment.id + 1 : 0;
+            
+            unit.active = new Segment(id, getSegmentFile(name, id));
+            unit.segments.put(id, unit.active);
+        }
+        
+        for (Segment segment : unit.segments.values())
+        {
+            if (segment != unit.active)
+            {
+                segment.seal();
+            }
+        }
+        
+        units.put(name, unit);
+        
+        return unit;
+    }
+    
+    private void writeMeta(String unit, UnitKeys keys, String primaryKey)
+            throws IOException
+    {
+        File tmpFile = new File(dir, unit + META_SUFFIX + TMP_SUFFIX);
+        
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmpFile)))
+        {
+            out.writeInt(META_MAGIC);
+            out.writeBoolean(primaryKey != null);
+            
+            if (primaryKey != null)
+            {
+                out.writeUTF(primaryKey);
+            }
+            
+            out.writeInt(keys.size());
+            
+            for (Map.Entry<String, DataType> e : keys.entrySet())
+            {
+                out.writeUTF(e.getKey());
+                out.writeUTF(e.getValue().name());
+            }
+        }
+        
+        Files.move(tmpFile.toPath(), getMetaFile(unit).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDir();
+    }
+    
+    /**
+     * Forces the entries of the directory to the disk,
+     * so that a file moved in place survives a crash.
+     */
+    private void syncDir()
+    {
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ))
+        {
+            channel.force(true);
+        }
+        catch (IOException ex)
+        {
+            // Some systems cannot open or force a directory.
+        }
+    }
+    
+    private File getMetaFile(String unit)
+    {
+        return new File(dir, unit + META_SUFFIX);
+    }
+    
+    private File getSegmentFile(String unit, long id)
+    {
+        return new File(dir, unit + "." + id + SEGMENT_SUFFIX);
+    }
+    
+    private TreeMap<Long, File> listSegmentFiles(String unit)
+    {
+        TreeMap<Long, File> segmentFiles = new TreeMap<>();
+        File[] files = dir.listFiles();
+        
+        if (files == null)
+            return segmentFiles;
+        
+        for (File file : files)
+        {
+            long id = parseSegmentId(unit, file.getName(), SEGMENT_SUFFIX);
+            
+            if (id >= 0)
+            {
+                segmentFiles.put(id, file);
+            }
+        }
+        
+        return segmentFiles;
+    }
+    
+    /**
+     * Parses the id out of the name of a segment file,
+     * that is, {@code <unit>.<id><suffix>}.
+     * 
+     * @return the id, or {@code -1} if the file is not a segment of the unit,
+     *         which includes segments of units whose names start with
+     *         the name of the unit and a dot.
+     */
+    private static long parseSegmentId(String unit, String fileName, String suffix)
+    {
+        String prefix = unit + ".";
+        
+        if (!fileName.startsWith(prefix) || !fileName.endsWith(suffix))
+            return -1;
+        
+        String id = fileName.substring(prefix.length(),
+                Math.max(prefix.length(), fileName.length() - suffix.length()));
+        
+        if (!id.matches("[0-9]{1,18}"))
+            return -1;
+        
+        return Long.parseLong(id);
+    }
+    
+    private void scheduleCompaction(final Unit unit)
+    {
+        long deadBytes = unit.totalBytes - unit.liveBytes;
+        
+        if (unit.compacting || compactor == null
+                || deadBytes < COMPACTION_MIN_DEAD_BYTES || deadBytes < unit.liveBytes)
+        {
+            return;
+        }
+        
+        unit.compacting = true;
+        
+        compactor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    compact(unit);
+                }
+                catch (IOException ex)
+                {
+                    LogItCore.getInstance().log(Level.WARNING,
+                            "Could not compact unit: " + unit.name, ex);
+                }
+                finally
+                {
+                    synchronized (LogStructuredStorage.this)
+                    {
+                        unit.compacting = false;
+                    }
+                }
+            }
+        });
+    }
+    
+    /**
+     * Rewrites the live records of the sealed segments of a unit
+     * into a single segment.
+     * 
+     * <p> Sealed segments never change, so they are copied without
+     * locking this storage; only records that were not superseded
+     * in the meantime are then pointed at the new segment.
+     */
+    private void compact(Unit unit) throws IOException
+    {
+        List<Segment> sealedSegments;
+        Map<String, Location> liveLocations = new LinkedHashMap<>();
+        
+        synchronized (this)
+        {
+            if (units.get(unit.name) != unit)
+                return;
+            
+            unit.roll();
+            sealedSegments = new ArrayList<>(
+                    unit.segments.headMap(unit.active.id).values()
+            );
+            
+            Set<Segment> sealedSet = new HashSet<>(sealedSegments);
+            
+            for (Map.Entry<String, Location> e : unit.index.entrySet())
+            {
+                if (sealedSet.contains(e.getValue().segment))
+                {
+                    liveLocations.put(e.getKey(), e.getValue());
+                }
+            }
+        }
+        
+        long compactedId = sealedSegments.get(sealedSegments.size() - 1).id + 1;
+        File compactedFile = getSegmentFile(unit.name, compactedId);
+        File tmpFile = new File(dir, compactedFile.getName() + TMP_SUFFIX);
+        Map<String, Long> newOffsets = new HashMap<>();
+        
+        try (FileChannel channel = FileChannel.open(tmpFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            long offset = 0;
+            
+            for (Map.Entry<String, Location> e : liveLocations.entrySet())
+            {
+                ByteBuffer frame = e.getValue().segment.readFrame(e.getValue());
+                
+                newOffsets.put(e.getKey(), offset);
+                
+                while (frame.hasRemaining())
+                {
+                    offset += channel.write(frame);
+                }
+            }
+            
+            channel.force(true);
+        }
+        
+        synchronized (this)
+        {
+            if (units.get(unit.name) != unit)
+            {
+                tmpFile.delete();
+                
+                return;
+            }
+            
+            Files.move(tmpFile.toPath(), compactedFile.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE);
+            syncDir();
+            
+            Segment compactedSegment = new Segment(compactedId, compactedFile);
+            compactedSegment.size = compactedFile.length();
+            compactedSegment.seal();
+            
+            for (Map.Entry<String, Location> e : liveLocations.entrySet())
+            {
+                if (unit.index.get(e.getKey()) == e.getValue())
+                {
+                    unit.index.put(e.getKey(), new Location(compactedSegment,
+                            newOffsets.get(e.getKey()), e.getValue().length));
+                }
+            }
+            
+            for (Segment segment : sealedSegments)
+            {
+                // No location points into it anymore, and readers hold the lock.
+                segment.release();
+                
+                if (segment.file.delete())
+                {
+                    unit.segments.remove(segment.id);
+                    unit.totalBytes -= segment.size;
+                }
+                else
+                {
+                    // It stays counted as dead bytes, so the next compaction
+                    // retries to delete it; until then, opening the unit
+                    // skips it as it is older than the compacted segment.
+                    LogItCore.getInstance().log(Level.WARNING,
+                            "Could not delete compacted segment: " + segment.file);
+                }
+            }
+            
+            unit.segments.put(compactedId, compactedSegment);
+            unit.totalBytes += compactedSegment.size;
+        }
+    }
+    
+    private static byte[] encodeRecord(byte type, String rowId, StorageEntry entry)
+            throws IOException
+    {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        
+        out.writeByte(type);
+        writeString(out, rowId);
+        
+        if (entry != null)
+        {
+            out.writeInt(entry.getKeys().size());
+            
+            for (StorageDatum datum : entry)
+            {
+                writeString(out, datum.getKey());
+                writeString(out, datum.getValue());
+            }
+        }
+        
+        out.flush();
+        
+        byte[] payloadBytes = payload.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(payloadBytes);
+        
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + payloadBytes.length);
+        frame.putInt(payloadBytes.length);
+        frame.putInt((int) crc.getValue());
+        frame.put(payloadBytes);
+        
+        return frame.array();
+    }
+    
+    private static void writeString(DataOutputStream out, String s)
+            throws IOException
+    {
+        byte[] bytes = ((s != null) ? s : "").getBytes(StandardCharsets.UTF_8);
+        
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+    
+    private static String readString(ByteBuffer buffer)
+    {
+        byte[] bytes = new byte[buffer.getInt()];
+        
+        buffer.get(bytes);
+        
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Unmaps a buffer through the internals of the running JVM,
+     * which offers no public way to do so.
+     * 
+     * <p> If neither way is available, the mapping is left
+     * to be released once the buffer is garbage-collected.
+     */
+    private static void unmap(MappedByteBuffer buffer)
+    {
+        try
+        {
+            try
+            {
+                // Java 9 and later.
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            }
+            catch (NoSuchMethodException ex)
+            {
+                // Java 8 and earlier.
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                
+                cleanerMethod.setAccessible(true);
+                
+                Object cleaner = cleanerMethod.invoke(buffer);
+                
+                if (cleaner != null)
+                {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            }
+        }
+        catch (ReflectiveOperationException | RuntimeException ex)
+        {
+            LogItCore.getInstance().log(Level.FINE,
+                    "Could not unmap a segment; it will be unmapped once collected", ex);
+        }
+    }
+    
+    /**
+     * An open unit: its metadata, segments and the index of its entries.
+     */
+    private final class Unit
+    {
+        public Unit(String name)
+        {
+            this.name = name;
+        }
+        
+        public StorageEntry read(Location location) throws IOException
+        {
+            ByteBuffer frame = location.segment.readFrame(location);
+            
+            frame.position(FRAME_HEADER_SIZE + 1);
+            readString(frame);
+            
+            Map<String, String> values = new HashMap<>();
+            int datumCount = frame.getInt();
+            
+            for (int i = 0; i < datumCount; i++)
+            {
+                String key = readString(frame);
+                
+                values.put(key, readString(frame));
+            }
+            
+            StorageEntry.Builder entryBuilder = new StorageEntry.Builder();
+            
+            for (String key : keys.keySet())
+            {
+                String value = values.get(key);
+                
+                entryBuilder.put(key, (value != null) ? value : "");
+            }
+            
+            return entryBuilder.build();
+        }
+        
+        public void put(String rowId, StorageEntry entry) throws IOException
+        {
+            StorageEntry.Builder entryBuilder = new StorageEntry.Builder();
+            
+            for (String key : keys.keySet())
+            {
+                entryBuilder.put(key, entry.get(key));
+            }
+            
+            Location location = append(encodeRecord(RECORD_PUT, rowId, entryBuilder.build()));
+            Location oldLocation = index.put(rowId, location);
+            
+            liveBytes += location.length;
+            
+            if (oldLocation != null)
+            {
+                liveBytes -= oldLocation.length;
+            }
+        }
+        
+        public void remove(String rowId) throws IOException
+        {
+            Location oldLocation = index.remove(rowId);
+            
+            if (oldLocation == null)
+                return;
+            
+            liveBytes -= oldLocation.length;
+            
+            append(encodeRecord(RECORD_REMOVE, rowId, null));
+        }
+        
+        /**
+         * Seals the active segment and starts a new one.
+         */
+        public void roll() throws IOException
+        {
+            active.seal();
+            
+            long id = active.id + 2;
+            
+            active = new Segment(id, getSegmentFile(name, id));
+            segments.put(id, active);
+        }
+        
+        /**
+         * Reads the records of a segment into the index.
+         * 
+         * @param last whether this is the newest segment; a record cut short
+         *             at its end by a crash is truncated rather than fatal.
+         */
+        public void replay(Segment segment, boolean last) throws IOException
+        {
+            segments.put(segment.id, segment);
+            
+            long offset = 0;
+            long size = segment.channel.size();
+            ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+            
+            while (offset < size)
+            {
+                header.clear();
+                
+                int payloadLength = -1;
+                ByteBuffer payload = null;
+                
+                if (segment.channel.read(header, offset) == FRAME_HEADER_SIZE)
+                {
+                    header.flip();
+                    payloadLength = header.getInt();
+                    
+                    if (payloadLength > 0 && offset + FRAME_HEADER_SIZE + payloadLength <= size)
+                    {
+                        payload = ByteBuffer.allocate(payloadLength);
+                        segment.channel.read(payload, offset + FRAME_HEADER_SIZE);
+                        
+                        CRC32 crc = new CRC32();
+                        crc.update(payload.array());
+                        
+                        if ((int) crc.getValue() != header.getInt())
+                        {
+                            payload = null;
+                        }
+                    }
+                }
+                
+                if (payload == null)
+                {
+                    if (!last)
+                        throw new IOException("Corrupted segment: " + segment.file);
+                    
+                    LogItCore.getInstance().log(Level.WARNING,
+                            "Truncating incomplete record at the end of " + segment.file);
+                    segment.channel.truncate(offset);
+                    
+                    break;
+                }
+                
+                payload.flip();
+                
+                byte type = payload.get();
+                String rowId = readString(payload);
+                Location location = new Location(segment, offset,
+                        FRAME_HEADER_SIZE + payloadLength);
+                Location oldLocation;
+                
+                if (type == RECORD_PUT)
+                {
+                    oldLocation = index.put(rowId, location);
+                    liveBytes += location.length;
+                }
+                else
+                {
+                    oldLocation = index.remove(rowId);
+                }
+                
+                if (oldLocation != null)
+                {
+                    liveBytes -= oldLocation.length;
+                }
+                
+                if (rowId.startsWith(ROW_ID_PREFIX))
+                {
+                    try
+                    {
+                        rowCounter = Math.max(rowCounter,
+                                Long.parseLong(rowId.substring(ROW_ID_PREFIX.length())));
+                    }
+                    catch (NumberFormatException ex)
+                    {
+                        // A primary-key value that happens to look like a row id.
+                    }
+                }
+                
+                offset += location.length;
+            }
+            
+            segment.size = offset;
+            totalBytes += offset;
+        }
+        
+        /**
+         * Closes the segments of this unit, unmapping them right away
+         * unless a compaction may still be copying them without the lock.
+         */
+        public void close() throws IOException
+        {
+            for (Segment segment : segments.values())
+            {
+                if (compacting)
+                {
+                    segment.close();
+                }
+                else
+                {
+                    segment.release();
+                }
+            }
+        }
+        
+        private Location append(byte[] frame) throws IOException
+        {
+            if (active.size >= segmentSize)
+            {
+                roll();
+            }
+            
+            Location location = new Location(active, active.size, frame.length);
+            ByteBuffer buffer = ByteBuffer.wrap(frame);
+            long position = active.size;
+            
+            while (buffer.hasRemaining())
+            {
+                position += active.channel.write(buffer, position);
+            }
+            
+            active.size = position;
+            totalBytes += frame.length;
+            
+            return location;
+        }
+        
+        public final String name;
+        public final UnitKeys keys = new UnitKeys();
+        public String primaryKey;
+        
+        public final TreeMap<Long, Segment> segments = new TreeMap<>();
+        public Segment active;
+        
+        /**
+         * Locations of the latest records of the entries, by their row ids,
+         * which are primary-key values if the unit has a primary key.
+         */
+        public final Map<String, Location> index = new LinkedHashMap<>();
+        public long liveBytes = 0;
+        public long totalBytes = 0;
+        public long rowCounter = 0;
+        public boolean compacting = false;
+    }
+    
+    private final class Cursor implements StorageCursor
+    {
+        public Cursor(Unit unit, List<String> keys, CompiledSelector selector)
+        {
+            this.unit = unit;
+            this.rowIds = new ArrayList<>(unit.index.keySet()).iterator();
+            this.keys = keys;
+            this.selector = selector;
+        }
+        
+        @Override
+        public boolean hasNext() throws IOException
+        {
+            synchronized (LogStructuredStorage.this)
+            {
+                while (next == null && rowIds.hasNext())
+                {
+                    if (units.get(unit.name) != unit)
+                        throw new IOException("Unit closed: " + unit.name);
+                    
+                    // Look the record up now, as it may have been
+                    // superseded or moved by a compaction.
+                    Location location = unit.index.get(rowIds.next());
+                    
+                    if (location == null)
+                        continue;
+                    
+                    StorageEntry entry = unit.read(location);
+                    
+                    if (selector.matches(entry))
+                    {
+                        next = projectKeys(entry, keys);
+                    }
+                }
+                
+                return next != null;
+            }
+        }
+        
+        @Override
+        public StorageEntry next() throws IOException
+        {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            
+            StorageEntry entry = next;
+            next = null;
+            
+            return entry;
+        }
+        
+        @Override
+        public void close()
+        {
+        }
+        
+        private final Unit unit;
+        private final Iterator<String> rowIds;
+        private final List<String> keys;
+        private final CompiledSelector selector;
+        private StorageEntry next;
+    }
+    
+    private static final class Segment
+    {
+        public Segment(long id, File file) throws IOException
+        {
+            this.id = id;
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+        }
+        
+        /**
+         * Stops writes to this segment and maps it into memory.
+         */
+        public void seal() throws IOException
+        {
+            channel.force(false);
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        
+        public ByteBuffer readFrame(Location location) throws IOException
+        {
+            if (map != null)
+            {
+                ByteBuffer frame = map.duplicate();
+                
+                frame.position((int) location.offset);
+                frame.limit((int) location.offset + location.length);
+                
+                return frame.slice();
+            }
+            
+            ByteBuffer frame = ByteBuffer.allocate(location.length);
+            
+            while (frame.hasRemaining())
+            {
+                if (channel.read(frame, location.offset + frame.position()) < 0)
+                    throw new IOException("Unexpected end of segment: " + file);
+            }
+            
+            frame.flip();
+            
+            return frame;
+        }
+        
+        public void close() throws IOException
+        {
+            channel.close();
+        }
+        
+        /**
+         * Closes this segment and unmaps its contents right away
+         * rather than once the mapping is garbage-collected,
+         * as some systems refuse to delete or move a mapped file.
+         * 
+         * <p> No frame read from this segment may be used afterwards.
+         */
+        public void release() throws IOException
+        {
+            close();
+            
+            if (map != null)
+            {
+                MappedByteBuffer map = this.map;
+                
+                // Readers that still get here fall back to the closed channel
+                // and fail instead of touching the unmapped memory.
+                this.map = null;
+                unmap(map);
+            }
+        }
+        
+        public final long id;
+        public final File file;
+        public final FileChannel channel;
+        public long size = 0;
+        
+        /**
+         * The contents of this segment once sealed; {@code null} while active.
+         */
+        public MappedByteBuffer map;
+    }
+    
+    private static final class Location
+    {
+        public Location(Segment segment, long offset, int length)
+        {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+        
+        public final Segment segment;
+        public final long offset;
+        public final int length;
+    }
+    
+    public static final int DEFAULT_SEGMENT_SIZE = 16777216;
+    
+    private static final String META_SUFFIX = ".meta";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int META_MAGIC = 0x4C495401;
+    private static final String ROW_ID_PREFIX = "#";
+    
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_REMOVE = 2;
+    
+    /**
+     * The size of a record frame header: payload length and payload CRC32.
+     */
+    private static final int FRAME_HEADER_SIZE = 8;
+    private static final long COMPACTION_MIN_DEAD_BYTES = 1048576L;
+    private static final long COMPACTOR_SHUTDOWN_TIMEOUT = 10000L;
+    
+    private final File dir;
+    private final int segmentSize;
+    private boolean connected = false;
+    private boolean autobatch = false;
+    private ExecutorService compactor;
+    private final Map<String, Unit> units = new HashMap<>();
+    
+    /**
+     * The entries changed by the transaction in progress on each thread,
+     * by unit and row id, as they were before it; {@code null} for entries
+     * it has added.
+     */
+    private final ThreadLocal<Map<String, Map<String, StorageEntry>>> transactionUndo =
+            new ThreadLocal<>();
+}
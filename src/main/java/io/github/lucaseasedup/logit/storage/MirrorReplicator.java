@@ -0,0 +1,626 @@
+package io.github.lucaseasedup.logit.storage;
+
+import io.github.lucaseasedup.logit.LogItCore;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+
+/**
+ * Replays operations of a {@link WrapperStorage} on one of its mirrors,
+ * on a dedicated thread.
+ * 
+ * <p> Pending operations are held in a bounded queue; once it is full,
+ * callers wait for the mirror to catch up. An update is merged into
+ * the update queued right before it for the same unit if both match
+ * the same entries, so that a burst of updates to one entry reaches
+ * the mirror as a single statement.
+ * 
+ * <p> A replicator with a staleness bound also tells whether the mirror
+ * may serve reads in place of the leading storage; see {@link #isReadable()}.
+ */
+public final class MirrorReplicator
+{
+    /**
+     * @param mirror       the mirror storage.
+     * @param unitMappings names of the mirror units, mapped by the names
+     *                     of the units they replicate.
+     * @param capacity     the maximum number of pending operations.
+     */
+    public MirrorReplicator(
+            Storage mirror, Map<String, String> unitMappings, int capacity
+    )
+    {
+        this(mirror, unitMappings, capacity, NO_READS);
+    }
+    
+    /**
+     * @param mirror       the mirror storage.
+     * @param unitMappings names of the mirror units, mapped by the names
+     *                     of the units they replicate.
+     * @param capacity     the maximum number of pending operations.
+     * @param maxStaleness how long, in milliseconds, the oldest pending
+     *                     operation may wait for the mirror to still serve
+     *                     reads, or {@link #NO_READS} to keep reads off it.
+     */
+    public MirrorReplicator(
+            Storage mirror,
+            Map<String, String> unitMappings,
+            int capacity,
+            long maxStaleness
+    )
+    {
+        if (mirror == null || unitMappings == null || capacity < 1
+                || (maxStaleness < 0 && maxStaleness != NO_READS))
+        {
+            throw new IllegalArgumentException();
+        }
+        
+        this.mirror = mirror;
+        this.unitMappings = new HashMap<>(unitMappings);
+        this.capacity = capacity;
+        this.maxStaleness = maxStaleness;
+        this.thread = new Thread(new Worker(), "LogIt Mirror Replicator");
+        
+        // Do not keep the server alive because of pending replication.
+        this.thread.setDaemon(true);
+    }
+    
+    public void start()
+    {
+        thread.start();
+    }
+    
+    /**
+     * Stops accepting new operations and waits for the pending ones
+     * to reach the mirror.
+     * 
+     * @param timeout how long, in milliseconds, to wait for the pending
+     *                operations; those still pending afterwards are dropped.
+     */
+    public void shutdown(long timeout)
+    {
+        if (timeout < 0)
+            throw new IllegalArgumentException();
+        
+        synchronized (queue)
+        {
+            stopped = true;
+            queue.notifyAll();
+            
+            long deadline = System.currentTimeMillis() + timeout;
+            
+            try
+            {
+                while (!queue.isEmpty() || currentTask != null)
+                {
+                    long remaining = deadline - System.currentTimeMillis();
+                    
+                    if (remaining <= 0)
+                        break;
+                    
+                    queue.wait(remaining);
+                }
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+            
+            if (!queue.isEmpty())
+            {
+                log(Level.WARNING, "Dropped " + queue.size()
+                        + " operation(s) not replicated in time to " + mirror);
+                
+                queue.clear();
+                lastTasks.clear();
+                queue.notifyAll();
+            }
+        }
+    }
+    
+    public Storage getMirror()
+    {
+        return mirror;
+    }
+    
+    /**
+     * Returns the name of the mirror unit replicating the given unit.
+     */
+    public String getMappedUnit(String unit)
+    {
+        if (unit == null)
+            throw new IllegalArgumentException();
+        
+        String unitMapping = unitMappings.get(unit);
+        
+        return (unitMapping != null) ? unitMapping : unit;
+    }
+    
+    /**
+     * Makes the mirror unit replicating {@code unit}
+     * replicate {@code newName} instead.
+     */
+    public void remapUnit(String unit, String newName)
+    {
+        if (unit == null || newName == null)
+            throw new IllegalArgumentException();
+        
+        String unitMapping = getMappedUnit(unit);
+        
+        unitMappings.remove(unit);
+        unitMappings.put(newName, unitMapping);
+    }
+    
+    /**
+     * Queues an operation on a unit, waiting if the queue is full.
+     * 
+     * @param unit   the unit the operation is made on, or {@code null}
+     *               if it is not specific to a unit.
+     * @param walker the operation; it is passed the name of the mirror unit.
+     */
+    public void enqueue(String unit, WrapperStorage.UnitWalker walker)
+    {
+        if (walker == null)
+            throw new IllegalArgumentException();
+        
+        put(new Task(unit, walker, null, null));
+    }
+    
+    /**
+     * Queues an update of the entries matching a selector,
+     * waiting if the queue is full.
+     * 
+     * <p> The entry subset is copied, so the caller is free
+     * to modify it afterwards.
+     */
+    public void enqueueUpdate(
+            String unit, StorageEntry entrySubset, Selector selector
+    )
+    {
+        if (unit == null || entrySubset == null || selector == null)
+            throw new IllegalArgumentException();
+        
+        String selectorKey = SqlUtils.translateSelector(selector, "`", "'");
+        
+        synchronized (queue)
+        {
+            Task lastTask = lastTasks.get(unit);
+            
+            if (lastTask != null && selectorKey.equals(lastTask.selectorKey)
+                    && !touchesSelector(lastTask.entrySubset, selector))
+            {
+                for (StorageDatum datum : entrySubset)
+                {
+                    lastTask.entrySubset.put(datum.getKey(), datum.getValue());
+                }
+                
+                coalescedCount++;
+                
+                return;
+            }
+        }
+        
+        put(new Task(unit, null, entrySubset.copy(), selector));
+    }
+    
+    /**
+     * Queues a ping of the mirror, unless the queue is not empty,
+     * which means the mirror connection is in use anyway.
+     */
+    public void ping()
+    {
+        synchronized (queue)
+        {
+            if (stopped || !queue.isEmpty())
+                return;
+            
+            queue.add(new Task(null, PING_WALKER, null, null));
+            queue.notifyAll();
+        }
+    }
+    
+    /**
+     * Returns the number of operations waiting to be replicated.
+     */
+    public int getQueueDepth()
+    {
+        synchronized (queue)
+        {
+            return queue.size();
+        }
+    }
+    
+    /**
+     * Returns how long, in milliseconds, the oldest operation
+     * not yet replicated has been waiting; 0 if there is none.
+     */
+    public long getLag()
+    {
+        synchronized (queue)
+        {
+            Task oldestTask = (currentTask != null) ? currentTask : queue.peek();
+            
+            if (oldestTask == null)
+                return 0;
+            
+            return System.currentTimeMillis() - oldestTask.queueTime;
+        }
+    }
+    
+    public long getMaxStaleness()
+    {
+        return maxStaleness;
+    }
+    
+    /**
+     * Checks whether the mirror may serve reads in place of the leading storage.
+     * 
+     * <p> It may if it has a staleness bound, its last operation or ping
+     * succeeded, it has not failed to replicate any operation since it was
+     * last resynchronized, and its lag is within the bound.
+     */
+    public boolean isReadable()
+    {
+        synchronized (queue)
+        {
+            return maxStaleness != NO_READS && !stopped && reachable
+                    && !diverged && getLag() <= maxStaleness;
+        }
+    }
+    
+    public long getReplicatedCount()
+    {
+        synchronized (queue)
+        {
+            return replicatedCount;
+        }
+    }
+    
+    /**
+     * Returns the number of updates merged into updates queued before them.
+     */
+    public long getCoalescedCount()
+    {
+        synchronized (queue)
+        {
+            return coalescedCount;
+        }
+    }
+    
+    public long getFailureCount()
+    {
+        synchronized (queue)
+        {
+            return failureCount;
+        }
+    }
+    
+    @Override
+    public String toString()
+    {
+        synchronized (queue)
+        {
+            return "MirrorReplicator {"
+                    + "mirror: " + mirror + ", "
+                    + "queueDepth: " + queue.size() + ", "
+                    + "lag: " + getLag() + "ms, "
+                    + "replicated: " + replicatedCount + ", "
+                    + "coalesced: " + coalescedCount + ", "
+                    + "failures: " + failureCount
+                    + (diverged ? ", diverged" : "") + "}";
+        }
+    }
+    
+    private void put(Task task)
+    {
+        synchronized (queue)
+        {
+            try
+            {
+                while (queue.size() >= capacity && !stopped)
+                {
+                    queue.wait();
+                }
+            }
+            catch (InterruptedException ex)
+            {
+                // The task is queued anyway, over the capacity.
+                Thread.currentThread().interrupt();
+            }
+            
+            if (stopped)
+            {
+                log(Level.WARNING, "Dropped an operation queued for " + mirror
+                        + " after replication has been shut down");
+                
+                return;
+            }
+            
+            queue.add(task);
+            
+            if (task.unit != null)
+            {
+                lastTasks.put(task.unit, task);
+            }
+            
+            queue.notifyAll();
+        }
+    }
+    
+    /**
+     * Returns the number of operations that have failed to replicate so far,
+     * which a resynchronization takes before it reads any entry.
+     */
+    /* package */ long getDivergenceCount()
+    {
+        synchronized (queue)
+        {
+            return divergenceCount;
+        }
+    }
+    
+    /**
+     * Lets the mirror serve reads again after operations that failed
+     * to replicate have been made up for by a resynchronization.
+     * 
+     * @param divergenceCount the {@linkplain #getDivergenceCount() divergence count}
+     *                        taken when the resynchronization started.
+     * 
+     * @return {@code false} if another operation has failed since,
+     *         in which case the mirror is left diverged.
+     */
+    /* package */ boolean clearDivergence(long divergenceCount)
+    {
+        synchronized (queue)
+        {
+            if (this.divergenceCount != divergenceCount)
+                return false;
+            
+            diverged = false;
+            
+            return true;
+        }
+    }
+    
+    /**
+     * Keeps reads off the mirror after one of them failed,
+     * until an operation or ping succeeds on it again.
+     */
+    /* package */ void reportReadFailure()
+    {
+        synchronized (queue)
+        {
+            reachable = false;
+        }
+    }
+    
+    /**
+     * Checks whether an update could change which entries a selector matches.
+     */
+    private static boolean touchesSelector(
+            StorageEntry entrySubset, Selector selector
+    )
+    {
+        Set<String> selectorKeys = new HashSet<>();
+        
+        collectKeys(selector, selectorKeys);
+        
+        for (String key : selectorKeys)
+        {
+            if (entrySubset.getKeys().contains(key))
+                return true;
+        }
+        
+        return false;
+    }
+    
+    private static void collectKeys(Selector selector, Set<String> keys)
+    {
+        if (selector instanceof SelectorCondition)
+        {
+            keys.add(((SelectorCondition) selector).getKey());
+        }
+        else if (selector instanceof SelectorBinary)
+        {
+            collectKeys(((SelectorBinary) selector).getLeftOperand(), keys);
+            collectKeys(((SelectorBinary) selector).getRightOperand(), keys);
+        }
+        else if (selector instanceof SelectorNegation)
+        {
+            collectKeys(((SelectorNegation) selector).getOperand(), keys);
+        }
+        else if (selector instanceof SelectorIn)
+        {
+            keys.add(((SelectorIn) selector).getKey());
+        }
+    }
+    
+    private void log(Level level, String message)
+    {
+        LogItCore.getInstance().log(level, message);
+    }
+    
+    private void log(Level level, Throwable throwable)
+    {
+        LogItCore.getInstance().log(level, throwable);
+    }
+    
+    private final class Worker implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            while (true)
+            {
+                Task task;
+                
+                synchronized (queue)
+                {
+                    try
+                    {
+                        while (queue.isEmpty() && !stopped)
+                        {
+                            queue.wait();
+                        }
+                    }
+                    catch (InterruptedException ex)
+                    {
+                        return;
+                    }
+                    
+                    if (queue.isEmpty())
+                        return;
+                    
+                    task = queue.poll();
+                    currentTask = task;
+                    
+                    if (task.unit != null && lastTasks.get(task.unit) == task)
+                    {
+                        lastTasks.remove(task.unit);
+                    }
+                    
+                    queue.notifyAll();
+                }
+                
+                boolean failed = false;
+                
+                try
+                {
+                    task.run();
+                }
+                catch (Throwable ex)
+                {
+                    // Errors are caught too, since without the worker
+                    // the queue would fill up and block the leading storage for good.
+                    failed = true;
+                    
+                    log(Level.WARNING, ex);
+                }
+                
+                synchronized (queue)
+                {
+                    currentTask = null;
+                    reachable = !failed;
+                    
+                    if (failed)
+                    {
+                        failureCount++;
+                        
+                        // A failed ping leaves nothing behind on the mirror.
+                        if (task.walker != PING_WALKER)
+                        {
+                            diverged = true;
+                            divergenceCount++;
+                        }
+                    }
+                    else
+                    {
+                        replicatedCount++;
+                    }
+                    
+                    queue.notifyAll();
+                }
+            }
+        }
+    }
+    
+    private final class Task
+    {
+        public Task(
+                String unit,
+                WrapperStorage.UnitWalker walker,
+                StorageEntry entrySubset,
+                Selector selector
+        )
+        {
+            this.unit = unit;
+            this.mappedUnit = (unit != null) ? getMappedUnit(unit) : null;
+            this.walker = walker;
+            this.entrySubset = entrySubset;
+            this.selector = selector;
+            this.selectorKey = (selector != null)
+                    ? SqlUtils.translateSelector(selector, "`", "'") : null;
+            this.queueTime = System.currentTimeMillis();
+        }
+        
+        public void run() throws IOException
+        {
+            if (walker != null)
+            {
+                walker.walk(mirror, mappedUnit);
+            }
+            else
+            {
+                mirror.updateEntries(mappedUnit, entrySubset, selector);
+            }
+        }
+        
+        public final String unit;
+        
+        /**
+         * The name of the mirror unit, resolved when the task is queued,
+         * so that remapping a unit does not affect tasks queued before.
+         */
+        public final String mappedUnit;
+        public final WrapperStorage.UnitWalker walker;
+        
+        /**
+         * The values set by an update task; {@code null} for other tasks.
+         */
+        public final StorageEntry entrySubset;
+        public final Selector selector;
+        public final String selectorKey;
+        public final long queueTime;
+    }
+    
+    /**
+     * The staleness bound of a mirror that never serves reads.
+     */
+    public static final long NO_READS = -1L;
+    
+    private static final WrapperStorage.UnitWalker PING_WALKER =
+            new WrapperStorage.UnitWalker()
+            {
+                @Override
+                public void walk(Storage storage, String unit) throws IOException
+                {
+                    storage.ping();
+                }
+            };
+    
+    private final Storage mirror;
+    private final Map<String, String> unitMappings;
+    private final int capacity;
+    private final long maxStaleness;
+    private final Thread thread;
+    
+    private final LinkedList<Task> queue = new LinkedList<>();
+    
+    /**
+     * The most recently queued task of each unit that has not started yet.
+     */
+    private final Map<String, Task> lastTasks = new HashMap<>();
+    private Task currentTask = null;
+    private boolean stopped = false;
+    
+    private long replicatedCount = 0;
+    private long coalescedCount = 0;
+    private long failureCount = 0;
+    private boolean reachable = true;
+    
+    /**
+     * Whether an operation failed to reach the mirror,
+     * which may now lack changes no matter its lag.
+     */
+    private boolean diverged = false;
+    
+    /**
+     * The number of operations that have failed to replicate,
+     * not counting pings.
+     */
+    private long divergenceCount = 0;
+}
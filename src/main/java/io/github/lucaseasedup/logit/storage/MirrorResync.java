@@ -0,0 +1,465 @@
+package io.github.lucaseasedup.logit.storage;
+
+import io.github.lucaseasedup.logit.LogItCore;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+
+/**
+ * Brings a mirror unit in line with the leading storage of
+ * a {@link WrapperStorage}, in the background.
+ * 
+ * <p> This is a streamed row diff: the entries of the mirror are read
+ * through a cursor in ranges of primary-key values, and each range is
+ * compared with the same entries of the leading unit, read by their
+ * primary keys. The primary keys of the leading unit are then streamed
+ * the same way to find the entries missing from the mirror. Only the
+ * entries that differ are written to the mirror, but every entry is read
+ * from both sides; neither side is held in memory as a whole.
+ * 
+ * <p> The fixes are queued on the {@link MirrorReplicator} of the mirror
+ * while the leading unit is locked for reading, so they cannot overwrite
+ * changes made to the leading unit after it was read.
+ */
+public final class MirrorResync
+{
+    MirrorResync(
+            WrapperStorage wrapper,
+            final MirrorReplicator replicator,
+            String unit,
+            int rangeSize,
+            long throttle
+    )
+    {
+        if (wrapper == null || replicator == null || unit == null
+                || rangeSize < 1 || throttle < 0)
+        {
+            throw new IllegalArgumentException();
+        }
+        
+        this.wrapper = wrapper;
+        this.replicator = replicator;
+        this.unit = unit;
+        this.mirrorUnit = replicator.getMappedUnit(unit);
+        this.rangeSize = rangeSize;
+        this.throttle = throttle;
+        this.thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    while (!resync())
+                    {
+                        synchronized (MirrorResync.this)
+                        {
+                            if (cancelled)
+                                break;
+                            
+                            if (passCount >= MAX_PASSES)
+                            {
+                                log(Level.WARNING, "Operations keep failing to replicate to "
+                                        + replicator.getMirror()
+                                        + "; it stays diverged until resynchronized again");
+                                
+                                break;
+                            }
+                        }
+                    }
+                }
+                catch (IOException | RuntimeException ex)
+                {
+                    log(Level.WARNING, "Could not resynchronize " + replicator.getMirror(), ex);
+                }
+                finally
+                {
+                    synchronized (MirrorResync.this)
+                    {
+                        done = true;
+                    }
+                    
+                    log(Level.INFO, MirrorResync.this.toString());
+                }
+            }
+        }, "LogIt Mirror Resync");
+        
+        this.thread.setDaemon(true);
+    }
+    
+    void start()
+    {
+        thread.start();
+    }
+    
+    /**
+     * Stops the resynchronization after the range being processed.
+     */
+    public synchronized void cancel()
+    {
+        cancelled = true;
+    }
+    
+    public synchronized boolean isDone()
+    {
+        return done;
+    }
+    
+    /**
+     * Returns the number of times the unit has been gone through,
+     * which is more than one if operations failed to replicate meanwhile.
+     */
+    public synchronized int getPassCount()
+    {
+        return passCount;
+    }
+    
+    public synchronized int getCheckedRangeCount()
+    {
+        return checkedRangeCount;
+    }
+    
+    /**
+     * Returns the number of entries compared between the units,
+     * counting entries missing from either side.
+     */
+    public synchronized long getCheckedEntryCount()
+    {
+        return checkedEntryCount;
+    }
+    
+    /**
+     * Returns the number of entries added to, updated in
+     * or removed from the mirror.
+     */
+    public synchronized int getFixedEntryCount()
+    {
+        return fixedEntryCount;
+    }
+    
+    @Override
+    public synchronized String toString()
+    {
+        return "MirrorResync {"
+                + "unit: \"" + unit + "\", "
+                + "mirror: " + replicator.getMirror() + ", "
+                + "passes: " + passCount + ", "
+                + "ranges: " + checkedRangeCount + ", "
+                + "checkedEntries: " + checkedEntryCount + ", "
+                + "fixedEntries: " + fixedEntryCount
+                + (cancelled ? ", cancelled" : "") + "}";
+    }
+    
+    /**
+     * Goes through the unit once.
+     * 
+     * @return {@code false} if an operation failed to replicate in the meantime
+     *         and the unit has to be gone through again.
+     */
+    private boolean resync() throws IOException
+    {
+        // Taken first, so that any failure the fixes may not make up for is noticed.
+        long divergenceCount = replicator.getDivergenceCount();
+        Storage mirror = replicator.getMirror();
+        String primaryKey = wrapper.getPrimaryKey(unit);
+        
+        // Keys missing on either side cannot be compared.
+        List<String> keys = new ArrayList<>(wrapper.getKeys(unit).keySet());
+        keys.retainAll(mirror.getKeys(mirrorUnit).keySet());
+        
+        if (!keys.contains(primaryKey))
+            throw new IOException("The mirror unit lacks the primary key: " + primaryKey);
+        
+        synchronized (this)
+        {
+            passCount++;
+        }
+        
+        // The entries of the mirror, compared with the leading ones.
+        try (StorageCursor cursor = mirror.selectCursor(mirrorUnit, keys,
+                new SelectorConstant(true)))
+        {
+            Map<String, StorageEntry> mirrorEntries = new HashMap<>();
+            
+            while (cursor.hasNext())
+            {
+                StorageEntry entry = cursor.next();
+                
+                mirrorEntries.put(entry.get(primaryKey), entry);
+                
+                if (mirrorEntries.size() >= rangeSize || !cursor.hasNext())
+                {
+                    resyncRange(primaryKey, keys,
+                            new ArrayList<>(mirrorEntries.keySet()), mirrorEntries);
+                    mirrorEntries.clear();
+                    
+                    if (!pause())
+                        return true;
+                }
+            }
+        }
+        
+        // The entries of the leading unit the mirror lacks. They are compared
+        // once the cursor is closed, as reading the leading unit meanwhile
+        // could wait for the connection it holds.
+        List<String> primaryKeyOnly = Collections.singletonList(primaryKey);
+        List<String> missingValues = new ArrayList<>();
+        
+        try (StorageCursor cursor = wrapper.selectCursor(unit, primaryKeyOnly,
+                new SelectorConstant(true)))
+        {
+            List<String> range = new ArrayList<>();
+            
+            while (cursor.hasNext())
+            {
+                range.add(cursor.next().get(primaryKey));
+                
+                if (range.size() >= rangeSize || !cursor.hasNext())
+                {
+                    Set<String> mirrorValues = new HashSet<>();
+                    
+                    for (StorageEntry entry : mirror.selectEntries(mirrorUnit,
+                            primaryKeyOnly, new SelectorIn(primaryKey, range)))
+                    {
+                        mirrorValues.add(entry.get(primaryKey));
+                    }
+                    
+                    for (String value : range)
+                    {
+                        if (!mirrorValues.contains(value))
+                        {
+                            missingValues.add(value);
+                        }
+                    }
+                    
+                    range.clear();
+                    
+                    if (!pause())
+                        return true;
+                }
+            }
+        }
+        
+        for (int i = 0; i < missingValues.size(); i += rangeSize)
+        {
+            List<String> range = missingValues.subList(i,
+                    Math.min(i + rangeSize, missingValues.size()));
+            
+            // The mirror is read again, as the entries may have reached it.
+            resyncRange(primaryKey, keys, range, mapByPrimaryKey(primaryKey,
+                    mirror.selectEntries(mirrorUnit, new SelectorIn(primaryKey, range))));
+            
+            if (!pause())
+                return true;
+        }
+        
+        // Operations that failed before are made up for by the queued fixes,
+        // which the lag of the mirror accounts for until they are replicated.
+        return replicator.clearDivergence(divergenceCount);
+    }
+    
+    /**
+     * Compares a range of entries, given as they were read from the mirror,
+     * with the leading ones.
+     * 
+     * <p> The mirror has to be read first; changes made in between are
+     * already queued when the leading unit is read, and the fixes are
+     * queued after them.
+     */
+    private void resyncRange(
+            String primaryKey,
+            List<String> keys,
+            List<String> range,
+            Map<String, StorageEntry> mirrorEntries
+    ) throws IOException
+    {
+        int fixedEntries = 0;
+        
+        wrapper.lockUnit(unit, false);
+        
+        try
+        {
+            Map<String, StorageEntry> leadingEntries = mapByPrimaryKey(primaryKey,
+                    wrapper.selectEntries(unit, new SelectorIn(primaryKey, range)));
+            
+            for (String value : range)
+            {
+                if (fixEntry(primaryKey, keys, value,
+                        leadingEntries.get(value), mirrorEntries.get(value)))
+                {
+                    fixedEntries++;
+                }
+            }
+        }
+        finally
+        {
+            wrapper.unlockUnit(unit, false);
+        }
+        
+        synchronized (this)
+        {
+            checkedRangeCount++;
+            checkedEntryCount += range.size();
+            fixedEntryCount += fixedEntries;
+        }
+    }
+    
+    /**
+     * Pauses between ranges.
+     * 
+     * @return {@code false} if the resynchronization has been cancelled
+     *         or interrupted.
+     */
+    private boolean pause()
+    {
+        synchronized (this)
+        {
+            if (cancelled)
+                return false;
+        }
+        
+        if (throttle > 0)
+        {
+            try
+            {
+                Thread.sleep(throttle);
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Queues the operation bringing a mirror entry
+     * in line with the leading one, if they differ.
+     * 
+     * @return {@code true} if an operation was queued.
+     */
+    private boolean fixEntry(
+            String primaryKey,
+            List<String> keys,
+            String value,
+            StorageEntry leadingEntry,
+            StorageEntry mirrorEntry
+    )
+    {
+        final Selector selector =
+                new SelectorCondition(primaryKey, Infix.EQUALS, value);
+        
+        if (leadingEntry == null && mirrorEntry == null)
+            return false;
+        
+        if (leadingEntry == null)
+        {
+            replicator.enqueue(unit, new WrapperStorage.UnitWalker()
+            {
+                @Override
+                public void walk(Storage storage, String unit) throws IOException
+                {
+                    storage.removeEntries(unit, selector);
+                }
+            });
+            
+            return true;
+        }
+        
+        final StorageEntry.Builder entryBuilder = new StorageEntry.Builder();
+        
+        for (String key : keys)
+        {
+            String leadingValue = leadingEntry.get(key);
+            
+            if (mirrorEntry == null || !equal(leadingValue, mirrorEntry.get(key)))
+            {
+                entryBuilder.put(key, leadingValue);
+            }
+        }
+        
+        final StorageEntry entry = entryBuilder.build();
+        
+        if (entry.getKeys().isEmpty())
+            return false;
+        
+        if (mirrorEntry == null)
+        {
+            // The entry may have reached the mirror in the meantime.
+            replicator.enqueue(unit, new WrapperStorage.UnitWalker()
+            {
+                @Override
+                public void walk(Storage storage, String unit) throws IOException
+                {
+                    storage.removeEntries(unit, selector);
+                    storage.addEntry(unit, entry);
+                }
+            });
+        }
+        else
+        {
+            replicator.enqueueUpdate(unit, entry, selector);
+        }
+        
+        return true;
+    }
+    
+    private static Map<String, StorageEntry> mapByPrimaryKey(
+            String primaryKey, List<StorageEntry> entries
+    )
+    {
+        Map<String, StorageEntry> map = new HashMap<>();
+        
+        for (StorageEntry entry : entries)
+        {
+            map.put(entry.get(primaryKey), entry);
+        }
+        
+        return map;
+    }
+    
+    private static boolean equal(String a, String b)
+    {
+        return (a == null) ? b == null : a.equals(b);
+    }
+    
+    private void log(Level level, String message)
+    {
+        LogItCore.getInstance().log(level, message);
+    }
+    
+    private void log(Level level, String message, Throwable throwable)
+    {
+        LogItCore.getInstance().log(level, message, throwable);
+    }
+    
+    /**
+     * The number of times a unit is gone through before the mirror
+     * is given up on and left diverged.
+     */
+    private static final int MAX_PASSES = 3;
+    
+    private final WrapperStorage wrapper;
+    private final MirrorReplicator replicator;
+    private final String unit;
+    private final String mirrorUnit;
+    private final int rangeSize;
+    private final long throttle;
+    private final Thread thread;
+    
+    private boolean cancelled = false;
+    private int passCount = 0;
+    private boolean done = false;
+    private int checkedRangeCount = 0;
+    private long checkedEntryCount = 0;
+    private int fixedEntryCount = 0;
+}
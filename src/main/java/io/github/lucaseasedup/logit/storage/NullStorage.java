@@ -2,6 +2,7 @@ package io.github.lucaseasedup.logit.storage;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 public final class NullStorage implements Storage
 {
@@ -70,11 +71,44 @@ public final class NullStorage implements Storage
         return new ArrayList<>();
     }
     
+    @Override
+    public StorageCursor selectCursor(
+            String unit, List<String> keys, Selector selector
+    )
+    {
+        return new ListStorageCursor(new ArrayList<StorageEntry>());
+    }
+    
+    @Override
+    public long count(String unit, Selector selector)
+    {
+        return 0;
+    }
+    
+    @Override
+    public boolean exists(String unit, Selector selector)
+    {
+        return false;
+    }
+    
+    @Override
+    public long countDistinct(String unit, String key, Selector selector)
+    {
+        return 0;
+    }
+    
     @Override
     public void createUnit(String unit, UnitKeys keys, String primaryKey)
     {
     }
     
+    @Override
+    public void createUnit(
+            String unit, UnitKeys keys, String primaryKey, Map<String, IndexType> indexes
+    )
+    {
+    }
+    
     @Override
     public void renameUnit(String unit, String newName)
     {
@@ -95,11 +129,21 @@ public final class NullStorage implements Storage
     {
     }
     
+    @Override
+    public void addKey(String unit, String key, DataType type, IndexType indexType)
+    {
+    }
+    
     @Override
     public void addEntry(String unit, StorageEntry entry)
     {
     }
     
+    @Override
+    public void addEntries(String unit, List<StorageEntry> entries)
+    {
+    }
+    
     @Override
     public void updateEntries(
             String unit, StorageEntry entrySubset, Selector selector
@@ -107,6 +151,18 @@ public final class NullStorage implements Storage
     {
     }
     
+    @Override
+    public void updateEntriesByKey(
+            String unit, String key, Map<String, StorageEntry> entrySubsets
+    )
+    {
+    }
+    
+    @Override
+    public void upsertEntry(String unit, String key, StorageEntry entry)
+    {
+    }
+    
     @Override
     public void removeEntries(String unit, Selector selector)
     {
@@ -135,4 +191,22 @@ public final class NullStorage implements Storage
     {
         // Batching is not supported.
     }
+    
+    @Override
+    public void beginTransaction()
+    {
+        // Nothing is stored, so there is nothing to undo.
+    }
+    
+    @Override
+    public void commitTransaction()
+    {
+        // Nothing is stored, so there is nothing to undo.
+    }
+    
+    @Override
+    public void rollbackTransaction()
+    {
+        // Nothing is stored, so there is nothing to undo.
+    }
 }
@@ -0,0 +1,283 @@
+package io.github.lucaseasedup.logit.storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caches entries of a unit by their primary key as they are read.
+ * 
+ * <p> The cache holds at most {@code maxSize} primary keys; the least recently
+ * used ones are evicted first. A primary key that was looked up and not found
+ * is cached as well, so that repeated lookups of a missing entry
+ * do not reach the storage either.
+ */
+public final class OnDemandUnitCache
+{
+    /**
+     * @param primaryKey the primary key of the cached unit.
+     * @param maxSize    the maximum number of cached primary keys.
+     * @param ttl        how long, in milliseconds, a cached entry stays valid;
+     *                   0 means forever.
+     */
+    public OnDemandUnitCache(String primaryKey, int maxSize, long ttl)
+    {
+        if (primaryKey == null || maxSize < 1 || ttl < 0)
+            throw new IllegalArgumentException();
+        
+        this.primaryKey = primaryKey;
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+    }
+    
+    public String getPrimaryKey()
+    {
+        return primaryKey;
+    }
+    
+    /**
+     * Looks up the entry with the given primary-key value.
+     * 
+     * @return {@code null} if the value is not cached, an empty list if it is
+     *         cached as missing, or a list holding a copy of the cached entry.
+     */
+    public synchronized List<StorageEntry> lookup(String primaryKeyValue)
+    {
+        if (primaryKeyValue == null)
+            throw new IllegalArgumentException();
+        
+        Slot slot = slots.get(primaryKeyValue);
+        
+        if (slot != null && isExpired(slot))
+        {
+            slots.remove(primaryKeyValue);
+            evictionCount++;
+            slot = null;
+        }
+        
+        if (slot == null)
+        {
+            missCount++;
+            
+            return null;
+        }
+        
+        hitCount++;
+        
+        if (slot.entry == null)
+            return Collections.emptyList();
+        
+        List<StorageEntry> entries = new ArrayList<>(1);
+        entries.add(slot.entry.copy());
+        
+        return entries;
+    }
+    
+    /**
+     * Stores the result of looking up a primary-key value in the storage.
+     * 
+     * @param primaryKeyValue the value that was looked up.
+     * @param entries         the complete entries that were found.
+     */
+    public synchronized void store(
+            String primaryKeyValue, List<StorageEntry> entries
+    )
+    {
+        if (primaryKeyValue == null || entries == null)
+            throw new IllegalArgumentException();
+        
+        if (entries.isEmpty())
+        {
+            slots.put(primaryKeyValue, new Slot(null));
+            
+            return;
+        }
+        
+        for (StorageEntry entry : entries)
+        {
+            String value = entry.get(primaryKey);
+            
+            if (value != null)
+            {
+                slots.put(value, new Slot(entry.copy()));
+            }
+        }
+    }
+    
+    public synchronized void invalidate(String primaryKeyValue)
+    {
+        if (primaryKeyValue == null)
+            throw new IllegalArgumentException();
+        
+        slots.remove(primaryKeyValue);
+    }
+    
+    /**
+     * Applies an update to the cached entries matching a selector.
+     */
+    public synchronized void update(StorageEntry entrySubset, Selector selector)
+    {
+        if (entrySubset == null || selector == null)
+            throw new IllegalArgumentException();
+        
+        String newValue = entrySubset.get(primaryKey);
+        
+        // An entry may be moved onto a primary key cached as missing.
+        if (newValue != null)
+        {
+            slots.remove(newValue);
+        }
+        
+        CompiledSelector compiledSelector = CompiledSelector.compile(selector);
+        List<StorageEntry> rekeyedEntries = new ArrayList<>();
+        Iterator<Slot> slotIt = slots.values().iterator();
+        
+        while (slotIt.hasNext())
+        {
+            StorageEntry entry = slotIt.next().entry;
+            
+            if (entry == null || !compiledSelector.matches(entry))
+                continue;
+            
+            String oldValue = entry.get(primaryKey);
+            
+            for (StorageDatum datum : entrySubset)
+            {
+                entry.put(datum.getKey(), datum.getValue());
+            }
+            
+            if (!oldValue.equals(entry.get(primaryKey)))
+            {
+                slotIt.remove();
+                rekeyedEntries.add(entry);
+            }
+        }
+        
+        for (StorageEntry entry : rekeyedEntries)
+        {
+            slots.put(entry.get(primaryKey), new Slot(entry));
+        }
+    }
+    
+    /**
+     * Removes the cached entries matching a selector.
+     */
+    public synchronized void remove(Selector selector)
+    {
+        if (selector == null)
+            throw new IllegalArgumentException();
+        
+        CompiledSelector compiledSelector = CompiledSelector.compile(selector);
+        Iterator<Slot> slotIt = slots.values().iterator();
+        
+        while (slotIt.hasNext())
+        {
+            StorageEntry entry = slotIt.next().entry;
+            
+            if (entry != null && compiledSelector.matches(entry))
+            {
+                slotIt.remove();
+            }
+        }
+    }
+    
+    /**
+     * Adds an empty value for a new key to every cached entry.
+     */
+    public synchronized void addKey(String key)
+    {
+        if (key == null)
+            throw new IllegalArgumentException();
+        
+        for (Slot slot : slots.values())
+        {
+            if (slot.entry != null)
+            {
+                slot.entry.put(key, "");
+            }
+        }
+    }
+    
+    public synchronized void clear()
+    {
+        slots.clear();
+    }
+    
+    public synchronized int size()
+    {
+        return slots.size();
+    }
+    
+    public synchronized long getHitCount()
+    {
+        return hitCount;
+    }
+    
+    public synchronized long getMissCount()
+    {
+        return missCount;
+    }
+    
+    public synchronized long getEvictionCount()
+    {
+        return evictionCount;
+    }
+    
+    @Override
+    public synchronized String toString()
+    {
+        return "OnDemandUnitCache {"
+                + "size: " + slots.size() + ", "
+                + "hits: " + hitCount + ", "
+                + "misses: " + missCount + ", "
+                + "evictions: " + evictionCount + "}";
+    }
+    
+    private boolean isExpired(Slot slot)
+    {
+        return ttl > 0 && System.currentTimeMillis() - slot.loadTime > ttl;
+    }
+    
+    private static final class Slot
+    {
+        public Slot(StorageEntry entry)
+        {
+            this.entry = entry;
+            this.loadTime = System.currentTimeMillis();
+        }
+        
+        /**
+         * The cached entry, or {@code null} if it is known to be missing.
+         */
+        public final StorageEntry entry;
+        public final long loadTime;
+    }
+    
+    private final String primaryKey;
+    private final int maxSize;
+    private final long ttl;
+    
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+    
+    private final Map<String, Slot> slots =
+            new LinkedHashMap<String, Slot>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Slot> eldest)
+        {
+            if (size() <= maxSize)
+                return false;
+            
+            evictionCount++;
+            
+            return true;
+        }
+        
+        private static final long serialVersionUID = 1L;
+    };
+}
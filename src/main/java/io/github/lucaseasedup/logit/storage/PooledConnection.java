@@ -0,0 +1,457 @@
+package io.github.lucaseasedup.logit.storage;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A connection borrowed from a {@link ConnectionPool}.
+ * 
+ * <p> Closing a {@code PooledConnection} returns it to the pool
+ * instead of closing the underlying JDBC connection.
+ * 
+ * <p> Each physical connection keeps a cache of prepared statements
+ * keyed by their SQL, so that statements of the same shape are parsed
+ * by the database only once.
+ */
+public final class PooledConnection implements AutoCloseable
+{
+    /* package */ PooledConnection(ConnectionPool pool, Connection connection)
+    {
+        if (pool == null || connection == null)
+            throw new IllegalArgumentException();
+        
+        this.pool = pool;
+        this.connection = connection;
+        this.lastReleaseTime = System.currentTimeMillis();
+        this.cacheGeneration = pool.getStatementCacheGeneration();
+    }
+    
+    public Connection getConnection()
+    {
+        return connection;
+    }
+    
+    /**
+     * Returns a {@code Statement} bound to this connection.
+     * 
+     * <p> The statement is created once per physical connection
+     * and reused by every borrower.
+     */
+    public Statement getStatement() throws SQLException
+    {
+        if (statement == null)
+        {
+            statement = connection.createStatement();
+        }
+        
+        return statement;
+    }
+    
+    /**
+     * Returns a prepared statement for the given SQL, reusing
+     * a cached one if this connection has already prepared it.
+     * 
+     * <p> The returned statement must not be closed by the caller.
+     */
+    public PreparedStatement prepareStatement(String sql) throws SQLException
+    {
+        if (sql == null)
+            throw new IllegalArgumentException();
+        
+        int generation = pool.getStatementCacheGeneration();
+        
+        if (generation != cacheGeneration)
+        {
+            // Send the pending batch before its statement gets closed.
+            flushBatchStatement();
+            closeCachedStatements();
+            cacheGeneration = generation;
+        }
+        
+        PreparedStatement preparedStatement = statementCache.get(sql);
+        
+        pool.recordStatementCacheLookup(preparedStatement != null);
+        
+        if (preparedStatement == null)
+        {
+            preparedStatement = connection.prepareStatement(sql);
+            statementCache.put(sql, preparedStatement);
+        }
+        else
+        {
+            preparedStatement.clearParameters();
+        }
+        
+        return preparedStatement;
+    }
+    
+    public ResultSet executeQuery(String sql, List<String> parameters)
+            throws SQLException
+    {
+        PreparedStatement preparedStatement = prepareStatement(sql);
+        
+        SqlUtils.bindParameters(preparedStatement, parameters);
+        
+        return preparedStatement.executeQuery();
+    }
+    
+    public boolean execute(String sql, List<String> parameters)
+            throws SQLException
+    {
+        PreparedStatement preparedStatement = prepareStatement(sql);
+        
+        SqlUtils.bindParameters(preparedStatement, parameters);
+        
+        return preparedStatement.execute();
+    }
+    
+    /**
+     * Executes an unparameterized statement, such as DDL.
+     * 
+     * <p> Since such a statement may alter the schema, the prepared
+     * statements cached by all connections of the pool are invalidated.
+     */
+    public boolean execute(String sql) throws SQLException
+    {
+        try
+        {
+            return getStatement().execute(sql);
+        }
+        finally
+        {
+            pool.invalidateStatementCaches();
+        }
+    }
+    
+    /**
+     * Adds an unparameterized statement, such as DDL, to the batch.
+     */
+    public void addBatch(String sql) throws SQLException
+    {
+        switchBatchStatement(null);
+        
+        getStatement().addBatch(sql);
+        batchStatement = getStatement();
+    }
+    
+    /**
+     * Adds a parameterized statement to the batch.
+     * 
+     * <p> Consecutive statements of the same shape are batched together;
+     * when the shape changes, the pending statements are sent first
+     * so that the order of execution is preserved.
+     */
+    public void addBatch(String sql, List<String> parameters)
+            throws SQLException
+    {
+        if (sql == null)
+            throw new IllegalArgumentException();
+        
+        switchBatchStatement(sql);
+        
+        PreparedStatement preparedStatement = prepareStatement(sql);
+        
+        SqlUtils.bindParameters(preparedStatement, parameters);
+        preparedStatement.addBatch();
+        
+        batchStatement = preparedStatement;
+        batchSql = sql;
+    }
+    
+    public void executeBatch() throws SQLException
+    {
+        flushBatchStatement();
+    }
+    
+    /**
+     * Executes parameterized statements as a single batch
+     * that either succeeds or fails as a whole.
+     * 
+     * <p> The batch runs in a transaction of its own, unless a transaction
+     * is already open on this connection, in which case it joins it.
+     * 
+     * @param sqls           the statements to be executed.
+     * @param parameterLists the parameters of each statement.
+     */
+    public void executeAtomically(
+            List<String> sqls, List<List<String>> parameterLists
+    ) throws SQLException
+    {
+        if (sqls == null || parameterLists == null
+                || sqls.size() != parameterLists.size())
+        {
+            throw new IllegalArgumentException();
+        }
+        
+        boolean ownTransaction = connection.getAutoCommit();
+        
+        if (ownTransaction)
+        {
+            connection.setAutoCommit(false);
+        }
+        
+        try
+        {
+            for (int i = 0; i < sqls.size(); i++)
+            {
+                addBatch(sqls.get(i), parameterLists.get(i));
+            }
+            
+            flushBatchStatement();
+            
+            if (ownTransaction)
+            {
+                connection.commit();
+            }
+        }
+        catch (SQLException ex)
+        {
+            clearBatch();
+            
+            if (ownTransaction)
+            {
+                connection.rollback();
+            }
+            
+            throw ex;
+        }
+        finally
+        {
+            if (ownTransaction)
+            {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+    
+    /**
+     * Opens a transaction that the statements executed on this connection
+     * join until it is committed or rolled back.
+     */
+    public void beginTransaction() throws SQLException
+    {
+        connection.setAutoCommit(false);
+    }
+    
+    /**
+     * Commits the transaction opened by {@link #beginTransaction()},
+     * rolling it back if the commit fails.
+     */
+    public void commitTransaction() throws SQLException
+    {
+        try
+        {
+            connection.commit();
+        }
+        catch (SQLException ex)
+        {
+            try
+            {
+                connection.rollback();
+            }
+            catch (SQLException rollbackEx)
+            {
+                ex.addSuppressed(rollbackEx);
+            }
+            
+            throw ex;
+        }
+        finally
+        {
+            connection.setAutoCommit(true);
+        }
+    }
+    
+    public void rollbackTransaction() throws SQLException
+    {
+        clearBatch();
+        
+        try
+        {
+            connection.rollback();
+        }
+        finally
+        {
+            connection.setAutoCommit(true);
+        }
+    }
+    
+    public void clearBatch()
+    {
+        try
+        {
+            if (batchStatement != null)
+            {
+                batchStatement.clearBatch();
+            }
+        }
+        catch (SQLException ex)
+        {
+            // The connection will be validated on the next borrow.
+        }
+        finally
+        {
+            batchStatement = null;
+            batchSql = null;
+        }
+    }
+    
+    /**
+     * Returns this connection to the pool it was borrowed from.
+     * 
+     * <p> If the connection was borrowed more than once by the same
+     * thread, it is returned after the last borrower has closed it.
+     */
+    @Override
+    public void close()
+    {
+        pool.releaseConnection(this);
+    }
+    
+    /* package */ int getCursorFetchSize()
+    {
+        return pool.getCursorFetchSize();
+    }
+    
+    /* package */ int getHoldCount()
+    {
+        return holdCount;
+    }
+    
+    /* package */ void setHoldCount(int holdCount)
+    {
+        this.holdCount = holdCount;
+        
+        if (holdCount == 0)
+        {
+            lastReleaseTime = System.currentTimeMillis();
+        }
+    }
+    
+    /* package */ long getLastReleaseTime()
+    {
+        return lastReleaseTime;
+    }
+    
+    /* package */ void destroy() throws SQLException
+    {
+        try
+        {
+            closeCachedStatements();
+            
+            if (statement != null)
+            {
+                statement.close();
+            }
+        }
+        finally
+        {
+            statement = null;
+            connection.close();
+        }
+    }
+    
+    private void switchBatchStatement(String sql) throws SQLException
+    {
+        if (batchStatement == null)
+            return;
+        
+        boolean sameShape = (sql == null)
+                ? batchSql == null
+                : sql.equals(batchSql);
+        
+        if (!sameShape)
+        {
+            flushBatchStatement();
+        }
+    }
+    
+    private void flushBatchStatement() throws SQLException
+    {
+        if (batchStatement == null)
+            return;
+        
+        Statement flushedStatement = batchStatement;
+        boolean altersSchema = (batchSql == null);
+        
+        batchStatement = null;
+        batchSql = null;
+        
+        try
+        {
+            flushedStatement.executeBatch();
+        }
+        finally
+        {
+            flushedStatement.clearBatch();
+            
+            if (altersSchema)
+            {
+                pool.invalidateStatementCaches();
+            }
+        }
+    }
+    
+    private void closeCachedStatements()
+    {
+        for (PreparedStatement preparedStatement : statementCache.values())
+        {
+            try
+            {
+                preparedStatement.close();
+            }
+            catch (SQLException ex)
+            {
+                // Nothing can be done about a statement that fails to close.
+            }
+        }
+        
+        statementCache.clear();
+    }
+    
+    private final ConnectionPool pool;
+    private final Connection connection;
+    private Statement statement;
+    private int holdCount = 0;
+    private volatile long lastReleaseTime;
+    
+    private int cacheGeneration;
+    private final Map<String, PreparedStatement> statementCache =
+            new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(
+                Map.Entry<String, PreparedStatement> eldest
+        )
+        {
+            if (size() <= pool.getStatementCacheSize())
+                return false;
+            
+            // Never close a statement with a pending batch.
+            if (eldest.getValue() == batchStatement)
+                return false;
+            
+            try
+            {
+                eldest.getValue().close();
+            }
+            catch (SQLException ex)
+            {
+                // Nothing can be done about a statement that fails to close.
+            }
+            
+            return true;
+        }
+        
+        private static final long serialVersionUID = 1L;
+    };
+    
+    private Statement batchStatement;
+    private String batchSql;
+}
@@ -2,36 +2,61 @@ package io.github.lucaseasedup.logit.storage;
 
 import java.util.List;
 
-public final class PreloadedUnitCache
+/**
+ * Holds all entries of a unit in memory, so that reads made through
+ * a {@link WrapperStorage} with a {@code PRELOADED} cache never reach
+ * the leading storage.
+ * 
+ * <p> Implementations are not thread-safe for writes, but must allow
+ * concurrent reads while no write is in progress.
+ */
+public interface PreloadedUnitCache
 {
-    public PreloadedUnitCache(
-            UnitKeys keys, String primaryKey, List<StorageEntry> entries
-    )
-    {
-        if (keys == null || primaryKey == null || entries == null)
-            throw new IllegalArgumentException();
-        
-        this.keys = keys;
-        this.primaryKey = primaryKey;
-        this.entries = entries;
-    }
+    public UnitKeys getKeys();
+    public String getPrimaryKey();
     
-    public UnitKeys getKeys()
-    {
-        return keys;
-    }
+    /**
+     * Adds a secondary index on a key and fills it with the cached entries.
+     * 
+     * <p> If the key is already indexed, the old index is replaced.
+     */
+    public void addIndex(String key, IndexType type);
+    public void removeIndex(String key);
     
-    public String getPrimaryKey()
-    {
-        return primaryKey;
-    }
+    /**
+     * Returns the cached entries matching a selector.
+     * 
+     * <p> The returned entries may be the cached ones themselves,
+     * so they must be copied before they are modified or handed out.
+     */
+    public List<StorageEntry> selectEntries(Selector selector);
     
-    public List<StorageEntry> getEntryList()
-    {
-        return entries;
-    }
+    /**
+     * Counts the cached entries matching a selector.
+     */
+    public int count(Selector selector);
     
-    private final UnitKeys keys;
-    private final String primaryKey;
-    private final List<StorageEntry> entries;
+    /**
+     * Counts the distinct non-empty values of a key among the cached entries
+     * matching a selector.
+     */
+    public long countDistinct(String key, Selector selector);
+    
+    /**
+     * Adds an entry, replacing the cached entry with the same
+     * primary-key value, if any.
+     * 
+     * <p> The cache may keep the given entry itself,
+     * so it must not be modified afterwards.
+     */
+    public void addEntry(StorageEntry entry);
+    public void updateEntries(StorageEntry entrySubset, Selector selector);
+    public void removeEntries(Selector selector);
+    
+    /**
+     * Adds a key to the unit, setting it to an empty value in every cached entry.
+     */
+    public void addKey(String key, DataType type);
+    public void clear();
+    public int size();
 }
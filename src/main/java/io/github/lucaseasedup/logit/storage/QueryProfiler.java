@@ -0,0 +1,331 @@
+package io.github.lucaseasedup.logit.storage;
+
+import io.github.lucaseasedup.logit.LogItCore;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.regex.Pattern;
+
+/**
+ * Times the statements run by SQL storages.
+ * 
+ * <p> Statements are grouped by shape, that is their SQL with literals
+ * and parameter lists collapsed, so that statements differing only in
+ * values share one latency histogram. Statements slower than a threshold
+ * are logged along with the code that ran them.
+ * 
+ * <p> This class is thread-safe.
+ */
+public final class QueryProfiler
+{
+    /**
+     * @param slowThreshold the time, in milliseconds, after which a statement
+     *                      is logged as slow; 0 turns the slow-query log off.
+     */
+    public QueryProfiler(long slowThreshold)
+    {
+        if (slowThreshold < 0)
+            throw new IllegalArgumentException();
+        
+        this.slowThreshold = slowThreshold * 1000000L;
+    }
+    
+    /**
+     * Records a statement that has just finished.
+     * 
+     * @param sql       the statement.
+     * @param startTime the value of {@link System#nanoTime()} taken
+     *                  right before the statement was run.
+     */
+    public void record(String sql, long startTime)
+    {
+        if (sql == null)
+            throw new IllegalArgumentException();
+        
+        long elapsedTime = System.nanoTime() - startTime;
+        
+        recordShape(getShape(sql), elapsedTime);
+    }
+    
+    /**
+     * Records statements that have just been run in one transaction.
+     * 
+     * @param sqls      the statements.
+     * @param startTime the value of {@link System#nanoTime()} taken
+     *                  right before the transaction began.
+     */
+    public void recordTransaction(Collection<String> sqls, long startTime)
+    {
+        if (sqls == null)
+            throw new IllegalArgumentException();
+        
+        long elapsedTime = System.nanoTime() - startTime;
+        
+        recordShape(getShape("TRANSACTION", sqls), elapsedTime);
+    }
+    
+    /**
+     * Records statements that have just been run in one batch.
+     * 
+     * @param sqls      the statements.
+     * @param startTime the value of {@link System#nanoTime()} taken
+     *                  right before the batch was run.
+     */
+    public void recordBatch(Collection<String> sqls, long startTime)
+    {
+        if (sqls == null)
+            throw new IllegalArgumentException();
+        
+        long elapsedTime = System.nanoTime() - startTime;
+        
+        recordShape(getShape("BATCH", sqls), elapsedTime);
+    }
+    
+    /**
+     * Returns the statement shapes that took the longest in total,
+     * the longest first.
+     * 
+     * @param count the maximum number of shapes to return.
+     */
+    public List<StatementStats> getTopStatements(int count)
+    {
+        if (count < 0)
+            throw new IllegalArgumentException();
+        
+        List<StatementStats> top = new ArrayList<>(statements.values());
+        
+        // The totals keep growing while being sorted,
+        // so they are read once beforehand.
+        final Map<StatementStats, Long> totalTimes = new IdentityHashMap<>();
+        
+        for (StatementStats stats : top)
+        {
+            totalTimes.put(stats, stats.getTotalTime());
+        }
+        
+        Collections.sort(top, new Comparator<StatementStats>()
+        {
+            @Override
+            public int compare(StatementStats o1, StatementStats o2)
+            {
+                return Long.compare(totalTimes.get(o2), totalTimes.get(o1));
+            }
+        });
+        
+        return top.subList(0, Math.min(count, top.size()));
+    }
+    
+    public void reset()
+    {
+        statements.clear();
+    }
+    
+    private void recordShape(String shape, long elapsedTime)
+    {
+        StatementStats stats = statements.get(shape);
+        
+        if (stats == null)
+        {
+            // Shapes are only collapsed as far as the patterns reach,
+            // so their number is capped in case some slip through.
+            if (statements.size() >= MAX_SHAPES)
+            {
+                shape = OTHER_SHAPE;
+            }
+            
+            stats = new StatementStats(shape);
+            
+            StatementStats existingStats = statements.putIfAbsent(shape, stats);
+            
+            if (existingStats != null)
+            {
+                stats = existingStats;
+            }
+        }
+        
+        stats.add(elapsedTime);
+        
+        if (slowThreshold > 0 && elapsedTime >= slowThreshold)
+        {
+            LogItCore.getInstance().log(Level.WARNING,
+                    "Slow query (" + (elapsedTime / 1000000L) + " ms, called from "
+                    + getCaller() + "): " + shape);
+        }
+    }
+    
+    /**
+     * Collapses literals and parameter lists of a statement,
+     * which also keeps values out of the slow-query log.
+     */
+    /* package */ static String getShape(String sql)
+    {
+        String shape = STRING_LITERAL.matcher(sql).replaceAll("?");
+        shape = NUMBER_LITERAL.matcher(shape).replaceAll("?");
+        shape = WHITESPACE.matcher(shape).replaceAll(" ").trim();
+        shape = PARAMETER_LIST.matcher(shape).replaceAll("(?...)");
+        shape = PARAMETER_LISTS.matcher(shape).replaceAll("(?...), ...");
+        
+        return shape;
+    }
+    
+    private static String getShape(String kind, Collection<String> sqls)
+    {
+        Set<String> shapes = new LinkedHashSet<>();
+        
+        for (String sql : sqls)
+        {
+            shapes.add(getShape(sql));
+        }
+        
+        StringBuilder sb = new StringBuilder(kind);
+        
+        for (String shape : shapes)
+        {
+            sb.append((sb.length() == kind.length()) ? " " : "; ");
+            sb.append(shape);
+        }
+        
+        return sb.toString();
+    }
+    
+    /**
+     * Finds the code outside the storages that ran the current statement.
+     */
+    private static String getCaller()
+    {
+        String storagePackage = QueryProfiler.class.getPackage().getName() + ".";
+        
+        for (StackTraceElement frame : new Throwable().getStackTrace())
+        {
+            String className = frame.getClassName();
+            
+            if (className.startsWith(storagePackage)
+                    || className.startsWith("java.")
+                    || className.startsWith("javax.")
+                    || className.startsWith("sun."))
+            {
+                continue;
+            }
+            
+            return className.substring(className.lastIndexOf('.') + 1)
+                    + "#" + frame.getMethodName();
+        }
+        
+        // Statements run by a thread of a storage, such as replication.
+        return "thread " + Thread.currentThread().getName();
+    }
+    
+    /**
+     * The latencies of statements of one shape.
+     * 
+     * <p> Latencies are counted in buckets whose bounds grow
+     * in powers of two microseconds, so percentiles are approximate.
+     */
+    public static final class StatementStats
+    {
+        private StatementStats(String shape)
+        {
+            this.shape = shape;
+        }
+        
+        public String getShape()
+        {
+            return shape;
+        }
+        
+        public synchronized long getCount()
+        {
+            return count;
+        }
+        
+        /**
+         * @return the total time spent on statements of this shape,
+         *         in nanoseconds.
+         */
+        public synchronized long getTotalTime()
+        {
+            return totalTime;
+        }
+        
+        /**
+         * @return the time taken by the slowest statement, in nanoseconds.
+         */
+        public synchronized long getMaxTime()
+        {
+            return maxTime;
+        }
+        
+        /**
+         * @param percentile the percentile, between 0 and 100.
+         * 
+         * @return the time, in nanoseconds, within which at least the given
+         *         percentage of statements finished.
+         */
+        public synchronized long getPercentile(double percentile)
+        {
+            if (percentile < 0 || percentile > 100)
+                throw new IllegalArgumentException();
+            
+            if (count == 0)
+                return 0;
+            
+            long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            
+            for (int i = 0; i < buckets.length; i++)
+            {
+                seen += buckets[i];
+                
+                if (seen >= Math.max(rank, 1))
+                {
+                    return Math.min((1L << i) * 1000L, maxTime);
+                }
+            }
+            
+            return maxTime;
+        }
+        
+        private synchronized void add(long elapsedTime)
+        {
+            long micros = elapsedTime / 1000L;
+            int bucket = (micros <= 1) ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1);
+            
+            buckets[Math.min(bucket, buckets.length - 1)]++;
+            count++;
+            totalTime += elapsedTime;
+            maxTime = Math.max(maxTime, elapsedTime);
+        }
+        
+        private final String shape;
+        
+        /**
+         * Bucket <i>i</i> counts statements that took up to
+         * 2<sup><i>i</i></sup> microseconds.
+         */
+        private final long[] buckets = new long[32];
+        private long count = 0;
+        private long totalTime = 0;
+        private long maxTime = 0;
+    }
+    
+    private static final int MAX_SHAPES = 512;
+    private static final String OTHER_SHAPE = "(other statements)";
+    
+    private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+    private static final Pattern NUMBER_LITERAL = Pattern.compile("\\b\\d+(?:\\.\\d+)?\\b");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final Pattern PARAMETER_LIST = Pattern.compile("\\(\\s*\\?(?:\\s*,\\s*\\?)*\\s*\\)");
+    private static final Pattern PARAMETER_LISTS = Pattern.compile("\\(\\?\\.\\.\\.\\)(?:\\s*,\\s*\\(\\?\\.\\.\\.\\))+");
+    
+    private final long slowThreshold;
+    private final ConcurrentMap<String, StatementStats> statements = new ConcurrentHashMap<>();
+}
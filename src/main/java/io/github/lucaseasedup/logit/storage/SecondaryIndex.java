@@ -0,0 +1,269 @@
+package io.github.lucaseasedup.logit.storage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Maps the values of a single key to the cached entries holding them.
+ * 
+ * <p> Entries are indexed by identity, so an entry must be removed from
+ * the index with the value it was added with, before it is modified.
+ */
+public final class SecondaryIndex
+{
+    public SecondaryIndex(String key, IndexType type)
+    {
+        if (key == null || type == null)
+            throw new IllegalArgumentException();
+        
+        this.key = key;
+        this.type = type;
+        
+        if (type == IndexType.SORTED)
+        {
+            valueMap = new TreeMap<>();
+            numberMap = new TreeMap<>();
+        }
+        else
+        {
+            valueMap = new HashMap<>();
+            numberMap = null;
+        }
+    }
+    
+    public String getKey()
+    {
+        return key;
+    }
+    
+    public IndexType getType()
+    {
+        return type;
+    }
+    
+    public void add(StorageEntry entry)
+    {
+        if (entry == null)
+            throw new IllegalArgumentException();
+        
+        String value = entry.get(key);
+        
+        if (value == null)
+            return;
+        
+        addToBucket(valueMap, value, entry);
+        
+        if (numberMap != null)
+        {
+            Long number = parseNumber(value);
+            
+            if (number != null)
+            {
+                addToBucket(numberMap, number, entry);
+            }
+        }
+    }
+    
+    /**
+     * Removes an entry from this index.
+     * 
+     * @param entry the entry to be removed.
+     * @param value the value of the indexed key the entry was added with.
+     */
+    public void remove(StorageEntry entry, String value)
+    {
+        if (entry == null)
+            throw new IllegalArgumentException();
+        
+        if (value == null)
+            return;
+        
+        removeFromBucket(valueMap, value, entry);
+        
+        if (numberMap != null)
+        {
+            Long number = parseNumber(value);
+            
+            if (number != null)
+            {
+                removeFromBucket(numberMap, number, entry);
+            }
+        }
+    }
+    
+    public void clear()
+    {
+        valueMap.clear();
+        
+        if (numberMap != null)
+        {
+            numberMap.clear();
+        }
+    }
+    
+    /**
+     * Returns the number of distinct non-empty values of the indexed key.
+     */
+    public int countValues()
+    {
+        return valueMap.containsKey("") ? valueMap.size() - 1 : valueMap.size();
+    }
+    
+    /**
+     * Looks up the entries satisfying a condition on the indexed key.
+     * 
+     * <p> The result is exact: it holds every indexed entry that
+     * {@link SqlUtils#resolveSelector} would match, and no other entry.
+     * 
+     * @return the matching entries, or {@code null} if this index
+     *         cannot answer the given relation.
+     */
+    public Collection<StorageEntry> lookup(
+            SelectorCondition.Relation relation, String operand
+    )
+    {
+        if (relation == null)
+            throw new IllegalArgumentException();
+        
+        if (operand == null)
+            return null;
+        
+        switch (relation)
+        {
+        case EQUALS:
+        {
+            Set<StorageEntry> bucket = valueMap.get(operand);
+            
+            if (bucket == null)
+                return Collections.emptySet();
+            
+            return bucket;
+        }
+        
+        case LESS_THAN:
+        case GREATER_THAN:
+        {
+            if (type != IndexType.SORTED)
+                return null;
+            
+            Long number = parseNumber(operand);
+            
+            if (number == null)
+                return Collections.emptySet();
+            
+            if (relation == SelectorCondition.Relation.LESS_THAN)
+            {
+                return flatten(numberMap.headMap(number, false).values());
+            }
+            else
+            {
+                return flatten(numberMap.tailMap(number, false).values());
+            }
+        }
+        
+        case STARTS_WITH:
+        {
+            if (type != IndexType.SORTED)
+                return null;
+            
+            NavigableMap<String, Set<StorageEntry>> tail =
+                    ((TreeMap<String, Set<StorageEntry>>) valueMap)
+                            .tailMap(operand, true);
+            List<Set<StorageEntry>> buckets = new ArrayList<>();
+            
+            for (Map.Entry<String, Set<StorageEntry>> e : tail.entrySet())
+            {
+                if (!e.getKey().startsWith(operand))
+                    break;
+                
+                buckets.add(e.getValue());
+            }
+            
+            return flatten(buckets);
+        }
+        
+        default:
+            return null;
+        }
+    }
+    
+    private static <K> void addToBucket(
+            Map<K, Set<StorageEntry>> map, K value, StorageEntry entry
+    )
+    {
+        Set<StorageEntry> bucket = map.get(value);
+        
+        if (bucket == null)
+        {
+            bucket = new LinkedHashSet<>();
+            map.put(value, bucket);
+        }
+        
+        bucket.add(entry);
+    }
+    
+    private static <K> void removeFromBucket(
+            Map<K, Set<StorageEntry>> map, K value, StorageEntry entry
+    )
+    {
+        Set<StorageEntry> bucket = map.get(value);
+        
+        if (bucket != null)
+        {
+            bucket.remove(entry);
+            
+            if (bucket.isEmpty())
+            {
+                map.remove(value);
+            }
+        }
+    }
+    
+    private static Collection<StorageEntry> flatten(
+            Collection<Set<StorageEntry>> buckets
+    )
+    {
+        List<StorageEntry> entries = new ArrayList<>();
+        
+        for (Set<StorageEntry> bucket : buckets)
+        {
+            entries.addAll(bucket);
+        }
+        
+        return entries;
+    }
+    
+    /**
+     * Parses a value the way {@link SqlUtils#resolveSelector} does
+     * for {@code LESS_THAN} and {@code GREATER_THAN} conditions.
+     */
+    private static Long parseNumber(String value)
+    {
+        try
+        {
+            return Long.parseLong(value);
+        }
+        catch (NumberFormatException ex)
+        {
+            return null;
+        }
+    }
+    
+    private final String key;
+    private final IndexType type;
+    
+    private final Map<String, Set<StorageEntry>> valueMap;
+    
+    /**
+     * Numeric values of the indexed key, kept only by sorted indexes.
+     */
+    private final TreeMap<Long, Set<StorageEntry>> numberMap;
+}
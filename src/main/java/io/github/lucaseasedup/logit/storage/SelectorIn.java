@@ -0,0 +1,42 @@
+package io.github.lucaseasedup.logit.storage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Matches the entries whose value of a key is equal to any of the given values.
+ * 
+ * <p> An empty set of values matches no entry.
+ */
+public final class SelectorIn extends Selector
+{
+    public SelectorIn(String key, Collection<String> values)
+    {
+        if (key == null || values == null || values.contains(null))
+            throw new IllegalArgumentException();
+        
+        this.key = key;
+        this.values = Collections.unmodifiableList(
+                new ArrayList<>(new LinkedHashSet<>(values))
+        );
+    }
+    
+    public String getKey()
+    {
+        return key;
+    }
+    
+    /**
+     * Returns the values, without duplicates, in the order they were given.
+     */
+    public List<String> getValues()
+    {
+        return values;
+    }
+    
+    private final String key;
+    private final List<String> values;
+}
@@ -0,0 +1,1073 @@
+package io.github.lucaseasedup.logit.storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Spreads every unit across several storages, called shards,
+ * by the hash of the primary-key value of each entry.
+ * 
+ * <p> Operations whose selector pins down the primary key, and writes
+ * of entries that carry it, go to a single shard. Operations whose selector
+ * limits the primary key to a list of values go to the shards of those
+ * values. Other operations are run on all the shards in parallel,
+ * and their results are merged.
+ * Changes to the schema are made on every shard.
+ * 
+ * <p> Operations spanning several shards are atomic on each shard
+ * separately, not as a whole, and so are transactions,
+ * which are committed shard by shard. Since the shard of an entry depends on
+ * the number of shards, entries must be redistributed before shards
+ * are added or removed.
+ */
+public final class ShardedStorage implements Storage
+{
+    private ShardedStorage(List<Storage> shards)
+    {
+        if (shards == null || shards.isEmpty())
+            throw new IllegalArgumentException();
+        
+        this.shards = new ArrayList<>(shards);
+        this.executorService = Executors.newFixedThreadPool(shards.size(),
+                new ThreadFactory()
+                {
+                    @Override
+                    public Thread newThread(Runnable runnable)
+                    {
+                        Thread thread = new Thread(runnable, "LogIt Shard Worker");
+                        
+                        // Do not keep the server alive because of a pending operation.
+                        thread.setDaemon(true);
+                        
+                        return thread;
+                    }
+                });
+    }
+    
+    @Override
+    public void connect() throws IOException
+    {
+        runOnAll(new ShardCall<Void>()
+        {
+            @Override
+            public Void call(Storage shard) throws IOException
+            {
+                shard.connect();
+                
+                return null;
+            }
+        });
+    }
+    
+    @Override
+    public boolean isConnected() throws IOException
+    {
+        for (Storage shard : shards)
+        {
+            if (!shard.isConnected())
+                return false;
+        }
+        
+        return true;
+    }
+    
+    @Override
+    public void ping() throws IOException
+    {
+        runOnAll(new ShardCall<Void>()
+        {
+            @Override
+            public Void call(Storage shard) throws IOException
+            {
+                shard.ping();
+                
+                return null;
+            }
+        });
+    }
+    
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            runOnAll(new ShardCall<Void>()
+            {
+                @Override
+                public Void call(Storage shard) throws IOException
+                {
+                    shard.close();
+                    
+                    return null;
+                }
+            });
+        }
+        finally
+        {
+            executorService.shutdown();
+        }
+    }
+    
+    @Override
+    public List<String> getUnitNames() throws IOException
+    {
+        return shards.get(0).getUnitNames();
+    }
+    
+    @Override
+    public UnitKeys getKeys(String unit) throws IOException
+    {
+        return shards.get(0).getKeys(unit);
+    }
+    
+    @Override
+    public String getPrimaryKey(String unit) throws IOException
+    {
+        return shards.get(0).getPrimaryKey(unit);
+    }
+    
+    @Override
+    public List<StorageEntry> selectEntries(final String unit)
+            throws IOException
+    {
+        return merge(runOnAll(new ShardCall<List<StorageEntry>>()
+        {
+            @Override
+            public List<StorageEntry> call(Storage shard) throws IOException
+            {
+                return shard.selectEntries(unit);
+            }
+        }));
+    }
+    
+    @Override
+    public List<StorageEntry> selectEntries(final String unit, final Selector selector)
+            throws IOException
+    {
+        return merge(runOnMatching(unit, selector, new ShardCall<List<StorageEntry>>()
+        {
+            @Override
+            public List<StorageEntry> call(Storage shard) throws IOException
+            {
+                return shard.selectEntries(unit, selector);
+            }
+        }));
+    }
+    
+    @Override
+    public List<StorageEntry> selectEntries(final String unit, final List<String> keys)
+            throws IOException
+    {
+        return merge(runOnAll(new ShardCall<List<StorageEntry>>()
+        {
+            @Override
+            public List<StorageEntry> call(Storage shard) throws IOException
+            {
+                return shard.selectEntries(unit, keys);
+            }
+        }));
+    }
+    
+    @Override
+    public List<StorageEntry> selectEntries(
+            final String unit, final List<String> keys, final Selector selector
+    ) throws IOException
+    {
+        return merge(runOnMatching(unit, selector, new ShardCall<List<StorageEntry>>()
+        {
+            @Override
+            public List<StorageEntry> call(Storage shard) throws IOException
+            {
+                return shard.selectEntries(unit, keys, selector);
+            }
+        }));
+    }
+    
+    /**
+     * Opens a cursor over the entries matching a selector.
+     * 
+     * <p> Unless the selector pins down the primary key, the cursor goes
+     * through the shards that may hold matching entries one after another, opening the cursor of a shard
+     * once the one before is exhausted, so that only one shard
+     * holds resources for it at a time.
+     */
+    @Override
+    public StorageCursor selectCursor(
+            String unit, List<String> keys, Selector selector
+    ) throws IOException
+    {
+        List<Storage> targets = getShards(unit, selector);
+        
+        if (targets.size() == 1)
+            return targets.get(0).selectCursor(unit, keys, selector);
+        
+        return new ShardCursor(targets, unit, keys, selector);
+    }
+    
+    @Override
+    public long count(final String unit, final Selector selector) throws IOException
+    {
+        long count = 0;
+        
+        for (long shardCount : runOnMatching(unit, selector, new ShardCall<Long>()
+        {
+            @Override
+            public Long call(Storage shard) throws IOException
+            {
+                return shard.count(unit, selector);
+            }
+        }))
+        {
+            count += shardCount;
+        }
+        
+        return count;
+    }
+    
+    @Override
+    public boolean exists(final String unit, final Selector selector) throws IOException
+    {
+        return runOnMatching(unit, selector, new ShardCall<Boolean>()
+        {
+            @Override
+            public Boolean call(Storage shard) throws IOException
+            {
+                return shard.exists(unit, selector);
+            }
+        }).contains(true);
+    }
+    
+    /**
+     * Counts the distinct values of a key on each shard and adds the counts up
+     * if the key is the primary key, whose values are never on two shards.
+     * Otherwise, the values are fetched and counted here.
+     */
+    @Override
+    public long countDistinct(
+            final String unit, final String key, final Selector selector
+    ) throws IOException
+    {
+        if (!key.equals(getShardKey(unit)))
+        {
+            List<StorageEntry> entries = merge(runOnMatching(unit, selector,
+                    new ShardCall<List<StorageEntry>>()
+                    {
+                        @Override
+                        public List<StorageEntry> call(Storage shard) throws IOException
+                        {
+                            return shard.selectEntries(
+                                    unit, Collections.singletonList(key), selector
+                            );
+                        }
+                    }));
+            
+            return StorageEntry.countDistinct(entries, key);
+        }
+        
+        long count = 0;
+        
+        for (long shardCount : runOnMatching(unit, selector, new ShardCall<Long>()
+        {
+            @Override
+            public Long call(Storage shard) throws IOException
+            {
+                return shard.countDistinct(unit, key, selector);
+            }
+        }))
+        {
+            count += shardCount;
+        }
+        
+        return count;
+    }
+    
+    @Override
+    public void createUnit(final String unit, final UnitKeys keys, final String primaryKey)
+            throws IOException
+    {
+        runOnAll(new ShardCall<Void>()
+        {
+            @Override
+            public Void call(Storage shard) throws IOException
+            {
+                shard.createUnit(unit, keys, primaryKey);
+                
+                return null;
+            }
+        });
+        
+        primaryKeys.remove(unit);
+    }
+    
+    @Override
+    public void createUnit(
+            final String unit,
+            final UnitKeys keys,
+            final String primaryKey,
+            final Map<String, IndexType> indexes
+    ) throws IOException
+    {
+        runOnAll(new ShardCall<Void>()
+        {
+            @Override
+            public Void call(Storage shard) throws IOException
+            {
+                shard.createUnit(unit, keys, primaryKey, indexes);
+                
+                return null;
+            }
+        });
+        
+        primaryKeys.remove(unit);
+    }
+    
+    @Override
+    public void renameUnit(final String unit, final String newName)
+            throws IOException
+    {
+        runOnAll(new ShardCall<Void>()
+        {
+            @Override
+            public Void call(Storage shard) throws IOException
+            {
+                shard.renameUnit(unit, newName);
+                
+                return null;
+            }
+        });
+        
+        primaryKeys.remove(unit);
+        primaryKeys.remove(newName);
+    }
+    
+    @Override
+    public void eraseUnit(final String unit) throws IOException
+    {
+        runOnAll(new ShardCall<Void>()
+        {
+            @Override
+            public Void call(Storage shard) throws IOException
+            {
+                shard.eraseUnit(unit);
+                
+                return null;
+            }
+        });
+    }
+    
+    @Override
+    public void removeUnit(final String unit) throws IOException
+    {
+        runOnAll(new ShardCall<Void>()
+        {
+            @Override
+            public Void call(Storage shard) throws IOException
+            {
+                shard.removeUnit(unit);
+                
+                return null;
+            }
+        });
+        
+        primaryKeys.remove(unit);
+    }
+    
+    @Override
+    public void addKey(final String unit, final String key, final DataType type)
+            throws IOException
+    {
+        runOnAll(new ShardCall<Void>()
+        {
+            @Override
+            public Void call(Storage shard) throws IOException
+            {
+                shard.addKey(unit, key, type);
+                
+                return null;
+            }
+        });
+    }
+    
+    @Override
+    public void addKey(
+            final String unit,
+            final String key,
+            final DataType type,
+            final IndexType indexType
+    ) throws IOException
+    {
+        runOnAll(new ShardCall<Void>()
+        {
+            @Override
+            public Void call(Storage shard) throws IOException
+            {
+                shard.addKey(unit, key, type, indexType);
+                
+                return null;
+            }
+        });
+    }
+    
+    @Override
+    public void addEntry(String unit, StorageEntry entry)
+            throws DuplicateEntryException, IOException
+    {
+        String primaryKey = getShardKey(unit);
+        
+        shards.get(getShardIndex(getPrimaryKeyValue(entry, primaryKey)))
+                .addEntry(unit, entry);
+    }
+    
+    /**
+     * Adds entries at once, grouped by shard. If one of them cannot be added,
+     * none of them is on the same shard; entries added to the other shards
+     * stay added.
+     */
+    @Override
+    public void addEntries(final String unit, List<StorageEntry> entries)
+            throws DuplicateEntryException, IOException
+    {
+        String primaryKey = getShardKey(unit);
+        final Map<Storage, List<StorageEntry>> shardEntries = new LinkedHashMap<>();
+        
+        for (StorageEntry entry : entries)
+        {
+            Storage shard = shards.get(
+                    getShardIndex(getPrimaryKeyValue(entry, primaryKey))
+            );
+            List<StorageEntry> group = shardEntries.get(shard);
+            
+            if (group == null)
+            {
+                group = new ArrayList<>();
+                shardEntries.put(shard, group);
+            }
+            
+            group.add(entry);
+        }
+        
+        runOn(new ArrayList<>(shardEntries.keySet()), new ShardCall<Void>()
+        {
+            @Override
+            public Void call(Storage shard) throws IOException
+            {
+                shard.addEntries(unit, shardEntries.get(shard));
+                
+                return null;
+            }
+        });
+    }
+    
+    /**
+     * Updates entries matching a selector.
+     * 
+     * <p> An update that changes the primary key moves every entry
+     * whose new primary-key value belongs to another shard:
+     * the updated entry is added to the new shard before
+     * it is removed from the old one.
+     */
+    @Override
+    public void updateEntries(
+            final String unit, final StorageEntry entrySubset, final Selector selector
+    ) throws IOException
+    {
+        String primaryKey = getShardKey(unit);
+        
+        if (!entrySubset.containsKey(primaryKey))
+        {
+            runOnMatching(unit, selector, new ShardCall<Void>()
+            {
+                @Override
+                public Void call(Storage shard) throws IOException
+                {
+                    shard.updateEntries(unit, entrySubset, selector);
+                    
+                    return null;
+                }
+            });
+            
+            return;
+        }
+        
+        for (int i = 0; i < shards.size(); i++)
+        {
+            Storage shard = shards.get(i);
+            
+            for (StorageEntry entry : shard.selectEntries(unit, selector))
+            {
+                Selector entrySelector = new SelectorCondition(
+                        primaryKey, Infix.EQUALS, entry.get(primaryKey)
+                );
+                StorageEntry updatedEntry = entry.copy();
+                
+                for (StorageDatum datum : entrySubset)
+                {
+                    updatedEntry.put(datum.getKey(), datum.getValue());
+                }
+                
+                int newShardIndex = getShardIndex(updatedEntry.get(primaryKey));
+                
+                if (newShardIndex == i)
+                {
+                    shard.updateEntries(unit, entrySubset, entrySelector);
+                }
+                else
+                {
+                    shards.get(newShardIndex).addEntry(unit, updatedEntry);
+                    shard.removeEntries(unit, entrySelector);
+                }
+            }
+        }
+    }
+    
+    @Override
+    public void updateEntriesByKey(
+            final String unit, final String key, final Map<String, StorageEntry> entrySubsets
+    ) throws IOException
+    {
+        String primaryKey = getShardKey(unit);
+        
+        // Entries found by another key may be on any shard.
+        if (!key.equals(primaryKey))
+        {
+            runOnAll(new ShardCall<Void>()
+            {
+                @Override
+                public Void call(Storage shard) throws IOException
+                {
+                    shard.updateEntriesByKey(unit, key, entrySubsets);
+                    
+                    return null;
+                }
+            });
+            
+            return;
+        }
+        
+        final Map<Storage, Map<String, StorageEntry>> shardSubsets = new LinkedHashMap<>();
+        Map<String, StorageEntry> movingSubsets = new LinkedHashMap<>();
+        
+        for (Map.Entry<String, StorageEntry> e : entrySubsets.entrySet())
+        {
+            String newValue = e.getValue().get(primaryKey);
+            
+            if (newValue != null && !newValue.equals(e.getKey()))
+            {
+                movingSubsets.put(e.getKey(), e.getValue());
+                
+                continue;
+            }
+            
+            Storage shard = shards.get(getShardIndex(e.getKey()));
+            Map<String, StorageEntry> group = shardSubsets.get(shard);
+            
+            if (group == null)
+            {
+                group = new HashMap<>();
+                shardSubsets.put(shard, group);
+            }
+            
+            group.put(e.getKey(), e.getValue());
+        }
+        
+        runOn(new ArrayList<>(shardSubsets.keySet()), new ShardCall<Void>()
+        {
+            @Override
+            public Void call(Storage shard) throws IOException
+            {
+                shard.updateEntriesByKey(unit, key, shardSubsets.get(shard));
+                
+                return null;
+            }
+        });
+        
+        for (Map.Entry<String, StorageEntry> e : movingSubsets.entrySet())
+        {
+            updateEntries(unit, e.getValue(),
+                    new SelectorCondition(primaryKey, Infix.EQUALS, e.getKey()));
+        }
+    }
+    
+    @Override
+    public void upsertEntry(String unit, String key, StorageEntry entry)
+            throws IOException
+    {
+        shards.get(getShardIndex(getPrimaryKeyValue(entry, key)))
+                .upsertEntry(unit, key, entry);
+    }
+    
+    @Override
+    public void removeEntries(final String unit, final Selector selector)
+            throws IOException
+    {
+        runOnMatching(unit, selector, new ShardCall<Void>()
+        {
+            @Override
+            public Void call(Storage shard) throws IOException
+            {
+                shard.removeEntries(unit, selector);
+                
+                return null;
+            }
+        });
+    }
+    
+    @Override
+    public boolean isAutobatchEnabled()
+    {
+        return shards.get(0).isAutobatchEnabled();
+    }
+    
+    @Override
+    public void setAutobatchEnabled(boolean status)
+    {
+        for (Storage shard : shards)
+        {
+            shard.setAutobatchEnabled(status);
+        }
+    }
+    
+    @Override
+    public void executeBatch() throws IOException
+    {
+        runOnAll(new ShardCall<Void>()
+        {
+            @Override
+            public Void call(Storage shard) throws IOException
+            {
+                shard.executeBatch();
+                
+                return null;
+            }
+        });
+    }
+    
+    @Override
+    public void clearBatch() throws IOException
+    {
+        runOnAll(new ShardCall<Void>()
+        {
+            @Override
+            public Void call(Storage shard) throws IOException
+            {
+                shard.clearBatch();
+                
+                return null;
+            }
+        });
+    }
+    
+    /**
+     * Starts a transaction on every shard. Until it ends, operations
+     * spanning several shards run on the calling thread, which the
+     * transactions of the shards are bound to, one shard after another.
+     */
+    @Override
+    public void beginTransaction() throws IOException
+    {
+        if (transactionInProgress.get() != null)
+            throw new IllegalStateException("Transaction already in progress.");
+        
+        for (int i = 0; i < shards.size(); i++)
+        {
+            try
+            {
+                shards.get(i).beginTransaction();
+            }
+            catch (IOException | RuntimeException ex)
+            {
+                rollbackShards(shards.subList(0, i), ex);
+                
+                throw ex;
+            }
+        }
+        
+        transactionInProgress.set(Boolean.TRUE);
+    }
+    
+    /**
+     * Commits the transaction on every shard, one after another.
+     * If a shard fails to commit, the transaction is rolled back on the shards
+     * that follow it, but stays committed on the ones before.
+     */
+    @Override
+    public void commitTransaction() throws IOException
+    {
+        endTransaction();
+        
+        for (int i = 0; i < shards.size(); i++)
+        {
+            try
+            {
+                shards.get(i).commitTransaction();
+            }
+            catch (IOException | RuntimeException ex)
+            {
+                rollbackShards(shards.subList(i + 1, shards.size()), ex);
+                
+                throw ex;
+            }
+        }
+    }
+    
+    @Override
+    public void rollbackTransaction() throws IOException
+    {
+        endTransaction();
+        
+        IOException failure = null;
+        
+        for (Storage shard : shards)
+        {
+            try
+            {
+                shard.rollbackTransaction();
+            }
+            catch (IOException ex)
+            {
+                if (failure == null)
+                {
+                    failure = ex;
+                }
+                else
+                {
+                    failure.addSuppressed(ex);
+                }
+            }
+        }
+        
+        if (failure != null)
+            throw failure;
+    }
+    
+    public List<Storage> getShards()
+    {
+        return Collections.unmodifiableList(shards);
+    }
+    
+    /**
+     * Returns the index of the shard that holds the entry
+     * with the given primary-key value.
+     * 
+     * <p> {@link String#hashCode()} is specified by the language,
+     * so an entry stays on the same shard across restarts.
+     */
+    public int getShardIndex(String primaryKeyValue)
+    {
+        if (primaryKeyValue == null)
+            throw new IllegalArgumentException();
+        
+        return (primaryKeyValue.hashCode() & Integer.MAX_VALUE) % shards.size();
+    }
+    
+    /**
+     * Returns the primary key of a unit, by which its entries are sharded.
+     */
+    private String getShardKey(String unit) throws IOException
+    {
+        String primaryKey = primaryKeys.get(unit);
+        
+        if (primaryKey == null)
+        {
+            primaryKey = shards.get(0).getPrimaryKey(unit);
+            
+            if (primaryKey == null)
+                throw new IOException("Unit \"" + unit + "\" has no primary key to shard by");
+            
+            primaryKeys.put(unit, primaryKey);
+        }
+        
+        return primaryKey;
+    }
+    
+    private static String getPrimaryKeyValue(StorageEntry entry, String primaryKey)
+    {
+        String value = entry.get(primaryKey);
+        
+        if (value == null)
+            throw new IllegalArgumentException("Missing primary key: " + primaryKey);
+        
+        return value;
+    }
+    
+    /**
+     * Returns the shards that can hold entries matching a selector,
+     * in the order of the shards.
+     */
+    private List<Storage> getShards(String unit, Selector selector) throws IOException
+    {
+        List<String> primaryKeyValues =
+                SqlUtils.findMembershipOperands(selector, getShardKey(unit));
+        
+        if (primaryKeyValues == null)
+            return shards;
+        
+        boolean[] targeted = new boolean[shards.size()];
+        
+        for (String primaryKeyValue : primaryKeyValues)
+        {
+            targeted[getShardIndex(primaryKeyValue)] = true;
+        }
+        
+        List<Storage> targets = new ArrayList<>();
+        
+        for (int i = 0; i < targeted.length; i++)
+        {
+            if (targeted[i])
+            {
+                targets.add(shards.get(i));
+            }
+        }
+        
+        return targets;
+    }
+    
+    private void endTransaction()
+    {
+        if (transactionInProgress.get() == null)
+            throw new IllegalStateException("No transaction in progress.");
+        
+        transactionInProgress.remove();
+    }
+    
+    /**
+     * Rolls back the transaction on shards after another shard has failed,
+     * attaching any further failures to the first one.
+     */
+    private static void rollbackShards(List<Storage> targets, Exception failure)
+    {
+        for (Storage shard : targets)
+        {
+            try
+            {
+                shard.rollbackTransaction();
+            }
+            catch (IOException | RuntimeException ex)
+            {
+                failure.addSuppressed(ex);
+            }
+        }
+    }
+    
+    private <T> List<T> runOnMatching(String unit, Selector selector, ShardCall<T> call)
+            throws IOException
+    {
+        return runOn(getShards(unit, selector), call);
+    }
+    
+    private <T> List<T> runOnAll(ShardCall<T> call) throws IOException
+    {
+        return runOn(shards, call);
+    }
+    
+    /**
+     * Runs a call on shards in parallel and waits for all of them to finish,
+     * even if some fail. Inside a transaction, the call is run on the shards
+     * one after another, up to the first failure.
+     * 
+     * @return the results of the call, in the order of the shards.
+     * 
+     * @throws IOException the first exception thrown by the call, if any.
+     */
+    private <T> List<T> runOn(List<Storage> targets, final ShardCall<T> call)
+            throws IOException
+    {
+        // The transactions of the shards are bound to the calling thread.
+        if (targets.size() == 1 || transactionInProgress.get() != null)
+        {
+            List<T> results = new ArrayList<>(targets.size());
+            
+            for (Storage shard : targets)
+            {
+                results.add(call.call(shard));
+            }
+            
+            return results;
+        }
+        
+        List<Future<T>> futures = new ArrayList<>(targets.size());
+        
+        for (final Storage shard : targets)
+        {
+            futures.add(executorService.submit(new Callable<T>()
+            {
+                @Override
+                public T call() throws IOException
+                {
+                    return call.call(shard);
+                }
+            }));
+        }
+        
+        List<T> results = new ArrayList<>(targets.size());
+        Throwable failure = null;
+        
+        for (Future<T> future : futures)
+        {
+            try
+            {
+                results.add(future.get());
+            }
+            catch (ExecutionException ex)
+            {
+                if (failure == null)
+                {
+                    failure = ex.getCause();
+                }
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                
+                if (failure == null)
+                {
+                    failure = ex;
+                }
+            }
+        }
+        
+        if (failure instanceof IOException)
+            throw (IOException) failure;
+        
+        if (failure instanceof RuntimeException)
+            throw (RuntimeException) failure;
+        
+        if (failure instanceof Error)
+            throw (Error) failure;
+        
+        if (failure != null)
+            throw new IOException(failure);
+        
+        return results;
+    }
+    
+    private static List<StorageEntry> merge(List<List<StorageEntry>> results)
+    {
+        List<StorageEntry> entries = new ArrayList<>();
+        
+        for (List<StorageEntry> result : results)
+        {
+            entries.addAll(result);
+        }
+        
+        return entries;
+    }
+    
+    public static final class Builder
+    {
+        public ShardedStorage build()
+        {
+            return new ShardedStorage(shards);
+        }
+        
+        /**
+         * Appends a shard. Shards must always be given in the same order,
+         * as entries are assigned to shards by their position.
+         */
+        public Builder shard(Storage shard)
+        {
+            if (shard == null)
+                throw new IllegalArgumentException();
+            
+            shards.add(shard);
+            
+            return this;
+        }
+        
+        private final List<Storage> shards = new ArrayList<>();
+    }
+    
+    private interface ShardCall<T>
+    {
+        public T call(Storage shard) throws IOException;
+    }
+    
+    private final class ShardCursor implements StorageCursor
+    {
+        public ShardCursor(
+                List<Storage> targets, String unit, List<String> keys, Selector selector
+        )
+        {
+            this.targets = targets;
+            this.unit = unit;
+            this.keys = keys;
+            this.selector = selector;
+        }
+        
+        @Override
+        public boolean hasNext() throws IOException
+        {
+            while (current == null || !current.hasNext())
+            {
+                if (current != null)
+                {
+                    current.close();
+                    current = null;
+                }
+                
+                if (nextShardIndex >= targets.size())
+                    return false;
+                
+                current = targets.get(nextShardIndex++).selectCursor(unit, keys, selector);
+            }
+            
+            return true;
+        }
+        
+        @Override
+        public StorageEntry next() throws IOException
+        {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            
+            return current.next();
+        }
+        
+        @Override
+        public void close() throws IOException
+        {
+            nextShardIndex = targets.size();
+            
+            if (current != null)
+            {
+                current.close();
+                current = null;
+            }
+        }
+        
+        private final List<Storage> targets;
+        private final String unit;
+        private final List<String> keys;
+        private final Selector selector;
+        private StorageCursor current;
+        private int nextShardIndex = 0;
+    }
+    
+    private final List<Storage> shards;
+    private final ExecutorService executorService;
+    
+    /**
+     * The primary keys of units, looked up once per unit.
+     */
+    private final ConcurrentMap<String, String> primaryKeys =
+            new ConcurrentHashMap<>();
+    
+    /**
+     * Set on the threads that have a transaction in progress.
+     */
+    private final ThreadLocal<Boolean> transactionInProgress = new ThreadLocal<>();
+}
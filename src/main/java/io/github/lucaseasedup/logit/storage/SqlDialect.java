@@ -0,0 +1,612 @@
+package io.github.lucaseasedup.logit.storage;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Generates the SQL statements a storage sends to its database engine.
+ * 
+ * <p> Statements that every engine understands are built here
+ * from the identifier quote of the dialect, while metadata queries,
+ * unit truncation and upserts are left to the dialect of each engine.
+ */
+/* package */ abstract class SqlDialect
+{
+    private SqlDialect(String identifierQuote)
+    {
+        this.identifierQuote = identifierQuote;
+    }
+    
+    public String quote(String identifier)
+    {
+        return identifierQuote
+                + SqlUtils.escapeQuotes(identifier, identifierQuote, true)
+                + identifierQuote;
+    }
+    
+    public abstract String selectUnitNames();
+    
+    /**
+     * Returns a query whose rows describe the keys of a unit,
+     * to be read with {@link #readKeyName} and {@link #readKeyType}.
+     */
+    public abstract String selectKeys(String unit);
+    
+    public abstract String readKeyName(ResultSet rs) throws SQLException;
+    
+    public abstract String readKeyType(ResultSet rs) throws SQLException;
+    
+    /**
+     * Returns a query whose rows are read with {@link #readPrimaryKey}
+     * until one of them names the primary key of a unit.
+     */
+    public abstract String selectPrimaryKey(String unit);
+    
+    /**
+     * @return the primary key named by the current row,
+     *         or {@code null} if the row does not name it.
+     */
+    public abstract String readPrimaryKey(ResultSet rs) throws SQLException;
+    
+    public String select(String unit, List<String> keys)
+    {
+        return "SELECT " + translateKeys(keys)
+             + " FROM " + quote(unit) + ";";
+    }
+    
+    public String select(
+            String unit, List<String> keys, Selector selector, List<String> parameters
+    )
+    {
+        return "SELECT " + translateKeys(keys)
+             + " FROM " + quote(unit)
+             + " WHERE " + SqlUtils.translateSelector(selector, identifierQuote, parameters) + ";";
+    }
+    
+    public String count(String unit, Selector selector, List<String> parameters)
+    {
+        return "SELECT COUNT(*) FROM " + quote(unit)
+             + " WHERE " + SqlUtils.translateSelector(selector, identifierQuote, parameters) + ";";
+    }
+    
+    public String exists(String unit, Selector selector, List<String> parameters)
+    {
+        return "SELECT EXISTS (SELECT 1 FROM " + quote(unit)
+             + " WHERE " + SqlUtils.translateSelector(selector, identifierQuote, parameters) + ");";
+    }
+    
+    /**
+     * Returns a statement counting the distinct non-empty values of a key
+     * among the rows matching a selector.
+     */
+    public String countDistinct(
+            String unit, String key, Selector selector, List<String> parameters
+    )
+    {
+        String sql = "SELECT COUNT(DISTINCT " + quote(key) + ") FROM " + quote(unit)
+             + " WHERE (" + SqlUtils.translateSelector(selector, identifierQuote, parameters)
+             + ") AND " + quote(key) + " <> ?;";
+        
+        parameters.add("");
+        
+        return sql;
+    }
+    
+    public String createUnit(String unit, UnitKeys keys, String primaryKey)
+    {
+        return "CREATE TABLE IF NOT EXISTS " + quote(unit)
+             + " (" + SqlUtils.translateKeyTypeList(keys, primaryKey, identifierQuote) + ");";
+    }
+    
+    public String renameUnit(String unit, String newName)
+    {
+        return "ALTER TABLE " + quote(unit) + " RENAME TO " + quote(newName) + ";";
+    }
+    
+    public String eraseUnit(String unit)
+    {
+        return "TRUNCATE TABLE " + quote(unit) + ";";
+    }
+    
+    public String removeUnit(String unit)
+    {
+        return "DROP TABLE " + quote(unit) + ";";
+    }
+    
+    public String addKey(String unit, String key, DataType type)
+    {
+        return "ALTER TABLE " + quote(unit)
+             + " ADD COLUMN " + quote(key) + " " + SqlUtils.encodeType(type) + ";";
+    }
+    
+    /**
+     * Returns a query whose rows, read with {@link #readIndexName},
+     * name the indexes of a unit.
+     */
+    public abstract String selectIndexNames(String unit);
+    
+    public String readIndexName(ResultSet rs) throws SQLException
+    {
+        return rs.getString(1);
+    }
+    
+    /**
+     * Returns the name of the index that {@link #createIndex} creates on a key.
+     * The name starts with the unit name, since some engines require
+     * index names to be unique across tables.
+     */
+    public String getIndexName(String unit, String key)
+    {
+        return unit + "_" + key + "_index";
+    }
+    
+    /**
+     * Returns a statement creating a secondary index on a key.
+     * 
+     * <p> Every engine builds a B-tree, which answers the lookups
+     * of both {@link IndexType#HASH} and {@link IndexType#SORTED} indexes.
+     */
+    public String createIndex(String unit, String key)
+    {
+        return "CREATE INDEX " + quote(getIndexName(unit, key))
+             + " ON " + quote(unit) + " (" + quote(key) + ");";
+    }
+    
+    public String insert(String unit, StorageEntry entry, List<String> parameters)
+    {
+        return "INSERT INTO " + quote(unit)
+             + " (" + SqlUtils.translateEntryNames(entry, identifierQuote) + ")"
+             + " VALUES (" + SqlUtils.translateEntryValues(entry, parameters) + ");";
+    }
+    
+    /**
+     * @see SqlUtils#translateMultiRowInsert
+     */
+    public List<String> insertAll(
+            String unit, List<StorageEntry> entries, List<List<String>> parameterLists
+    )
+    {
+        return SqlUtils.translateMultiRowInsert(
+                quote(unit), entries, identifierQuote, parameterLists
+        );
+    }
+    
+    public String update(
+            String unit, StorageEntry entrySubset, Selector selector, List<String> parameters
+    )
+    {
+        return "UPDATE " + quote(unit)
+             + " SET " + SqlUtils.translateEntrySubset(entrySubset, identifierQuote, parameters)
+             + " WHERE " + SqlUtils.translateSelector(selector, identifierQuote, parameters) + ";";
+    }
+    
+    /**
+     * @see SqlUtils#translateKeyedUpdates
+     */
+    public List<String> updateByKey(
+            String unit,
+            String key,
+            Map<String, StorageEntry> entrySubsets,
+            List<List<String>> parameterLists
+    )
+    {
+        return SqlUtils.translateKeyedUpdates(
+                quote(unit), key, entrySubsets, identifierQuote, parameterLists
+        );
+    }
+    
+    public String delete(String unit, Selector selector, List<String> parameters)
+    {
+        return "DELETE FROM " + quote(unit)
+             + " WHERE " + SqlUtils.translateSelector(selector, identifierQuote, parameters) + ";";
+    }
+    
+    /**
+     * Returns the statements that insert an entry or, if an entry
+     * with the same value of a unique key already exists, overwrite
+     * the keys of that entry with the ones given.
+     * 
+     * <p> The statements must be executed atomically, in order,
+     * with one parameter list each.
+     * 
+     * @param key the key identifying the entry; it must be the primary key
+     *            of the unit and be present in {@code entry}.
+     */
+    public abstract List<String> upsert(
+            String unit, String key, StorageEntry entry, List<List<String>> parameterLists
+    );
+    
+    private String translateKeys(List<String> keys)
+    {
+        if (keys == null)
+            return "*";
+        
+        return SqlUtils.translateKeyList(keys, identifierQuote);
+    }
+    
+    /**
+     * Returns the keys of an entry other than {@code key}, which are
+     * the ones an upsert overwrites.
+     */
+    private static List<String> getUpdatedKeys(StorageEntry entry, String key)
+    {
+        List<String> updatedKeys = new ArrayList<>();
+        
+        for (StorageDatum datum : entry)
+        {
+            if (!datum.getKey().equals(key))
+            {
+                updatedKeys.add(datum.getKey());
+            }
+        }
+        
+        return updatedKeys;
+    }
+    
+    private static final class SqliteDialect extends SqlDialect
+    {
+        public SqliteDialect()
+        {
+            super("`");
+        }
+        
+        @Override
+        public String selectUnitNames()
+        {
+            return "SELECT name FROM sqlite_master WHERE type = 'table';";
+        }
+        
+        @Override
+        public String selectKeys(String unit)
+        {
+            return "PRAGMA table_info('" + SqlUtils.escapeQuotes(unit, "'", true) + "');";
+        }
+        
+        @Override
+        public String readKeyName(ResultSet rs) throws SQLException
+        {
+            return rs.getString("name");
+        }
+        
+        @Override
+        public String readKeyType(ResultSet rs) throws SQLException
+        {
+            return rs.getString("type");
+        }
+        
+        @Override
+        public String selectPrimaryKey(String unit)
+        {
+            return selectKeys(unit);
+        }
+        
+        @Override
+        public String readPrimaryKey(ResultSet rs) throws SQLException
+        {
+            return "1".equals(rs.getString("pk")) ? rs.getString("name") : null;
+        }
+        
+        @Override
+        public String selectIndexNames(String unit)
+        {
+            return "SELECT name FROM sqlite_master WHERE type = 'index'"
+                 + " AND tbl_name = '" + SqlUtils.escapeQuotes(unit, "'", true) + "';";
+        }
+        
+        @Override
+        public String eraseUnit(String unit)
+        {
+            return "DELETE FROM " + quote(unit) + ";";
+        }
+        
+        /**
+         * The SQLite library bundled with the server may predate
+         * {@code ON CONFLICT DO UPDATE}, so the entry is inserted
+         * unless it exists and then updated.
+         */
+        @Override
+        public List<String> upsert(
+                String unit, String key, StorageEntry entry, List<List<String>> parameterLists
+        )
+        {
+            List<String> sqls = new ArrayList<>();
+            List<String> insertParameters = new ArrayList<>();
+            
+            sqls.add("INSERT OR IGNORE INTO " + quote(unit)
+                   + " (" + SqlUtils.translateEntryNames(entry, "`") + ")"
+                   + " VALUES (" + SqlUtils.translateEntryValues(entry, insertParameters) + ");");
+            parameterLists.add(insertParameters);
+            
+            List<String> updatedKeys = getUpdatedKeys(entry, key);
+            
+            if (!updatedKeys.isEmpty())
+            {
+                StorageEntry.Builder entrySubset = new StorageEntry.Builder();
+                
+                for (String updatedKey : updatedKeys)
+                {
+                    entrySubset.put(updatedKey, entry.get(updatedKey));
+                }
+                
+                List<String> updateParameters = new ArrayList<>();
+                
+                sqls.add(update(unit, entrySubset.build(),
+                        new SelectorCondition(key, Infix.EQUALS, entry.get(key)),
+                        updateParameters));
+                parameterLists.add(updateParameters);
+            }
+            
+            return sqls;
+        }
+    }
+    
+    private static final class H2Dialect extends SqlDialect
+    {
+        public H2Dialect()
+        {
+            super("\"");
+        }
+        
+        @Override
+        public String selectUnitNames()
+        {
+            return "SHOW TABLES;";
+        }
+        
+        @Override
+        public String selectKeys(String unit)
+        {
+            return "SELECT COLUMN_NAME, TYPE_NAME FROM INFORMATION_SCHEMA.COLUMNS"
+                 + " WHERE TABLE_NAME = '" + SqlUtils.escapeQuotes(unit, "'", true) + "';";
+        }
+        
+        @Override
+        public String readKeyName(ResultSet rs) throws SQLException
+        {
+            return rs.getString("COLUMN_NAME");
+        }
+        
+        @Override
+        public String readKeyType(ResultSet rs) throws SQLException
+        {
+            return rs.getString("TYPE_NAME");
+        }
+        
+        @Override
+        public String selectPrimaryKey(String unit)
+        {
+            return "SELECT * FROM INFORMATION_SCHEMA.INDEXES"
+                 + " WHERE TABLE_NAME = '" + SqlUtils.escapeQuotes(unit, "'", true) + "'"
+                 + " AND PRIMARY_KEY = TRUE;";
+        }
+        
+        @Override
+        public String readPrimaryKey(ResultSet rs) throws SQLException
+        {
+            return rs.getString("COLUMN_NAME");
+        }
+        
+        @Override
+        public String selectIndexNames(String unit)
+        {
+            return "SELECT INDEX_NAME FROM INFORMATION_SCHEMA.INDEXES"
+                 + " WHERE TABLE_NAME = '" + SqlUtils.escapeQuotes(unit, "'", true) + "';";
+        }
+        
+        @Override
+        public List<String> upsert(
+                String unit, String key, StorageEntry entry, List<List<String>> parameterLists
+        )
+        {
+            List<String> parameters = new ArrayList<>();
+            
+            String sql = "MERGE INTO " + quote(unit)
+                       + " (" + SqlUtils.translateEntryNames(entry, "\"") + ")"
+                       + " KEY (" + quote(key) + ")"
+                       + " VALUES (" + SqlUtils.translateEntryValues(entry, parameters) + ");";
+            
+            parameterLists.add(parameters);
+            
+            return Collections.singletonList(sql);
+        }
+    }
+    
+    private static final class MySqlDialect extends SqlDialect
+    {
+        public MySqlDialect()
+        {
+            super("`");
+        }
+        
+        @Override
+        public String selectUnitNames()
+        {
+            return "SHOW TABLES;";
+        }
+        
+        @Override
+        public String selectKeys(String unit)
+        {
+            return "DESCRIBE " + quote(unit) + ";";
+        }
+        
+        @Override
+        public String readKeyName(ResultSet rs) throws SQLException
+        {
+            return rs.getString("Field");
+        }
+        
+        @Override
+        public String readKeyType(ResultSet rs) throws SQLException
+        {
+            return rs.getString("Type");
+        }
+        
+        @Override
+        public String selectPrimaryKey(String unit)
+        {
+            return selectKeys(unit);
+        }
+        
+        @Override
+        public String readPrimaryKey(ResultSet rs) throws SQLException
+        {
+            return "PRI".equals(rs.getString("Key")) ? rs.getString("Field") : null;
+        }
+        
+        @Override
+        public String selectIndexNames(String unit)
+        {
+            return "SHOW INDEX FROM " + quote(unit) + ";";
+        }
+        
+        @Override
+        public String readIndexName(ResultSet rs) throws SQLException
+        {
+            return rs.getString("Key_name");
+        }
+        
+        @Override
+        public List<String> upsert(
+                String unit, String key, StorageEntry entry, List<List<String>> parameterLists
+        )
+        {
+            List<String> parameters = new ArrayList<>();
+            StringBuilder sb = new StringBuilder();
+            
+            for (String updatedKey : getUpdatedKeys(entry, key))
+            {
+                if (sb.length() > 0)
+                {
+                    sb.append(", ");
+                }
+                
+                sb.append(quote(updatedKey));
+                sb.append(" = VALUES(");
+                sb.append(quote(updatedKey));
+                sb.append(")");
+            }
+            
+            // With nothing to overwrite, the key is assigned to itself
+            // so that an existing entry is left as it is.
+            if (sb.length() == 0)
+            {
+                sb.append(quote(key));
+                sb.append(" = ");
+                sb.append(quote(key));
+            }
+            
+            String sql = "INSERT INTO " + quote(unit)
+                       + " (" + SqlUtils.translateEntryNames(entry, "`") + ")"
+                       + " VALUES (" + SqlUtils.translateEntryValues(entry, parameters) + ")"
+                       + " ON DUPLICATE KEY UPDATE " + sb + ";";
+            
+            parameterLists.add(parameters);
+            
+            return Collections.singletonList(sql);
+        }
+    }
+    
+    private static final class PostgreSqlDialect extends SqlDialect
+    {
+        public PostgreSqlDialect()
+        {
+            super("\"");
+        }
+        
+        @Override
+        public String selectUnitNames()
+        {
+            return "SELECT table_name FROM information_schema.tables"
+                 + " WHERE table_type = 'BASE TABLE'"
+                 + " AND table_schema NOT IN ('pg_catalog', 'information_schema');";
+        }
+        
+        @Override
+        public String selectKeys(String unit)
+        {
+            return "SELECT COLUMN_NAME, UDT_NAME FROM INFORMATION_SCHEMA.COLUMNS"
+                 + " WHERE TABLE_NAME = '" + SqlUtils.escapeQuotes(unit, "'", true) + "';";
+        }
+        
+        @Override
+        public String readKeyName(ResultSet rs) throws SQLException
+        {
+            return rs.getString("COLUMN_NAME");
+        }
+        
+        @Override
+        public String readKeyType(ResultSet rs) throws SQLException
+        {
+            return rs.getString("UDT_NAME");
+        }
+        
+        @Override
+        public String selectPrimaryKey(String unit)
+        {
+            return "SELECT COLUMN_NAME FROM INFORMATION_SCHEMA.KEY_COLUMN_USAGE"
+                 + " WHERE TABLE_NAME = '" + SqlUtils.escapeQuotes(unit, "'", true) + "';";
+        }
+        
+        @Override
+        public String readPrimaryKey(ResultSet rs) throws SQLException
+        {
+            return rs.getString("COLUMN_NAME");
+        }
+        
+        @Override
+        public String selectIndexNames(String unit)
+        {
+            return "SELECT indexname FROM pg_indexes"
+                 + " WHERE tablename = '" + SqlUtils.escapeQuotes(unit, "'", true) + "';";
+        }
+        
+        @Override
+        public String eraseUnit(String unit)
+        {
+            return "TRUNCATE " + quote(unit) + ";";
+        }
+        
+        @Override
+        public List<String> upsert(
+                String unit, String key, StorageEntry entry, List<List<String>> parameterLists
+        )
+        {
+            List<String> parameters = new ArrayList<>();
+            StringBuilder sb = new StringBuilder();
+            
+            for (String updatedKey : getUpdatedKeys(entry, key))
+            {
+                if (sb.length() > 0)
+                {
+                    sb.append(", ");
+                }
+                
+                sb.append(quote(updatedKey));
+                sb.append(" = EXCLUDED.");
+                sb.append(quote(updatedKey));
+            }
+            
+            String sql = "INSERT INTO " + quote(unit)
+                       + " (" + SqlUtils.translateEntryNames(entry, "\"") + ")"
+                       + " VALUES (" + SqlUtils.translateEntryValues(entry, parameters) + ")"
+                       + " ON CONFLICT (" + quote(key) + ")"
+                       + ((sb.length() > 0) ? " DO UPDATE SET " + sb : " DO NOTHING") + ";";
+            
+            parameterLists.add(parameters);
+            
+            return Collections.singletonList(sql);
+        }
+    }
+    
+    public static final SqlDialect SQLITE = new SqliteDialect();
+    public static final SqlDialect H2 = new H2Dialect();
+    public static final SqlDialect MYSQL = new MySqlDialect();
+    public static final SqlDialect POSTGRESQL = new PostgreSqlDialect();
+    
+    private final String identifierQuote;
+}
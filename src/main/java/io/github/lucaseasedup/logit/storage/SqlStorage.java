@@ -0,0 +1,1099 @@
+package io.github.lucaseasedup.logit.storage;
+
+import io.github.lucaseasedup.logit.LogItCore;
+import io.github.lucaseasedup.logit.logging.CustomLevel;
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Carries out storage operations over JDBC, in the SQL of a {@link SqlDialect}.
+ * 
+ * <p> The storage of each database engine only opens the connections;
+ * statements, batches, transactions and profiling are handled here.
+ */
+public abstract class SqlStorage implements Storage
+{
+    /**
+     * @param dialect              the dialect of the database engine.
+     * @param transactionalCursors whether cursors must run inside a transaction
+     *                             for the driver to honour their fetch size.
+     */
+    /* package */ SqlStorage(SqlDialect dialect, boolean transactionalCursors)
+    {
+        if (dialect == null)
+            throw new IllegalArgumentException();
+        
+        this.dialect = dialect;
+        this.transactionalCursors = transactionalCursors;
+    }
+    
+    @Override
+    public void connect() throws IOException
+    {
+        ConnectionPool pool = createConnectionPool();
+        ConnectionPool readPool = null;
+        
+        try
+        {
+            // Open the first connection right away so that
+            // connection errors surface here and not on the first query.
+            // It also gets to set up the database before any read-only one is opened.
+            pool.borrowConnection().close();
+            
+            readPool = createReadConnectionPool();
+            
+            if (readPool != null)
+            {
+                readPool.borrowConnection().close();
+            }
+        }
+        catch (SQLException ex)
+        {
+            pool.close();
+            
+            if (readPool != null)
+            {
+                readPool.close();
+            }
+            
+            throw new IOException(ex);
+        }
+        
+        this.pool = pool;
+        this.readPool = readPool;
+    }
+    
+    @Override
+    public boolean isConnected() throws IOException
+    {
+        ConnectionPool pool = this.pool;
+        
+        return pool != null && !pool.isClosed();
+    }
+    
+    @Override
+    public void ping() throws IOException
+    {
+        try (PooledConnection connection = borrowConnection())
+        {
+            connection.getStatement().execute("SELECT 1");
+        }
+        catch (SQLException ex)
+        {
+            throw new IOException(ex);
+        }
+    }
+    
+    @Override
+    public void close() throws IOException
+    {
+        synchronized (batchLock)
+        {
+            releaseBatchConnection();
+        }
+        
+        if (readPool != null)
+        {
+            readPool.close();
+            readPool = null;
+        }
+        
+        if (pool != null)
+        {
+            pool.close();
+            pool = null;
+        }
+    }
+    
+    @Override
+    public List<String> getUnitNames() throws IOException
+    {
+        List<String> units = new LinkedList<>();
+        String sql = dialect.selectUnitNames();
+        
+        try (
+                PooledConnection connection = borrowReadConnection();
+                ResultSet rs = executeQuery(connection, sql);
+        )
+        {
+            while (rs.next())
+            {
+                units.add(rs.getString(1));
+            }
+        }
+        catch (SQLException ex)
+        {
+            throw new IOException(ex);
+        }
+        
+        return units;
+    }
+    
+    @Override
+    public UnitKeys getKeys(String unit) throws IOException
+    {
+        UnitKeys keys = new UnitKeys();
+        String sql = dialect.selectKeys(unit);
+        
+        try (
+                PooledConnection connection = borrowReadConnection();
+                ResultSet tableInfo = executeQuery(connection, sql);
+        )
+        {
+            while (tableInfo.next())
+            {
+                String name = dialect.readKeyName(tableInfo);
+                DataType type = SqlUtils.decodeType(dialect.readKeyType(tableInfo));
+                
+                keys.put(name, type);
+            }
+        }
+        catch (SQLException ex)
+        {
+            throw new IOException(ex);
+        }
+        
+        return keys;
+    }
+    
+    @Override
+    public String getPrimaryKey(String unit) throws IOException
+    {
+        String sql = dialect.selectPrimaryKey(unit);
+        
+        try (
+                PooledConnection connection = borrowReadConnection();
+                ResultSet rs = executeQuery(connection, sql);
+        )
+        {
+            while (rs.next())
+            {
+                String primaryKey = dialect.readPrimaryKey(rs);
+                
+                if (primaryKey != null)
+                {
+                    return primaryKey;
+                }
+            }
+        }
+        catch (SQLException ex)
+        {
+            throw new IOException(ex);
+        }
+        
+        return null;
+    }
+    
+    @Override
+    public List<StorageEntry> selectEntries(String unit) throws IOException
+    {
+        String sql = dialect.select(unit, null);
+        
+        try (PooledConnection connection = borrowReadConnection())
+        {
+            return SqlUtils.copyResultSet(executeQuery(connection, sql));
+        }
+        catch (SQLException ex)
+        {
+            throw new IOException(ex);
+        }
+    }
+    
+    @Override
+    public List<StorageEntry> selectEntries(String unit, Selector selector)
+            throws IOException
+    {
+        return selectEntries(unit, null, selector);
+    }
+    
+    @Override
+    public List<StorageEntry> selectEntries(String unit, List<String> keys)
+            throws IOException
+    {
+        String sql = dialect.select(unit, keys);
+        
+        try (PooledConnection connection = borrowReadConnection())
+        {
+            return SqlUtils.copyResultSet(executeQuery(connection, sql));
+        }
+        catch (SQLException ex)
+        {
+            throw new IOException(ex);
+        }
+    }
+    
+    @Override
+    public List<StorageEntry> selectEntries(
+            String unit, List<String> keys, Selector selector
+    ) throws IOException
+    {
+        List<StorageEntry> entries = new ArrayList<>();
+        
+        try (PooledConnection connection = borrowReadConnection())
+        {
+            // Selectors with long IN lists are split into several queries.
+            for (Selector chunk : SqlUtils.splitSelector(selector))
+            {
+                List<String> parameters = new ArrayList<>();
+                
+                String sql = dialect.select(unit, keys, chunk, parameters);
+                
+                entries.addAll(SqlUtils.copyResultSet(
+                        executeQuery(connection, sql, parameters)
+                ));
+            }
+        }
+        catch (SQLException ex)
+        {
+            throw new IOException(ex);
+        }
+        
+        return entries;
+    }
+    
+    @Override
+    public StorageCursor selectCursor(
+            String unit, List<String> keys, Selector selector
+    ) throws IOException
+    {
+        // A cursor runs a single query, so a selector that has to be split
+        // is answered with the entries of all its queries at once.
+        if (SqlUtils.splitSelector(selector).size() > 1)
+            return new ListStorageCursor(selectEntries(unit, keys, selector));
+        
+        List<String> parameters = new ArrayList<>();
+        
+        String sql = dialect.select(unit, keys, selector, parameters);
+        
+        long startTime = System.nanoTime();
+        
+        try
+        {
+            return new SqlStorageCursor(
+                    borrowReadConnection(), sql, parameters, transactionalCursors
+            );
+        }
+        catch (SQLException ex)
+        {
+            throw new IOException(ex);
+        }
+        finally
+        {
+            profile(sql, startTime);
+        }
+    }
+    
+    @Override
+    public long count(String unit, Selector selector) throws IOException
+    {
+        long count = 0;
+        
+        try (PooledConnection connection = borrowReadConnection())
+        {
+            // The chunks of a split selector match disjoint sets of entries.
+            for (Selector chunk : SqlUtils.splitSelector(selector))
+            {
+                List<String> parameters = new ArrayList<>();
+                
+                String sql = dialect.count(unit, chunk, parameters);
+                
+                try (ResultSet rs = executeQuery(connection, sql, parameters))
+                {
+                    rs.next();
+                    count += rs.getLong(1);
+                }
+            }
+        }
+        catch (SQLException ex)
+        {
+            throw new IOException(ex);
+        }
+        
+        return count;
+    }
+    
+    @Override
+    public boolean exists(String unit, Selector selector) throws IOException
+    {
+        try (PooledConnection connection = borrowReadConnection())
+        {
+            for (Selector chunk : SqlUtils.splitSelector(selector))
+            {
+                List<String> parameters = new ArrayList<>();
+                
+                String sql = dialect.exists(unit, chunk, parameters);
+                
+                try (ResultSet rs = executeQuery(connection, sql, parameters))
+                {
+                    if (rs.next() && rs.getBoolean(1))
+                        return true;
+                }
+            }
+        }
+        catch (SQLException ex)
+        {
+            throw new IOException(ex);
+        }
+        
+        return false;
+    }
+    
+    @Override
+    public long countDistinct(String unit, String key, Selector selector)
+            throws IOException
+    {
+        // The same value may be matched by several chunks of a split selector,
+        // so their counts cannot be added up.
+        if (SqlUtils.splitSelector(selector).size() > 1)
+        {
+            return StorageEntry.countDistinct(selectEntries(
+                    unit, Collections.singletonList(key), selector
+            ), key);
+        }
+        
+        List<String> parameters = new ArrayList<>();
+        
+        String sql = dialect.countDistinct(unit, key, selector, parameters);
+        
+        try (
+                PooledConnection connection = borrowReadConnection();
+                ResultSet rs = executeQuery(connection, sql, parameters);
+        )
+        {
+            rs.next();
+            
+            return rs.getLong(1);
+        }
+        catch (SQLException ex)
+        {
+            throw new IOException(ex);
+        }
+    }
+    
+    @Override
+    public void createUnit(String unit, UnitKeys keys, String primaryKey)
+            throws IOException
+    {
+        String sql = dialect.createUnit(unit, keys, primaryKey);
+        
+        try
+        {
+            executeStatement(sql);
+        }
+        catch (SQLException ex)
+        {
+            throw new IOException(ex);
+        }
+    }
+    
+    @Override
+    public void createUnit(
+            String unit, UnitKeys keys, String primaryKey, Map<String, IndexType> indexes
+    ) throws IOException
+    {
+        createUnit(unit, keys, primaryKey);
+        
+        if (indexes.isEmpty())
+            return;
+        
+        UnitKeys existingKeys = getKeys(unit);
+        Set<String> existingIndexes = getIndexNames(unit);
+        
+        try
+        {
+            for (String key : indexes.keySet())
+            {
+                if (existingKeys.containsKey(key)
+                        && !existingIndexes.contains(dialect.getIndexName(unit, key)))
+                {
+                    executeStatement(dialect.createIndex(unit, key));
+                }
+            }
+        }
+        catch (SQLException ex)
+        {
+            throw new IOException(ex);
+        }
+    }
+    
+    @Override
+    public void renameUnit(String unit, String newName) throws IOException
+    {
+        String sql = dialect.renameUnit(unit, newName);
+        
+        try
+        {
+            executeStatement(sql);
+        }
+        catch (SQLException ex)
+        {
+            throw new IOException(ex);
+        }
+    }
+    
+    @Override
+    public void eraseUnit(String unit) throws IOException
+    {
+        String sql = dialect.eraseUnit(unit);
+        
+        try
+        {
+            executeStatement(sql);
+        }
+        catch (SQLException ex)
+        {
+            throw new IOException(ex);
+        }
+    }
+    
+    @Override
+    public void removeUnit(String unit) throws IOException
+    {
+        String sql = dialect.removeUnit(unit);
+        
+        try
+        {
+            executeStatement(sql);
+        }
+        catch (SQLException ex)
+        {
+            throw new IOException(ex);
+        }
+    }
+    
+    @Override
+    public void addKey(String unit, String key, DataType type)
+            throws IOException
+    {
+        String sql = dialect.addKey(unit, key, type);
+        
+        try
+        {
+            executeStatement(sql);
+        }
+        catch (SQLException ex)
+        {
+            throw new IOException(ex);
+        }
+    }
+    
+    @Override
+    public void addKey(String unit, String key, DataType type, IndexType indexType)
+            throws IOException
+    {
+        addKey(unit, key, type);
+        
+        try
+        {
+            executeStatement(dialect.createIndex(unit, key));
+        }
+        catch (SQLException ex)
+        {
+            throw new IOException(ex);
+        }
+    }
+    
+    @Override
+    public void addEntry(String unit, StorageEntry entry)
+            throws DuplicateEntryException, IOException
+    {
+        List<String> parameters = new ArrayList<>();
+        
+        String sql = dialect.insert(unit, entry, parameters);
+        
+        try
+        {
+            executeStatement(sql, parameters);
+        }
+        catch (SQLException ex)
+        {
+            if ("23000".equals(ex.getSQLState()))
+            {
+                throw new DuplicateEntryException();
+            }
+            else
+            {
+                throw new IOException(ex);
+            }
+        }
+    }
+    
+    @Override
+    public void addEntries(String unit, List<StorageEntry> entries)
+            throws DuplicateEntryException, IOException
+    {
+        if (entries.isEmpty())
+            return;
+        
+        List<List<String>> parameterLists = new ArrayList<>();
+        List<String> sqls = dialect.insertAll(unit, entries, parameterLists);
+        
+        try
+        {
+            executeStatements(sqls, parameterLists);
+        }
+        catch (SQLException ex)
+        {
+            if ("23000".equals(ex.getSQLState()))
+            {
+                throw new DuplicateEntryException();
+            }
+            else
+            {
+                throw new IOException(ex);
+            }
+        }
+    }
+    
+    @Override
+    public void updateEntries(
+            String unit, StorageEntry entrySubset, Selector selector
+    ) throws IOException
+    {
+        List<String> sqls = new ArrayList<>();
+        List<List<String>> parameterLists = new ArrayList<>();
+        
+        for (Selector chunk : SqlUtils.splitSelector(selector))
+        {
+            List<String> parameters = new ArrayList<>();
+            
+            sqls.add(dialect.update(unit, entrySubset, chunk, parameters));
+            parameterLists.add(parameters);
+        }
+        
+        try
+        {
+            if (sqls.size() == 1)
+            {
+                executeStatement(sqls.get(0), parameterLists.get(0));
+            }
+            else
+            {
+                executeStatements(sqls, parameterLists);
+            }
+        }
+        catch (SQLException ex)
+        {
+            throw new IOException(ex);
+        }
+    }
+    
+    @Override
+    public void updateEntriesByKey(
+            String unit, String key, Map<String, StorageEntry> entrySubsets
+    ) throws IOException
+    {
+        if (entrySubsets.isEmpty())
+            return;
+        
+        List<List<String>> parameterLists = new ArrayList<>();
+        List<String> sqls = dialect.updateByKey(unit, key, entrySubsets, parameterLists);
+        
+        try
+        {
+            executeStatements(sqls, parameterLists);
+        }
+        catch (SQLException ex)
+        {
+            throw new IOException(ex);
+        }
+    }
+    
+    @Override
+    public void upsertEntry(String unit, String key, StorageEntry entry)
+            throws IOException
+    {
+        List<List<String>> parameterLists = new ArrayList<>();
+        List<String> sqls = dialect.upsert(unit, key, entry, parameterLists);
+        
+        try
+        {
+            executeStatements(sqls, parameterLists);
+        }
+        catch (SQLException ex)
+        {
+            throw new IOException(ex);
+        }
+    }
+    
+    @Override
+    public void removeEntries(String unit, Selector selector) throws IOException
+    {
+        List<String> sqls = new ArrayList<>();
+        List<List<String>> parameterLists = new ArrayList<>();
+        
+        for (Selector chunk : SqlUtils.splitSelector(selector))
+        {
+            List<String> parameters = new ArrayList<>();
+            
+            sqls.add(dialect.delete(unit, chunk, parameters));
+            parameterLists.add(parameters);
+        }
+        
+        try
+        {
+            if (sqls.size() == 1)
+            {
+                executeStatement(sqls.get(0), parameterLists.get(0));
+            }
+            else
+            {
+                executeStatements(sqls, parameterLists);
+            }
+        }
+        catch (SQLException ex)
+        {
+            throw new IOException(ex);
+        }
+    }
+    
+    @Override
+    public boolean isAutobatchEnabled()
+    {
+        return autobatch;
+    }
+    
+    @Override
+    public void setAutobatchEnabled(boolean status)
+    {
+        autobatch = status;
+    }
+    
+    @Override
+    public void executeBatch() throws IOException
+    {
+        synchronized (batchLock)
+        {
+            if (batchConnection == null)
+                return;
+            
+            long startTime = System.nanoTime();
+            
+            try
+            {
+                batchConnection.executeBatch();
+            }
+            catch (SQLException ex)
+            {
+                throw new IOException(ex);
+            }
+            finally
+            {
+                QueryProfiler profiler = this.profiler;
+                
+                if (profiler != null)
+                {
+                    profiler.recordBatch(batchStatements, startTime);
+                }
+                
+                releaseBatchConnection();
+            }
+        }
+    }
+    
+    @Override
+    public void clearBatch() throws IOException
+    {
+        synchronized (batchLock)
+        {
+            releaseBatchConnection();
+        }
+    }
+    
+    @Override
+    public void beginTransaction() throws IOException
+    {
+        if (transactionConnection.get() != null)
+            throw new IllegalStateException("Transaction already in progress.");
+        
+        LogItCore.getInstance().log(CustomLevel.INTERNAL, "(S) BEGIN");
+        
+        try
+        {
+            // The pool hands this connection to every later borrow
+            // made by the thread, so its statements join the transaction.
+            PooledConnection connection = borrowConnection();
+            
+            try
+            {
+                connection.beginTransaction();
+            }
+            catch (SQLException ex)
+            {
+                connection.close();
+                
+                throw ex;
+            }
+            
+            transactionConnection.set(connection);
+        }
+        catch (SQLException ex)
+        {
+            throw new IOException(ex);
+        }
+    }
+    
+    @Override
+    public void commitTransaction() throws IOException
+    {
+        PooledConnection connection = endTransaction();
+        
+        LogItCore.getInstance().log(CustomLevel.INTERNAL, "(S) COMMIT");
+        
+        long startTime = System.nanoTime();
+        
+        try
+        {
+            connection.commitTransaction();
+        }
+        catch (SQLException ex)
+        {
+            throw new IOException(ex);
+        }
+        finally
+        {
+            profile("COMMIT", startTime);
+            connection.close();
+        }
+    }
+    
+    @Override
+    public void rollbackTransaction() throws IOException
+    {
+        PooledConnection connection = endTransaction();
+        
+        LogItCore.getInstance().log(CustomLevel.INTERNAL, "(S) ROLLBACK");
+        
+        try
+        {
+            connection.rollbackTransaction();
+        }
+        catch (SQLException ex)
+        {
+            throw new IOException(ex);
+        }
+        finally
+        {
+            connection.close();
+        }
+    }
+    
+    public ConnectionPool getConnectionPool()
+    {
+        return pool;
+    }
+    
+    /**
+     * Returns the pool of read-only connections,
+     * or {@code null} if this storage reads on its only pool.
+     */
+    public ConnectionPool getReadConnectionPool()
+    {
+        return readPool;
+    }
+    
+    /**
+     * @param profiler the profiler to time statements with,
+     *                 or {@code null} not to time them.
+     */
+    public void setQueryProfiler(QueryProfiler profiler)
+    {
+        this.profiler = profiler;
+    }
+    
+    /**
+     * Builds the pool of connections that statements are executed on.
+     * Its connections are not opened until {@link #connect} borrows one.
+     */
+    /* package */ abstract ConnectionPool createConnectionPool() throws IOException;
+    
+    /**
+     * Builds a pool of read-only connections that queries are run on
+     * instead, once the first connection of the main pool has been opened.
+     * 
+     * @return the pool, or {@code null} to run queries on the main pool.
+     */
+    /* package */ ConnectionPool createReadConnectionPool()
+    {
+        return null;
+    }
+    
+    private Set<String> getIndexNames(String unit) throws IOException
+    {
+        Set<String> indexNames = new HashSet<>();
+        String sql = dialect.selectIndexNames(unit);
+        
+        try (
+                PooledConnection connection = borrowReadConnection();
+                ResultSet rs = executeQuery(connection, sql);
+        )
+        {
+            while (rs.next())
+            {
+                indexNames.add(dialect.readIndexName(rs));
+            }
+        }
+        catch (SQLException ex)
+        {
+            throw new IOException(ex);
+        }
+        
+        return indexNames;
+    }
+    
+    private PooledConnection borrowConnection() throws SQLException
+    {
+        ConnectionPool pool = this.pool;
+        
+        if (pool == null)
+            throw new SQLException("Database closed.");
+        
+        return pool.borrowConnection();
+    }
+    
+    /**
+     * Borrows a read-only connection if the storage opens them,
+     * so that queries do not wait for the connection that writes.
+     */
+    private PooledConnection borrowReadConnection() throws SQLException
+    {
+        ConnectionPool readPool = this.readPool;
+        
+        // A transaction reads on its own connection, so as to see its changes.
+        if (readPool == null || transactionConnection.get() != null)
+            return borrowConnection();
+        
+        return readPool.borrowConnection();
+    }
+    
+    private ResultSet executeQuery(PooledConnection connection, String sql)
+            throws SQLException
+    {
+        LogItCore.getInstance().log(CustomLevel.INTERNAL, "(Q) " + sql);
+        
+        long startTime = System.nanoTime();
+        
+        try
+        {
+            return connection.executeQuery(sql, Collections.<String>emptyList());
+        }
+        finally
+        {
+            profile(sql, startTime);
+        }
+    }
+    
+    private ResultSet executeQuery(
+            PooledConnection connection, String sql, List<String> parameters
+    ) throws SQLException
+    {
+        LogItCore.getInstance().log(CustomLevel.INTERNAL, "(Q) " + sql + " " + parameters);
+        
+        long startTime = System.nanoTime();
+        
+        try
+        {
+            return connection.executeQuery(sql, parameters);
+        }
+        finally
+        {
+            profile(sql, startTime);
+        }
+    }
+    
+    private boolean executeStatement(String sql) throws SQLException
+    {
+        if (!isBatching())
+        {
+            LogItCore.getInstance().log(CustomLevel.INTERNAL, "(S) " + sql);
+            
+            try (PooledConnection connection = borrowConnection())
+            {
+                long startTime = System.nanoTime();
+                
+                try
+                {
+                    return connection.execute(sql);
+                }
+                finally
+                {
+                    profile(sql, startTime);
+                }
+            }
+        }
+        
+        LogItCore.getInstance().log(CustomLevel.INTERNAL, "(BS) " + sql);
+        
+        synchronized (batchLock)
+        {
+            getBatchConnection().addBatch(sql);
+            batchStatements.add(sql);
+        }
+        
+        return false;
+    }
+    
+    private boolean executeStatement(String sql, List<String> parameters)
+            throws SQLException
+    {
+        if (!isBatching())
+        {
+            LogItCore.getInstance().log(CustomLevel.INTERNAL, "(S) " + sql + " " + parameters);
+            
+            try (PooledConnection connection = borrowConnection())
+            {
+                long startTime = System.nanoTime();
+                
+                try
+                {
+                    return connection.execute(sql, parameters);
+                }
+                finally
+                {
+                    profile(sql, startTime);
+                }
+            }
+        }
+        
+        LogItCore.getInstance().log(CustomLevel.INTERNAL, "(BS) " + sql + " " + parameters);
+        
+        synchronized (batchLock)
+        {
+            getBatchConnection().addBatch(sql, parameters);
+            batchStatements.add(sql);
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Executes statements as a single batch that either succeeds or fails
+     * as a whole, or adds them to the current batch if autobatch is enabled.
+     */
+    private void executeStatements(
+            List<String> sqls, List<List<String>> parameterLists
+    ) throws SQLException
+    {
+        if (!isBatching())
+        {
+            LogItCore.getInstance().log(CustomLevel.INTERNAL,
+                    "(S) " + sqls.size() + " statement(s) in one transaction");
+            
+            try (PooledConnection connection = borrowConnection())
+            {
+                long startTime = System.nanoTime();
+                
+                try
+                {
+                    connection.executeAtomically(sqls, parameterLists);
+                }
+                finally
+                {
+                    QueryProfiler profiler = this.profiler;
+                    
+                    if (profiler != null)
+                    {
+                        profiler.recordTransaction(sqls, startTime);
+                    }
+                }
+            }
+            
+            return;
+        }
+        
+        for (int i = 0; i < sqls.size(); i++)
+        {
+            executeStatement(sqls.get(i), parameterLists.get(i));
+        }
+    }
+    
+    /**
+     * Checks whether statements are to be added to the batch
+     * rather than executed, which they never are inside a transaction.
+     */
+    private boolean isBatching()
+    {
+        return isAutobatchEnabled() && transactionConnection.get() == null;
+    }
+    
+    /**
+     * Detaches the transaction in progress from the calling thread.
+     * 
+     * @return the connection the transaction runs on.
+     */
+    private PooledConnection endTransaction()
+    {
+        PooledConnection connection = transactionConnection.get();
+        
+        if (connection == null)
+            throw new IllegalStateException("No transaction in progress.");
+        
+        transactionConnection.remove();
+        
+        return connection;
+    }
+    
+    private void profile(String sql, long startTime)
+    {
+        QueryProfiler profiler = this.profiler;
+        
+        if (profiler != null)
+        {
+            profiler.record(sql, startTime);
+        }
+    }
+    
+    private PooledConnection getBatchConnection() throws SQLException
+    {
+        // The batch is kept on a single connection
+        // until it is executed or cleared.
+        if (batchConnection == null)
+        {
+            batchConnection = borrowConnection();
+        }
+        
+        return batchConnection;
+    }
+    
+    private void releaseBatchConnection()
+    {
+        if (batchConnection == null)
+            return;
+        
+        try
+        {
+            batchConnection.clearBatch();
+        }
+        finally
+        {
+            batchConnection.close();
+            batchConnection = null;
+            batchStatements.clear();
+        }
+    }
+    
+    private final SqlDialect dialect;
+    private final boolean transactionalCursors;
+    
+    private volatile ConnectionPool pool;
+    private volatile ConnectionPool readPool;
+    private PooledConnection batchConnection;
+    private final Set<String> batchStatements = new LinkedHashSet<>();
+    private final Object batchLock = new Object();
+    private boolean autobatch = false;
+    
+    /**
+     * The connection of the transaction in progress on each thread.
+     */
+    private final ThreadLocal<PooledConnection> transactionConnection = new ThreadLocal<>();
+    private volatile QueryProfiler profiler;
+}
@@ -0,0 +1,174 @@
+package io.github.lucaseasedup.logit.storage;
+
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A cursor backed by a forward-only, read-only JDBC result set.
+ * 
+ * <p> The cursor keeps the pooled connection it was opened on until
+ * it is closed. Its statement is prepared apart from the statement cache
+ * of the connection, so that a cached statement being reused cannot close
+ * the result set in the middle of the pass.
+ */
+/* package */ final class SqlStorageCursor implements StorageCursor
+{
+    /**
+     * @param connection    the connection to run the query on; it is closed
+     *                      along with the cursor, or right away if the query fails.
+     * @param transactional whether the query must run inside a transaction
+     *                      for the driver to fetch rows lazily, as PostgreSQL requires.
+     */
+    public SqlStorageCursor(
+            PooledConnection connection,
+            String sql,
+            List<String> parameters,
+            boolean transactional
+    ) throws IOException
+    {
+        if (connection == null || sql == null || parameters == null)
+            throw new IllegalArgumentException();
+        
+        this.connection = connection;
+        
+        try
+        {
+            if (transactional && connection.getConnection().getAutoCommit())
+            {
+                connection.getConnection().setAutoCommit(false);
+                restoreAutoCommit = true;
+            }
+            
+            statement = connection.getConnection().prepareStatement(sql,
+                    ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            statement.setFetchSize(connection.getCursorFetchSize());
+            SqlUtils.bindParameters(statement, parameters);
+            
+            rs = statement.executeQuery();
+        }
+        catch (SQLException ex)
+        {
+            close();
+            
+            throw new IOException(ex);
+        }
+    }
+    
+    @Override
+    public boolean hasNext() throws IOException
+    {
+        if (next == null && rs != null)
+        {
+            try
+            {
+                if (rs.next())
+                {
+                    ResultSetMetaData metaData = rs.getMetaData();
+                    StorageEntry.Builder entryBuilder = new StorageEntry.Builder();
+                    
+                    for (int i = 1, n = metaData.getColumnCount(); i <= n; i++)
+                    {
+                        entryBuilder.put(metaData.getColumnLabel(i), rs.getString(i));
+                    }
+                    
+                    next = entryBuilder.build();
+                }
+                else
+                {
+                    close();
+                }
+            }
+            catch (SQLException ex)
+            {
+                throw new IOException(ex);
+            }
+        }
+        
+        return next != null;
+    }
+    
+    @Override
+    public StorageEntry next() throws IOException
+    {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        
+        StorageEntry entry = next;
+        next = null;
+        
+        return entry;
+    }
+    
+    @Override
+    public void close() throws IOException
+    {
+        if (closed)
+            return;
+        
+        closed = true;
+        
+        SQLException exception = null;
+        
+        try
+        {
+            if (rs != null)
+            {
+                rs.close();
+            }
+            
+            if (statement != null)
+            {
+                statement.close();
+            }
+            
+            if (restoreAutoCommit)
+            {
+                // The transaction only read rows, but it may have been
+                // joined by writes made on the same thread in the meantime.
+                connection.getConnection().commit();
+                connection.getConnection().setAutoCommit(true);
+            }
+        }
+        catch (SQLException ex)
+        {
+            exception = ex;
+            
+            if (restoreAutoCommit)
+            {
+                try
+                {
+                    connection.getConnection().setAutoCommit(true);
+                }
+                catch (SQLException autoCommitEx)
+                {
+                    // The connection will be validated on the next borrow.
+                }
+            }
+        }
+        finally
+        {
+            rs = null;
+            statement = null;
+            connection.close();
+        }
+        
+        if (exception != null)
+            throw new IOException(exception);
+    }
+    
+    private final PooledConnection connection;
+    private PreparedStatement statement;
+    private ResultSet rs;
+    private boolean restoreAutoCommit = false;
+    private boolean closed = false;
+    
+    /**
+     * The entry read ahead by {@link #hasNext()}.
+     */
+    private StorageEntry next;
+}
@@ -1,7 +1,11 @@
 package io.github.lucaseasedup.logit.storage;
 
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -126,6 +130,14 @@ public final class SqlUtils
                 );
             }
         }
+        else if (selector instanceof SelectorIn)
+        {
+            SelectorIn selectorIn = (SelectorIn) selector;
+            String actualValue = entry.get(selectorIn.getKey());
+            
+            return actualValue != null
+                    && selectorIn.getValues().contains(actualValue);
+        }
         else
         {
             throw new IllegalArgumentException(
@@ -134,6 +146,186 @@ public final class SqlUtils
         }
     }
     
+    /**
+     * Looks for an equality condition on the given key that every entry
+     * matching the selector must satisfy.
+     * 
+     * <p> Such a condition is either the selector itself
+     * or an operand of a chain of AND relations.
+     * 
+     * @param selector the selector to be inspected.
+     * @param key      the key to look for.
+     * 
+     * @return the value that {@code key} must be equal to,
+     *         or {@code null} if there is no such condition.
+     */
+    public static String findEqualityOperand(Selector selector, String key)
+    {
+        if (selector == null || key == null)
+            throw new IllegalArgumentException();
+        
+        if (selector instanceof SelectorCondition)
+        {
+            SelectorCondition selectorCondition = (SelectorCondition) selector;
+            
+            if (selectorCondition.getRelation() == SelectorCondition.Relation.EQUALS
+                    && key.equals(selectorCondition.getKey()))
+            {
+                return selectorCondition.getValue();
+            }
+        }
+        else if (selector instanceof SelectorIn)
+        {
+            SelectorIn selectorIn = (SelectorIn) selector;
+            
+            if (selectorIn.getValues().size() == 1
+                    && key.equals(selectorIn.getKey()))
+            {
+                return selectorIn.getValues().get(0);
+            }
+        }
+        else if (selector instanceof SelectorBinary)
+        {
+            SelectorBinary selectorBinary = (SelectorBinary) selector;
+            
+            if (selectorBinary.getRelation() == SelectorBinary.Relation.AND)
+            {
+                String value = findEqualityOperand(
+                        selectorBinary.getLeftOperand(), key
+                );
+                
+                if (value == null)
+                {
+                    value = findEqualityOperand(
+                            selectorBinary.getRightOperand(), key
+                    );
+                }
+                
+                return value;
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Looks for a condition that limits the given key to a set of values
+     * for every entry matching the selector, that is either an equality
+     * or an IN-list condition.
+     * 
+     * <p> Such a condition is either the selector itself
+     * or an operand of a chain of AND relations.
+     * 
+     * @param selector the selector to be inspected.
+     * @param key      the key to look for.
+     * 
+     * @return the values that {@code key} must be equal to one of,
+     *         or {@code null} if there is no such condition.
+     */
+    public static List<String> findMembershipOperands(Selector selector, String key)
+    {
+        if (selector == null || key == null)
+            throw new IllegalArgumentException();
+        
+        if (selector instanceof SelectorIn)
+        {
+            SelectorIn selectorIn = (SelectorIn) selector;
+            
+            if (key.equals(selectorIn.getKey()))
+            {
+                return selectorIn.getValues();
+            }
+        }
+        else if (selector instanceof SelectorBinary)
+        {
+            SelectorBinary selectorBinary = (SelectorBinary) selector;
+            
+            if (selectorBinary.getRelation() == SelectorBinary.Relation.AND)
+            {
+                List<String> values = findMembershipOperands(
+                        selectorBinary.getLeftOperand(), key
+                );
+                
+                if (values == null)
+                {
+                    values = findMembershipOperands(
+                            selectorBinary.getRightOperand(), key
+                    );
+                }
+                
+                return values;
+            }
+        }
+        else
+        {
+            String value = findEqualityOperand(selector, key);
+            
+            if (value != null)
+                return Collections.singletonList(value);
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Splits a selector whose IN lists are too long to be bound to a single
+     * statement into selectors that together match the same entries,
+     * each with at most {@link #MAX_IN_VALUES} values per IN list.
+     * 
+     * <p> Only IN lists that are the selector itself or an operand
+     * of a chain of AND relations are split; longer lists elsewhere
+     * are left as they are.
+     * 
+     * @return the selectors, or a list holding only the given selector
+     *         if it need not be split.
+     */
+    public static List<Selector> splitSelector(Selector selector)
+    {
+        if (selector == null)
+            throw new IllegalArgumentException();
+        
+        if (selector instanceof SelectorIn)
+        {
+            SelectorIn selectorIn = (SelectorIn) selector;
+            List<String> values = selectorIn.getValues();
+            
+            if (values.size() <= MAX_IN_VALUES)
+                return Collections.singletonList(selector);
+            
+            List<Selector> chunks = new ArrayList<>();
+            
+            for (int i = 0; i < values.size(); i += MAX_IN_VALUES)
+            {
+                chunks.add(new SelectorIn(selectorIn.getKey(),
+                        values.subList(i, Math.min(i + MAX_IN_VALUES, values.size()))));
+            }
+            
+            return chunks;
+        }
+        else if (selector instanceof SelectorBinary)
+        {
+            SelectorBinary selectorBinary = (SelectorBinary) selector;
+            
+            if (selectorBinary.getRelation() == SelectorBinary.Relation.AND)
+            {
+                List<Selector> chunks = new ArrayList<>();
+                
+                for (Selector left : splitSelector(selectorBinary.getLeftOperand()))
+                {
+                    for (Selector right : splitSelector(selectorBinary.getRightOperand()))
+                    {
+                        chunks.add(new SelectorBinary(left, Infix.AND, right));
+                    }
+                }
+                
+                if (chunks.size() > 1)
+                    return chunks;
+            }
+        }
+        
+        return Collections.singletonList(selector);
+    }
+    
     public static List<StorageEntry> copyResultSet(ResultSet rs)
             throws SQLException
     {
@@ -285,6 +477,198 @@ public final class SqlUtils
             
             return sb.toString();
         }
+        else if (selector instanceof SelectorIn)
+        {
+            SelectorIn selectorIn = (SelectorIn) selector;
+            
+            if (selectorIn.getValues().isEmpty())
+                return "1 = 0";
+            
+            StringBuilder sb = new StringBuilder();
+            
+            sb.append("(");
+            sb.append(columnQuote);
+            sb.append(escapeQuotes(selectorIn.getKey(), columnQuote, true));
+            sb.append(columnQuote);
+            sb.append(") IN (");
+            
+            for (int i = 0; i < selectorIn.getValues().size(); i++)
+            {
+                if (i > 0)
+                {
+                    sb.append(", ");
+                }
+                
+                sb.append(valueQuote);
+                sb.append(escapeQuotes(
+                        selectorIn.getValues().get(i), valueQuote, true
+                ));
+                sb.append(valueQuote);
+            }
+            
+            sb.append(")");
+            
+            return sb.toString();
+        }
+        else
+        {
+            throw new IllegalArgumentException(
+                    "Unsupported selector: " + selector.getClass().getName()
+            );
+        }
+    }
+    
+    /**
+     * Translates a selector into an SQL condition with bind parameters
+     * in place of the operand values.
+     * 
+     * <p> The values are appended to {@code parameters} in the order
+     * their placeholders appear in the returned SQL, so that the same
+     * selector shape always yields the same SQL.
+     * 
+     * @param selector    the selector to be translated.
+     * @param columnQuote the character used to quote column names.
+     * @param parameters  the list that parameter values will be appended to.
+     * 
+     * @return the SQL condition.
+     */
+    public static String translateSelector(
+            Selector selector, String columnQuote, List<String> parameters
+    )
+    {
+        if (selector == null || columnQuote == null || parameters == null)
+            throw new IllegalArgumentException();
+        
+        if (selector instanceof SelectorConstant)
+        {
+            SelectorConstant selectorConstant = (SelectorConstant) selector;
+            
+            return (selectorConstant.getValue()) ? "1 = 1" : "1 = 0";
+        }
+        else if (selector instanceof SelectorNegation)
+        {
+            SelectorNegation selectorNegation = (SelectorNegation) selector;
+            String translatedSelector = translateSelector(
+                    selectorNegation.getOperand(), columnQuote, parameters
+            );
+            
+            return "NOT (" + translatedSelector + ")";
+        }
+        else if (selector instanceof SelectorBinary)
+        {
+            SelectorBinary selectorBinary = (SelectorBinary) selector;
+            StringBuilder sb = new StringBuilder();
+            
+            sb.append("(");
+            sb.append(translateSelector(
+                    selectorBinary.getLeftOperand(), columnQuote, parameters
+            ));
+            sb.append(") ");
+            
+            switch (selectorBinary.getRelation())
+            {
+            case AND:
+                sb.append("AND");
+                break;
+            
+            case OR:
+                sb.append("OR");
+                break;
+            
+            default:
+                throw new IllegalArgumentException(
+                        "Unsupported relation: " + selectorBinary.getRelation()
+                );
+            }
+            
+            sb.append(" (");
+            sb.append(translateSelector(
+                    selectorBinary.getRightOperand(), columnQuote, parameters
+            ));
+            sb.append(")");
+            
+            return sb.toString();
+        }
+        else if (selector instanceof SelectorCondition)
+        {
+            SelectorCondition selectorCondition = (SelectorCondition) selector;
+            StringBuilder sb = new StringBuilder();
+            String value = selectorCondition.getValue();
+            
+            sb.append("(");
+            sb.append(columnQuote);
+            sb.append(escapeQuotes(
+                    selectorCondition.getKey(), columnQuote, true
+            ));
+            sb.append(columnQuote);
+            sb.append(") ");
+            
+            switch (selectorCondition.getRelation())
+            {
+            case EQUALS:
+                sb.append("=");
+                break;
+            
+            case LESS_THAN:
+                sb.append("<");
+                break;
+            
+            case GREATER_THAN:
+                sb.append(">");
+                break;
+            
+            case STARTS_WITH:
+                sb.append("LIKE");
+                value = value + "%";
+                break;
+            
+            case ENDS_WITH:
+                sb.append("LIKE");
+                value = "%" + value;
+                break;
+            
+            case CONTAINS:
+                sb.append("LIKE");
+                value = "%" + value + "%";
+                break;
+            
+            default:
+                throw new IllegalArgumentException(
+                        "Unsupported relation: "
+                                + selectorCondition.getRelation()
+                );
+            }
+            
+            sb.append(" (?)");
+            parameters.add(value);
+            
+            return sb.toString();
+        }
+        else if (selector instanceof SelectorIn)
+        {
+            SelectorIn selectorIn = (SelectorIn) selector;
+            
+            if (selectorIn.getValues().isEmpty())
+                return "1 = 0";
+            
+            StringBuilder sb = new StringBuilder();
+            
+            sb.append("(");
+            sb.append(columnQuote);
+            sb.append(escapeQuotes(selectorIn.getKey(), columnQuote, true));
+            sb.append(columnQuote);
+            sb.append(") IN (");
+            
+            for (int i = 0; i < selectorIn.getValues().size(); i++)
+            {
+                sb.append((i > 0) ? ", ?" : "?");
+            }
+            
+            sb.append(")");
+            parameters.addAll(selectorIn.getValues());
+            
+            return sb.toString();
+        }
         else
         {
             throw new IllegalArgumentException(
@@ -293,6 +677,24 @@ public final class SqlUtils
         }
     }
     
+    /**
+     * Binds string parameters to a prepared statement, in order.
+     */
+    public static void bindParameters(
+            PreparedStatement statement, List<String> parameters
+    ) throws SQLException
+    {
+        if (statement == null || parameters == null)
+            throw new IllegalArgumentException();
+        
+        int i = 1;
+        
+        for (String parameter : parameters)
+        {
+            statement.setString(i++, parameter);
+        }
+    }
+    
     public static String encodeType(DataType type)
     {
         if (type == null)
@@ -471,6 +873,29 @@ public final class SqlUtils
         return sb.toString();
     }
     
+    public static String translateEntryValues(
+            StorageEntry entry, List<String> parameters
+    )
+    {
+        if (entry == null || parameters == null)
+            throw new IllegalArgumentException();
+        
+        StringBuilder sb = new StringBuilder();
+        
+        for (StorageDatum datum : entry)
+        {
+            if (sb.length() > 0)
+            {
+                sb.append(", ");
+            }
+            
+            sb.append("?");
+            parameters.add(datum.getValue());
+        }
+        
+        return sb.toString();
+    }
+    
     public static String translateEntrySubset(
             StorageEntry entrySubset, String columnQuote, String valueQuote
     )
@@ -498,4 +923,179 @@ public final class SqlUtils
         
         return sb.toString();
     }
+    
+    public static String translateEntrySubset(
+            StorageEntry entrySubset, String columnQuote, List<String> parameters
+    )
+    {
+        if (entrySubset == null || columnQuote == null || parameters == null)
+            throw new IllegalArgumentException();
+        
+        StringBuilder sb = new StringBuilder();
+        
+        for (StorageDatum datum : entrySubset)
+        {
+            if (sb.length() > 0)
+            {
+                sb.append(", ");
+            }
+            
+            sb.append(columnQuote);
+            sb.append(escapeQuotes(datum.getKey(), columnQuote, true));
+            sb.append(columnQuote);
+            sb.append(" = ?");
+            parameters.add(datum.getValue());
+        }
+        
+        return sb.toString();
+    }
+    
+    /**
+     * Translates entries into multi-row INSERT statements.
+     * 
+     * <p> Entries are grouped by their sets of keys, and each statement
+     * binds at most {@link #MAX_STATEMENT_PARAMETERS} parameters.
+     * 
+     * @param table          the quoted name of the table.
+     * @param parameterLists the list that receives the parameters
+     *                       of each returned statement.
+     * 
+     * @return the statements, in the order of their parameter lists.
+     */
+    public static List<String> translateMultiRowInsert(
+            String table,
+            List<StorageEntry> entries,
+            String columnQuote,
+            List<List<String>> parameterLists
+    )
+    {
+        if (table == null || entries == null
+                || columnQuote == null || parameterLists == null)
+        {
+            throw new IllegalArgumentException();
+        }
+        
+        Map<List<String>, List<StorageEntry>> groups = new LinkedHashMap<>();
+        
+        for (StorageEntry entry : entries)
+        {
+            List<String> keys = new ArrayList<>(entry.getKeys());
+            Collections.sort(keys);
+            
+            List<StorageEntry> group = groups.get(keys);
+            
+            if (group == null)
+            {
+                group = new ArrayList<>();
+                groups.put(keys, group);
+            }
+            
+            group.add(entry);
+        }
+        
+        List<String> statements = new ArrayList<>();
+        
+        for (Map.Entry<List<String>, List<StorageEntry>> group : groups.entrySet())
+        {
+            List<String> keys = group.getKey();
+            int rowsPerStatement = Math.max(1, MAX_STATEMENT_PARAMETERS / Math.max(1, keys.size()));
+            String prefix = "INSERT INTO " + table
+                    + " (" + translateKeyList(keys, columnQuote) + ") VALUES ";
+            List<StorageEntry> groupEntries = group.getValue();
+            
+            for (int i = 0; i < groupEntries.size(); i += rowsPerStatement)
+            {
+                StringBuilder sb = new StringBuilder(prefix);
+                List<String> parameters = new ArrayList<>();
+                int end = Math.min(i + rowsPerStatement, groupEntries.size());
+                
+                for (int j = i; j < end; j++)
+                {
+                    if (j > i)
+                    {
+                        sb.append(", ");
+                    }
+                    
+                    sb.append("(");
+                    
+                    for (int k = 0; k < keys.size(); k++)
+                    {
+                        sb.append((k > 0) ? ", ?" : "?");
+                        parameters.add(groupEntries.get(j).get(keys.get(k)));
+                    }
+                    
+                    sb.append(")");
+                }
+                
+                sb.append(";");
+                statements.add(sb.toString());
+                parameterLists.add(parameters);
+            }
+        }
+        
+        return statements;
+    }
+    
+    /**
+     * Translates updates of single entries, each identified
+     * by the value of a key, into UPDATE statements.
+     * 
+     * <p> Updates setting the same keys translate to the same SQL,
+     * so that they can be sent in a single JDBC batch.
+     * 
+     * @param table          the quoted name of the table.
+     * @param key            the key identifying the entries.
+     * @param entrySubsets   the values to be set, mapped by
+     *                       the values of {@code key} of the entries.
+     * @param parameterLists the list that receives the parameters
+     *                       of each returned statement.
+     * 
+     * @return the statements, in the order of their parameter lists.
+     */
+    public static List<String> translateKeyedUpdates(
+            String table,
+            String key,
+            Map<String, StorageEntry> entrySubsets,
+            String columnQuote,
+            List<List<String>> parameterLists
+    )
+    {
+        if (table == null || key == null || entrySubsets == null
+                || columnQuote == null || parameterLists == null)
+        {
+            throw new IllegalArgumentException();
+        }
+        
+        List<String> statements = new ArrayList<>();
+        
+        for (Map.Entry<String, StorageEntry> e : entrySubsets.entrySet())
+        {
+            List<String> parameters = new ArrayList<>();
+            
+            statements.add("UPDATE " + table
+                    + " SET " + translateEntrySubset(e.getValue(), columnQuote, parameters)
+                    + " WHERE " + translateSelector(
+                            new SelectorCondition(key, Infix.EQUALS, e.getKey()),
+                            columnQuote, parameters
+                    ) + ";");
+            parameterLists.add(parameters);
+        }
+        
+        return statements;
+    }
+    
+    /**
+     * The largest number of parameters bound to a single statement,
+     * set to the lowest limit among the supported databases (SQLite).
+     */
+    public static final int MAX_STATEMENT_PARAMETERS = 999;
+    
+    /**
+     * The largest number of values in an IN list bound to a single statement,
+     * which leaves room within {@link #MAX_STATEMENT_PARAMETERS}
+     * for the other parameters of the statement.
+     * 
+     * @see #splitSelector
+     */
+    public static final int MAX_IN_VALUES = 500;
 }
@@ -0,0 +1,224 @@
+package io.github.lucaseasedup.logit.storage;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Tunes the SQLite connections of a {@link SqliteStorage}.
+ * 
+ * <p> A profile built with no settings changed leaves every pragma
+ * at the SQLite default and opens no read-only connections.
+ */
+public final class SqliteProfile
+{
+    private SqliteProfile(
+            boolean walJournal,
+            String synchronous,
+            long mmapSize,
+            int cacheSize,
+            long busyTimeout,
+            int readConnections
+    )
+    {
+        this.walJournal = walJournal;
+        this.synchronous = synchronous;
+        this.mmapSize = mmapSize;
+        this.cacheSize = cacheSize;
+        this.busyTimeout = busyTimeout;
+        this.readConnections = readConnections;
+    }
+    
+    public boolean isWalJournal()
+    {
+        return walJournal;
+    }
+    
+    public String getSynchronous()
+    {
+        return synchronous;
+    }
+    
+    public long getMmapSize()
+    {
+        return mmapSize;
+    }
+    
+    public int getCacheSize()
+    {
+        return cacheSize;
+    }
+    
+    public long getBusyTimeout()
+    {
+        return busyTimeout;
+    }
+    
+    public int getReadConnections()
+    {
+        return readConnections;
+    }
+    
+    /**
+     * Sets the pragmas of this profile on a newly opened connection.
+     * 
+     * @param readOnly whether the connection only reads, in which case
+     *                 the pragmas that change the database file are skipped.
+     */
+    /* package */ void apply(Connection connection, boolean readOnly)
+            throws SQLException
+    {
+        try (Statement statement = connection.createStatement())
+        {
+            // The journal mode is stored in the database file,
+            // so it only needs to be set by a writer.
+            if (walJournal && !readOnly)
+            {
+                statement.execute("PRAGMA journal_mode = WAL;");
+            }
+            
+            if (synchronous != null)
+            {
+                statement.execute("PRAGMA synchronous = " + synchronous + ";");
+            }
+            
+            if (mmapSize > 0)
+            {
+                statement.execute("PRAGMA mmap_size = " + mmapSize + ";");
+            }
+            
+            if (cacheSize > 0)
+            {
+                // A negative cache size is read by SQLite as kibibytes.
+                statement.execute("PRAGMA cache_size = -" + cacheSize + ";");
+            }
+            
+            if (busyTimeout > 0)
+            {
+                statement.execute("PRAGMA busy_timeout = " + busyTimeout + ";");
+            }
+        }
+    }
+    
+    /**
+     * Checks whether a string names a level of the {@code synchronous} pragma.
+     */
+    public static boolean isSynchronousLevel(String level)
+    {
+        if (level == null)
+            return false;
+        
+        level = level.toLowerCase();
+        
+        return level.equals("off") || level.equals("normal")
+                || level.equals("full") || level.equals("extra");
+    }
+    
+    public static final class Builder
+    {
+        public SqliteProfile build()
+        {
+            return new SqliteProfile(walJournal, synchronous,
+                    mmapSize, cacheSize, busyTimeout, readConnections);
+        }
+        
+        /**
+         * @param walJournal whether to switch the database to write-ahead
+         *                   logging, which lets readers work during a write
+         *                   and commits without rewriting the database file.
+         */
+        public Builder walJournal(boolean walJournal)
+        {
+            this.walJournal = walJournal;
+            
+            return this;
+        }
+        
+        /**
+         * @param synchronous the level of the {@code synchronous} pragma:
+         *                    {@code off}, {@code normal}, {@code full}
+         *                    or {@code extra}.
+         */
+        public Builder synchronous(String synchronous)
+        {
+            if (!isSynchronousLevel(synchronous))
+                throw new IllegalArgumentException();
+            
+            this.synchronous = synchronous.toUpperCase();
+            
+            return this;
+        }
+        
+        /**
+         * @param mmapSize how many bytes of the database file to map
+         *                 into memory; 0 leaves memory mapping off.
+         */
+        public Builder mmapSize(long mmapSize)
+        {
+            if (mmapSize < 0)
+                throw new IllegalArgumentException();
+            
+            this.mmapSize = mmapSize;
+            
+            return this;
+        }
+        
+        /**
+         * @param cacheSize the size of the page cache of each connection,
+         *                  in kibibytes; 0 leaves the default size.
+         */
+        public Builder cacheSize(int cacheSize)
+        {
+            if (cacheSize < 0)
+                throw new IllegalArgumentException();
+            
+            this.cacheSize = cacheSize;
+            
+            return this;
+        }
+        
+        /**
+         * @param busyTimeout how long, in milliseconds, a connection retries
+         *                    when the database is locked by another one
+         *                    before giving up; 0 leaves the driver default.
+         */
+        public Builder busyTimeout(long busyTimeout)
+        {
+            if (busyTimeout < 0)
+                throw new IllegalArgumentException();
+            
+            this.busyTimeout = busyTimeout;
+            
+            return this;
+        }
+        
+        /**
+         * @param readConnections how many read-only connections serve
+         *                        queries apart from the connection
+         *                        that writes; 0 makes it serve them too.
+         */
+        public Builder readConnections(int readConnections)
+        {
+            if (readConnections < 0)
+                throw new IllegalArgumentException();
+            
+            this.readConnections = readConnections;
+            
+            return this;
+        }
+        
+        private boolean walJournal = false;
+        private String synchronous = null;
+        private long mmapSize = 0L;
+        private int cacheSize = 0;
+        private long busyTimeout = 0L;
+        private int readConnections = 0;
+    }
+    
+    private final boolean walJournal;
+    private final String synchronous;
+    private final long mmapSize;
+    private final int cacheSize;
+    private final long busyTimeout;
+    private final int readConnections;
+}
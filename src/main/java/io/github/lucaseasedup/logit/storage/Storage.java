@@ -2,6 +2,7 @@ package io.github.lucaseasedup.logit.storage;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 
 public interface Storage extends AutoCloseable
 {
@@ -31,8 +32,52 @@ public interface Storage extends AutoCloseable
             String unit, List<String> keys, Selector selector
     ) throws IOException;
     
+    /**
+     * Opens a cursor over the entries matching a selector,
+     * for passes over units too large to be held in memory at once.
+     * 
+     * @param keys the keys to be fetched, or {@code null} to fetch all keys.
+     */
+    public StorageCursor selectCursor(
+            String unit, List<String> keys, Selector selector
+    ) throws IOException;
+    
+    /**
+     * Counts the entries matching a selector without fetching them.
+     */
+    public long count(String unit, Selector selector)
+            throws IOException;
+    
+    /**
+     * Checks whether any entry matches a selector without fetching it.
+     */
+    public boolean exists(String unit, Selector selector)
+            throws IOException;
+    
+    /**
+     * Counts the distinct values of a key among the entries matching
+     * a selector. Empty values, which the storages use for values
+     * that have never been set, are not counted.
+     */
+    public long countDistinct(String unit, String key, Selector selector)
+            throws IOException;
+    
     public void createUnit(String unit, UnitKeys keys, String primaryKey)
             throws IOException;
+    
+    /**
+     * Creates a unit along with secondary indexes on some of its keys.
+     * If the unit already exists, the indexes it lacks are created
+     * on those of the keys it has.
+     * 
+     * <p> Storages that do not index keys other than the primary key
+     * create the unit alone.
+     * 
+     * @param indexes the types of indexes, mapped by the keys to be indexed.
+     */
+    public void createUnit(
+            String unit, UnitKeys keys, String primaryKey, Map<String, IndexType> indexes
+    ) throws IOException;
     public void renameUnit(String unit, String newName)
             throws IOException;
     public void eraseUnit(String unit)
@@ -42,11 +87,46 @@ public interface Storage extends AutoCloseable
     
     public void addKey(String unit, String key, DataType type)
             throws IOException;
+    
+    /**
+     * Adds a key along with a secondary index on it, where the storage
+     * indexes keys other than the primary key.
+     */
+    public void addKey(String unit, String key, DataType type, IndexType indexType)
+            throws IOException;
     public void addEntry(String unit, StorageEntry entry)
             throws DuplicateEntryException, IOException;
+    
+    /**
+     * Adds entries at once. If one of them cannot be added,
+     * none of them is, unless autobatch is enabled.
+     */
+    public void addEntries(String unit, List<StorageEntry> entries)
+            throws DuplicateEntryException, IOException;
     public void updateEntries(
             String unit, StorageEntry entrySubset, Selector selector
     ) throws IOException;
+    
+    /**
+     * Updates entries, each identified by the value of a key, at once.
+     * If one of the updates fails, none of them is made,
+     * unless autobatch is enabled.
+     * 
+     * @param entrySubsets the values to be set, mapped by
+     *                     the values of {@code key} of the entries.
+     */
+    public void updateEntriesByKey(
+            String unit, String key, Map<String, StorageEntry> entrySubsets
+    ) throws IOException;
+    
+    /**
+     * Adds an entry or, if an entry with the same value of {@code key}
+     * already exists, sets the keys of that entry to the values of the new one.
+     * 
+     * @param key the primary key of the unit; {@code entry} must contain it.
+     */
+    public void upsertEntry(String unit, String key, StorageEntry entry)
+            throws IOException;
     public void removeEntries(String unit, Selector selector)
             throws IOException;
     
@@ -56,4 +136,36 @@ public interface Storage extends AutoCloseable
             throws IOException;
     public void clearBatch()
             throws IOException;
+    
+    /**
+     * Starts a transaction on the calling thread. The changes to entries
+     * made by this thread until {@link #commitTransaction()} is called
+     * are applied together, and are undone by {@link #rollbackTransaction()}.
+     * 
+     * <p> Statements are not batched inside a transaction, since its commit
+     * already makes them in one go. Changes to units and keys should not be
+     * made inside a transaction, as some databases commit it before making them.
+     * 
+     * <p> Storages without transactions of their own emulate them,
+     * but may show the changes to other threads before the commit.
+     * 
+     * @throws IllegalStateException if a transaction is already
+     *                               in progress on the calling thread.
+     */
+    public void beginTransaction()
+            throws IOException;
+    
+    /**
+     * @throws IllegalStateException if no transaction is in progress
+     *                               on the calling thread.
+     */
+    public void commitTransaction()
+            throws IOException;
+    
+    /**
+     * @throws IllegalStateException if no transaction is in progress
+     *                               on the calling thread.
+     */
+    public void rollbackTransaction()
+            throws IOException;
 }
@@ -0,0 +1,26 @@
+package io.github.lucaseasedup.logit.storage;
+
+import java.io.IOException;
+
+/**
+ * A forward-only pass over the entries of a unit, fetched as they are read
+ * rather than all at once.
+ * 
+ * <p> A cursor may hold resources of its storage, such as a database
+ * connection, until it is closed, so it should be used in
+ * a try-with-resources statement.
+ */
+public interface StorageCursor extends AutoCloseable
+{
+    public boolean hasNext()
+            throws IOException;
+    
+    /**
+     * @throws java.util.NoSuchElementException if there are no more entries.
+     */
+    public StorageEntry next()
+            throws IOException;
+    
+    @Override public void close()
+            throws IOException;
+}
@@ -1,14 +1,21 @@
 package io.github.lucaseasedup.logit.storage;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import org.apache.commons.lang.StringUtils;
 
+/**
+ * A set of key-value pairs, one row of a storage unit.
+ * 
+ * <p> Copies of an entry share its data until either of them is modified;
+ * only then is the data of the modified entry duplicated.
+ */
 public final class StorageEntry implements Iterable<StorageDatum>
 {
     @Override
@@ -46,6 +53,8 @@ public final class StorageEntry implements Iterable<StorageDatum>
         if (StringUtils.isBlank(key))
             throw new IllegalArgumentException();
         
+        detach();
+        
         String oldValue;
         
         if (value == null)
@@ -63,9 +72,12 @@ public final class StorageEntry implements Iterable<StorageDatum>
         }
     }
     
+    /**
+     * Returns a read-only view of the keys of this entry.
+     */
     public Set<String> getKeys()
     {
-        return backend.keySet();
+        return Collections.unmodifiableSet(backend.keySet());
     }
     
     public boolean containsKey(String key)
@@ -73,11 +85,23 @@ public final class StorageEntry implements Iterable<StorageDatum>
         return get(key) != null;
     }
     
+    /**
+     * Returns a copy of this entry.
+     * 
+     * <p> The copy shares the data of this entry, so it is made in constant time.
+     * Whichever of the two entries is modified first duplicates the data.
+     */
     public StorageEntry copy()
     {
         StorageEntry copy = new StorageEntry();
         
-        copy.backend = new LinkedHashMap<>(backend);
+        if (!shared)
+        {
+            shared = true;
+        }
+        
+        copy.backend = backend;
+        copy.shared = true;
         
         return copy;
     }
@@ -124,7 +148,14 @@ public final class StorageEntry implements Iterable<StorageDatum>
         if (entries == null)
             throw new IllegalArgumentException();
         
-        return copyList(entries, new SelectorConstant(true));
+        List<StorageEntry> copies = new ArrayList<>(entries.size());
+        
+        for (StorageEntry entry : entries)
+        {
+            copies.add(entry.copy());
+        }
+        
+        return copies;
     }
     
     public static List<StorageEntry> copyList(
@@ -134,11 +165,12 @@ public final class StorageEntry implements Iterable<StorageDatum>
         if (entries == null || selector == null)
             throw new IllegalArgumentException();
         
-        List<StorageEntry> copies = new LinkedList<>();
+        CompiledSelector compiledSelector = CompiledSelector.compile(selector);
+        List<StorageEntry> copies = new ArrayList<>();
         
         for (StorageEntry entry : entries)
         {
-            if (SqlUtils.resolveSelector(selector, entry))
+            if (compiledSelector.matches(entry))
             {
                 copies.add(entry.copy());
             }
@@ -154,18 +186,26 @@ public final class StorageEntry implements Iterable<StorageDatum>
         if (entries == null || selector == null)
             throw new IllegalArgumentException();
         
-        List<StorageEntry> copies = new LinkedList<>();
+        CompiledSelector compiledSelector = CompiledSelector.compile(selector);
+        List<StorageEntry> copies = new ArrayList<>();
         
         for (StorageEntry entry : entries)
         {
-            if (SqlUtils.resolveSelector(selector, entry))
+            if (!compiledSelector.matches(entry))
+                continue;
+            
+            if (keys == null || keys.containsAll(entry.getKeys()))
+            {
+                copies.add(entry.copy());
+            }
+            else
             {
                 StorageEntry.Builder copyBuilder =
                         new StorageEntry.Builder();
                 
                 for (StorageDatum datum : entry)
                 {
-                    if (keys == null || keys.contains(datum.getKey()))
+                    if (keys.contains(datum.getKey()))
                     {
                         copyBuilder.put(datum.getKey(), datum.getValue());
                     }
@@ -178,11 +218,48 @@ public final class StorageEntry implements Iterable<StorageDatum>
         return copies;
     }
     
+    /**
+     * Counts the distinct non-empty values of a key among entries,
+     * as {@link Storage#countDistinct} does.
+     */
+    public static long countDistinct(Iterable<StorageEntry> entries, String key)
+    {
+        if (entries == null || key == null)
+            throw new IllegalArgumentException();
+        
+        Set<String> values = new HashSet<>();
+        
+        for (StorageEntry entry : entries)
+        {
+            String value = entry.get(key);
+            
+            if (value != null && !value.isEmpty())
+            {
+                values.add(value);
+            }
+        }
+        
+        return values.size();
+    }
+    
+    /**
+     * Gives this entry its own copy of the data if it is shared with another entry.
+     */
+    private void detach()
+    {
+        if (shared)
+        {
+            backend = new LinkedHashMap<>(backend);
+            shared = false;
+        }
+    }
+    
     public final class DatumIterator implements Iterator<StorageDatum>
     {
         public DatumIterator()
         {
-            it = backend.entrySet().iterator();
+            source = backend;
+            it = source.entrySet().iterator();
         }
         
         @Override
@@ -196,16 +273,36 @@ public final class StorageEntry implements Iterable<StorageDatum>
         {
             Map.Entry<String, String> el = it.next();
             
+            lastKey = el.getKey();
+            
             return new StorageDatum(el.getKey(), el.getValue());
         }
         
         @Override
         public void remove()
         {
-            it.remove();
+            if (lastKey == null)
+                throw new IllegalStateException();
+            
+            detach();
+            
+            // The data being iterated over may have been duplicated
+            // since the iteration started; the shared data stays intact.
+            if (backend == source)
+            {
+                it.remove();
+            }
+            else
+            {
+                backend.remove(lastKey);
+            }
+            
+            lastKey = null;
         }
         
+        private final Map<String, String> source;
         private final Iterator<Map.Entry<String, String>> it;
+        private String lastKey;
     }
     
     public static final class Builder
@@ -242,5 +339,11 @@ public final class StorageEntry implements Iterable<StorageDatum>
     }
     
     private Map<String, String> backend = new LinkedHashMap<>();
+    
+    /**
+     * Whether {@link #backend} may be referenced by another entry,
+     * in which case it must not be modified in place.
+     */
+    private volatile boolean shared = false;
     private final Set<String> dirtyKeys = new HashSet<>();
 }
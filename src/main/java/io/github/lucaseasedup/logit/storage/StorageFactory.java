@@ -2,14 +2,30 @@ package io.github.lucaseasedup.logit.storage;
 
 import io.github.lucaseasedup.logit.LogItCore;
 import io.github.lucaseasedup.logit.config.PredefinedConfiguration;
+import io.github.lucaseasedup.logit.config.TimeUnit;
 import java.io.File;
+import java.util.List;
 
 public final class StorageFactory
 {
     public StorageFactory(PredefinedConfiguration configuration, String path)
+    {
+        this(configuration, path, null);
+    }
+    
+    /**
+     * @param queryProfiler the profiler to time the statements
+     *                      of SQL storages with, or {@code null}.
+     */
+    public StorageFactory(
+            PredefinedConfiguration configuration,
+            String path,
+            QueryProfiler queryProfiler
+    )
     {
         this.configuration = configuration;
         this.path = path;
+        this.queryProfiler = queryProfiler;
     }
     
     public Storage produceStorage(StorageType type)
@@ -24,17 +40,32 @@ public final class StorageFactory
         }
         case SQLITE:
         {
-            return new SqliteStorage("jdbc:sqlite:" + core.getDataFolder() + "/"
-                    + configuration.getString(path + ".sqlite.filename"));
+            SqliteStorage storage = new SqliteStorage("jdbc:sqlite:"
+                    + core.getDataFolder() + "/"
+                    + configuration.getString(path + ".sqlite.filename"),
+                    produceSqliteProfile());
+            storage.setQueryProfiler(queryProfiler);
+            
+            return storage;
         }
         case MYSQL:
         {
-            return new MySqlStorage(
-                    configuration.getString(path + ".mysql.host"),
-                    configuration.getString(path + ".mysql.user"),
-                    configuration.getString(path + ".mysql.password"),
-                    configuration.getString(path + ".mysql.database")
-            );
+            List<String> shardHosts =
+                    configuration.getStringList(path + ".mysql.shardHosts");
+            
+            if (shardHosts.isEmpty())
+                return produceMySqlStorage(configuration.getString(path + ".mysql.host"));
+            
+            // The main host is always the first shard.
+            ShardedStorage.Builder shardedStorageBuilder = new ShardedStorage.Builder()
+                    .shard(produceMySqlStorage(configuration.getString(path + ".mysql.host")));
+            
+            for (String shardHost : shardHosts)
+            {
+                shardedStorageBuilder.shard(produceMySqlStorage(shardHost));
+            }
+            
+            return shardedStorageBuilder.build();
         }
         case H2:
         {
@@ -43,15 +74,25 @@ public final class StorageFactory
                     configuration.getString(path + ".h2.filename")
             );
             
-            return new H2Storage("jdbc:h2:" + file.getAbsolutePath());
+            H2Storage storage = new H2Storage(
+                    "jdbc:h2:" + file.getAbsolutePath(),
+                    produceConnectionPoolBuilder()
+            );
+            storage.setQueryProfiler(queryProfiler);
+            
+            return storage;
         }
         case POSTGRESQL:
         {
-            return new PostgreSqlStorage(
+            PostgreSqlStorage storage = new PostgreSqlStorage(
                     configuration.getString(path + ".postgresql.host"),
                     configuration.getString(path + ".postgresql.user"),
-                    configuration.getString(path + ".postgresql.password")
+                    configuration.getString(path + ".postgresql.password"),
+                    produceConnectionPoolBuilder()
             );
+            storage.setQueryProfiler(queryProfiler);
+            
+            return storage;
         }
         case CSV:
         {
@@ -65,7 +106,23 @@ public final class StorageFactory
                 dir.mkdir();
             }
             
-            return new CsvStorage(dir);
+            return new CsvStorage(dir,
+                    configuration.getInt(path + ".csv.compactionThreshold"));
+        }
+        case LOG_STRUCTURED:
+        {
+            File dir = core.getDataFile(
+                    configuration.getString(path + ".logStructured.dir")
+            );
+            
+            if (!dir.exists())
+            {
+                dir.getParentFile().mkdirs();
+                dir.mkdir();
+            }
+            
+            return new LogStructuredStorage(dir,
+                    configuration.getInt(path + ".logStructured.segmentSize"));
         }
         default:
             throw new IllegalArgumentException(
@@ -74,6 +131,68 @@ public final class StorageFactory
         }
     }
     
+    private MySqlStorage produceMySqlStorage(String host)
+    {
+        MySqlStorage storage = new MySqlStorage(
+                host,
+                configuration.getString(path + ".mysql.user"),
+                configuration.getString(path + ".mysql.password"),
+                configuration.getString(path + ".mysql.database"),
+                produceConnectionPoolBuilder()
+        );
+        storage.setQueryProfiler(queryProfiler);
+        
+        return storage;
+    }
+    
+    private ConnectionPool.Builder produceConnectionPoolBuilder()
+    {
+        return new ConnectionPool.Builder()
+                .maxSize(configuration.getInt(
+                        path + ".connectionPool.maxSize"
+                ))
+                .borrowTimeout(configuration.getTime(
+                        path + ".connectionPool.borrowTimeout", TimeUnit.MILLISECONDS
+                ))
+                .idleTimeout(configuration.getTime(
+                        path + ".connectionPool.idleTimeout", TimeUnit.MILLISECONDS
+                ))
+                .validationTimeout((int) configuration.getTime(
+                        path + ".connectionPool.validationTimeout", TimeUnit.SECONDS
+                ))
+                .statementCacheSize(configuration.getInt(
+                        path + ".connectionPool.statementCacheSize"
+                ))
+                .cursorFetchSize(configuration.getInt(
+                        path + ".connectionPool.cursorFetchSize"
+                ));
+    }
+    
+    private SqliteProfile produceSqliteProfile()
+    {
+        return new SqliteProfile.Builder()
+                .walJournal(configuration.getBoolean(
+                        path + ".sqlite.walJournal"
+                ))
+                .synchronous(configuration.getString(
+                        path + ".sqlite.synchronous"
+                ))
+                .mmapSize(configuration.getInt(
+                        path + ".sqlite.mmapSize"
+                ))
+                .cacheSize(configuration.getInt(
+                        path + ".sqlite.cacheSize"
+                ))
+                .busyTimeout(configuration.getTime(
+                        path + ".sqlite.busyTimeout", TimeUnit.MILLISECONDS
+                ))
+                .readConnections(configuration.getInt(
+                        path + ".sqlite.readConnections"
+                ))
+                .build();
+    }
+    
     private final PredefinedConfiguration configuration;
     private final String path;
+    private final QueryProfiler queryProfiler;
 }
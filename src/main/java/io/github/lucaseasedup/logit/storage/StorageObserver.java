@@ -42,6 +42,11 @@ public abstract class StorageObserver
     {
     }
     
+    @SuppressWarnings("unused")
+    public void afterUpsertEntry(String unit, String key, StorageEntry entry)
+    {
+    }
+    
     @SuppressWarnings("unused")
     public void afterRemoveEntries(String unit, Selector selector)
     {
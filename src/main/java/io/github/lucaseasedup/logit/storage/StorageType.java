@@ -2,7 +2,7 @@ package io.github.lucaseasedup.logit.storage;
 
 public enum StorageType
 {
-    UNKNOWN, NONE, SQLITE, MYSQL, H2, POSTGRESQL, CSV;
+    UNKNOWN, NONE, SQLITE, MYSQL, H2, POSTGRESQL, CSV, LOG_STRUCTURED;
     
     public static StorageType decode(String s)
     {
@@ -14,6 +14,7 @@ public enum StorageType
         case "h2":         return H2;
         case "postgresql": return POSTGRESQL;
         case "csv":        return CSV;
+        case "log-structured": return LOG_STRUCTURED;
         default:           return UNKNOWN;
         }
     }
@@ -35,6 +36,7 @@ public enum StorageType
         case H2:         return "h2";
         case POSTGRESQL: return "postgresql";
         case CSV:        return "csv";
+        case LOG_STRUCTURED: return "log-structured";
         default:         return null;
         }
     }
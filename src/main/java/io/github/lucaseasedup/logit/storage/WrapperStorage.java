@@ -6,750 +6,2369 @@ import io.github.lucaseasedup.logit.util.CollectionUtils;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 
+/**
+ * Wraps a leading storage, adding caching, mirroring and observers.
+ * 
+ * <p> Reads are served concurrently. Entry writes take exclusive access
+ * to their unit only, while operations on the structure of the storage,
+ * its units, mirrors and observers take exclusive access to the whole wrapper.
+ * Observers may thus be notified of writes to different units concurrently.
+ * 
+ * <p> A transaction takes exclusive access to the whole wrapper until it ends,
+ * and the thread that began it reads past the cache, so as to see its changes.
+ * Mirrors, the cache and observers learn of the changes once they are committed.
+ */
 public final class WrapperStorage implements Storage
 {
-    private WrapperStorage(Storage leading, CacheType cacheType)
+    private WrapperStorage(
+            Storage leading,
+            CacheType cacheType,
+            boolean columnarCache,
+            int onDemandCacheMaxSize,
+            long onDemandCacheTtl,
+            int mirrorQueueCapacity
+    )
     {
-        if (leading == null || cacheType == null)
+        if (leading == null || cacheType == null
+                || onDemandCacheMaxSize < 1 || onDemandCacheTtl < 0
+                || mirrorQueueCapacity < 1)
+        {
             throw new IllegalArgumentException();
+        }
         
         this.executorService = Executors.newSingleThreadExecutor();
         this.leading = leading;
         this.cacheType = cacheType;
+        this.columnarCache = columnarCache;
+        this.onDemandCacheMaxSize = onDemandCacheMaxSize;
+        this.onDemandCacheTtl = onDemandCacheTtl;
+        this.mirrorQueueCapacity = mirrorQueueCapacity;
         
         if (cacheType == CacheType.PRELOADED)
         {
             preloadedCache = new HashMap<>();
         }
+        else if (cacheType == CacheType.ON_DEMAND)
+        {
+            onDemandCache = new ConcurrentHashMap<>();
+        }
     }
     
     @Override
-    public synchronized void connect() throws IOException
+    public void connect() throws IOException
     {
-        log(CustomLevel.INTERNAL, "WrapperStorage#connect()");
-        
-        leading.connect();
+        acquire(lock.writeLock());
         
-        for (Storage mirror : mirrors.keySet())
+        try
+        {
+            log(CustomLevel.INTERNAL, "WrapperStorage#connect()");
+            
+            leading.connect();
+            
+            for (MirrorReplicator replicator : mirrors.values())
+            {
+                replicator.getMirror().connect();
+            }
+        }
+        finally
         {
-            mirror.connect();
+            lock.writeLock().unlock();
         }
     }
     
     @Override
-    public synchronized boolean isConnected() throws IOException
+    public boolean isConnected() throws IOException
     {
-        log(CustomLevel.INTERNAL, "WrapperStorage#isConnected()");
+        acquire(lock.readLock());
         
-        return leading.isConnected();
+        try
+        {
+            log(CustomLevel.INTERNAL, "WrapperStorage#isConnected()");
+            
+            return leading.isConnected();
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
     }
     
-    public synchronized void preload(String... units) throws IOException
+    public void preload(String... units) throws IOException
     {
         if (units == null)
             throw new IllegalArgumentException();
         
-        if (cacheType == CacheType.PRELOADED)
+        acquire(lock.writeLock());
+        
+        try
         {
-            preloadedCache.clear();
-            
-            for (String unit : units)
+            if (cacheType == CacheType.PRELOADED)
             {
-                PreloadedUnitCache unitCache = new PreloadedUnitCache(
-                        leading.getKeys(unit),
-                        leading.getPrimaryKey(unit),
-                        leading.selectEntries(unit)
-                );
-                
-                preloadedCache.put(unit, unitCache);
+                preloadedCache.clear();
+            
+                for (String unit : units)
+                {
+                    PreloadedUnitCache unitCache = loadUnitCache(unit);
+                    
+                    addDeclaredIndexes(unit, unitCache);
+                    preloadedCache.put(unit, unitCache);
+                }
             }
         }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
     }
     
     @Override
-    public synchronized void ping() throws IOException
+    public void ping() throws IOException
     {
-        log(CustomLevel.INTERNAL, "WrapperStorage#ping()");
+        acquire(lock.readLock());
         
-        executorService.submit(new Runnable()
+        try
         {
-            @Override
-            public void run()
+            log(CustomLevel.INTERNAL, "WrapperStorage#ping()");
+            
+            executorService.submit(new Runnable()
             {
-                try
-                {
-                    leading.ping();
-                }
-                catch (IOException ex)
-                {
-                    log(Level.WARNING, ex);
-                }
-                
-                for (Storage mirror : mirrors.keySet())
+                @Override
+                public void run()
                 {
                     try
                     {
-                        mirror.ping();
+                        leading.ping();
                     }
                     catch (IOException ex)
                     {
                         log(Level.WARNING, ex);
                     }
                 }
+            });
+            
+            for (MirrorReplicator replicator : mirrors.values())
+            {
+                replicator.ping();
             }
-        });
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
     }
     
     @Override
-    public synchronized void close() throws IOException
+    public void close() throws IOException
     {
-        for (StorageObserver observer : observers)
+        acquire(lock.writeLock());
+        
+        try
         {
-            observer.beforeClose();
+            for (StorageObserver observer : observers)
+            {
+                observer.beforeClose();
+            }
+            
+            log(CustomLevel.INTERNAL, "WrapperStorage#close()");
+            
+            if (cacheType == CacheType.ON_DEMAND)
+            {
+                for (Map.Entry<String, OnDemandUnitCache> e : onDemandCache.entrySet())
+                {
+                    log(Level.FINE, "Cache of unit \"" + e.getKey() + "\": " + e.getValue());
+                }
+            }
+            
+            leading.close();
+            
+            for (MirrorReplicator replicator : mirrors.values())
+            {
+                replicator.shutdown(MIRROR_SHUTDOWN_TIMEOUT);
+                
+                log(Level.FINE, replicator.toString());
+                
+                replicator.getMirror().close();
+            }
         }
-        
-        log(CustomLevel.INTERNAL, "WrapperStorage#close()");
-        
-        leading.close();
-        
-        for (Storage mirror : mirrors.keySet())
+        finally
         {
-            mirror.close();
+            lock.writeLock().unlock();
         }
     }
     
     @Override
-    public synchronized List<String> getUnitNames() throws IOException
+    public List<String> getUnitNames() throws IOException
     {
-        log(CustomLevel.INTERNAL, "WrapperStorage#getUnitNames()");
+        acquire(lock.readLock());
         
-        if (cacheType == CacheType.DISABLED)
-        {
-            return leading.getUnitNames();
-        }
-        else if (cacheType == CacheType.PRELOADED)
+        try
         {
-            return new ArrayList<>(preloadedCache.keySet());
+            log(CustomLevel.INTERNAL, "WrapperStorage#getUnitNames()");
+            
+            if (cacheType == CacheType.DISABLED || cacheType == CacheType.ON_DEMAND)
+            {
+                return leading.getUnitNames();
+            }
+            else if (cacheType == CacheType.PRELOADED)
+            {
+                return new ArrayList<>(preloadedCache.keySet());
+            }
+            else
+            {
+                throw new RuntimeException("Unsupported cache type: " + cacheType);
+            }
         }
-        else
+        finally
         {
-            throw new RuntimeException("Unsupported cache type: " + cacheType);
+            lock.readLock().unlock();
         }
     }
     
     @Override
-    public synchronized UnitKeys getKeys(String unit)
+    public UnitKeys getKeys(String unit)
             throws IOException
     {
-        log(CustomLevel.INTERNAL, "WrapperStorage#getKeys(\"" + unit + "\")");
+        lockUnit(unit, false);
         
-        if (cacheType == CacheType.DISABLED)
-        {
-            return leading.getKeys(unit);
-        }
-        else if (cacheType == CacheType.PRELOADED)
+        try
         {
-            return preloadedCache.get(unit).getKeys();
+            log(CustomLevel.INTERNAL, "WrapperStorage#getKeys(\"" + unit + "\")");
+            
+            if (cacheType == CacheType.DISABLED || cacheType == CacheType.ON_DEMAND)
+            {
+                return leading.getKeys(unit);
+            }
+            else if (cacheType == CacheType.PRELOADED)
+            {
+                return preloadedCache.get(unit).getKeys();
+            }
+            else
+            {
+                throw new RuntimeException("Unsupported cache type: " + cacheType);
+            }
         }
-        else
+        finally
         {
-            throw new RuntimeException("Unsupported cache type: " + cacheType);
+            unlockUnit(unit, false);
         }
     }
     
     @Override
-    public synchronized String getPrimaryKey(String unit) throws IOException
+    public String getPrimaryKey(String unit) throws IOException
     {
-        log(CustomLevel.INTERNAL, "WrapperStorage#getPrimaryKey(\"" + unit + "\")");
+        lockUnit(unit, false);
         
-        if (cacheType == CacheType.DISABLED)
-        {
-            return leading.getPrimaryKey(unit);
-        }
-        else if (cacheType == CacheType.PRELOADED)
+        try
         {
-            return preloadedCache.get(unit).getPrimaryKey();
+            log(CustomLevel.INTERNAL, "WrapperStorage#getPrimaryKey(\"" + unit + "\")");
+            
+            if (cacheType == CacheType.DISABLED || cacheType == CacheType.ON_DEMAND)
+            {
+                return leading.getPrimaryKey(unit);
+            }
+            else if (cacheType == CacheType.PRELOADED)
+            {
+                return preloadedCache.get(unit).getPrimaryKey();
+            }
+            else
+            {
+                throw new RuntimeException("Unsupported cache type: " + cacheType);
+            }
         }
-        else
+        finally
         {
-            throw new RuntimeException("Unsupported cache type: " + cacheType);
+            unlockUnit(unit, false);
         }
     }
     
     @Override
-    public synchronized List<StorageEntry> selectEntries(String unit)
+    public List<StorageEntry> selectEntries(String unit)
             throws IOException
     {
-        log(CustomLevel.INTERNAL, "WrapperStorage#selectEntries(\"" + unit + "\")");
+        lockUnit(unit, false);
         
-        if (cacheType == CacheType.DISABLED)
-        {
-            return leading.selectEntries(unit);
-        }
-        else if (cacheType == CacheType.PRELOADED)
+        try
         {
-            List<StorageEntry> entries = preloadedCache.get(unit).getEntryList();
-            
-            if (entries == null)
-                return null;
+            log(CustomLevel.INTERNAL, "WrapperStorage#selectEntries(\"" + unit + "\")");
             
-            return StorageEntry.copyList(entries);
+            if (cacheType == CacheType.DISABLED || cacheType == CacheType.ON_DEMAND
+                    || isInTransaction())
+            {
+                return leading.selectEntries(unit);
+            }
+            else if (cacheType == CacheType.PRELOADED)
+            {
+                List<StorageEntry> entries = preloadedCache.get(unit)
+                        .selectEntries(new SelectorConstant(true));
+                
+                return StorageEntry.copyList(entries);
+            }
+            else
+            {
+                throw new RuntimeException("Unsupported cache type: " + cacheType);
+            }
         }
-        else
+        finally
         {
-            throw new RuntimeException("Unsupported cache type: " + cacheType);
+            unlockUnit(unit, false);
         }
     }
     
     @Override
-    public synchronized List<StorageEntry> selectEntries(
+    public List<StorageEntry> selectEntries(
             String unit, Selector selector
     ) throws IOException
     {
-        log(CustomLevel.INTERNAL, "WrapperStorage#selectEntries("
-                + "\"" + unit + "\", "
-                + SqlUtils.translateSelector(selector, "`", "'") + ")");
+        lockUnit(unit, false);
         
-        if (cacheType == CacheType.DISABLED)
+        try
         {
-            return leading.selectEntries(unit, selector);
-        }
-        else if (cacheType == CacheType.PRELOADED)
-        {
-            List<StorageEntry> entries = preloadedCache.get(unit).getEntryList();
-            
-            if (entries == null)
-                return null;
+            log(CustomLevel.INTERNAL, "WrapperStorage#selectEntries("
+                    + "\"" + unit + "\", "
+                    + SqlUtils.translateSelector(selector, "`", "'") + ")");
             
-            return StorageEntry.copyList(
-                    entries, new SelectorConstant(true)
-            );
+            if (cacheType == CacheType.DISABLED || isInTransaction())
+            {
+                return leading.selectEntries(unit, selector);
+            }
+            else if (cacheType == CacheType.ON_DEMAND)
+            {
+                return selectCachedEntries(unit, null, selector);
+            }
+            else if (cacheType == CacheType.PRELOADED)
+            {
+                List<StorageEntry> entries = preloadedCache.get(unit)
+                        .selectEntries(selector);
+                
+                return StorageEntry.copyList(entries);
+            }
+            else
+            {
+                throw new RuntimeException("Unsupported cache type: " + cacheType);
+            }
         }
-        else
+        finally
         {
-            throw new RuntimeException("Unsupported cache type: " + cacheType);
+            unlockUnit(unit, false);
         }
     }
     
     @Override
-    public synchronized List<StorageEntry> selectEntries(
+    public List<StorageEntry> selectEntries(
             String unit, List<String> keys
     ) throws IOException
     {
-        log(CustomLevel.INTERNAL, "WrapperStorage#selectEntries("
-                + "\"" + unit + "\", "
-                + Arrays.toString(keys.toArray()) + ")");
+        lockUnit(unit, false);
         
-        if (cacheType == CacheType.DISABLED)
+        try
         {
-            return leading.selectEntries(unit, keys);
-        }
-        else if (cacheType == CacheType.PRELOADED)
-        {
-            List<StorageEntry> entries = preloadedCache.get(unit).getEntryList();
-            
-            if (entries == null)
-                return null;
+            log(CustomLevel.INTERNAL, "WrapperStorage#selectEntries("
+                    + "\"" + unit + "\", "
+                    + ((keys != null) ? Arrays.toString(keys.toArray()) : "null") + ")");
             
-            return StorageEntry.copyList(
-                    entries, keys, new SelectorConstant(true)
-            );
+            if (cacheType == CacheType.DISABLED || cacheType == CacheType.ON_DEMAND
+                    || isInTransaction())
+            {
+                return leading.selectEntries(unit, keys);
+            }
+            else if (cacheType == CacheType.PRELOADED)
+            {
+                List<StorageEntry> entries = preloadedCache.get(unit)
+                        .selectEntries(new SelectorConstant(true));
+                
+                return StorageEntry.copyList(
+                        entries, keys, new SelectorConstant(true)
+                );
+            }
+            else
+            {
+                throw new RuntimeException("Unsupported cache type: " + cacheType);
+            }
         }
-        else
+        finally
         {
-            throw new RuntimeException("Unsupported cache type: " + cacheType);
+            unlockUnit(unit, false);
         }
     }
     
     @Override
-    public synchronized List<StorageEntry> selectEntries(
+    public List<StorageEntry> selectEntries(
             String unit, List<String> keys, Selector selector
     ) throws IOException
     {
-        log(CustomLevel.INTERNAL, "WrapperStorage#selectEntries("
-                + "\"" + unit + "\", "
-                + Arrays.toString(keys.toArray()) + ", "
-                + SqlUtils.translateSelector(selector, "`", "'") + ")");
+        lockUnit(unit, false);
         
-        if (cacheType == CacheType.DISABLED)
-        {
-            return leading.selectEntries(unit, keys, selector);
-        }
-        else if (cacheType == CacheType.PRELOADED)
+        try
         {
-            List<StorageEntry> entries = preloadedCache.get(unit).getEntryList();
-            
-            if (entries == null)
-                return null;
+            log(CustomLevel.INTERNAL, "WrapperStorage#selectEntries("
+                    + "\"" + unit + "\", "
+                    + ((keys != null) ? Arrays.toString(keys.toArray()) : "null") + ", "
+                    + SqlUtils.translateSelector(selector, "`", "'") + ")");
             
-            return StorageEntry.copyList(
-                    entries, keys, selector
-            );
+            if (cacheType == CacheType.DISABLED || isInTransaction())
+            {
+                return leading.selectEntries(unit, keys, selector);
+            }
+            else if (cacheType == CacheType.ON_DEMAND)
+            {
+                return selectCachedEntries(unit, keys, selector);
+            }
+            else if (cacheType == CacheType.PRELOADED)
+            {
+                List<StorageEntry> entries = preloadedCache.get(unit)
+                        .selectEntries(selector);
+                
+                return StorageEntry.copyList(
+                        entries, keys, new SelectorConstant(true)
+                );
+            }
+            else
+            {
+                throw new RuntimeException("Unsupported cache type: " + cacheType);
+            }
         }
-        else
+        finally
         {
-            throw new RuntimeException("Unsupported cache type: " + cacheType);
+            unlockUnit(unit, false);
         }
     }
     
+    /**
+     * Opens a cursor over the entries matching a selector.
+     * 
+     * <p> Only the opening of the cursor is done under the unit lock;
+     * the cursor itself reads from the leading storage, or from copies
+     * of the preloaded entries, as it goes.
+     */
     @Override
-    public synchronized void createUnit(
-            String unit, final UnitKeys keys, final String primaryKey
+    public StorageCursor selectCursor(
+            String unit, List<String> keys, Selector selector
     ) throws IOException
     {
-        log(CustomLevel.INTERNAL, "WrapperStorage#createUnit("
-                + "\"" + unit + "\", "
-                + "UnitKeys {keys: ["
-                        + CollectionUtils.toString(keys.keySet())
-                + "]})");
-        
-        leading.createUnit(unit, keys, primaryKey);
+        lockUnit(unit, false);
         
-        walkMirrors(new UnitWalker()
+        try
         {
-            @Override
-            public void walk(Storage storage, String unit) throws IOException
+            log(CustomLevel.INTERNAL, "WrapperStorage#selectCursor("
+                    + "\"" + unit + "\", "
+                    + ((keys != null) ? Arrays.toString(keys.toArray()) : "null") + ", "
+                    + SqlUtils.translateSelector(selector, "`", "'") + ")");
+            
+            if (cacheType == CacheType.PRELOADED && !isInTransaction())
             {
-                storage.createUnit(unit, keys, primaryKey);
+                List<StorageEntry> entries = preloadedCache.get(unit)
+                        .selectEntries(selector);
+                
+                return new ListStorageCursor(StorageEntry.copyList(
+                        entries, keys, new SelectorConstant(true)
+                ));
             }
-        }, unit);
-        
-        if (cacheType == CacheType.PRELOADED)
-        {
-            if (!preloadedCache.containsKey(unit))
+            else
             {
-                PreloadedUnitCache unitCache = new PreloadedUnitCache(
-                        keys, primaryKey, new LinkedList<StorageEntry>()
-                );
-                
-                preloadedCache.put(unit, unitCache);
+                // The on-demand cache only holds entries looked up by primary key.
+                return leading.selectCursor(unit, keys, selector);
             }
         }
-        
-        for (StorageObserver observer : observers)
+        finally
         {
-            observer.afterCreateUnit(unit, keys);
+            unlockUnit(unit, false);
         }
     }
     
     @Override
-    public synchronized void renameUnit(String unit, String newName)
-            throws IOException
+    public long count(String unit, Selector selector) throws IOException
     {
-        log(CustomLevel.INTERNAL, "WrapperStorage#renameUnit("
-                + "\"" + unit + "\", "
-                + "\"" + newName + "\")");
-        
-        if (unit.equals(newName))
-            throw new IllegalArgumentException();
+        lockUnit(unit, false);
         
-        leading.renameUnit(unit, newName);
-        
-        for (Map.Entry<Storage, Map<String, String>> e : mirrors.entrySet())
+        try
         {
-            String unitMapping = e.getValue().get(unit);
+            log(CustomLevel.INTERNAL, "WrapperStorage#count("
+                    + "\"" + unit + "\", "
+                    + SqlUtils.translateSelector(selector, "`", "'") + ")");
             
-            if (unitMapping == null)
+            if (cacheType == CacheType.PRELOADED && !isInTransaction())
             {
-                unitMapping = unit;
+                return preloadedCache.get(unit).count(selector);
             }
-            
-            e.getValue().remove(unit);
-            e.getValue().put(newName, unitMapping);
-        }
-        
-        if (cacheType == CacheType.PRELOADED)
-        {
-            if (preloadedCache.containsKey(unit))
+            else if (isOnDemandLookup(unit, selector))
+            {
+                return selectCachedEntries(unit, null, selector).size();
+            }
+            else
             {
-                preloadedCache.put(newName, preloadedCache.remove(unit));
+                return leading.count(unit, selector);
             }
         }
-        
-        for (StorageObserver observer : observers)
+        finally
         {
-            observer.afterRenameUnit(unit, newName);
+            unlockUnit(unit, false);
         }
     }
     
     @Override
-    public synchronized void eraseUnit(String unit) throws IOException
+    public boolean exists(String unit, Selector selector) throws IOException
     {
-        log(CustomLevel.INTERNAL, "WrapperStorage#eraseUnit("
-                + "\"" + unit + "\")");
-        
-        leading.eraseUnit(unit);
+        lockUnit(unit, false);
         
-        walkMirrors(new UnitWalker()
+        try
         {
-            @Override
-            public void walk(Storage storage, String unit) throws IOException
+            log(CustomLevel.INTERNAL, "WrapperStorage#exists("
+                    + "\"" + unit + "\", "
+                    + SqlUtils.translateSelector(selector, "`", "'") + ")");
+            
+            if (cacheType == CacheType.PRELOADED && !isInTransaction())
             {
-                storage.eraseUnit(unit);
+                return preloadedCache.get(unit).count(selector) > 0;
             }
-        }, unit);
-        
-        if (cacheType == CacheType.PRELOADED)
-        {
-            if (preloadedCache.containsKey(unit))
+            else if (isOnDemandLookup(unit, selector))
+            {
+                return !selectCachedEntries(unit, null, selector).isEmpty();
+            }
+            else
             {
-                preloadedCache.get(unit).getEntryList().clear();
+                return leading.exists(unit, selector);
             }
         }
-        
-        for (StorageObserver observer : observers)
+        finally
         {
-            observer.afterEraseUnit(unit);
+            unlockUnit(unit, false);
         }
     }
     
     @Override
-    public synchronized void removeUnit(String unit) throws IOException
+    public long countDistinct(String unit, String key, Selector selector)
+            throws IOException
     {
-        log(CustomLevel.INTERNAL, "WrapperStorage#removeUnit("
-                + "\"" + unit + "\")");
+        lockUnit(unit, false);
         
-        leading.removeUnit(unit);
-        
-        walkMirrors(new UnitWalker()
+        try
         {
-            @Override
-            public void walk(Storage storage, String unit) throws IOException
+            log(CustomLevel.INTERNAL, "WrapperStorage#countDistinct("
+                    + "\"" + unit + "\", "
+                    + "\"" + key + "\", "
+                    + SqlUtils.translateSelector(selector, "`", "'") + ")");
+            
+            if (cacheType == CacheType.PRELOADED && !isInTransaction())
             {
-                storage.removeUnit(unit);
+                return preloadedCache.get(unit).countDistinct(key, selector);
             }
-        }, unit);
-        
-        if (cacheType == CacheType.PRELOADED)
-        {
-            if (preloadedCache.containsKey(unit))
+            else
             {
-                preloadedCache.remove(unit);
+                return leading.countDistinct(unit, key, selector);
             }
         }
-        
-        for (StorageObserver observer : observers)
+        finally
         {
-            observer.afterRemoveUnit(unit);
+            unlockUnit(unit, false);
         }
     }
     
-    @Override
-    public synchronized void addKey(
-            String unit, final String key, final DataType type
-    ) throws IOException
+    /**
+     * Counts entries like {@link #count}, but lets a readable mirror
+     * count them; see {@link #selectStaleEntries(String, List, Selector)}.
+     */
+    public long countStale(String unit, Selector selector) throws IOException
     {
-        log(CustomLevel.INTERNAL, "WrapperStorage#addKey("
-                + "\"" + unit + "\", "
-                + "\"" + key + "\", "
-                + type + ")");
-        
-        leading.addKey(unit, key, type);
-        
-        walkMirrors(new UnitWalker()
+        if (cacheType != CacheType.PRELOADED && !isInTransaction())
         {
-            @Override
-            public void walk(Storage storage, String unit) throws IOException
+            acquire(lock.readLock());
+            
+            try
             {
-                UnitKeys keys = storage.getKeys(unit);
+                MirrorReplicator replicator = getReadableMirror();
                 
-                if (!keys.containsKey(key))
+                if (replicator != null)
                 {
-                    storage.addKey(unit, key, type);
+                    log(CustomLevel.INTERNAL, "WrapperStorage#countStale("
+                            + "\"" + unit + "\", "
+                            + SqlUtils.translateSelector(selector, "`", "'") + ")"
+                            + " from " + replicator.getMirror());
+                    
+                    try
+                    {
+                        return replicator.getMirror().count(
+                                replicator.getMappedUnit(unit), selector
+                        );
+                    }
+                    catch (IOException ex)
+                    {
+                        replicator.reportReadFailure();
+                        
+                        log(Level.WARNING, ex);
+                    }
                 }
             }
-        }, unit);
-        
-        if (cacheType == CacheType.PRELOADED)
-        {
-            if (preloadedCache.containsKey(unit))
+            finally
             {
-                for (StorageEntry entry : preloadedCache.get(unit).getEntryList())
-                {
-                    entry.put(key, "");
-                }
-                
-                preloadedCache.get(unit).getKeys().put(key, type);
+                lock.readLock().unlock();
             }
         }
         
-        for (StorageObserver observer : observers)
-        {
-            observer.afterAddKey(unit, key, type);
-        }
+        return count(unit, selector);
     }
     
-    @Override
-    public synchronized void addEntry(
-            String unit, final StorageEntry entry
-    ) throws IOException
+    /**
+     * Counts the distinct values of a key like {@link #countDistinct},
+     * but lets a readable mirror count them; see
+     * {@link #selectStaleEntries(String, List, Selector)}.
+     */
+    public long countStaleDistinct(String unit, String key, Selector selector)
+            throws IOException
     {
-        log(CustomLevel.INTERNAL, "WrapperStorage#addEntry("
-                + "\"" + unit + "\", "
-                + entry + ")");
-        
-        leading.addEntry(unit, entry);
-        
-        walkMirrors(new UnitWalker()
+        if (cacheType != CacheType.PRELOADED && !isInTransaction())
         {
-            @Override
-            public void walk(Storage storage, String unit) throws IOException
+            acquire(lock.readLock());
+            
+            try
             {
-                storage.addEntry(unit, entry);
+                MirrorReplicator replicator = getReadableMirror();
+                
+                if (replicator != null)
+                {
+                    log(CustomLevel.INTERNAL, "WrapperStorage#countStaleDistinct("
+                            + "\"" + unit + "\", "
+                            + "\"" + key + "\", "
+                            + SqlUtils.translateSelector(selector, "`", "'") + ")"
+                            + " from " + replicator.getMirror());
+                    
+                    try
+                    {
+                        return replicator.getMirror().countDistinct(
+                                replicator.getMappedUnit(unit), key, selector
+                        );
+                    }
+                    catch (IOException ex)
+                    {
+                        replicator.reportReadFailure();
+                        
+                        log(Level.WARNING, ex);
+                    }
+                }
             }
-        }, unit);
-        
-        if (cacheType == CacheType.PRELOADED)
-        {
-            if (preloadedCache.containsKey(unit))
+            finally
             {
-                preloadedCache.get(unit).getEntryList().add(entry.copy());
+                lock.readLock().unlock();
             }
         }
         
-        for (StorageObserver observer : observers)
-        {
-            observer.afterAddEntry(unit, entry);
-        }
+        return countDistinct(unit, key, selector);
     }
     
-    @Override
-    public synchronized void updateEntries(
-            String unit, final StorageEntry entrySubset, final Selector selector
+    /**
+     * Selects entries like {@link #selectEntries(String, List, Selector)},
+     * but lets a readable mirror serve them, to spare the leading storage
+     * reads that can do with entries as old as the staleness bound
+     * of the mirror. Nothing that authenticates players may rely on them.
+     * 
+     * <p> The preloaded cache is preferred to mirrors, as it is up to date.
+     * The leading storage is read if no mirror is readable or the mirror fails.
+     * 
+     * @see MirrorReplicator#isReadable()
+     */
+    public List<StorageEntry> selectStaleEntries(
+            String unit, List<String> keys, Selector selector
     ) throws IOException
     {
-        log(CustomLevel.INTERNAL, "WrapperStorage#updateEntries("
-                + "\"" + unit + "\", "
-                + entrySubset + ", "
-                + SqlUtils.translateSelector(selector, "`", "'") + ")");
-        
-        leading.updateEntries(unit, entrySubset, selector);
-        
-        walkMirrors(new UnitWalker()
-        {
-            @Override
-            public void walk(Storage storage, String unit) throws IOException
-            {
-                storage.updateEntries(unit, entrySubset, selector);
-            }
-        }, unit);
-        
-        if (cacheType == CacheType.PRELOADED)
+        if (cacheType != CacheType.PRELOADED && !isInTransaction())
         {
-            if (preloadedCache.containsKey(unit))
+            acquire(lock.readLock());
+            
+            try
             {
-                for (StorageEntry entry : preloadedCache.get(unit).getEntryList())
+                MirrorReplicator replicator = getReadableMirror();
+                
+                if (replicator != null)
                 {
-                    if (SqlUtils.resolveSelector(selector, entry))
+                    log(CustomLevel.INTERNAL, "WrapperStorage#selectStaleEntries("
+                            + "\"" + unit + "\", "
+                            + ((keys != null) ? Arrays.toString(keys.toArray()) : "null") + ", "
+                            + SqlUtils.translateSelector(selector, "`", "'") + ")"
+                            + " from " + replicator.getMirror());
+                    
+                    try
                     {
-                        for (StorageDatum datum : entrySubset)
-                        {
-                            entry.put(datum.getKey(), datum.getValue());
+                        return replicator.getMirror().selectEntries(
+                                replicator.getMappedUnit(unit), keys, selector
+                        );
+                    }
+                    catch (IOException ex)
+                    {
+                        replicator.reportReadFailure();
+                        
+                        log(Level.WARNING, ex);
+                    }
+                }
+            }
+            finally
+            {
+                lock.readLock().unlock();
+            }
+        }
+        
+        return selectEntries(unit, keys, selector);
+    }
+    
+    /**
+     * Opens a cursor like {@link #selectCursor(String, List, Selector)},
+     * but lets a readable mirror serve it; see
+     * {@link #selectStaleEntries(String, List, Selector)}.
+     * 
+     * <p> Only the opening of the cursor falls back to the leading storage;
+     * a mirror failing in the middle of the pass fails the cursor.
+     */
+    public StorageCursor selectStaleCursor(
+            String unit, List<String> keys, Selector selector
+    ) throws IOException
+    {
+        if (cacheType != CacheType.PRELOADED && !isInTransaction())
+        {
+            acquire(lock.readLock());
+            
+            try
+            {
+                MirrorReplicator replicator = getReadableMirror();
+                
+                if (replicator != null)
+                {
+                    log(CustomLevel.INTERNAL, "WrapperStorage#selectStaleCursor("
+                            + "\"" + unit + "\", "
+                            + ((keys != null) ? Arrays.toString(keys.toArray()) : "null") + ", "
+                            + SqlUtils.translateSelector(selector, "`", "'") + ")"
+                            + " from " + replicator.getMirror());
+                    
+                    try
+                    {
+                        return replicator.getMirror().selectCursor(
+                                replicator.getMappedUnit(unit), keys, selector
+                        );
+                    }
+                    catch (IOException ex)
+                    {
+                        replicator.reportReadFailure();
+                        
+                        log(Level.WARNING, ex);
+                    }
+                }
+            }
+            finally
+            {
+                lock.readLock().unlock();
+            }
+        }
+        
+        return selectCursor(unit, keys, selector);
+    }
+    
+    @Override
+    public void createUnit(
+            String unit, UnitKeys keys, String primaryKey
+    ) throws IOException
+    {
+        createUnit(unit, keys, primaryKey, Collections.<String, IndexType>emptyMap());
+    }
+    
+    /**
+     * {@inheritDoc}
+     * 
+     * <p> The indexes are also declared in this storage,
+     * as by {@link #declareIndex}.
+     */
+    @Override
+    public void createUnit(
+            String unit,
+            final UnitKeys keys,
+            final String primaryKey,
+            Map<String, IndexType> indexes
+    ) throws IOException
+    {
+        acquire(lock.writeLock());
+        
+        try
+        {
+            log(CustomLevel.INTERNAL, "WrapperStorage#createUnit("
+                    + "\"" + unit + "\", "
+                    + "UnitKeys {keys: ["
+                            + CollectionUtils.toString(keys.keySet())
+                    + "]}, "
+                    + "\"" + primaryKey + "\", "
+                    + indexes + ")");
+            
+            final Map<String, IndexType> indexesCopy = new LinkedHashMap<>(indexes);
+            
+            leading.createUnit(unit, keys, primaryKey, indexesCopy);
+            
+            walkMirrors(new UnitWalker()
+            {
+                @Override
+                public void walk(Storage storage, String unit) throws IOException
+                {
+                    storage.createUnit(unit, keys, primaryKey, indexesCopy);
+                }
+            }, unit);
+            
+            for (Map.Entry<String, IndexType> e : indexesCopy.entrySet())
+            {
+                putIndexDeclaration(unit, e.getKey(), e.getValue());
+            }
+            
+            if (cacheType == CacheType.PRELOADED)
+            {
+                if (preloadedCache.containsKey(unit))
+                {
+                    for (Map.Entry<String, IndexType> e : indexesCopy.entrySet())
+                    {
+                        preloadedCache.get(unit).addIndex(e.getKey(), e.getValue());
+                    }
+                }
+                else
+                {
+                    PreloadedUnitCache unitCache = createUnitCache(
+                            keys, primaryKey, new LinkedList<StorageEntry>()
+                    );
+                    
+                    addDeclaredIndexes(unit, unitCache);
+                    preloadedCache.put(unit, unitCache);
+                }
+            }
+            
+            for (StorageObserver observer : observers)
+            {
+                observer.afterCreateUnit(unit, keys);
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    @Override
+    public void renameUnit(String unit, String newName)
+            throws IOException
+    {
+        acquire(lock.writeLock());
+        
+        try
+        {
+            log(CustomLevel.INTERNAL, "WrapperStorage#renameUnit("
+                    + "\"" + unit + "\", "
+                    + "\"" + newName + "\")");
+            
+            if (unit.equals(newName))
+                throw new IllegalArgumentException();
+            
+            leading.renameUnit(unit, newName);
+            
+            for (MirrorReplicator replicator : mirrors.values())
+            {
+                replicator.remapUnit(unit, newName);
+            }
+            
+            if (indexDeclarations.containsKey(unit))
+            {
+                indexDeclarations.put(newName, indexDeclarations.remove(unit));
+            }
+            
+            unitLocks.remove(unit);
+            
+            if (cacheType == CacheType.PRELOADED)
+            {
+                if (preloadedCache.containsKey(unit))
+                {
+                    preloadedCache.put(newName, preloadedCache.remove(unit));
+                }
+            }
+            else if (cacheType == CacheType.ON_DEMAND)
+            {
+                if (onDemandCache.containsKey(unit))
+                {
+                    onDemandCache.put(newName, onDemandCache.remove(unit));
+                }
+            }
+            
+            for (StorageObserver observer : observers)
+            {
+                observer.afterRenameUnit(unit, newName);
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    @Override
+    public void eraseUnit(String unit) throws IOException
+    {
+        acquire(lock.writeLock());
+        
+        try
+        {
+            log(CustomLevel.INTERNAL, "WrapperStorage#eraseUnit("
+                    + "\"" + unit + "\")");
+            
+            leading.eraseUnit(unit);
+            
+            walkMirrors(new UnitWalker()
+            {
+                @Override
+                public void walk(Storage storage, String unit) throws IOException
+                {
+                    storage.eraseUnit(unit);
+                }
+            }, unit);
+            
+            if (cacheType == CacheType.PRELOADED)
+            {
+                if (preloadedCache.containsKey(unit))
+                {
+                    preloadedCache.get(unit).clear();
+                }
+            }
+            else if (cacheType == CacheType.ON_DEMAND)
+            {
+                if (onDemandCache.containsKey(unit))
+                {
+                    onDemandCache.get(unit).clear();
+                }
+            }
+            
+            for (StorageObserver observer : observers)
+            {
+                observer.afterEraseUnit(unit);
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    @Override
+    public void removeUnit(String unit) throws IOException
+    {
+        acquire(lock.writeLock());
+        
+        try
+        {
+            log(CustomLevel.INTERNAL, "WrapperStorage#removeUnit("
+                    + "\"" + unit + "\")");
+            
+            leading.removeUnit(unit);
+            
+            walkMirrors(new UnitWalker()
+            {
+                @Override
+                public void walk(Storage storage, String unit) throws IOException
+                {
+                    storage.removeUnit(unit);
+                }
+            }, unit);
+            
+            if (cacheType == CacheType.PRELOADED)
+            {
+                if (preloadedCache.containsKey(unit))
+                {
+                    preloadedCache.remove(unit);
+                }
+            }
+            else if (cacheType == CacheType.ON_DEMAND)
+            {
+                onDemandCache.remove(unit);
+            }
+            
+            unitLocks.remove(unit);
+            
+            for (StorageObserver observer : observers)
+            {
+                observer.afterRemoveUnit(unit);
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    @Override
+    public void addKey(
+            String unit, String key, DataType type
+    ) throws IOException
+    {
+        addKey(unit, key, type, null, "WrapperStorage#addKey("
+                + "\"" + unit + "\", "
+                + "\"" + key + "\", "
+                + type + ")");
+    }
+    
+    /**
+     * {@inheritDoc}
+     * 
+     * <p> The index is also declared in this storage,
+     * as by {@link #declareIndex}.
+     */
+    @Override
+    public void addKey(
+            String unit, String key, DataType type, IndexType indexType
+    ) throws IOException
+    {
+        if (indexType == null)
+            throw new IllegalArgumentException();
+        
+        addKey(unit, key, type, indexType, "WrapperStorage#addKey("
+                + "\"" + unit + "\", "
+                + "\"" + key + "\", "
+                + type + ", "
+                + indexType + ")");
+    }
+    
+    /**
+     * @param indexType the type of index to be created on the key,
+     *                  or {@code null} if the key is not to be indexed.
+     */
+    private void addKey(
+            String unit,
+            final String key,
+            final DataType type,
+            final IndexType indexType,
+            String logMessage
+    ) throws IOException
+    {
+        acquire(lock.writeLock());
+        
+        try
+        {
+            log(CustomLevel.INTERNAL, logMessage);
+            
+            if (indexType != null)
+            {
+                leading.addKey(unit, key, type, indexType);
+            }
+            else
+            {
+                leading.addKey(unit, key, type);
+            }
+            
+            walkMirrors(new UnitWalker()
+            {
+                @Override
+                public void walk(Storage storage, String unit) throws IOException
+                {
+                    UnitKeys keys = storage.getKeys(unit);
+                    
+                    if (keys.containsKey(key))
+                        return;
+                    
+                    if (indexType != null)
+                    {
+                        storage.addKey(unit, key, type, indexType);
+                    }
+                    else
+                    {
+                        storage.addKey(unit, key, type);
+                    }
+                }
+            }, unit);
+            
+            if (indexType != null)
+            {
+                putIndexDeclaration(unit, key, indexType);
+            }
+            
+            if (cacheType == CacheType.PRELOADED)
+            {
+                if (preloadedCache.containsKey(unit))
+                {
+                    preloadedCache.get(unit).addKey(key, type);
+                    
+                    if (indexType != null)
+                    {
+                        preloadedCache.get(unit).addIndex(key, indexType);
+                    }
+                }
+            }
+            else if (cacheType == CacheType.ON_DEMAND)
+            {
+                if (onDemandCache.containsKey(unit))
+                {
+                    onDemandCache.get(unit).addKey(key);
+                }
+            }
+            
+            for (StorageObserver observer : observers)
+            {
+                observer.afterAddKey(unit, key, type);
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    @Override
+    public void addEntry(
+            final String unit, final StorageEntry entry
+    ) throws IOException
+    {
+        lockUnit(unit, true);
+        
+        try
+        {
+            log(CustomLevel.INTERNAL, "WrapperStorage#addEntry("
+                    + "\"" + unit + "\", "
+                    + entry + ")");
+            
+            leading.addEntry(unit, entry);
+            
+            final StorageEntry entryCopy = entry.copy();
+            
+            afterWrite(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    walkMirrors(new UnitWalker()
+                    {
+                        @Override
+                        public void walk(Storage storage, String unit) throws IOException
+                        {
+                            storage.addEntry(unit, entryCopy);
+                        }
+                    }, unit);
+                    
+                    if (cacheType == CacheType.PRELOADED)
+                    {
+                        if (preloadedCache.containsKey(unit))
+                        {
+                            preloadedCache.get(unit).addEntry(entryCopy.copy());
+                        }
+                    }
+                    else if (cacheType == CacheType.ON_DEMAND)
+                    {
+                        OnDemandUnitCache unitCache = onDemandCache.get(unit);
+                        
+                        // The entry may lack keys filled in with defaults by the storage,
+                        // so it is fetched again on the next lookup.
+                        if (unitCache != null && entryCopy.get(unitCache.getPrimaryKey()) != null)
+                        {
+                            unitCache.invalidate(entryCopy.get(unitCache.getPrimaryKey()));
+                        }
+                    }
+                    
+                    for (StorageObserver observer : observers)
+                    {
+                        observer.afterAddEntry(unit, entryCopy);
+                    }
+                }
+            });
+        }
+        finally
+        {
+            unlockUnit(unit, true);
+        }
+    }
+    
+    @Override
+    public void addEntries(
+            final String unit, final List<StorageEntry> entries
+    ) throws IOException
+    {
+        lockUnit(unit, true);
+        
+        try
+        {
+            log(CustomLevel.INTERNAL, "WrapperStorage#addEntries("
+                    + "\"" + unit + "\", "
+                    + entries.size() + " entries)");
+            
+            leading.addEntries(unit, entries);
+            
+            final List<StorageEntry> entryCopies = new ArrayList<>(entries.size());
+            
+            for (StorageEntry entry : entries)
+            {
+                entryCopies.add(entry.copy());
+            }
+            
+            afterWrite(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    walkMirrors(new UnitWalker()
+                    {
+                        @Override
+                        public void walk(Storage storage, String unit) throws IOException
+                        {
+                            storage.addEntries(unit, entryCopies);
+                        }
+                    }, unit);
+                    
+                    if (cacheType == CacheType.PRELOADED)
+                    {
+                        if (preloadedCache.containsKey(unit))
+                        {
+                            PreloadedUnitCache unitCache = preloadedCache.get(unit);
+                            
+                            for (StorageEntry entry : entryCopies)
+                            {
+                                unitCache.addEntry(entry.copy());
+                            }
+                        }
+                    }
+                    else if (cacheType == CacheType.ON_DEMAND)
+                    {
+                        OnDemandUnitCache unitCache = onDemandCache.get(unit);
+                        
+                        if (unitCache != null)
+                        {
+                            for (StorageEntry entry : entryCopies)
+                            {
+                                if (entry.get(unitCache.getPrimaryKey()) != null)
+                                {
+                                    unitCache.invalidate(entry.get(unitCache.getPrimaryKey()));
+                                }
+                            }
+                        }
+                    }
+                    
+                    for (StorageObserver observer : observers)
+                    {
+                        for (StorageEntry entry : entryCopies)
+                        {
+                            observer.afterAddEntry(unit, entry);
+                        }
+                    }
+                }
+            });
+        }
+        finally
+        {
+            unlockUnit(unit, true);
+        }
+    }
+    
+    @Override
+    public void updateEntries(
+            final String unit, final StorageEntry entrySubset, final Selector selector
+    ) throws IOException
+    {
+        lockUnit(unit, true);
+        
+        try
+        {
+            log(CustomLevel.INTERNAL, "WrapperStorage#updateEntries("
+                    + "\"" + unit + "\", "
+                    + entrySubset + ", "
+                    + SqlUtils.translateSelector(selector, "`", "'") + ")");
+            
+            leading.updateEntries(unit, entrySubset, selector);
+            
+            afterWrite(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for (MirrorReplicator replicator : mirrors.values())
+                    {
+                        replicator.enqueueUpdate(unit, entrySubset, selector);
+                    }
+                    
+                    if (cacheType == CacheType.PRELOADED)
+                    {
+                        if (preloadedCache.containsKey(unit))
+                        {
+                            preloadedCache.get(unit).updateEntries(entrySubset, selector);
+                        }
+                    }
+                    else if (cacheType == CacheType.ON_DEMAND)
+                    {
+                        if (onDemandCache.containsKey(unit))
+                        {
+                            onDemandCache.get(unit).update(entrySubset, selector);
+                        }
+                    }
+                    
+                    for (StorageObserver observer : observers)
+                    {
+                        observer.afterUpdateEntries(unit, entrySubset, selector);
+                    }
+                }
+            });
+        }
+        finally
+        {
+            unlockUnit(unit, true);
+        }
+    }
+    
+    @Override
+    public void updateEntriesByKey(
+            final String unit,
+            final String key,
+            final Map<String, StorageEntry> entrySubsets
+    ) throws IOException
+    {
+        lockUnit(unit, true);
+        
+        try
+        {
+            log(CustomLevel.INTERNAL, "WrapperStorage#updateEntriesByKey("
+                    + "\"" + unit + "\", "
+                    + "\"" + key + "\", "
+                    + entrySubsets.size() + " entries)");
+            
+            leading.updateEntriesByKey(unit, key, entrySubsets);
+            
+            afterWrite(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for (Map.Entry<String, StorageEntry> e : entrySubsets.entrySet())
+                    {
+                        StorageEntry entrySubset = e.getValue();
+                        Selector selector = new SelectorCondition(key, Infix.EQUALS, e.getKey());
+                        
+                        for (MirrorReplicator replicator : mirrors.values())
+                        {
+                            replicator.enqueueUpdate(unit, entrySubset, selector);
+                        }
+                        
+                        if (cacheType == CacheType.PRELOADED)
+                        {
+                            if (preloadedCache.containsKey(unit))
+                            {
+                                preloadedCache.get(unit).updateEntries(entrySubset, selector);
+                            }
+                        }
+                        else if (cacheType == CacheType.ON_DEMAND)
+                        {
+                            if (onDemandCache.containsKey(unit))
+                            {
+                                onDemandCache.get(unit).update(entrySubset, selector);
+                            }
+                        }
+                        
+                        for (StorageObserver observer : observers)
+                        {
+                            observer.afterUpdateEntries(unit, entrySubset, selector);
+                        }
+                    }
+                }
+            });
+        }
+        finally
+        {
+            unlockUnit(unit, true);
+        }
+    }
+    
+    @Override
+    public void upsertEntry(
+            final String unit, final String key, final StorageEntry entry
+    ) throws IOException
+    {
+        lockUnit(unit, true);
+        
+        try
+        {
+            log(CustomLevel.INTERNAL, "WrapperStorage#upsertEntry("
+                    + "\"" + unit + "\", "
+                    + "\"" + key + "\", "
+                    + entry + ")");
+            
+            leading.upsertEntry(unit, key, entry);
+            
+            final StorageEntry entryCopy = entry.copy();
+            
+            afterWrite(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    walkMirrors(new UnitWalker()
+                    {
+                        @Override
+                        public void walk(Storage storage, String unit) throws IOException
+                        {
+                            storage.upsertEntry(unit, key, entryCopy);
+                        }
+                    }, unit);
+                    
+                    if (cacheType == CacheType.PRELOADED)
+                    {
+                        if (preloadedCache.containsKey(unit))
+                        {
+                            PreloadedUnitCache unitCache = preloadedCache.get(unit);
+                            Selector selector =
+                                    new SelectorCondition(key, Infix.EQUALS, entryCopy.get(key));
+                            
+                            if (unitCache.selectEntries(selector).isEmpty())
+                            {
+                                unitCache.addEntry(entryCopy.copy());
+                            }
+                            else
+                            {
+                                unitCache.updateEntries(entryCopy, selector);
+                            }
+                        }
+                    }
+                    else if (cacheType == CacheType.ON_DEMAND)
+                    {
+                        if (onDemandCache.containsKey(unit))
+                        {
+                            onDemandCache.get(unit).invalidate(entryCopy.get(key));
                         }
                     }
+                    
+                    for (StorageObserver observer : observers)
+                    {
+                        observer.afterUpsertEntry(unit, key, entryCopy);
+                    }
+                }
+            });
+        }
+        finally
+        {
+            unlockUnit(unit, true);
+        }
+    }
+    
+    @Override
+    public void removeEntries(
+            final String unit, final Selector selector
+    ) throws IOException
+    {
+        lockUnit(unit, true);
+        
+        try
+        {
+            log(CustomLevel.INTERNAL, "WrapperStorage#removeEntries("
+                    + "\"" + unit + "\", "
+                    + SqlUtils.translateSelector(selector, "`", "'") + ")");
+            
+            leading.removeEntries(unit, selector);
+            
+            afterWrite(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    walkMirrors(new UnitWalker()
+                    {
+                        @Override
+                        public void walk(Storage storage, String unit) throws IOException
+                        {
+                            storage.removeEntries(unit, selector);
+                        }
+                    }, unit);
+                    
+                    if (cacheType == CacheType.PRELOADED)
+                    {
+                        if (preloadedCache.containsKey(unit))
+                        {
+                            preloadedCache.get(unit).removeEntries(selector);
+                        }
+                    }
+                    else if (cacheType == CacheType.ON_DEMAND)
+                    {
+                        if (onDemandCache.containsKey(unit))
+                        {
+                            onDemandCache.get(unit).remove(selector);
+                        }
+                    }
+                    
+                    for (StorageObserver observer : observers)
+                    {
+                        observer.afterRemoveEntries(unit, selector);
+                    }
+                }
+            });
+        }
+        finally
+        {
+            unlockUnit(unit, true);
+        }
+    }
+    
+    @Override
+    public boolean isAutobatchEnabled()
+    {
+        return leading.isAutobatchEnabled();
+    }
+    
+    @Override
+    public void setAutobatchEnabled(final boolean status)
+    {
+        acquire(lock.writeLock());
+        
+        try
+        {
+            leading.setAutobatchEnabled(status);
+            
+            walkMirrors(new UnitWalker()
+            {
+                @Override
+                public void walk(Storage storage, String unit)
+                {
+                    storage.setAutobatchEnabled(status);
+                }
+            }, null);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    @Override
+    public void executeBatch() throws IOException
+    {
+        acquire(lock.writeLock());
+        
+        try
+        {
+            leading.executeBatch();
+            
+            walkMirrors(new UnitWalker()
+            {
+                @Override
+                public void walk(Storage storage, String unit) throws IOException
+                {
+                    storage.executeBatch();
+                }
+            }, null);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    @Override
+    public void clearBatch() throws IOException
+    {
+        acquire(lock.writeLock());
+        
+        try
+        {
+            leading.clearBatch();
+            
+            walkMirrors(new UnitWalker()
+            {
+                @Override
+                public void walk(Storage storage, String unit) throws IOException
+                {
+                    storage.clearBatch();
+                }
+            }, null);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    @Override
+    public void beginTransaction() throws IOException
+    {
+        if (isInTransaction())
+            throw new IllegalStateException("Transaction already in progress.");
+        
+        acquire(lock.writeLock());
+        
+        try
+        {
+            log(CustomLevel.INTERNAL, "WrapperStorage#beginTransaction()");
+            
+            leading.beginTransaction();
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            lock.writeLock().unlock();
+            
+            throw ex;
+        }
+        
+        transactionEffects = new ArrayList<>();
+    }
+    
+    @Override
+    public void commitTransaction() throws IOException
+    {
+        List<Runnable> effects = endTransaction();
+        
+        try
+        {
+            log(CustomLevel.INTERNAL, "WrapperStorage#commitTransaction()");
+            
+            leading.commitTransaction();
+            
+            for (Runnable effect : effects)
+            {
+                effect.run();
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    @Override
+    public void rollbackTransaction() throws IOException
+    {
+        endTransaction();
+        
+        try
+        {
+            log(CustomLevel.INTERNAL, "WrapperStorage#rollbackTransaction()");
+            
+            leading.rollbackTransaction();
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Declares a secondary index on a key of a unit.
+     * 
+     * <p> The index is maintained by the {@code PRELOADED} cache of the unit,
+     * which uses it to resolve selectors without checking every entry.
+     * The declaration has no effect with other cache types.
+     */
+    public void declareIndex(
+            String unit, String key, IndexType type
+    )
+    {
+        if (unit == null || key == null || type == null)
+            throw new IllegalArgumentException();
+        
+        acquire(lock.writeLock());
+        
+        try
+        {
+            putIndexDeclaration(unit, key, type);
+            
+            if (cacheType == CacheType.PRELOADED)
+            {
+                if (preloadedCache.containsKey(unit))
+                {
+                    preloadedCache.get(unit).addIndex(key, type);
+                }
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    public Map<String, IndexType> getDeclaredIndexes(String unit)
+    {
+        acquire(lock.readLock());
+        
+        try
+        {
+            Map<String, IndexType> unitIndexes = indexDeclarations.get(unit);
+            
+            if (unitIndexes == null)
+                return new LinkedHashMap<>();
+            
+            return new LinkedHashMap<>(unitIndexes);
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+    
+    public void mirrorStorage(
+            Storage storage, Map<String, String> unitMappings
+    )
+    {
+        mirrorStorage(storage, unitMappings, MirrorReplicator.NO_READS);
+    }
+    
+    /**
+     * @param maxStaleness how far behind, in milliseconds, the mirror may lag
+     *                     and still serve stale reads, or
+     *                     {@link MirrorReplicator#NO_READS} to keep them off it.
+     * 
+     * @see #selectStaleEntries(String, List, Selector)
+     */
+    public void mirrorStorage(
+            Storage storage, Map<String, String> unitMappings, long maxStaleness
+    )
+    {
+        if (storage == null || unitMappings == null)
+            throw new IllegalArgumentException();
+        
+        acquire(lock.writeLock());
+        
+        try
+        {
+            if (!mirrors.containsKey(storage))
+            {
+                MirrorReplicator replicator = new MirrorReplicator(
+                        storage, unitMappings, mirrorQueueCapacity, maxStaleness
+                );
+                
+                replicator.start();
+                mirrors.put(storage, replicator);
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    public void mirrorStorage(Storage storage)
+    {
+        acquire(lock.writeLock());
+        
+        try
+        {
+            mirrorStorage(storage, new HashMap<String, String>());
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    public void unmirrorStorage(Storage storage)
+    {
+        acquire(lock.writeLock());
+        
+        try
+        {
+            MirrorReplicator replicator = mirrors.remove(storage);
+            
+            if (replicator != null)
+            {
+                replicator.shutdown(MIRROR_SHUTDOWN_TIMEOUT);
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    public void unmirrorAll()
+    {
+        acquire(lock.writeLock());
+        
+        try
+        {
+            for (MirrorReplicator replicator : mirrors.values())
+            {
+                replicator.shutdown(MIRROR_SHUTDOWN_TIMEOUT);
+            }
+            
+            mirrors.clear();
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    public void addObserver(StorageObserver observer)
+    {
+        if (observer == null)
+            throw new IllegalArgumentException();
+        
+        acquire(lock.writeLock());
+        
+        try
+        {
+            if (!observers.contains(observer))
+            {
+                observers.add(observer);
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    public void deleteObserver(StorageObserver observer)
+    {
+        acquire(lock.writeLock());
+        
+        try
+        {
+            observers.remove(observer);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    public void deleteObservers()
+    {
+        acquire(lock.writeLock());
+        
+        try
+        {
+            observers.clear();
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    public int countObservers()
+    {
+        acquire(lock.readLock());
+        
+        try
+        {
+            return observers.size();
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+    
+    public Storage getLeadingStorage()
+    {
+        return leading;
+    }
+    
+    /**
+     * Starts comparing a unit with its counterpart in a mirror
+     * and fixing the entries that differ, in the background.
+     * 
+     * @param rangeSize the number of primary-key values compared at a time.
+     * @param throttle  how long, in milliseconds, to pause between ranges.
+     * 
+     * @return the started resynchronization.
+     */
+    public MirrorResync resyncMirror(
+            Storage mirror, String unit, int rangeSize, long throttle
+    )
+    {
+        if (mirror == null || unit == null || rangeSize < 1 || throttle < 0)
+            throw new IllegalArgumentException();
+        
+        MirrorResync resync;
+        
+        acquire(lock.readLock());
+        
+        try
+        {
+            MirrorReplicator replicator = mirrors.get(mirror);
+            
+            if (replicator == null)
+                throw new IllegalArgumentException("Not a mirror: " + mirror);
+            
+            resync = new MirrorResync(this, replicator, unit, rangeSize, throttle);
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+        
+        resync.start();
+        
+        return resync;
+    }
+    
+    /**
+     * Returns the replicators of all the mirrors,
+     * which report how far behind each mirror is.
+     */
+    public List<MirrorReplicator> getMirrorReplicators()
+    {
+        acquire(lock.readLock());
+        
+        try
+        {
+            return new ArrayList<>(mirrors.values());
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Returns the number of stale reads routed to mirrors.
+     */
+    public long getMirrorReadCount()
+    {
+        return mirrorReadCount.get();
+    }
+    
+    /**
+     * Returns the number of times a caller had to wait for a lock
+     * held by another thread.
+     */
+    public long getLockContentionCount()
+    {
+        return lockContentionCount.get();
+    }
+    
+    /**
+     * Returns the number of lookups answered by the on-demand cache.
+     */
+    public long getCacheHitCount()
+    {
+        acquire(lock.readLock());
+        
+        try
+        {
+            long count = 0;
+            
+            if (onDemandCache != null)
+            {
+                for (OnDemandUnitCache unitCache : onDemandCache.values())
+                {
+                    count += unitCache.getHitCount();
                 }
             }
+            
+            return count;
+        }
+        finally
+        {
+            lock.readLock().unlock();
         }
+    }
+    
+    /**
+     * Returns the number of lookups the on-demand cache
+     * had to pass on to the leading storage.
+     */
+    public long getCacheMissCount()
+    {
+        acquire(lock.readLock());
         
-        for (StorageObserver observer : observers)
+        try
+        {
+            long count = 0;
+            
+            if (onDemandCache != null)
+            {
+                for (OnDemandUnitCache unitCache : onDemandCache.values())
+                {
+                    count += unitCache.getMissCount();
+                }
+            }
+            
+            return count;
+        }
+        finally
         {
-            observer.afterUpdateEntries(unit, entrySubset, selector);
+            lock.readLock().unlock();
         }
     }
     
-    @Override
-    public synchronized void removeEntries(
-            String unit, final Selector selector
+    /**
+     * Returns the number of entries evicted from the on-demand cache,
+     * either for exceeding its size or its time-to-live.
+     */
+    public long getCacheEvictionCount()
+    {
+        acquire(lock.readLock());
+        
+        try
+        {
+            long count = 0;
+            
+            if (onDemandCache != null)
+            {
+                for (OnDemandUnitCache unitCache : onDemandCache.values())
+                {
+                    count += unitCache.getEvictionCount();
+                }
+            }
+            
+            return count;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Answers a selection from the on-demand cache if the selector limits
+     * the primary key of the unit to one or more values; otherwise,
+     * queries the leading storage.
+     * 
+     * <p> Values missing from the cache are fetched from the leading storage
+     * with a single query.
+     * 
+     * @param keys the keys to be selected, or {@code null} for all keys.
+     */
+    private List<StorageEntry> selectCachedEntries(
+            String unit, List<String> keys, Selector selector
     ) throws IOException
     {
-        log(CustomLevel.INTERNAL, "WrapperStorage#removeEntries("
-                + "\"" + unit + "\", "
-                + SqlUtils.translateSelector(selector, "`", "'") + ")");
+        OnDemandUnitCache unitCache = getOnDemandUnitCache(unit);
+        List<String> primaryKeyValues = null;
         
-        leading.removeEntries(unit, selector);
+        if (unitCache != null)
+        {
+            primaryKeyValues = SqlUtils.findMembershipOperands(
+                    selector, unitCache.getPrimaryKey()
+            );
+        }
         
-        walkMirrors(new UnitWalker()
+        if (primaryKeyValues == null)
         {
-            @Override
-            public void walk(Storage storage, String unit) throws IOException
+            if (keys == null)
+            {
+                return leading.selectEntries(unit, selector);
+            }
+            else
             {
-                storage.removeEntries(unit, selector);
+                return leading.selectEntries(unit, keys, selector);
             }
-        }, unit);
+        }
         
-        if (cacheType == CacheType.PRELOADED)
+        String primaryKey = unitCache.getPrimaryKey();
+        List<StorageEntry> entries = new ArrayList<>();
+        List<String> missedValues = new ArrayList<>();
+        
+        for (String primaryKeyValue : primaryKeyValues)
+        {
+            List<StorageEntry> cachedEntries = unitCache.lookup(primaryKeyValue);
+            
+            if (cachedEntries == null)
+            {
+                missedValues.add(primaryKeyValue);
+            }
+            else
+            {
+                entries.addAll(cachedEntries);
+            }
+        }
+        
+        if (!missedValues.isEmpty())
         {
-            if (preloadedCache.containsKey(unit))
+            Selector missedSelector = (missedValues.size() == 1)
+                    ? new SelectorCondition(primaryKey, Infix.EQUALS, missedValues.get(0))
+                    : new SelectorIn(primaryKey, missedValues);
+            List<StorageEntry> fetchedEntries =
+                    leading.selectEntries(unit, missedSelector);
+            
+            entries.addAll(fetchedEntries);
+            
+            // Queued writes have not reached the leading storage yet,
+            // so what it returns now may be outdated.
+            if (!leading.isAutobatchEnabled())
             {
-                Iterator<StorageEntry> entryIt =
-                        preloadedCache.get(unit).getEntryList().iterator();
+                Map<String, List<StorageEntry>> entriesByValue = new HashMap<>();
                 
-                while (entryIt.hasNext())
+                for (StorageEntry entry : fetchedEntries)
                 {
-                    StorageEntry entry = entryIt.next();
+                    List<StorageEntry> valueEntries = new ArrayList<>(1);
+                    valueEntries.add(entry);
                     
-                    if (SqlUtils.resolveSelector(selector, entry))
-                    {
-                        entryIt.remove();
-                    }
+                    entriesByValue.put(entry.get(primaryKey), valueEntries);
+                }
+                
+                for (String primaryKeyValue : missedValues)
+                {
+                    List<StorageEntry> valueEntries = entriesByValue.get(primaryKeyValue);
+                    
+                    unitCache.store(primaryKeyValue, (valueEntries != null)
+                            ? valueEntries : Collections.<StorageEntry>emptyList());
                 }
             }
         }
         
-        for (StorageObserver observer : observers)
-        {
-            observer.afterRemoveEntries(unit, selector);
-        }
+        return StorageEntry.copyList(entries, keys, selector);
     }
     
-    @Override
-    public boolean isAutobatchEnabled()
+    private void putIndexDeclaration(String unit, String key, IndexType type)
     {
-        return leading.isAutobatchEnabled();
+        Map<String, IndexType> unitIndexes = indexDeclarations.get(unit);
+        
+        if (unitIndexes == null)
+        {
+            unitIndexes = new LinkedHashMap<>();
+            indexDeclarations.put(unit, unitIndexes);
+        }
+        
+        unitIndexes.put(key, type);
     }
     
-    @Override
-    public synchronized void setAutobatchEnabled(boolean status)
+    private PreloadedUnitCache createUnitCache(
+            UnitKeys keys, String primaryKey, List<StorageEntry> entries
+    )
     {
-        leading.setAutobatchEnabled(status);
-        
-        for (Storage mirror : mirrors.keySet())
+        if (columnarCache)
+        {
+            return new ColumnarUnitCache(keys, primaryKey, entries);
+        }
+        else
         {
-            mirror.setAutobatchEnabled(status);
+            return new HeapUnitCache(keys, primaryKey, entries);
         }
     }
     
-    @Override
-    public synchronized void executeBatch() throws IOException
+    /**
+     * Loads a unit of the leading storage into a new preloaded cache.
+     * 
+     * <p> The columnar cache is filled through a cursor,
+     * so that the unit is never held on the heap as a whole.
+     */
+    private PreloadedUnitCache loadUnitCache(String unit) throws IOException
     {
-        leading.executeBatch();
+        UnitKeys keys = leading.getKeys(unit);
+        String primaryKey = leading.getPrimaryKey(unit);
         
-        executorService.submit(new Runnable()
+        if (!columnarCache)
         {
-            @Override
-            public void run()
+            return createUnitCache(keys, primaryKey, leading.selectEntries(unit));
+        }
+        
+        PreloadedUnitCache unitCache = createUnitCache(
+                keys, primaryKey, new LinkedList<StorageEntry>()
+        );
+        
+        try (StorageCursor cursor =
+                leading.selectCursor(unit, null, new SelectorConstant(true)))
+        {
+            while (cursor.hasNext())
             {
-                for (Storage mirror : mirrors.keySet())
-                {
-                    try
-                    {
-                        mirror.executeBatch();
-                    }
-                    catch (IOException ex)
-                    {
-                        log(Level.WARNING, ex);
-                    }
-                }
+                unitCache.addEntry(cursor.next());
             }
-        });
+        }
+        
+        return unitCache;
     }
     
-    @Override
-    public synchronized void clearBatch() throws IOException
+    private void addDeclaredIndexes(String unit, PreloadedUnitCache unitCache)
     {
-        leading.clearBatch();
+        Map<String, IndexType> unitIndexes = indexDeclarations.get(unit);
         
-        for (Storage mirror : mirrors.keySet())
+        if (unitIndexes == null)
+            return;
+        
+        for (Map.Entry<String, IndexType> e : unitIndexes.entrySet())
         {
-            mirror.clearBatch();
+            unitCache.addIndex(e.getKey(), e.getValue());
         }
     }
     
-    public synchronized void mirrorStorage(
-            Storage storage, Map<String, String> unitMappings
-    )
+    /**
+     * Checks whether a read can be answered from the on-demand cache,
+     * which only holds entries looked up by primary key.
+     */
+    private boolean isOnDemandLookup(String unit, Selector selector)
+            throws IOException
     {
-        if (storage == null || unitMappings == null)
-            throw new IllegalArgumentException();
+        if (cacheType != CacheType.ON_DEMAND || isInTransaction())
+            return false;
         
-        if (!mirrors.containsKey(storage))
-        {
-            mirrors.put(storage, unitMappings);
-        }
+        OnDemandUnitCache unitCache = getOnDemandUnitCache(unit);
+        
+        return unitCache != null && SqlUtils.findMembershipOperands(
+                selector, unitCache.getPrimaryKey()
+        ) != null;
     }
     
-    public synchronized void mirrorStorage(Storage storage)
+    private OnDemandUnitCache getOnDemandUnitCache(String unit)
+            throws IOException
     {
-        mirrorStorage(storage, new HashMap<String, String>());
+        OnDemandUnitCache unitCache = onDemandCache.get(unit);
+        
+        if (unitCache == null)
+        {
+            String primaryKey = leading.getPrimaryKey(unit);
+            
+            if (primaryKey == null)
+                return null;
+            
+            unitCache = new OnDemandUnitCache(
+                    primaryKey, onDemandCacheMaxSize, onDemandCacheTtl
+            );
+            
+            // Selections of different units may get here concurrently.
+            OnDemandUnitCache existingUnitCache =
+                    onDemandCache.putIfAbsent(unit, unitCache);
+            
+            if (existingUnitCache != null)
+            {
+                unitCache = existingUnitCache;
+            }
+        }
+        
+        return unitCache;
     }
     
-    public synchronized void unmirrorStorage(Storage storage)
+    /**
+     * Acquires a lock, counting the acquisition as contended
+     * if the lock is held by another thread.
+     */
+    private void acquire(Lock lock)
     {
-        mirrors.remove(storage);
+        if (!lock.tryLock())
+        {
+            lockContentionCount.incrementAndGet();
+            lock.lock();
+        }
     }
     
-    public synchronized void unmirrorAll()
+    /**
+     * Acquires shared access to the wrapper and either shared
+     * or exclusive access to a unit.
+     */
+    void lockUnit(String unit, boolean exclusive)
     {
-        mirrors.clear();
+        if (unit == null)
+            throw new IllegalArgumentException();
+        
+        acquire(lock.readLock());
+        
+        ReadWriteLock unitLock = getUnitLock(unit);
+        
+        acquire(exclusive ? unitLock.writeLock() : unitLock.readLock());
     }
     
-    public synchronized void addObserver(StorageObserver observer)
+    void unlockUnit(String unit, boolean exclusive)
     {
-        if (observer == null)
-            throw new IllegalArgumentException();
+        ReadWriteLock unitLock = unitLocks.get(unit);
         
-        if (!observers.contains(observer))
+        if (exclusive)
         {
-            observers.add(observer);
+            unitLock.writeLock().unlock();
         }
+        else
+        {
+            unitLock.readLock().unlock();
+        }
+        
+        lock.readLock().unlock();
     }
     
-    public synchronized void deleteObserver(StorageObserver observer)
+    private ReadWriteLock getUnitLock(String unit)
     {
-        observers.remove(observer);
+        ReadWriteLock unitLock = unitLocks.get(unit);
+        
+        if (unitLock == null)
+        {
+            ReadWriteLock newUnitLock = new ReentrantReadWriteLock();
+            
+            unitLock = unitLocks.putIfAbsent(unit, newUnitLock);
+            
+            if (unitLock == null)
+            {
+                unitLock = newUnitLock;
+            }
+        }
+        
+        return unitLock;
     }
     
-    public synchronized void deleteObservers()
+    private boolean isInTransaction()
     {
-        observers.clear();
+        return lock.isWriteLockedByCurrentThread() && transactionEffects != null;
     }
     
-    public synchronized int countObservers()
+    /**
+     * Detaches the transaction in progress from the calling thread,
+     * which keeps exclusive access to the wrapper until it releases it.
+     * 
+     * @return the effects of the writes made in the transaction.
+     */
+    private List<Runnable> endTransaction()
     {
-        return observers.size();
+        if (!isInTransaction())
+            throw new IllegalStateException("No transaction in progress.");
+        
+        List<Runnable> effects = transactionEffects;
+        transactionEffects = null;
+        
+        return effects;
     }
     
-    public Storage getLeadingStorage()
+    /**
+     * Passes an entry write on to mirrors, the cache and observers, or,
+     * inside a transaction, holds it back until the transaction is committed.
+     */
+    private void afterWrite(Runnable effects)
     {
-        return leading;
+        if (isInTransaction())
+        {
+            transactionEffects.add(effects);
+        }
+        else
+        {
+            effects.run();
+        }
     }
     
-    private void walkMirrors(final UnitWalker walker, final String unit)
+    /**
+     * Picks a mirror to serve a stale read, taking turns
+     * between the readable ones.
+     * 
+     * @return the replicator of the mirror, or {@code null} if none is readable.
+     */
+    private MirrorReplicator getReadableMirror()
     {
-        executorService.submit(new Runnable()
+        List<MirrorReplicator> readableMirrors = new ArrayList<>(mirrors.size());
+        
+        for (MirrorReplicator replicator : mirrors.values())
         {
-            @Override
-            public void run()
+            if (replicator.isReadable())
             {
-                for (Map.Entry<Storage, Map<String, String>> e : mirrors.entrySet())
-                {
-                    String unitMapping = e.getValue().get(unit);
-                    
-                    if (unitMapping == null)
-                    {
-                        unitMapping = unit;
-                    }
-                    
-                    try
-                    {
-                        walker.walk(e.getKey(), unitMapping);
-                    }
-                    catch (IOException ex)
-                    {
-                        log(Level.WARNING, ex);
-                    }
-                }
+                readableMirrors.add(replicator);
             }
-        });
+        }
+        
+        if (readableMirrors.isEmpty())
+            return null;
+        
+        long turn = mirrorReadCount.getAndIncrement();
+        
+        return readableMirrors.get((int) (turn % readableMirrors.size()));
+    }
+    
+    /**
+     * Queues an operation on every mirror.
+     * 
+     * @param unit the unit the operation is made on, or {@code null}
+     *             if it is not specific to a unit.
+     */
+    private void walkMirrors(UnitWalker walker, String unit)
+    {
+        for (MirrorReplicator replicator : mirrors.values())
+        {
+            replicator.enqueue(unit, walker);
+        }
     }
     
     private void log(Level level, String message)
@@ -766,7 +2385,8 @@ public final class WrapperStorage implements Storage
     {
         public WrapperStorage build()
         {
-            return new WrapperStorage(leading, cacheType);
+            return new WrapperStorage(leading, cacheType, columnarCache,
+                    onDemandCacheMaxSize, onDemandCacheTtl, mirrorQueueCapacity);
         }
         
         public Builder leading(Storage leading)
@@ -789,25 +2409,122 @@ public final class WrapperStorage implements Storage
             return this;
         }
         
+        /**
+         * @param columnarCache whether the {@code PRELOADED} cache keeps
+         *                      entries off the heap in a {@link ColumnarUnitCache},
+         *                      rather than on the heap in a {@link HeapUnitCache}.
+         */
+        public Builder columnarCache(boolean columnarCache)
+        {
+            this.columnarCache = columnarCache;
+            
+            return this;
+        }
+        
+        /**
+         * @param onDemandCacheMaxSize the maximum number of entries per unit
+         *                             held by the {@code ON_DEMAND} cache.
+         */
+        public Builder onDemandCacheMaxSize(int onDemandCacheMaxSize)
+        {
+            if (onDemandCacheMaxSize < 1)
+                throw new IllegalArgumentException();
+            
+            this.onDemandCacheMaxSize = onDemandCacheMaxSize;
+            
+            return this;
+        }
+        
+        /**
+         * @param onDemandCacheTtl how long, in milliseconds, an entry held
+         *                         by the {@code ON_DEMAND} cache stays valid;
+         *                         0 means forever.
+         */
+        public Builder onDemandCacheTtl(long onDemandCacheTtl)
+        {
+            if (onDemandCacheTtl < 0)
+                throw new IllegalArgumentException();
+            
+            this.onDemandCacheTtl = onDemandCacheTtl;
+            
+            return this;
+        }
+        
+        /**
+         * @param mirrorQueueCapacity the maximum number of operations
+         *                            waiting to be replicated to a mirror.
+         */
+        public Builder mirrorQueueCapacity(int mirrorQueueCapacity)
+        {
+            if (mirrorQueueCapacity < 1)
+                throw new IllegalArgumentException();
+            
+            this.mirrorQueueCapacity = mirrorQueueCapacity;
+            
+            return this;
+        }
+        
         private Storage leading;
         private CacheType cacheType;
+        private boolean columnarCache = false;
+        private int onDemandCacheMaxSize = DEFAULT_ON_DEMAND_CACHE_MAX_SIZE;
+        private long onDemandCacheTtl = DEFAULT_ON_DEMAND_CACHE_TTL;
+        private int mirrorQueueCapacity = DEFAULT_MIRROR_QUEUE_CAPACITY;
     }
     
-    private static interface UnitWalker
+    static interface UnitWalker
     {
         public void walk(Storage storage, String unit) throws IOException;
     }
     
+    public static final int DEFAULT_ON_DEMAND_CACHE_MAX_SIZE = 10000;
+    public static final long DEFAULT_ON_DEMAND_CACHE_TTL = 600000L;
+    public static final int DEFAULT_MIRROR_QUEUE_CAPACITY = 10000;
+    
+    /**
+     * How long, in milliseconds, a mirror is given to catch up
+     * before it is closed or detached.
+     */
+    private static final long MIRROR_SHUTDOWN_TIMEOUT = 10000L;
+    
     /**
-     * Used to update mirrors in the background.
+     * Used to ping the leading storage in the background.
      */
     private final ExecutorService executorService;
     
     private final Storage leading;
     private final CacheType cacheType;
+    private final boolean columnarCache;
     
-    private final Map<Storage, Map<String, String>> mirrors = new HashMap<>();
+    private final Map<Storage, MirrorReplicator> mirrors = new HashMap<>();
     private final List<StorageObserver> observers = new ArrayList<>();
+    private final Map<String, Map<String, IndexType>> indexDeclarations =
+            new HashMap<>();
     
     private Map<String, PreloadedUnitCache> preloadedCache;
+    
+    private final int onDemandCacheMaxSize;
+    private final long onDemandCacheTtl;
+    private final int mirrorQueueCapacity;
+    private ConcurrentMap<String, OnDemandUnitCache> onDemandCache;
+    
+    /**
+     * Guards the structure of the wrapper; held shared by entry operations
+     * and exclusively by everything else that modifies the wrapper.
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    
+    /**
+     * Guards the entries of each unit, along with their caches.
+     */
+    private final ConcurrentMap<String, ReadWriteLock> unitLocks =
+            new ConcurrentHashMap<>();
+    private final AtomicLong lockContentionCount = new AtomicLong();
+    private final AtomicLong mirrorReadCount = new AtomicLong();
+    
+    /**
+     * The effects of the writes made in the transaction in progress,
+     * which holds the exclusive lock; {@code null} outside a transaction.
+     */
+    private List<Runnable> transactionEffects;
 }